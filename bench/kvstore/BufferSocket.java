@@ -0,0 +1,46 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A Socket that reads from a byte array and writes to a buffer, so that
+ * KVMessage encoding and decoding can be measured without a network.
+ */
+class BufferSocket extends Socket {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private byte[] in = new byte[0];
+
+  void setInput(byte[] in) {
+    this.in = in;
+  }
+
+  byte[] takeOutput() {
+    byte[] written = out.toByteArray();
+    out.reset();
+    return written;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new ByteArrayInputStream(in);
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return out;
+  }
+
+  @Override
+  public void setSoTimeout(int timeout) {
+  }
+
+  @Override
+  public void shutdownOutput() {
+  }
+
+}
@@ -0,0 +1,87 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVCache get, put and evict on a single set-associative cache. Each thread
+ * has its own cache, so no set locks are involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KVCacheBenchmark {
+
+  private static final int NUM_SETS = 100;
+  private static final int FRESH_KEYS = 1 << 16;
+
+  @Param({"10", "64"})
+  int maxElemsPerSet;
+
+  @Param({"false", "true"})
+  boolean compressed;
+
+  private KVCache cache;
+  private KVKey[] resident;
+  private KVKey[] fresh;
+  private int next;
+
+  @Setup
+  public void setup() {
+    cache = new KVCache(NUM_SETS, maxElemsPerSet, compressed ? new ValueCompressor() : null);
+    List<KVKey> keys = new ArrayList<>();
+    for (int i = 0; i < NUM_SETS * maxElemsPerSet; i++) {
+      KVKey key = KVKey.of("resident" + i);
+      cache.put(key, "value" + i);
+      keys.add(key);
+    }
+    List<KVKey> present = new ArrayList<>();
+    for (KVKey key : keys) {
+      if (cache.get(key) != null) {
+        present.add(key);
+      }
+    }
+    resident = present.toArray(new KVKey[present.size()]);
+    fresh = new KVKey[FRESH_KEYS];
+    for (int i = 0; i < FRESH_KEYS; i++) {
+      fresh[i] = KVKey.of("fresh" + i);
+    }
+  }
+
+  @Benchmark
+  public String getHit() {
+    return cache.get(resident[next++ % resident.length]);
+  }
+
+  @Benchmark
+  public String getMiss() {
+    return cache.get(fresh[next++ & (FRESH_KEYS - 1)]);
+  }
+
+  @Benchmark
+  public void putUpdate() {
+    cache.put(resident[next++ % resident.length], "updated");
+  }
+
+  @Benchmark
+  public void putEvict() {
+    // The cache is full, so every new key displaces one
+    cache.put(fresh[next++ & (FRESH_KEYS - 1)], "value");
+  }
+
+}
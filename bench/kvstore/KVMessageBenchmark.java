@@ -0,0 +1,59 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVMessage encoding to and decoding from XML, through a BufferSocket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KVMessageBenchmark {
+
+  @Param({"16", "4096"})
+  int valueSize;
+
+  private BufferSocket socket;
+  private KVMessage put;
+  private byte[] encoded;
+
+  @Setup
+  public void setup() throws KVException {
+    char[] value = new char[valueSize];
+    Arrays.fill(value, 'v');
+    put = new KVMessage(KVConstants.PUT_REQ);
+    put.setKey("benchmark-key");
+    put.setValue(new String(value));
+    socket = new BufferSocket();
+    put.sendMessage(socket);
+    encoded = socket.takeOutput();
+    socket.setInput(encoded);
+  }
+
+  @Benchmark
+  public byte[] encodePut() throws KVException {
+    put.sendMessage(socket);
+    return socket.takeOutput();
+  }
+
+  @Benchmark
+  public KVMessage decodePut() throws KVException {
+    return new KVMessage(socket);
+  }
+
+}
@@ -0,0 +1,72 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A KVClient request to a KVServer over loopback: connect, encode, queue,
+ * serve, decode. This is the whole single-node request path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KVServerRoundTripBenchmark {
+
+  private static final String HOST = "localhost";
+
+  private SocketServer socketServer;
+  private Thread serverThread;
+  private KVClient client;
+
+  @Setup
+  public void setup() throws IOException, KVException {
+    socketServer = new SocketServer(HOST, 0);
+    socketServer.addHandler(new ServerClientHandler(new KVServer(100, 10), 4));
+    socketServer.connect();
+    serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          socketServer.start();
+        } catch (IOException e) {
+          System.out.println(e);
+        }
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+    client = new KVClient(HOST, socketServer.getPort());
+    client.put("benchmark-key", "benchmark-value");
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    socketServer.stop();
+    serverThread.join();
+  }
+
+  @Benchmark
+  public String get() throws KVException {
+    return client.get("benchmark-key");
+  }
+
+  @Benchmark
+  public void put() throws KVException {
+    client.put("benchmark-key", "benchmark-value");
+  }
+
+}
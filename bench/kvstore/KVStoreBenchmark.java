@@ -0,0 +1,79 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVStore put, lookup, remove and scan on a hashed and an ordered store
+ * holding KEYS pairs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KVStoreBenchmark {
+
+  private static final int KEYS = 1 << 17;
+
+  @Param({"false", "true"})
+  boolean ordered;
+
+  private KVStore store;
+  private KVKey[] keys;
+
+  @Setup
+  public void setup() {
+    store = new KVStore(null, ordered);
+    keys = new KVKey[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = KVKey.of(String.format("key%08d", i));
+      store.put(keys[i], "value" + i);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    int next;
+
+    KVKey pick(KVKey[] keys) {
+      next = next * 1103515245 + 12345;
+      return keys[(next >>> 8) & (KEYS - 1)];
+    }
+  }
+
+  @Benchmark
+  public long put(Cursor cursor) {
+    return store.put(cursor.pick(keys), "updated", 0);
+  }
+
+  @Benchmark
+  public String lookup(Cursor cursor) {
+    return store.lookup(cursor.pick(keys));
+  }
+
+  @Benchmark
+  public long removeAndPut(Cursor cursor) {
+    KVKey key = cursor.pick(keys);
+    store.remove(key);
+    return store.put(key, "value", 0);
+  }
+
+  @Benchmark
+  public ScanPage scan100(Cursor cursor) {
+    return store.scan(cursor.pick(keys), null, 100);
+  }
+
+}
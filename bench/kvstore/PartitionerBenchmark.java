@@ -0,0 +1,69 @@
+package kvstore;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replica lookups on a TPCMaster with each Partitioner: the first replica
+ * of a key hash, and both replicas as a write needs them. Hashes are
+ * computed in setup, so only the placement is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PartitionerBenchmark {
+
+  private static final int HASHES = 1 << 16;
+
+  @Param({"ring", "jump", "rendezvous"})
+  String partitioner;
+
+  @Param({"4", "64"})
+  int slaves;
+
+  @Param({"1", "128"})
+  int vnodes;
+
+  private TPCMaster master;
+  private long[] hashes;
+  private int next;
+
+  @Setup
+  public void setup() throws KVException {
+    master = new TPCMaster(slaves, new KVCache(1, 1), vnodes, Partitioner.forName(partitioner));
+    Random random = new Random(42);
+    for (int i = 0; i < slaves; i++) {
+      master.registerSlave(new TPCSlaveInfo(random.nextLong() + "@127.0.0.1:" + (i + 1)));
+    }
+    hashes = new long[HASHES];
+    for (int i = 0; i < HASHES; i++) {
+      hashes[i] = random.nextLong();
+    }
+  }
+
+  @Benchmark
+  public TPCSlaveInfo firstReplica() {
+    return master.getPlacement().findFirstReplica(hashes[next++ & (HASHES - 1)]);
+  }
+
+  @Benchmark
+  public TPCSlaveInfo bothReplicas() {
+    Partitioner.Placement placement = master.getPlacement();
+    return placement.findSuccessor(placement.findFirstReplica(hashes[next++ & (HASHES - 1)]));
+  }
+
+}
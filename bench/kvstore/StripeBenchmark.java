@@ -0,0 +1,67 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * KVServer put throughput for a range of lock stripe counts, with the cache
+ * shape held fixed at that of SampleSlave. Every thread puts to one shared
+ * server, so the stripe count decides how often they wait for each other;
+ * run with -t to change the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(Threads.MAX)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StripeBenchmark {
+
+  private static final int NUM_SETS = 100;
+  private static final int MAX_ELEMS_PER_SET = 10;
+  private static final int NUM_KEYS = 1 << 17;
+
+  @Param({"1", "4", "16", "64", "256", "1024"})
+  int stripes;
+
+  private KVServer server;
+  private KVKey[] keys;
+
+  @Setup
+  public void setup() {
+    server = new KVServer(new KVCache(NUM_SETS, MAX_ELEMS_PER_SET), new KVStore(), stripes);
+    keys = new KVKey[NUM_KEYS];
+    for (int i = 0; i < NUM_KEYS; i++) {
+      keys[i] = KVKey.of("key" + i);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    int next = (int) Thread.currentThread().getId();
+
+    KVKey pick(KVKey[] keys) {
+      next = next * 1103515245 + 12345;
+      return keys[(next >>> 8) & (NUM_KEYS - 1)];
+    }
+  }
+
+  @Benchmark
+  public void put(Cursor cursor) throws KVException {
+    server.put(cursor.pick(keys), "value");
+  }
+
+}
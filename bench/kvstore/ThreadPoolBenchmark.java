@@ -0,0 +1,57 @@
+package kvstore;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a job handed to a ThreadPool to start running and signal back,
+ * the cost every request pays between being read and being served.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ThreadPoolBenchmark {
+
+  @Param({"1", "4"})
+  int poolSize;
+
+  private ThreadPool pool;
+
+  @Setup
+  public void setup() {
+    pool = new ThreadPool(poolSize);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.stopThreadPool();
+  }
+
+  @Benchmark
+  public void handoff() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    pool.addJob(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    done.await();
+  }
+
+}
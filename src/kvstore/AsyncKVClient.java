@@ -0,0 +1,552 @@
+package kvstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import static kvstore.KVConstants.*;
+
+/**
+ * Asynchronous client API used to issue requests to a key-value server or
+ * master. Every request returns a CompletableFuture at once, which completes
+ * with the result or exceptionally with a KVException carrying the same
+ * message the blocking KVClient would have thrown.
+ *
+ * The protocol sends one request per connection and marks the end of a
+ * message with EOF, so each request gets its own non-blocking channel. All
+ * channels are driven by a single event loop thread, so thousands of
+ * requests can be outstanding without a thread each. At most maxConnections
+ * channels are open at once; further requests wait in a queue, since a burst
+ * of connects larger than the server's accept backlog gets reset. Responses
+ * are parsed, and futures completed, on an executor so that slow callbacks
+ * do not stall the event loop.
+ *
+ * Every request has a timeout, counted from when it is issued, after which
+ * its future fails with ERROR_SOCKET_TIMEOUT and its channel is closed.
+ */
+public class AsyncKVClient implements Closeable {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+  private static final long TICK_MILLIS = 10;
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  private final InetSocketAddress address;
+  private final long timeoutMillis;
+  private final int maxConnections;
+  private final Executor executor;
+  private final Selector selector;
+  private final Thread eventLoop;
+  private final ConcurrentLinkedQueue<Call<?>> pending = new ConcurrentLinkedQueue<>();
+  private final TimingWheel<Call<?>> timeouts;
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+  private volatile boolean closed;
+  private int connections; // Only touched by the event loop
+
+  /**
+   * Constructs an AsyncKVClient with DEFAULT_TIMEOUT_MILLIS per request and
+   * DEFAULT_MAX_CONNECTIONS, completing futures on the common fork-join
+   * pool.
+   *
+   * @param server is the DNS reference to the server
+   * @param port   is the port on which the server is listening
+   *
+   * @throws KVException if the event loop cannot be started
+   */
+  public AsyncKVClient(String server, int port) throws KVException {
+    this(server, port, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_CONNECTIONS,
+        ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructs an AsyncKVClient.
+   *
+   * @param server         is the DNS reference to the server
+   * @param port           is the port on which the server is listening
+   * @param timeoutMillis  default time allowed for each request, from when
+   *                       it is issued until its response has been read
+   * @param maxConnections most connections to have open at once
+   * @param executor       executor that parses responses and completes
+   *                       futures
+   *
+   * @throws KVException if the event loop cannot be started
+   */
+  public AsyncKVClient(String server, int port, long timeoutMillis, int maxConnections,
+                       Executor executor) throws KVException {
+    this.address = new InetSocketAddress(server, port);
+    this.timeoutMillis = timeoutMillis;
+    this.maxConnections = maxConnections;
+    this.executor = executor;
+    this.timeouts = new TimingWheel<>(TICK_MILLIS, 3, System.currentTimeMillis());
+    try {
+      this.selector = Selector.open();
+    } catch (IOException e) {
+      throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+    }
+    this.eventLoop = new Thread(this::runEventLoop, "AsyncKVClient-" + server + ":" + port);
+    eventLoop.setDaemon(true);
+    eventLoop.start();
+  }
+
+  /**
+   * @return number of requests issued whose futures have not completed
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Issues a PUT request.
+   *
+   * @param key   String to put in server as key
+   * @param value String to put in server as value
+   *
+   * @return future completed once the server acknowledges the put
+   */
+  public CompletableFuture<Void> put(String key, String value) {
+    return put(key, value, 0);
+  }
+
+  /**
+   * Issues a PUT request for a pair that expires after ttlMillis.
+   *
+   * @param key       String to put in server as key
+   * @param value     String to put in server as value
+   * @param ttlMillis time to live in milliseconds, or 0 for no expiry
+   *
+   * @return future completed once the server acknowledges the put
+   */
+  public CompletableFuture<Void> put(String key, String value, long ttlMillis) {
+    KVMessage request = new KVMessage(PUT_REQ);
+    request.setKey(key);
+    request.setValue(value);
+    if (ttlMillis > 0) {
+      request.setTtl(ttlMillis);
+    }
+    return send(request, timeoutMillis, EXPECT_SUCCESS);
+  }
+
+  /**
+   * Issues a GET request.
+   *
+   * @param key String to get value for in server
+   *
+   * @return future of the value associated with key
+   */
+  public CompletableFuture<String> get(String key) {
+    KVMessage request = new KVMessage(GET_REQ);
+    request.setKey(key);
+    return send(request, timeoutMillis, response -> {
+      if (response.getKey() == null || response.getKey().isEmpty()
+          || response.getValue() == null || response.getValue().isEmpty()) {
+        throw new KVException(response.getMessage());
+      }
+      return response.getValue();
+    });
+  }
+
+  /**
+   * Issues a DEL request.
+   *
+   * @param key String to delete value for in server
+   *
+   * @return future completed once the server acknowledges the delete
+   */
+  public CompletableFuture<Void> del(String key) {
+    KVMessage request = new KVMessage(DEL_REQ);
+    request.setKey(key);
+    return send(request, timeoutMillis, EXPECT_SUCCESS);
+  }
+
+  /**
+   * Issues a SCAN request.
+   *
+   * @param startKey inclusive start of the range, or null for the first key
+   * @param endKey   exclusive end of the range, or null for no upper bound
+   * @param limit    maximum number of pairs to return
+   *
+   * @return future of a page of pairs in key order
+   */
+  public CompletableFuture<ScanPage> scan(String startKey, String endKey, int limit) {
+    KVMessage request = new KVMessage(SCAN_REQ);
+    request.setKey(startKey);
+    request.setEnd(endKey);
+    request.setLimit(limit);
+    return send(request, timeoutMillis, response -> {
+      if (response.getMessage() != null) {
+        throw new KVException(response.getMessage());
+      }
+      return ScanPage.fromMessage(response);
+    });
+  }
+
+  /**
+   * Issues a MULTI_GET request.
+   *
+   * @param keys keys to get values for
+   *
+   * @return future of the pairs found, in the order of keys
+   */
+  public CompletableFuture<LinkedHashMap<String, String>> multiGet(Collection<String> keys) {
+    KVMessage request = new KVMessage(MULTI_GET_REQ);
+    request.setKeys(keys);
+    return send(request, timeoutMillis, PAIRS);
+  }
+
+  /**
+   * Issues a MULTI_PUT request.
+   *
+   * @param pairs     pairs to put
+   * @param ttlMillis time to live of every pair in milliseconds, or 0 for
+   *                  no expiry
+   *
+   * @return future completed once the server acknowledges the puts
+   */
+  public CompletableFuture<Void> multiPut(Map<String, String> pairs, long ttlMillis) {
+    KVMessage request = new KVMessage(MULTI_PUT_REQ);
+    request.setPairs(new LinkedHashMap<>(pairs));
+    if (ttlMillis > 0) {
+      request.setTtl(ttlMillis);
+    }
+    return send(request, timeoutMillis, EXPECT_SUCCESS);
+  }
+
+  /**
+   * Issues a MULTI_DEL request.
+   *
+   * @param keys keys to delete
+   *
+   * @return future completed once the server acknowledges the deletes
+   */
+  public CompletableFuture<Void> multiDel(Collection<String> keys) {
+    KVMessage request = new KVMessage(MULTI_DEL_REQ);
+    request.setKeys(keys);
+    return send(request, timeoutMillis, EXPECT_SUCCESS);
+  }
+
+  /**
+   * Issues a STATS request.
+   *
+   * @return future of the counters of the server, by name
+   */
+  public CompletableFuture<LinkedHashMap<String, String>> stats() {
+    return send(new KVMessage(STATS_REQ), timeoutMillis, PAIRS);
+  }
+
+  /**
+   * Issues a CAS request.
+   *
+   * @param key      String key
+   * @param expected value key must hold, or null if key must be missing
+   * @param value    value to set
+   *
+   * @return future of true if the value was set, false if key held another
+   *         value
+   */
+  public CompletableFuture<Boolean> cas(String key, String expected, String value) {
+    KVMessage request = new KVMessage(CAS_REQ);
+    request.setKey(key);
+    request.setExpected(expected);
+    request.setValue(value);
+    return send(request, timeoutMillis, response -> {
+      if (ERROR_CAS_MISMATCH.equals(response.getMessage())) {
+        return false;
+      }
+      EXPECT_SUCCESS.convert(response);
+      return true;
+    });
+  }
+
+  /**
+   * Issues an INCR request.
+   *
+   * @param key   String key holding an integer; a missing key counts as 0
+   * @param delta amount to add
+   *
+   * @return future of the value of key after the increment
+   */
+  public CompletableFuture<Long> incr(String key, long delta) {
+    KVMessage request = new KVMessage(INCR_REQ);
+    request.setKey(key);
+    request.setValue(Long.toString(delta));
+    return send(request, timeoutMillis, response -> {
+      if (response.getMessage() != null || response.getValue() == null) {
+        throw new KVException(response.getMessage());
+      }
+      return Long.parseLong(response.getValue());
+    });
+  }
+
+  /**
+   * Issues an APPEND request.
+   *
+   * @param key    String key; a missing key is created
+   * @param suffix String to append to its value
+   *
+   * @return future completed once the server acknowledges the append
+   */
+  public CompletableFuture<Void> append(String key, String suffix) {
+    KVMessage request = new KVMessage(APPEND_REQ);
+    request.setKey(key);
+    request.setValue(suffix);
+    return send(request, timeoutMillis, EXPECT_SUCCESS);
+  }
+
+  /**
+   * Issues any request with its own timeout.
+   *
+   * @param request       request to send
+   * @param timeoutMillis time allowed for this request
+   *
+   * @return future of the raw response
+   */
+  public CompletableFuture<KVMessage> send(KVMessage request, long timeoutMillis) {
+    return send(request, timeoutMillis, response -> {
+      return response;
+    });
+  }
+
+  private <T> CompletableFuture<T> send(KVMessage request, long timeoutMillis,
+                                        Converter<T> converter) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    if (closed) {
+      future.completeExceptionally(new KVException(ERROR_CLIENT_CLOSED));
+      return future;
+    }
+    byte[] bytes;
+    try {
+      bytes = request.toBytes();
+    } catch (KVException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+    outstanding.incrementAndGet();
+    long now = System.currentTimeMillis();
+    Call<T> call = new Call<>(ByteBuffer.wrap(bytes), converter, future, now + timeoutMillis);
+    final TimingWheel.Timer<Call<?>> timer = timeouts.schedule(call, call.deadline, now);
+    // Let go of the call, and its buffers, as soon as it is done
+    future.whenComplete((result, failure) -> {
+      timeouts.cancel(timer);
+      outstanding.decrementAndGet();
+    });
+    pending.add(call);
+    selector.wakeup();
+    if (closed && pending.remove(call)) {
+      // The event loop may have drained the queue already
+      future.completeExceptionally(new KVException(ERROR_CLIENT_CLOSED));
+    }
+    return future;
+  }
+
+  /**
+   * Stops the event loop. Requests still outstanding fail with
+   * ERROR_CLIENT_CLOSED.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      eventLoop.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runEventLoop() {
+    try {
+      while (!closed) {
+        // Only tick while there are timeouts to check
+        selector.select(outstanding.get() > 0 ? TICK_MILLIS : 0);
+        Call<?> call;
+        while (connections < maxConnections && (call = pending.poll()) != null) {
+          if (!call.future.isDone()) {
+            open(call);
+          }
+        }
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          if (key.isValid()) {
+            service(key, (Call<?>) key.attachment());
+          }
+        }
+        for (Call<?> expired : timeouts.advance(System.currentTimeMillis())) {
+          fail(expired, new KVException(ERROR_SOCKET_TIMEOUT));
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      System.out.println("ASYNC CLIENT EVENT LOOP " + e);
+    } finally {
+      closed = true;
+      KVException failure = new KVException(ERROR_CLIENT_CLOSED);
+      for (SelectionKey key : selector.keys()) {
+        fail((Call<?>) key.attachment(), failure);
+      }
+      Call<?> call;
+      while ((call = pending.poll()) != null) {
+        fail(call, failure);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Best effort
+      }
+    }
+  }
+
+  private void open(Call<?> call) {
+    try {
+      call.channel = SocketChannel.open();
+      connections++;
+      call.channel.configureBlocking(false);
+      if (call.channel.connect(address)) {
+        call.channel.register(selector, SelectionKey.OP_WRITE, call);
+      } else {
+        call.channel.register(selector, SelectionKey.OP_CONNECT, call);
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      fail(call, new KVException(ERROR_COULD_NOT_CONNECT));
+    }
+  }
+
+  private void fail(Call<?> call, KVException e) {
+    release(call);
+    call.future.completeExceptionally(e);
+  }
+
+  private void release(Call<?> call) {
+    if (call.closeChannel()) {
+      connections--;
+    }
+  }
+
+  private void service(SelectionKey key, Call<?> call) {
+    try {
+      if (key.isConnectable()) {
+        call.channel.finishConnect();
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      fail(call, new KVException(ERROR_COULD_NOT_CONNECT));
+      return;
+    }
+    try {
+      if (key.isWritable()) {
+        call.channel.write(call.request);
+        if (!call.request.hasRemaining()) {
+          // The server reads until EOF
+          call.channel.shutdownOutput();
+          key.interestOps(SelectionKey.OP_READ);
+        }
+        return;
+      }
+    } catch (IOException e) {
+      fail(call, new KVException(ERROR_COULD_NOT_SEND_DATA));
+      return;
+    }
+    try {
+      if (key.isReadable()) {
+        readBuffer.clear();
+        int read = call.channel.read(readBuffer);
+        if (read > 0) {
+          readBuffer.flip();
+          byte[] chunk = new byte[read];
+          readBuffer.get(chunk);
+          call.response.write(chunk, 0, read);
+        } else if (read < 0) {
+          release(call);
+          executor.execute(call::complete);
+        }
+      }
+    } catch (IOException e) {
+      fail(call, new KVException(ERROR_COULD_NOT_RECEIVE_DATA));
+    }
+  }
+
+  /**
+   * Turns a response into the result of a request.
+   */
+  private interface Converter<T> {
+    T convert(KVMessage response) throws KVException;
+  }
+
+  private static final Converter<Void> EXPECT_SUCCESS = response -> {
+    if (response.getMessage() == null || !response.getMessage().equals(SUCCESS)) {
+      throw new KVException(response.getMessage());
+    }
+    return null;
+  };
+
+  private static final Converter<LinkedHashMap<String, String>> PAIRS = response -> {
+    if (response.getMessage() != null) {
+      throw new KVException(response.getMessage());
+    }
+    LinkedHashMap<String, String> pairs = response.getPairs();
+    return pairs == null ? new LinkedHashMap<String, String>() : pairs;
+  };
+
+  /**
+   * One request in flight. Its channel and buffers are only touched by the
+   * event loop; its future may be completed by any thread.
+   */
+  private static final class Call<T> {
+
+    final ByteBuffer request;
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    final Converter<T> converter;
+    final CompletableFuture<T> future;
+    final long deadline;
+    SocketChannel channel;
+
+    Call(ByteBuffer request, Converter<T> converter, CompletableFuture<T> future,
+         long deadline) {
+      this.request = request;
+      this.converter = converter;
+      this.future = future;
+      this.deadline = deadline;
+    }
+
+    void complete() {
+      try {
+        future.complete(converter.convert(new KVMessage(response.toByteArray())));
+      } catch (KVException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * @return true if the channel was open
+     */
+    boolean closeChannel() {
+      if (channel == null || !channel.isOpen()) {
+        return false;
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Best effort, as in KVClient.closeHost
+      }
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,113 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A bounded log of the keys most recently written, which lets clients that
+ * cache values keep them fresh by asking what changed since they last
+ * asked. Every write is numbered; a client holds a cursor made of the epoch
+ * of the log and the number of the last change it saw.
+ *
+ * Only the last capacity changes are kept. A cursor older than that, or
+ * from another epoch (the node restarted), cannot be answered with a list
+ * of keys, and the client has to drop everything it caches.
+ *
+ * This class is thread-safe.
+ */
+public class ChangeLog {
+
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private final long epoch = new Random().nextLong();
+  private final String[] keys;
+  private long sequence;
+
+  /**
+   * Constructs an empty ChangeLog.
+   *
+   * @param capacity number of changes kept
+   */
+  public ChangeLog(int capacity) {
+    this.keys = new String[capacity];
+  }
+
+  /**
+   * Records a write of key.
+   *
+   * @param key key written or deleted
+   */
+  public synchronized void record(String key) {
+    keys[(int) (sequence % keys.length)] = key;
+    sequence++;
+  }
+
+  /**
+   * @return cursor that follows every change recorded so far
+   */
+  public synchronized String cursor() {
+    return epoch + ":" + sequence;
+  }
+
+  /**
+   * Collects the keys changed after cursor.
+   *
+   * @param cursor  cursor returned by an earlier call
+   * @param changed set to add the changed keys to, each once
+   *
+   * @return false if cursor is from another epoch, too old or malformed, in
+   *         which case changed is left as it is
+   */
+  public synchronized boolean changesSince(String cursor, Collection<String> changed) {
+    long since;
+    try {
+      int colon = cursor.indexOf(':');
+      if (Long.parseLong(cursor.substring(0, colon)) != epoch) {
+        return false;
+      }
+      since = Long.parseLong(cursor.substring(colon + 1));
+    } catch (RuntimeException e) {
+      return false;
+    }
+    if (since > sequence || sequence - since > keys.length) {
+      return false;
+    }
+    LinkedHashSet<String> unique = new LinkedHashSet<>();
+    for (long i = since; i < sequence; i++) {
+      unique.add(keys[(int) (i % keys.length)]);
+    }
+    changed.addAll(unique);
+    return true;
+  }
+
+  /**
+   * Builds the response to a CHANGES_REQ.
+   *
+   * @param cursor cursor the request carries, or null for none
+   *
+   * @return RESP with the new cursor and the keys changed since cursor, or
+   *         with message CHANGES_RESET if they are not known
+   */
+  public synchronized KVMessage response(String cursor) {
+    KVMessage response = new KVMessage(KVConstants.RESP);
+    List<String> changed = new ArrayList<>();
+    if (cursor != null && !cursor.isEmpty() && !changesSince(cursor, changed)) {
+      response.setMessage(KVConstants.CHANGES_RESET);
+    } else if (!changed.isEmpty()) {
+      response.setKeys(changed);
+    }
+    response.setValue(cursor());
+    return response;
+  }
+
+  /**
+   * @return number of changes recorded since construction
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+}
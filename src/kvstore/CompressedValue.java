@@ -0,0 +1,60 @@
+package kvstore;
+
+/**
+ * A value held in compressed form by the storage layer. The original String
+ * is rebuilt by toString() each time it is asked for and is never retained,
+ * so the stored footprint stays at the compressed size.
+ */
+public final class CompressedValue implements CharSequence {
+
+  final byte[] data;
+  private final int length;
+  private final ValueCompressor compressor;
+
+  /**
+   * Constructs a CompressedValue.
+   *
+   * @param compressor ValueCompressor that produced data
+   * @param data       compressed block
+   * @param length     length in chars of the original String
+   */
+  CompressedValue(ValueCompressor compressor, byte[] data, int length) {
+    this.compressor = compressor;
+    this.data = data;
+    this.length = length;
+  }
+
+  /**
+   * @return number of bytes held for this value
+   */
+  public int compressedSize() {
+    return data.length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Decompresses the whole value; avoid in loops.
+   */
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  /**
+   * Decompresses the whole value; avoid in loops.
+   */
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return compressor.decompressToString(data);
+  }
+
+}
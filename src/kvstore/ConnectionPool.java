@@ -0,0 +1,282 @@
+package kvstore;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import static kvstore.KVConstants.ERROR_CLIENT_CLOSED;
+import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
+import static kvstore.KVConstants.ERROR_POOL_EXHAUSTED;
+
+/**
+ * A bounded pool of persistent FramedSocket connections to one server.
+ *
+ * At most maxConnections connections are open, idle or borrowed; a borrower
+ * that finds none free waits up to maxWaitMillis for one to be released.
+ * Idle connections are handed out most recently used first, so that under
+ * light load the rest age out: any left idle for idleTimeoutMillis are
+ * closed the next time the pool is used. That timeout should stay below
+ * SocketServer.KEEP_ALIVE_TIMEOUT so the client, not the server, closes
+ * them. A connection idle for more than VALIDATE_AFTER_MILLIS is checked to
+ * still be open before it is handed out.
+ *
+ * This class is thread-safe.
+ */
+public class ConnectionPool {
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 8;
+  public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30000;
+
+  static final long VALIDATE_AFTER_MILLIS = 1000;
+  static final int VALIDATE_WAIT_MILLIS = 1;
+
+  private final String server;
+  private final int port;
+  private final int maxConnections;
+  private final long maxWaitMillis;
+  private final long idleTimeoutMillis;
+
+  /* Most recently released first */
+  private final Deque<Idle> idle = new ArrayDeque<>();
+  private int open;
+  private boolean closed;
+
+  private long created;
+  private long reused;
+  private long evicted;
+  private long invalid;
+  private long waits;
+  private long exhausted;
+
+  /**
+   * Constructs an empty ConnectionPool.
+   *
+   * @param server            is the DNS reference to the server
+   * @param port              is the port on which the server is listening
+   * @param maxConnections    most connections open at once
+   * @param maxWaitMillis     longest a borrower waits for a connection
+   * @param idleTimeoutMillis how long a connection may sit idle
+   */
+  public ConnectionPool(String server, int port, int maxConnections, long maxWaitMillis,
+                        long idleTimeoutMillis) {
+    this.server = server;
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.maxWaitMillis = maxWaitMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  /**
+   * Takes a connection from the pool, opening a new one if none is idle and
+   * the pool is not full. Every connection borrowed must be released.
+   *
+   * @return connection ready for a request
+   *
+   * @throws KVException with ERROR_POOL_EXHAUSTED if none became free within
+   *                     maxWaitMillis, ERROR_COULD_NOT_CONNECT if a new
+   *                     connection could not be opened, or
+   *                     ERROR_CLIENT_CLOSED if the pool is closed
+   */
+  public FramedSocket borrow() throws KVException {
+    long deadline = System.currentTimeMillis() + maxWaitMillis;
+    while (true) {
+      Idle entry = takeOrReserve(deadline);
+      if (entry == null) {
+        // A slot was reserved for a new connection
+        try {
+          FramedSocket sock = FramedSocket.connect(server, port);
+          synchronized (this) {
+            created++;
+          }
+          return sock;
+        } catch (IOException | IllegalArgumentException e) {
+          discard(null);
+          throw new KVException(ERROR_COULD_NOT_CONNECT);
+        }
+      }
+      long idleMillis = System.currentTimeMillis() - entry.since;
+      if (idleMillis < VALIDATE_AFTER_MILLIS || entry.sock.isAlive(VALIDATE_WAIT_MILLIS)) {
+        synchronized (this) {
+          reused++;
+        }
+        return entry.sock;
+      }
+      synchronized (this) {
+        invalid++;
+      }
+      discard(entry.sock);
+    }
+  }
+
+  private synchronized Idle takeOrReserve(long deadline) throws KVException {
+    while (true) {
+      if (closed) {
+        throw new KVException(ERROR_CLIENT_CLOSED);
+      }
+      long now = System.currentTimeMillis();
+      evictIdle(now);
+      Idle entry = idle.pollFirst();
+      if (entry != null) {
+        return entry;
+      }
+      if (open < maxConnections) {
+        open++;
+        return null;
+      }
+      long wait = deadline - now;
+      if (wait <= 0) {
+        exhausted++;
+        throw new KVException(ERROR_POOL_EXHAUSTED);
+      }
+      waits++;
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        exhausted++;
+        throw new KVException(ERROR_POOL_EXHAUSTED);
+      }
+    }
+  }
+
+  /**
+   * Returns a borrowed connection. It goes back to the pool if its last
+   * response was read in full; otherwise it is closed.
+   *
+   * @param sock connection returned by borrow
+   */
+  public void release(Socket sock) {
+    FramedSocket framed = (FramedSocket) sock;
+    boolean reusable = framed.isReusable();
+    synchronized (this) {
+      if (reusable && !closed) {
+        idle.addFirst(new Idle(framed, System.currentTimeMillis()));
+        notifyAll();
+        return;
+      }
+    }
+    discard(framed);
+  }
+
+  private void discard(FramedSocket sock) {
+    synchronized (this) {
+      open--;
+      notifyAll();
+    }
+    closeQuietly(sock);
+  }
+
+  /**
+   * Closes connections idle for longer than idleTimeoutMillis. Called on
+   * every borrow; call it directly to trim a pool that has gone unused.
+   */
+  public synchronized void evictIdle() {
+    evictIdle(System.currentTimeMillis());
+  }
+
+  private void evictIdle(long now) {
+    Iterator<Idle> oldestFirst = idle.descendingIterator();
+    while (oldestFirst.hasNext()) {
+      Idle entry = oldestFirst.next();
+      if (now - entry.since < idleTimeoutMillis) {
+        break;
+      }
+      oldestFirst.remove();
+      open--;
+      evicted++;
+      closeQuietly(entry.sock);
+    }
+  }
+
+  /**
+   * Closes every idle connection and makes further borrows fail.
+   * Connections still borrowed are closed when released.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (Idle entry : idle) {
+      closeQuietly(entry.sock);
+    }
+    open -= idle.size();
+    idle.clear();
+    notifyAll();
+  }
+
+  /**
+   * @return number of connections open, idle or borrowed
+   */
+  public synchronized int getOpenCount() {
+    return open;
+  }
+
+  /**
+   * @return number of idle connections
+   */
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * @return number of borrows served by an idle connection
+   */
+  public synchronized long getReusedCount() {
+    return reused;
+  }
+
+  /**
+   * @return number of connections opened
+   */
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  /**
+   * Adds the counters of this pool to stats.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public synchronized void collectStats(String prefix, Map<String, String> stats) {
+    stats.put(prefix + "open", Integer.toString(open));
+    stats.put(prefix + "idle", Integer.toString(idle.size()));
+    stats.put(prefix + "created", Long.toString(created));
+    stats.put(prefix + "reused", Long.toString(reused));
+    stats.put(prefix + "evicted", Long.toString(evicted));
+    stats.put(prefix + "invalid", Long.toString(invalid));
+    stats.put(prefix + "waits", Long.toString(waits));
+    stats.put(prefix + "exhausted", Long.toString(exhausted));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("ConnectionPool[%s:%d open=%d idle=%d created=%d reused=%d "
+        + "evicted=%d invalid=%d waits=%d exhausted=%d]", server, port, open, idle.size(),
+        created, reused, evicted, invalid, waits, exhausted);
+  }
+
+  private static void closeQuietly(Socket sock) {
+    if (sock == null) {
+      return;
+    }
+    try {
+      sock.close();
+    } catch (IOException e) {
+      // Best effort, as in KVClient.closeHost
+    }
+  }
+
+  private static final class Idle {
+
+    final FramedSocket sock;
+    final long since;
+
+    Idle(FramedSocket sock, long since) {
+      this.sock = sock;
+      this.since = since;
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package kvstore;
+
+/**
+ * A value held by the storage layer together with the time at which it
+ * expires. The value may itself be a CompressedValue. The key is kept so
+ * that the expiry wheel can remove the pair without a reverse lookup.
+ */
+public final class ExpiringValue implements CharSequence {
+
+  final KVKey key;
+  final CharSequence value;
+  final long expiresAt;
+  /* Timer of the value on the expiry wheel, cancelled if the value is
+     overwritten or removed first; null until scheduled */
+  volatile TimingWheel.Timer<ExpiringValue> timer;
+
+  /**
+   * Constructs an ExpiringValue.
+   *
+   * @param key       key the value is stored under
+   * @param value     stored form of the value
+   * @param expiresAt time, in milliseconds since the epoch, at which the
+   *                  value expires
+   */
+  ExpiringValue(KVKey key, CharSequence value, long expiresAt) {
+    this.key = key;
+    this.value = value;
+    this.expiresAt = expiresAt;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * @param now current time in milliseconds since the epoch
+   *
+   * @return true if the value has expired at time now
+   */
+  public boolean isExpired(long now) {
+    return now >= expiresAt;
+  }
+
+  /**
+   * @return approximate number of bytes held for the pair
+   */
+  int footprint() {
+    int valueBytes = value instanceof CompressedValue
+        ? ((CompressedValue) value).compressedSize() : 2 * value.length();
+    return key.byteLength() + valueBytes;
+  }
+
+  @Override
+  public int length() {
+    return value.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return value.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return value.subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    return value.toString();
+  }
+
+}
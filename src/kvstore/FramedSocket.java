@@ -0,0 +1,504 @@
+package kvstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * A Socket that carries many KVMessages over one persistent connection.
+ *
+ * The plain protocol marks the end of a message by shutting down output,
+ * which spends the connection on a single request. A FramedSocket instead
+ * prefixes every message with its length: shutdownOutput() sends the bytes
+ * written since the last call as one frame, and each call to
+ * getInputStream() returns a stream that ends with the next incoming frame.
+ * Code written against plain sockets, such as KVMessage.sendMessage and the
+ * KVMessage(Socket) constructor, therefore works unchanged.
+ *
+ * A client asks for framing by sending MAGIC as soon as it connects. Since
+ * no XML document begins with a zero byte, SocketServer tells the two kinds
+ * of connection apart by peeking at the first byte; see accept.
+ *
+ * A FramedSocket carries one request at a time; it is safe for one thread to
+ * wait for the next frame while another writes a response.
+ *
+ * A client that sends MUX_MAGIC instead asks for a multiplexed connection,
+ * whose frames also carry a request ID so that many requests can be in
+ * flight at once. Such a connection is used through sendFrame and
+ * receiveFrame rather than its streams; see MultiplexedChannel.
+ */
+public class FramedSocket extends Socket {
+
+  static final byte[] MAGIC = {0, 'K', 'V', '1'};
+  static final byte[] MUX_MAGIC = {0, 'K', 'V', 'M'};
+  /* Longest frame accepted: room for a full batch of the largest pairs,
+     plus the XML around them. The length of a frame comes from the peer,
+     so it is checked before anything is allocated for it */
+  static final int MAX_FRAME_LENGTH = KVConstants.MAX_BATCH_SIZE
+      * (KVConstants.MAX_KEY_SIZE + KVConstants.MAX_VAL_SIZE) + (1 << 20);
+  /* A frame body is read into a buffer grown by at most this much at a
+     time, so a length that no data follows costs little memory */
+  private static final int READ_CHUNK = 64 * 1024;
+
+  private final Socket raw;
+  private final boolean framed;
+  private final boolean multiplexed;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  private ByteArrayOutputStream outgoing = new ByteArrayOutputStream();
+  private int remaining;
+  private boolean frameStarted;
+  private long framesSent;
+  private long framesReceived;
+  private volatile boolean broken;
+
+  private FramedSocket(Socket raw, InputStream in, boolean framed, boolean multiplexed)
+      throws IOException {
+    this.raw = raw;
+    this.framed = framed;
+    this.multiplexed = multiplexed;
+    this.in = new DataInputStream(in);
+    this.out = new DataOutputStream(raw.getOutputStream());
+  }
+
+  /**
+   * Connects to a server and asks for framing.
+   *
+   * @param server is the DNS reference to the server
+   * @param port   is the port on which the server is listening
+   *
+   * @return connected FramedSocket
+   *
+   * @throws IOException if unable to connect
+   */
+  public static FramedSocket connect(String server, int port) throws IOException {
+    Socket raw = new Socket(server, port);
+    try {
+      raw.setTcpNoDelay(true);
+      raw.getOutputStream().write(MAGIC);
+      raw.getOutputStream().flush();
+      return new FramedSocket(raw, raw.getInputStream(), true, false);
+    } catch (IOException e) {
+      raw.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Connects to a server and asks for a multiplexed connection.
+   *
+   * @param server    is the DNS reference to the server
+   * @param port      is the port on which the server is listening
+   * @param timeout   longest to wait for the connection, in milliseconds, or
+   *                  0 to wait as long as it takes
+   *
+   * @return connected FramedSocket
+   *
+   * @throws IOException if unable to connect
+   */
+  public static FramedSocket connectMultiplexed(String server, int port, int timeout)
+      throws IOException {
+    Socket raw = new Socket();
+    try {
+      raw.connect(new InetSocketAddress(server, port), timeout);
+      raw.setTcpNoDelay(true);
+      raw.getOutputStream().write(MUX_MAGIC);
+      raw.getOutputStream().flush();
+      return new FramedSocket(raw, raw.getInputStream(), true, true);
+    } catch (IOException | IllegalArgumentException e) {
+      raw.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the first byte of a newly accepted connection to tell whether the
+   * client asked for framing.
+   *
+   * @param raw socket returned by ServerSocket.accept
+   *
+   * @return a framed or multiplexed FramedSocket, or a pass-through one for
+   *         a plain connection that still yields the byte already read
+   *
+   * @throws IOException if the client sent nothing or a bad preamble
+   */
+  public static FramedSocket accept(Socket raw) throws IOException {
+    PushbackInputStream is = new PushbackInputStream(raw.getInputStream(), 1);
+    int first = is.read();
+    if (first < 0) {
+      throw new EOFException();
+    }
+    if (first != MAGIC[0]) {
+      is.unread(first);
+      return new FramedSocket(raw, is, false, false);
+    }
+    byte[] rest = new byte[MAGIC.length - 1];
+    new DataInputStream(is).readFully(rest);
+    boolean multiplexed = Arrays.equals(rest, Arrays.copyOfRange(MUX_MAGIC, 1, MUX_MAGIC.length));
+    if (!multiplexed && !Arrays.equals(rest, Arrays.copyOfRange(MAGIC, 1, MAGIC.length))) {
+      throw new IOException("Bad framing preamble");
+    }
+    raw.setTcpNoDelay(true);
+    return new FramedSocket(raw, is, true, multiplexed);
+  }
+
+  /**
+   * @return true if this connection carries length-prefixed frames
+   */
+  public boolean isFramed() {
+    return framed;
+  }
+
+  /**
+   * @return true if the frames of this connection carry request IDs
+   */
+  public boolean isMultiplexed() {
+    return multiplexed;
+  }
+
+  /**
+   * Sends one frame of a multiplexed connection. Safe to call from many
+   * threads at once; frames are never interleaved.
+   *
+   * @param id   request ID the frame belongs to
+   * @param body serialized message
+   *
+   * @throws IOException if the connection failed
+   */
+  public synchronized void sendFrame(long id, byte[] body) throws IOException {
+    try {
+      out.writeInt(body.length);
+      out.writeLong(id);
+      out.write(body);
+      out.flush();
+      framesSent++;
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the next frame of a multiplexed connection. Only one thread
+   * may receive at a time.
+   *
+   * @return the frame, or null if the peer closed the connection between
+   *         frames
+   *
+   * @throws IOException if the connection failed or timed out, or the frame
+   *                     is longer than MAX_FRAME_LENGTH
+   */
+  public Frame receiveFrame() throws IOException {
+    try {
+      int length;
+      try {
+        length = in.readInt();
+      } catch (EOFException e) {
+        return null;
+      }
+      checkLength(length);
+      long id = in.readLong();
+      byte[] body = new byte[Math.min(length, READ_CHUNK)];
+      int read = 0;
+      while (true) {
+        in.readFully(body, read, body.length - read);
+        read = body.length;
+        if (read == length) {
+          break;
+        }
+        body = Arrays.copyOf(body, (int) Math.min(length, 2L * read));
+      }
+      framesReceived++;
+      return new Frame(id, body);
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the header of the next incoming frame, skipping whatever was
+   * left unread of the previous one.
+   *
+   * @return false if the peer closed the connection between frames
+   *
+   * @throws IOException if the connection failed or timed out
+   */
+  public boolean nextFrame() throws IOException {
+    if (frameStarted) {
+      return true;
+    }
+    try {
+      skipRemaining();
+      int length;
+      try {
+        length = in.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      checkLength(length);
+      remaining = length;
+      frameStarted = true;
+      framesReceived++;
+      return true;
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+  }
+
+  private static void checkLength(int length) throws IOException {
+    if (length < 0 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("Bad frame length " + length);
+    }
+  }
+
+  private void skipRemaining() throws IOException {
+    while (remaining > 0) {
+      int skipped = (int) in.skip(remaining);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      remaining -= skipped;
+    }
+  }
+
+  /**
+   * @return true if every request sent has had its response read and the
+   *         connection has not failed, so it can carry another request
+   */
+  public boolean isReusable() {
+    if (!framed || broken || raw.isClosed()) {
+      return false;
+    }
+    try {
+      skipRemaining();
+    } catch (IOException e) {
+      broken = true;
+      return false;
+    }
+    return framesSent == framesReceived;
+  }
+
+  /**
+   * Checks that an idle connection is still open by polling for input
+   * without blocking for long. An idle connection should have none; EOF
+   * means the server timed it out.
+   *
+   * @param waitMillis how long to poll for
+   *
+   * @return true if the connection looks usable
+   */
+  public boolean isAlive(int waitMillis) {
+    if (!isReusable()) {
+      return false;
+    }
+    int timeout = 0;
+    try {
+      timeout = raw.getSoTimeout();
+      raw.setSoTimeout(Math.max(1, waitMillis));
+      raw.getInputStream().read();
+      // Unsolicited input is as bad as EOF
+      broken = true;
+      return false;
+    } catch (SocketTimeoutException e) {
+      return true;
+    } catch (IOException e) {
+      broken = true;
+      return false;
+    } finally {
+      try {
+        raw.setSoTimeout(timeout);
+      } catch (SocketException e) {
+        broken = true;
+      }
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    if (multiplexed) {
+      throw new IOException("Multiplexed connections are read with receiveFrame");
+    }
+    if (!framed) {
+      return in;
+    }
+    if (!nextFrame()) {
+      broken = true;
+      throw new EOFException();
+    }
+    frameStarted = false;
+    return new FrameInputStream();
+  }
+
+  @Override
+  public synchronized OutputStream getOutputStream() throws IOException {
+    if (!framed) {
+      return out;
+    }
+    return new OutputStream() {
+      @Override
+      public void write(int b) {
+        outgoing.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        outgoing.write(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Sends the bytes written since the last call as one frame. The
+   * connection stays open for further frames.
+   */
+  @Override
+  public synchronized void shutdownOutput() throws IOException {
+    if (multiplexed) {
+      throw new IOException("Multiplexed connections are written with sendFrame");
+    }
+    if (!framed) {
+      raw.shutdownOutput();
+      return;
+    }
+    try {
+      out.writeInt(outgoing.size());
+      outgoing.writeTo(out);
+      out.flush();
+      framesSent++;
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    } finally {
+      outgoing = new ByteArrayOutputStream();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    raw.close();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return raw.isClosed();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return raw.isConnected();
+  }
+
+  @Override
+  public boolean isBound() {
+    return raw.isBound();
+  }
+
+  @Override
+  public boolean isInputShutdown() {
+    return raw.isInputShutdown();
+  }
+
+  @Override
+  public boolean isOutputShutdown() {
+    return raw.isOutputShutdown();
+  }
+
+  @Override
+  public void setSoTimeout(int timeout) throws SocketException {
+    raw.setSoTimeout(timeout);
+  }
+
+  @Override
+  public int getSoTimeout() throws SocketException {
+    return raw.getSoTimeout();
+  }
+
+  @Override
+  public InetAddress getInetAddress() {
+    return raw.getInetAddress();
+  }
+
+  @Override
+  public int getPort() {
+    return raw.getPort();
+  }
+
+  @Override
+  public int getLocalPort() {
+    return raw.getLocalPort();
+  }
+
+  @Override
+  public String toString() {
+    return "FramedSocket[" + raw + (multiplexed ? ", multiplexed" : framed ? "" : ", plain")
+        + "]";
+  }
+
+  /**
+   * One frame of a multiplexed connection.
+   */
+  public static final class Frame {
+
+    final long id;
+    final byte[] body;
+
+    Frame(long id, byte[] body) {
+      this.id = id;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Reads the body of the current frame and then reports EOF.
+   */
+  private class FrameInputStream extends InputStream {
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (remaining == 0) {
+        return -1;
+      }
+      try {
+        int read = in.read(b, off, Math.min(len, remaining));
+        if (read < 0) {
+          throw new EOFException();
+        }
+        remaining -= read;
+        return read;
+      } catch (IOException e) {
+        // A frame cut short leaves the connection out of step
+        broken = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      return Math.min(remaining, in.available());
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jump consistent hashing (Lamping and Veach): the slaves, in order of ID,
+ * are numbered buckets, a slave of weight w taking w consecutive ones, and
+ * jump maps each key hash to a bucket in O(log buckets) steps with no
+ * table to search. The successor of a slave is the next slave in order of
+ * ID. Virtual nodes do not apply; ownership is as even as the hash.
+ *
+ * Only adding or removing the bucket with the highest number moves just
+ * the keys that must move, so a slave that joins with an ID lower than
+ * others moves more keys than it would on a ring.
+ */
+public class JumpPartitioner implements Partitioner {
+
+  public static final String NAME = "jump";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Placement place(List<TPCSlaveInfo> slaves, int virtualNodes) {
+    List<TPCSlaveInfo> buckets = new ArrayList<>();
+    for (TPCSlaveInfo slave : slaves) {
+      for (int i = 0; i < slave.getWeight(); i++) {
+        buckets.add(slave);
+      }
+    }
+    return new JumpPlacement(buckets.toArray(new TPCSlaveInfo[buckets.size()]),
+        slaves.toArray(new TPCSlaveInfo[slaves.size()]));
+  }
+
+  /**
+   * Maps a key to a bucket.
+   *
+   * @param key     hash of the key
+   * @param buckets number of buckets, at least 1
+   *
+   * @return bucket in [0, buckets)
+   */
+  public static int jump(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key * 2862933555777941757L + 1;
+      j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+    }
+    return (int) b;
+  }
+
+  private static final class JumpPlacement implements Placement {
+
+    private final TPCSlaveInfo[] buckets;
+    private final TPCSlaveInfo[] ordered;
+    private final long[] ids;
+    private final ReplicaTable replicas;
+
+    JumpPlacement(TPCSlaveInfo[] buckets, TPCSlaveInfo[] ordered) {
+      this.buckets = buckets;
+      this.ordered = ordered;
+      this.ids = RendezvousPartitioner.ids(ordered);
+      this.replicas = new ReplicaTable(this, ordered);
+    }
+
+    @Override
+    public TPCSlaveInfo findFirstReplica(long hash) {
+      if (buckets.length == 0) {
+        return null;
+      }
+      return buckets[jump(hash, buckets.length)];
+    }
+
+    @Override
+    public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
+      return RendezvousPartitioner.nextInOrder(ordered, ids, firstReplica);
+    }
+
+    @Override
+    public TPCSlaveInfo[] findReplicas(TPCSlaveInfo firstReplica, int n) {
+      return replicas.find(firstReplica, n);
+    }
+  }
+
+}
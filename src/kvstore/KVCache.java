@@ -3,7 +3,12 @@ package kvstore;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.bind.JAXBContext;
@@ -19,7 +24,12 @@ import kvstore.xml.ObjectFactory;
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
- * the eviction policy.
+ * the eviction policy. A cache built with a ValueCompressor holds large
+ * values in compressed form and decompresses them on every hit.
+ *
+ * An entry may carry an expiry time, after which it is dropped the next
+ * time it is looked up. Expiry times live beside the sets rather than in the
+ * entries, so sets without expiring entries pay nothing for them.
  */
 public class KVCache implements KeyValueInterface {
 
@@ -27,6 +37,12 @@ public class KVCache implements KeyValueInterface {
   final private int numSets;
   final private int maxElemsPerSet;
   final private List<Lock> setLockList;
+  final private List<Map<String, Long>> setExpiryList;
+  final private ValueCompressor compressor;
+  private EvictionListener evictionListener;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   /**
    * Constructs a second-chance-replacement cache.
@@ -34,20 +50,58 @@ public class KVCache implements KeyValueInterface {
    * @param numSets        the number of sets this cache will have
    * @param maxElemsPerSet the size of each set
    */
-  @SuppressWarnings("unchecked")
   public KVCache(int numSets, int maxElemsPerSet) {
+    this(numSets, maxElemsPerSet, null);
+  }
+
+  /**
+   * Constructs a second-chance-replacement cache that holds values in the
+   * form produced by compressor.
+   *
+   * @param numSets        the number of sets this cache will have
+   * @param maxElemsPerSet the size of each set
+   * @param compressor     ValueCompressor for cached values, or null to hold
+   *                       them decompressed
+   */
+  @SuppressWarnings("unchecked")
+  public KVCache(int numSets, int maxElemsPerSet, ValueCompressor compressor) {
     this.numSets = numSets;
     this.maxElemsPerSet = maxElemsPerSet;
+    this.compressor = compressor;
     cache = new KVCacheType();
     setLockList = new ArrayList<>();
+    setExpiryList = new ArrayList<>();
     for (int i = 0; i < numSets; i++) {
       KVSetType set = new KVSetType();
       set.setId(Integer.toString(i));
       cache.getSet().add(set);
       setLockList.add(new ReentrantLock());
+      setExpiryList.add(new HashMap<String, Long>());
     }
   }
 
+  /**
+   * Receives the keys of entries that the replacement policy drops to make
+   * room. It is called with the lock of the set held, before the entry is
+   * overwritten.
+   */
+  public interface EvictionListener {
+
+    /**
+     * @param key key of the entry being evicted
+     */
+    void evicted(String key);
+  }
+
+  /**
+   * Sets the listener told about every eviction.
+   *
+   * @param listener EvictionListener, or null for none
+   */
+  public void setEvictionListener(EvictionListener listener) {
+    this.evictionListener = listener;
+  }
+
   /**
    * Retrieves an entry from the cache.
    * Assumes access to the corresponding set has already been locked by the
@@ -60,13 +114,41 @@ public class KVCache implements KeyValueInterface {
    */
   @Override
   public String get(String key) {
-    int set_id = Math.abs(key.hashCode()) % numSets;
+    return get(key, setIndex(key.hashCode()));
+  }
+
+  /**
+   * Retrieves an entry from the cache using the precomputed hash of key.
+   * Assumes access to the corresponding set has already been locked by the
+   * caller of this method.
+   *
+   * @param key the key whose associated value is to be returned.
+   *
+   * @return the value associated to this key or null if no value is
+   *         associated with this key in the cache
+   */
+  public String get(KVKey key) {
+    return get(key.toString(), setIndex(key.hashCode()));
+  }
+
+  private String get(String key, int set_id) {
+    Map<String, Long> expiry = setExpiryList.get(set_id);
+    if (!expiry.isEmpty()) {
+      Long expiresAt = expiry.get(key);
+      if (expiresAt != null && System.currentTimeMillis() >= expiresAt) {
+        del(key, set_id);
+        misses.incrementAndGet();
+        return null;
+      }
+    }
     for (KVCacheEntry entry : cache.getSet().get(set_id).getCacheEntry()) {
       if (entry.getKey().equals(key)) {
         entry.setIsReferenced("True");
-        return entry.getValue();
+        hits.incrementAndGet();
+        return decode(entry.getValue());
       }
     }
+    misses.incrementAndGet();
     return null;
   }
 
@@ -88,7 +170,64 @@ public class KVCache implements KeyValueInterface {
    */
   @Override
   public void put(String key, String value) {
-    int set_id = Math.abs(key.hashCode()) % numSets;
+    put(key, setIndex(key.hashCode()), value);
+  }
+
+  /**
+   * Adds an entry to this cache using the precomputed hash of key. See
+   * put(String, String) for the replacement policy. Assumes access to the
+   * corresponding set has already been locked by the caller of this method.
+   *
+   * @param key   the key with which the specified value is to be associated
+   * @param value a value to be associated with the specified key
+   */
+  public void put(KVKey key, String value) {
+    put(key.toString(), setIndex(key.hashCode()), value);
+  }
+
+  /**
+   * Adds an entry to this cache that expires at the given time. See
+   * put(String, String) for the replacement policy. Assumes access to the
+   * corresponding set has already been locked by the caller of this method.
+   *
+   * @param key       the key with which the specified value is to be associated
+   * @param value     a value to be associated with the specified key
+   * @param expiresAt time in milliseconds since the epoch after which the
+   *                  entry is dropped, or 0 if it does not expire
+   */
+  public void put(KVKey key, String value, long expiresAt) {
+    String k = key.toString();
+    int set_id = setIndex(key.hashCode());
+    put(k, set_id, value);
+    if (expiresAt > 0) {
+      setExpiryList.get(set_id).put(k, expiresAt);
+    }
+  }
+
+  /**
+   * Gets when an entry expires. Assumes access to the corresponding set has
+   * already been locked by the caller of this method.
+   *
+   * @param key the key of the entry
+   *
+   * @return time in milliseconds since the epoch after which the entry is
+   *         dropped, or 0 if it does not expire or is not cached
+   */
+  public long getExpiry(KVKey key) {
+    Map<String, Long> expiry = setExpiryList.get(setIndex(key.hashCode()));
+    if (expiry.isEmpty()) {
+      return 0;
+    }
+    Long expiresAt = expiry.get(key.toString());
+    return expiresAt == null ? 0 : expiresAt;
+  }
+
+  private void put(String key, int set_id, String value) {
+    value = encode(value);
+    Map<String, Long> expiry = setExpiryList.get(set_id);
+    if (!expiry.isEmpty()) {
+      expiry.remove(key);
+    }
     List<KVCacheEntry> entryList = cache.getSet().get(set_id).getCacheEntry();
     for (KVCacheEntry entry : entryList) {
       if (entry.getKey().equals(key)) {
@@ -101,6 +240,13 @@ public class KVCache implements KeyValueInterface {
       do {
         KVCacheEntry firstEntry = entryList.get(0);
         if (firstEntry.getIsReferenced().equals("False")) { // Evict
+          evictions.incrementAndGet();
+          if (evictionListener != null) {
+            evictionListener.evicted(firstEntry.getKey());
+          }
+          if (!expiry.isEmpty()) {
+            expiry.remove(firstEntry.getKey());
+          }
           firstEntry.setKey(key);
           firstEntry.setValue(value);
           return;
@@ -127,7 +273,25 @@ public class KVCache implements KeyValueInterface {
    */
   @Override
   public void del(String key) {
-    int set_id = Math.abs(key.hashCode()) % numSets;
+    del(key, setIndex(key.hashCode()));
+  }
+
+  /**
+   * Removes an entry from this cache using the precomputed hash of key.
+   * Assumes access to the corresponding set has already been locked by the
+   * caller of this method. Does nothing if called on a key not in the cache.
+   *
+   * @param key key with which the specified value is to be associated
+   */
+  public void del(KVKey key) {
+    del(key.toString(), setIndex(key.hashCode()));
+  }
+
+  private void del(String key, int set_id) {
+    Map<String, Long> expiry = setExpiryList.get(set_id);
+    if (!expiry.isEmpty()) {
+      expiry.remove(key);
+    }
     List<KVCacheEntry> entryList = cache.getSet().get(set_id).getCacheEntry();
     for (KVCacheEntry entry : entryList) {
       if (entry.getKey().equals(key)) {
@@ -147,9 +311,88 @@ public class KVCache implements KeyValueInterface {
    * @return lock for the set that contains the key
    */
   public Lock getLock(String key) {
-    int set_id = Math.abs(key.hashCode()) % numSets;
-    return setLockList.get(set_id);
+    return setLockList.get(setIndex(key.hashCode()));
+  }
+
+  /**
+   * Get a lock for the set corresponding to a given key, using the
+   * precomputed hash of key.
+   *
+   * @param key key to determine the lock to return
+   *
+   * @return lock for the set that contains the key
+   */
+  public Lock getLock(KVKey key) {
+    return setLockList.get(setIndex(key.hashCode()));
+  }
+
+  /**
+   * Get the locks for every set holding any of the given keys, each once,
+   * in set order. Callers that lock several sets must lock them in this
+   * order, so that two batches can never wait on each other.
+   *
+   * @param keys keys to determine the locks to return
+   *
+   * @return locks for the sets that contain the keys, in set order
+   */
+  public List<Lock> getLocks(Collection<KVKey> keys) {
+    TreeSet<Integer> sets = new TreeSet<>();
+    for (KVKey key : keys) {
+      sets.add(setIndex(key.hashCode()));
+    }
+    List<Lock> locks = new ArrayList<>(sets.size());
+    for (int set_id : sets) {
+      locks.add(setLockList.get(set_id));
+    }
+    return locks;
+  }
+
+  /**
+   * @return number of gets answered from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of gets the cache could not answer
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of entries dropped to make room for others
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Adds the counters of this cache to stats. No set lock is taken.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public void collectStats(String prefix, Map<String, String> stats) {
+    long h = getHits();
+    long m = getMisses();
+    stats.put(prefix + "hits", Long.toString(h));
+    stats.put(prefix + "misses", Long.toString(m));
+    stats.put(prefix + "evictions", Long.toString(getEvictions()));
+    stats.put(prefix + "hitRatio", String.format("%.4f", h + m == 0 ? 0.0 : (double) h / (h + m)));
+  }
+
+  private int setIndex(int hash) {
+    return Math.abs(hash) % numSets;
+  }
+
+  private String encode(String value) {
+    return compressor == null ? value : compressor.packToString(value);
+  }
 
+  private String decode(String stored) {
+    return compressor == null ? stored : compressor.unpackString(stored);
   }
 
   /**
@@ -184,7 +427,7 @@ public class KVCache implements KeyValueInterface {
         xmlSet.getCacheEntry().add(xmlEntry);
         xmlEntry.setIsReferenced(entry.getIsReferenced());
         xmlEntry.setKey(entry.getKey());
-        xmlEntry.setValue(entry.getValue());
+        xmlEntry.setValue(decode(entry.getValue()));
       }
     }
     return factory.createKVCache(xmlCache);
@@ -1,19 +1,35 @@
 package kvstore;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import static kvstore.KVConstants.*;
 
 /**
  * Client API used to issue requests to key-value server.
+ *
+ * By default every request opens a new connection. Once enablePooling has
+ * been called, requests instead borrow persistent connections from a
+ * ConnectionPool, and the client should be closed when done with.
+ * Likewise, once enableNearCache has been called, gets are served from a
+ * NearCache when they can, and once enableSmartRouting has been called,
+ * gets that miss it are sent straight to the slaves of a TPCMaster.
  */
-public class KVClient implements KeyValueInterface {
+public class KVClient implements KeyValueInterface, Closeable {
 
   public static KVMessage serverResponse = null;  // Used for testing
 
   public String server;
   public int port;
 
+  private volatile ConnectionPool pool;
+  private volatile NearCache nearCache;
+  private volatile SmartRouter router;
+
   /**
    * Constructs a KVClient connected to a server.
    *
@@ -41,13 +57,104 @@ public class KVClient implements KeyValueInterface {
   }
 
   /**
-   * Creates a socket connected to the server to make a request.
+   * Makes requests share persistent connections from a pool instead of
+   * opening one each. Call it before issuing requests; a connection
+   * borrowed from a replaced pool would be returned to the new one.
+   *
+   * @param maxConnections    most connections open at once
+   * @param maxWaitMillis     longest a request waits for a free connection
+   * @param idleTimeoutMillis how long a connection may sit idle before it is
+   *                          closed
+   */
+  public void enablePooling(int maxConnections, long maxWaitMillis, long idleTimeoutMillis) {
+    ConnectionPool old = pool;
+    pool = new ConnectionPool(server, port, maxConnections, maxWaitMillis, idleTimeoutMillis);
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * @return the connection pool, or null if pooling is not enabled
+   */
+  public ConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Serves gets from a client-side cache, kept fresh by polling the server
+   * for the keys written since the last poll. A value can be served up to
+   * pollMillis after another client changed it, and never for longer than
+   * ttlMillis; writes made through this client drop the keys at once.
+   *
+   * @param numSets        the number of sets in the cache
+   * @param maxElemsPerSet the size of each set in the cache
+   * @param ttlMillis      longest a value is served from the cache
+   * @param pollMillis     time between two polls for changes
+   */
+  public void enableNearCache(int numSets, int maxElemsPerSet, long ttlMillis,
+                              long pollMillis) {
+    NearCache old = nearCache;
+    nearCache = new NearCache(this, numSets, maxElemsPerSet, ttlMillis, pollMillis);
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * @return the near cache, or null if it is not enabled
+   */
+  public NearCache getNearCache() {
+    return nearCache;
+  }
+
+  /**
+   * Sends gets straight to the slave that holds the key, for a client
+   * connected to a TPCMaster, rather than through the master. The ring is
+   * fetched from the master and checked again every refreshMillis; gets
+   * fall back to the master whenever the slaves cannot serve them.
+   *
+   * @param refreshMillis time after which the ring is checked again
+   */
+  public void enableSmartRouting(long refreshMillis) {
+    router = new SmartRouter(this, refreshMillis);
+  }
+
+  /**
+   * @return the smart router, or null if smart routing is not enabled
+   */
+  public SmartRouter getRouter() {
+    return router;
+  }
+
+  /**
+   * Closes the pooled connections and stops the near cache, if any.
+   */
+  @Override
+  public void close() {
+    NearCache cache = nearCache;
+    if (cache != null) {
+      cache.close();
+    }
+    ConnectionPool current = pool;
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  /**
+   * Creates a socket connected to the server to make a request, or borrows
+   * one from the pool.
    *
    * @return Socket connected to server
    *
    * @throws KVException if unable to create or connect socket
    */
   public Socket connectHost() throws KVException {
+    ConnectionPool current = pool;
+    if (current != null) {
+      return current.borrow();
+    }
     try {
       return new Socket(server, port);
     } catch (IOException e) {
@@ -58,12 +165,16 @@ public class KVClient implements KeyValueInterface {
   }
 
   /**
-   * Closes a socket.
+   * Closes a socket, or returns a pooled one to the pool.
    * Best effort, ignores error since the response has already been received.
    *
    * @param sock Socket to be closed
    */
   public void closeHost(Socket sock) {
+    if (sock instanceof FramedSocket && pool != null) {
+      pool.release(sock);
+      return;
+    }
     try {
       if (sock != null) {
         sock.close();
@@ -82,9 +193,26 @@ public class KVClient implements KeyValueInterface {
    */
   @Override
   public void put(String key, String value) throws KVException {
+    put(key, value, 0);
+  }
+
+  /**
+   * Issues a PUT request to the server for a pair that expires after
+   * ttlMillis.
+   *
+   * @param key       String to put in server as key
+   * @param value     String to put in server as value
+   * @param ttlMillis time to live in milliseconds, or 0 for no expiry
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public void put(String key, String value, long ttlMillis) throws KVException {
     KVMessage request = new KVMessage(PUT_REQ);
     request.setValue(value);
     request.setKey(key);
+    if (ttlMillis > 0) {
+      request.setTtl(ttlMillis);
+    }
 
     Socket sock = null;
     try {
@@ -101,6 +229,7 @@ public class KVClient implements KeyValueInterface {
 
     } finally {
       closeHost(sock);
+      invalidate(Collections.singletonList(key));
     }
   }
 
@@ -115,6 +244,31 @@ public class KVClient implements KeyValueInterface {
    */
   @Override
   public String get(String key) throws KVException {
+    NearCache cache = nearCache;
+    if (cache == null || key == null) {
+      return remoteGet(key).getValue();
+    }
+    String value = cache.get(key);
+    if (value == null) {
+      long generation = cache.generation();
+      KVMessage response = remoteGet(key);
+      value = response.getValue();
+      cache.offer(key, value, response.getTtlMillis(), generation);
+    }
+    return value;
+  }
+
+  /**
+   * @return the response carrying the value and the time it has left
+   */
+  private KVMessage remoteGet(String key) throws KVException {
+    SmartRouter current = router;
+    if (current != null && key != null && !key.isEmpty()) {
+      KVMessage response = current.get(key);
+      if (response != null) {
+        return response;
+      }
+    }
     KVMessage request = new KVMessage(GET_REQ);
     request.setKey(key);
 
@@ -131,7 +285,7 @@ public class KVClient implements KeyValueInterface {
         throw new KVException(response.getMessage());
       }
 
-      return response.getValue();
+      return response;
 
     } finally {
       closeHost(sock);
@@ -165,7 +319,227 @@ public class KVClient implements KeyValueInterface {
 
     } finally {
       closeHost(sock);
+      invalidate(Collections.singletonList(key));
+    }
+  }
+
+  /**
+   * Issues a SCAN request to the server.
+   *
+   * @param startKey inclusive start of the range, or null for the first key
+   * @param endKey   exclusive end of the range, or null for no upper bound
+   * @param limit    maximum number of pairs to return
+   *
+   * @return page of pairs in key order; pass its cursor as startKey to
+   *         fetch the next page
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public ScanPage scan(String startKey, String endKey, int limit) throws KVException {
+    KVMessage request = new KVMessage(SCAN_REQ);
+    request.setKey(startKey);
+    request.setEnd(endKey);
+    request.setLimit(limit);
+
+    Socket sock = null;
+    try {
+      sock = connectHost();
+      request.sendMessage(sock);
+      KVMessage response = new KVMessage(sock);
+      serverResponse = response; // For tests
+
+      if (response.getMessage() != null) {
+        throw new KVException(response.getMessage());
+      }
+
+      return ScanPage.fromMessage(response);
+
+    } finally {
+      closeHost(sock);
+    }
+  }
+
+  /**
+   * Issues a MULTI_GET request to the server.
+   *
+   * @param keys keys to get values for
+   *
+   * @return the pairs found, in the order of keys; missing keys are left out
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public LinkedHashMap<String, String> multiGet(Collection<String> keys) throws KVException {
+    KVMessage request = new KVMessage(MULTI_GET_REQ);
+    request.setKeys(keys);
+    KVMessage response = sendRequest(request);
+    if (response.getMessage() != null) {
+      throw new KVException(response.getMessage());
+    }
+    LinkedHashMap<String, String> pairs = response.getPairs();
+    return pairs == null ? new LinkedHashMap<String, String>() : pairs;
+  }
+
+  /**
+   * Issues a MULTI_PUT request to the server.
+   *
+   * @param pairs     pairs to put
+   * @param ttlMillis time to live of every pair in milliseconds, or 0 for
+   *                  no expiry
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public void multiPut(Map<String, String> pairs, long ttlMillis) throws KVException {
+    KVMessage request = new KVMessage(MULTI_PUT_REQ);
+    request.setPairs(new LinkedHashMap<>(pairs));
+    if (ttlMillis > 0) {
+      request.setTtl(ttlMillis);
+    }
+    expectSuccess(sendWrite(request, pairs.keySet()));
+  }
+
+  /**
+   * Issues a MULTI_DEL request to the server. Keys that are not present
+   * are skipped.
+   *
+   * @param keys keys to delete
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public void multiDel(Collection<String> keys) throws KVException {
+    KVMessage request = new KVMessage(MULTI_DEL_REQ);
+    request.setKeys(keys);
+    expectSuccess(sendWrite(request, keys));
+  }
+
+  /**
+   * Issues a STATS request to the server.
+   *
+   * @return the counters of the server, by name, in the order it sent them
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public LinkedHashMap<String, String> stats() throws KVException {
+    KVMessage response = sendRequest(new KVMessage(STATS_REQ));
+    if (response.getMessage() != null) {
+      throw new KVException(response.getMessage());
+    }
+    LinkedHashMap<String, String> stats = response.getPairs();
+    return stats == null ? new LinkedHashMap<String, String>() : stats;
+  }
+
+  KVMessage sendRequest(KVMessage request) throws KVException {
+    Socket sock = null;
+    try {
+      sock = connectHost();
+      request.sendMessage(sock);
+      KVMessage response = new KVMessage(sock);
+      serverResponse = response; // For tests
+      return response;
+    } finally {
+      closeHost(sock);
+    }
+  }
+
+  private static void expectSuccess(KVMessage response) throws KVException {
+    if (response.getMessage() == null || !response.getMessage().equals(SUCCESS)) {
+      throw new KVException(response.getMessage());
+    }
+  }
+
+  /**
+   * Sends a write and then drops its keys from the near cache, if any,
+   * whether or not it succeeded. A read that overlapped the write is thus
+   * either dropped or refused by the cache.
+   */
+  private KVMessage sendWrite(KVMessage request, Collection<String> keys) throws KVException {
+    try {
+      return sendRequest(request);
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  private void invalidate(Collection<String> keys) {
+    NearCache cache = nearCache;
+    if (cache != null) {
+      cache.invalidate(keys);
+    }
+  }
+
+  /**
+   * Issues a CHANGES request to the server.
+   *
+   * @param cursor cursor returned by the last call, or null for none
+   *
+   * @return the response, carrying the new cursor and the keys written
+   *         since cursor, or message CHANGES_RESET
+   *
+   * @throws KVException if the server could not be reached
+   */
+  KVMessage changesSince(String cursor) throws KVException {
+    KVMessage request = new KVMessage(CHANGES_REQ);
+    request.setValue(cursor);
+    return sendRequest(request);
+  }
+
+  /**
+   * Issues a CAS request to the server.
+   *
+   * @param key      String key
+   * @param expected value key must hold, or null if key must be missing
+   * @param value    value to set
+   *
+   * @return true if the value was set, false if key held another value
+   *
+   * @throws KVException if the request was not successful for any other
+   *                     reason
+   */
+  public boolean cas(String key, String expected, String value) throws KVException {
+    KVMessage request = new KVMessage(CAS_REQ);
+    request.setKey(key);
+    request.setExpected(expected);
+    request.setValue(value);
+    KVMessage response = sendWrite(request, Collections.singletonList(key));
+    if (ERROR_CAS_MISMATCH.equals(response.getMessage())) {
+      return false;
     }
+    expectSuccess(response);
+    return true;
   }
 
+  /**
+   * Issues an INCR request to the server.
+   *
+   * @param key   String key holding an integer; a missing key counts as 0
+   * @param delta amount to add
+   *
+   * @return the value of key after the increment
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public long incr(String key, long delta) throws KVException {
+    KVMessage request = new KVMessage(INCR_REQ);
+    request.setKey(key);
+    request.setValue(Long.toString(delta));
+    KVMessage response = sendWrite(request, Collections.singletonList(key));
+    if (response.getMessage() != null || response.getValue() == null) {
+      throw new KVException(response.getMessage());
+    }
+    return Long.parseLong(response.getValue());
+  }
+
+  /**
+   * Issues an APPEND request to the server.
+   *
+   * @param key    String key; a missing key is created
+   * @param suffix String to append to its value
+   *
+   * @throws KVException if the request was not successful in any way
+   */
+  public void append(String key, String suffix) throws KVException {
+    KVMessage request = new KVMessage(APPEND_REQ);
+    request.setKey(key);
+    request.setValue(suffix);
+    expectSuccess(sendWrite(request, Collections.singletonList(key)));
+  }
 }
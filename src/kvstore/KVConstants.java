@@ -9,9 +9,83 @@ public class KVConstants {
   public static final String RESP = "resp";
   public static final String SUCCESS = "Success";
 
+  /**
+   * Range read. Key is the inclusive start (absent for the first key), End
+   * the exclusive end (absent for no bound) and Limit the page size. The
+   * response carries the page as KVPairs in key order and, if more pairs
+   * remain, the key to resume from in Key.
+   */
+  public static final String SCAN_REQ = "scanreq";
+
+  /**
+   * Batch operations. The keys, and for MULTI_PUT_REQ their values, are
+   * carried as KVPairs; the values of MULTI_GET_REQ and MULTI_DEL_REQ pairs
+   * are left empty. A MULTI_GET_REQ response carries the pairs found, in
+   * request order, and omits missing keys. MULTI_DEL_REQ skips missing keys
+   * rather than failing the batch.
+   */
+  public static final String MULTI_GET_REQ = "multigetreq";
+  public static final String MULTI_PUT_REQ = "multiputreq";
+  public static final String MULTI_DEL_REQ = "multidelreq";
+
+  /**
+   * Atomic read-modify-write operations.
+   *
+   * CAS_REQ sets Key to Value if its current value equals Expected, or if
+   * Expected is absent and Key has no value.
+   * INCR_REQ adds the integer in Value (1 if absent) to the integer held by
+   * Key, treating a missing key as 0; the response carries the result in
+   * Value.
+   * APPEND_REQ appends Value to the value held by Key, creating it if
+   * missing.
+   *
+   * A pair that had a time to live keeps it unless the request sets TTL.
+   */
+  public static final String CAS_REQ = "casreq";
+  public static final String INCR_REQ = "incrreq";
+  public static final String APPEND_REQ = "appendreq";
+
+  /**
+   * Live counters of the node that receives it. The response carries one
+   * KVPair per counter, from its name to its value. It is answered on the
+   * thread that read it, so it is served even when the thread pool is
+   * backed up, and without taking any of the locks requests take.
+   */
+  public static final String STATS_REQ = "statsreq";
+
+  /**
+   * Keys written on the node that receives it since a cursor, which the
+   * request carries as its value; with no value, just the current cursor.
+   * The response carries the new cursor as its value and the changed keys
+   * as KVPairs with empty values. If the node no longer knows what changed
+   * since the cursor, the response message is CHANGES_RESET instead, and
+   * the client must assume every key changed. Answered inline, like
+   * STATS_REQ.
+   */
+  public static final String CHANGES_REQ = "changesreq";
+  public static final String CHANGES_RESET = "Changes since cursor unknown";
+
+  /**
+   * The placement of keys on the slaves of a TPCMaster, for clients that
+   * send reads straight to the slaves. The response carries the topology
+   * version as its value, the Partitioner as "Name:VirtualNodes" as its key,
+   * and one KVPair per slave, in unsigned order of ID, from its ID to
+   * "SlaveServerID@Hostname:Port/Weight". It carries no pairs until every
+   * slave has registered, nor while keys are being migrated after a slave
+   * joins or leaves. Answered inline, like STATS_REQ.
+   */
+  public static final String TOPOLOGY_REQ = "topologyreq";
+
   // proj4-specific constants
   public static final String READY = "ready";
   public static final String REGISTER = "register";
+  /**
+   * Sent by a slave to the registration port of its master, with the same
+   * "SlaveServerID@Hostname:Port" message as REGISTER, to leave the cluster.
+   * The master answers once the keys of the slave have been copied to the
+   * slaves that take them over.
+   */
+  public static final String DEREGISTER = "deregister";
   public static final String ABORT = "abort";
   public static final String COMMIT = "commit";
   public static final String ACK = "ack";
@@ -22,10 +96,15 @@ public class KVConstants {
   public static final int MAX_KEY_SIZE = 256;
   public static final int MAX_VAL_SIZE = 256 * 1024;
 
+  public static final int DEFAULT_SCAN_LIMIT = 100;
+  public static final int MAX_SCAN_LIMIT = 1000;
+  public static final int MAX_BATCH_SIZE = 1000;
+
   /**
    * Error message used if Master has already registered its expected number
    * of slaves, and thus it must let the slave know that it cannot register
-   * anymore.
+   * anymore. TPCMaster no longer sends it: slaves past the expected number
+   * join the cluster online.
    */
   public static final String ERROR_SLAVE_QUOTA_ALREADY_MET
                              = "Warning: Could not register this slave, as the expected quota is already met.";
@@ -58,6 +137,20 @@ public class KVConstants {
   public static final String ERROR_COULD_NOT_CONNECT
                              = "Network Error: Could not connect";
 
+  /**
+   * Error message used if a request is made on, or is still outstanding
+   * when, an AsyncKVClient is closed.
+   */
+  public static final String ERROR_CLIENT_CLOSED
+                             = "Network Error: Client closed";
+
+  /**
+   * Error message used if no pooled connection became free within the
+   * pool's maximum wait.
+   */
+  public static final String ERROR_POOL_EXHAUSTED
+                             = "Network Error: No pooled connection available";
+
   /**
    * Error message used when a SocketTimeoutException is thrown while blocked
    * on a read of the InputStream of a socket.
@@ -121,4 +214,32 @@ public class KVConstants {
   public static final String ERROR_INVALID_VALUE
                              = "Data Error: Null or empty value";
 
+  /**
+   * Error message used if a CAS request finds a value other than the one it
+   * expected.
+   */
+  public static final String ERROR_CAS_MISMATCH
+                             = "Data Error: Value does not match expected value";
+
+  /**
+   * Error message used if an INCR request is made on a key whose value, or
+   * with a delta that, is not a 64-bit integer, or if the result overflows.
+   */
+  public static final String ERROR_NOT_A_NUMBER
+                             = "Data Error: Value is not an integer";
+
+  /**
+   * Error message used if a slave asks to leave a master it is not
+   * registered with.
+   */
+  public static final String ERROR_NO_SUCH_SLAVE
+                             = "Data Error: Slave is not registered";
+
+  /**
+   * Error message used if a slave asks to leave a master that would be left
+   * with fewer than TPCMaster.MIN_SLAVE_NUM slaves.
+   */
+  public static final String ERROR_TOO_FEW_SLAVES
+                             = "Warning: Could not remove this slave, as too few would remain.";
+
 }
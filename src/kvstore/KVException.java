@@ -5,6 +5,14 @@ public class KVException extends Exception {
   private static final long serialVersionUID = 1L;
   private final KVMessage kvm;
 
+  /**
+   * Shared exception for ERROR_NO_SUCH_KEY. Misses are an expected outcome on
+   * the data path, so this instance is preallocated and carries no stack
+   * trace. Its KVMessage must be treated as read-only.
+   */
+  public static final KVException NO_SUCH_KEY
+      = new KVException(new KVMessage(KVConstants.RESP, KVConstants.ERROR_NO_SUCH_KEY), false);
+
   /**
    * Construct a KVException with a particular KVMessage.
    *
@@ -23,6 +31,18 @@ public class KVException extends Exception {
     this.kvm = new KVMessage(KVConstants.RESP, errorMessage);
   }
 
+  /**
+   * Construct a KVException that optionally skips filling in its stack trace.
+   * Suppression is disabled so that a shared instance never accumulates state.
+   *
+   * @param kvm                KVMessage for this KVException
+   * @param writableStackTrace whether the stack trace should be recorded
+   */
+  private KVException(KVMessage kvm, boolean writableStackTrace) {
+    super(null, null, false, writableStackTrace);
+    this.kvm = kvm;
+  }
+
   /**
    * Getter for the inner KVMessage containing the error message.
    *
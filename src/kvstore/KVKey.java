@@ -0,0 +1,113 @@
+package kvstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Internal representation of a key: its UTF-8 bytes together with both hashes
+ * the system needs, computed once when the key is first decoded. hashCode()
+ * matches String.hashCode() so cache set placement is unchanged, and
+ * hash64() matches TPCMaster.hashTo64bit() so ring placement is unchanged.
+ *
+ * A key built from a String keeps that String so it can be handed back
+ * without decoding. Long-lived copies made with compact() hold only the
+ * bytes. Keys are ordered by their unsigned UTF-8 bytes, which is code point
+ * order.
+ *
+ * Values have no such type and stay Strings. They are never hashed, and
+ * KVMessage is marshalled by JAXB, which takes and returns Strings, so
+ * holding values as UTF-8 would add a conversion on every read rather than
+ * save one. Large values are compacted in the store by ValueCompressor
+ * instead.
+ */
+public final class KVKey implements Comparable<KVKey> {
+
+  private final byte[] utf8;
+  private final int hash;
+  private final long hash64;
+  private final String string;
+
+  private KVKey(byte[] utf8, int hash, long hash64, String string) {
+    this.utf8 = utf8;
+    this.hash = hash;
+    this.hash64 = hash64;
+    this.string = string;
+  }
+
+  /**
+   * Builds a KVKey from a String, hashing it in a single pass.
+   *
+   * @param key String key
+   *
+   * @return KVKey for key
+   */
+  public static KVKey of(String key) {
+    int h = 0;
+    long h64 = 1125899906842597L;
+    int len = key.length();
+    for (int i = 0; i < len; i++) {
+      char c = key.charAt(i);
+      h = 31 * h + c;
+      h64 = 31 * h64 + c;
+    }
+    return new KVKey(key.getBytes(StandardCharsets.UTF_8), h, h64, key);
+  }
+
+  /**
+   * @return a copy of this key that shares its bytes but drops the String
+   */
+  public KVKey compact() {
+    return string == null ? this : new KVKey(utf8, hash, hash64, null);
+  }
+
+  /**
+   * @return 64-bit hash used for placement on the TPCMaster ring
+   */
+  public long hash64() {
+    return hash64;
+  }
+
+  /**
+   * @return length of the key in UTF-8 bytes
+   */
+  public int byteLength() {
+    return utf8.length;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof KVKey)) {
+      return false;
+    }
+    KVKey other = (KVKey) o;
+    return hash64 == other.hash64 && Arrays.equals(utf8, other.utf8);
+  }
+
+  @Override
+  public int compareTo(KVKey other) {
+    byte[] a = utf8;
+    byte[] b = other.utf8;
+    int len = Math.min(a.length, b.length);
+    for (int i = 0; i < len; i++) {
+      int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  @Override
+  public String toString() {
+    return string != null ? string : new String(utf8, StandardCharsets.UTF_8);
+  }
+
+}
@@ -1,5 +1,6 @@
 package kvstore;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
@@ -9,6 +10,12 @@ import java.io.Serializable;
 import java.io.StringWriter;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
@@ -19,6 +26,8 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import static kvstore.KVConstants.APPEND_REQ;
+import static kvstore.KVConstants.CAS_REQ;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
 import static kvstore.KVConstants.ERROR_COULD_NOT_SEND_DATA;
@@ -28,9 +37,16 @@ import static kvstore.KVConstants.ERROR_INVALID_VALUE;
 import static kvstore.KVConstants.ERROR_PARSER;
 import static kvstore.KVConstants.ERROR_SOCKET_TIMEOUT;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.INCR_REQ;
+import static kvstore.KVConstants.MAX_BATCH_SIZE;
+import static kvstore.KVConstants.MULTI_DEL_REQ;
+import static kvstore.KVConstants.MULTI_GET_REQ;
+import static kvstore.KVConstants.MULTI_PUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.REGISTER;
+import static kvstore.KVConstants.SCAN_REQ;
 import kvstore.xml.KVMessageType;
+import kvstore.xml.KVPairType;
 import kvstore.xml.ObjectFactory;
 import org.w3c.dom.Document;
 
@@ -46,6 +62,14 @@ public class KVMessage implements Serializable {
   private String key;
   private String value;
   private String message;
+  private String end;
+  private Integer limit;
+  private Long ttl;
+  private String expected;
+  private Long version;
+  private LinkedHashMap<String, String> pairs;
+  private Map<String, Long> pairVersions;
+  private transient KVKey kvKey;
 
   /**
    * Construct KVMessage with only a type.
@@ -94,15 +118,7 @@ public class KVMessage implements Serializable {
   public KVMessage(Socket sock, int timeout) throws KVException {
     try {
       sock.setSoTimeout(timeout);
-      KVMessageType parsedObject = unmarshal(sock.getInputStream());
-
-      key = parsedObject.getKey();
-      value = parsedObject.getValue();
-      message = parsedObject.getMessage();
-      msgType = parsedObject.getType();
-
-      validateMessage();
-
+      readFrom(sock.getInputStream());
     } catch (IOException ex) {
       throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
     } catch (JAXBException ex) {
@@ -113,6 +129,53 @@ public class KVMessage implements Serializable {
     }
   }
 
+  /**
+   * Construct KVMessage from a complete serialized message, such as one
+   * read from a non-blocking channel.
+   *
+   * @param xml bytes of the serialized KVMessage
+   *
+   * @throws KVException if we fail to create a valid KVMessage. Please see
+   *                     KVConstants.java for possible KVException messages.
+   */
+  public KVMessage(byte[] xml) throws KVException {
+    try {
+      readFrom(new ByteArrayInputStream(xml));
+    } catch (JAXBException ex) {
+      throw new KVException(ERROR_PARSER);
+    }
+  }
+
+  private void readFrom(InputStream is) throws JAXBException, KVException {
+    long start = System.nanoTime();
+    KVMessageType parsedObject = unmarshal(is);
+    Latencies.PARSE.recordSince(start);
+
+    key = parsedObject.getKey();
+    value = parsedObject.getValue();
+    message = parsedObject.getMessage();
+    msgType = parsedObject.getType();
+    end = parsedObject.getEnd();
+    limit = parsedObject.getLimit();
+    ttl = parsedObject.getTtl();
+    expected = parsedObject.getExpected();
+    version = parsedObject.getVersion();
+    if (!parsedObject.getKVPair().isEmpty()) {
+      pairs = new LinkedHashMap<>();
+      for (KVPairType pair : parsedObject.getKVPair()) {
+        pairs.put(pair.getKey(), pair.getValue());
+        if (pair.getVersion() != null) {
+          if (pairVersions == null) {
+            pairVersions = new HashMap<>();
+          }
+          pairVersions.put(pair.getKey(), pair.getVersion());
+        }
+      }
+    }
+
+    validateMessage();
+  }
+
   /**
    * Constructs a KVMessage by copying another KVMessage.
    *
@@ -120,9 +183,21 @@ public class KVMessage implements Serializable {
    */
   public KVMessage(KVMessage kvm) {
     this.key = kvm.key;
+    this.kvKey = kvm.kvKey;
     this.value = kvm.value;
     this.message = kvm.message;
     this.msgType = kvm.msgType;
+    this.end = kvm.end;
+    this.limit = kvm.limit;
+    this.ttl = kvm.ttl;
+    this.expected = kvm.expected;
+    this.version = kvm.version;
+    if (kvm.pairs != null) {
+      this.pairs = new LinkedHashMap<>(kvm.pairs);
+    }
+    if (kvm.pairVersions != null) {
+      this.pairVersions = new HashMap<>(kvm.pairVersions);
+    }
   }
 
   /* http://stackoverflow.com/questions/2567416/document-to-string/2567428#2567428 */
@@ -170,10 +245,21 @@ public class KVMessage implements Serializable {
         }
         break;
       case PUT_REQ:
+      case CAS_REQ:
+      case APPEND_REQ:
         if (key == null || key.isEmpty()) {
           throw new KVException(ERROR_INVALID_KEY);
         } else if (value == null || value.isEmpty()) {
           throw new KVException(ERROR_INVALID_VALUE);
+        } else if (ttl != null && ttl <= 0) {
+          throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        break;
+      case INCR_REQ:
+        if (key == null || key.isEmpty()) {
+          throw new KVException(ERROR_INVALID_KEY);
+        } else if (ttl != null && ttl <= 0) {
+          throw new KVException(ERROR_INVALID_FORMAT);
         }
         break;
       case REGISTER:
@@ -181,6 +267,35 @@ public class KVMessage implements Serializable {
           throw new KVException(ERROR_INVALID_FORMAT);
         }
         break;
+      case SCAN_REQ:
+        if (limit != null && limit <= 0) {
+          throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        break;
+      case MULTI_GET_REQ:
+      case MULTI_DEL_REQ:
+        validateBatch(false);
+        break;
+      case MULTI_PUT_REQ:
+        validateBatch(true);
+        if (ttl != null && ttl <= 0) {
+          throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        break;
+    }
+  }
+
+  private void validateBatch(boolean needValues) throws KVException {
+    if (pairs == null || pairs.isEmpty() || pairs.size() > MAX_BATCH_SIZE) {
+      throw new KVException(ERROR_INVALID_FORMAT);
+    }
+    for (Map.Entry<String, String> pair : pairs.entrySet()) {
+      if (pair.getKey() == null || pair.getKey().isEmpty()) {
+        throw new KVException(ERROR_INVALID_KEY);
+      }
+      if (needValues && (pair.getValue() == null || pair.getValue().isEmpty())) {
+        throw new KVException(ERROR_INVALID_VALUE);
+      }
     }
   }
 
@@ -197,6 +312,22 @@ public class KVMessage implements Serializable {
     xmlStore.setValue(value);
     xmlStore.setType(msgType);
     xmlStore.setMessage(message);
+    xmlStore.setEnd(end);
+    xmlStore.setLimit(limit);
+    xmlStore.setTtl(ttl);
+    xmlStore.setExpected(expected);
+    xmlStore.setVersion(version);
+    if (pairs != null) {
+      for (Map.Entry<String, String> e : pairs.entrySet()) {
+        KVPairType pair = factory.createKVPairType();
+        pair.setKey(e.getKey());
+        pair.setValue(e.getValue());
+        if (pairVersions != null) {
+          pair.setVersion(pairVersions.get(e.getKey()));
+        }
+        xmlStore.getKVPair().add(pair);
+      }
+    }
     return factory.createKVMessage(xmlStore);
   }
 
@@ -253,6 +384,26 @@ public class KVMessage implements Serializable {
     marshaller.marshal(getXMLRoot(), os);
   }
 
+  /**
+   * Serialize this KVMessage for sending over a non-blocking channel. The
+   * receiver still expects an EOF after the message, so the caller must shut
+   * down output once the bytes are written.
+   *
+   * @return bytes of the serialized message
+   *
+   * @throws KVException with ERROR_INVALID_FORMAT or ERROR_PARSER
+   */
+  public byte[] toBytes() throws KVException {
+    validateMessage();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try {
+      marshalTo(os);
+    } catch (JAXBException e) {
+      throw new KVException(ERROR_PARSER);
+    }
+    return os.toByteArray();
+  }
+
   /**
    * Send serialized version of this KVMessage over the network.
    * You must call sock.shutdownOutput() in order to flush the OutputStream
@@ -283,6 +434,21 @@ public class KVMessage implements Serializable {
 
   public void setKey(String key) {
     this.key = key;
+    this.kvKey = null;
+  }
+
+  /**
+   * Get the key of this message as a KVKey. The KVKey is built on first use
+   * and reused afterwards, so every layer that handles this request shares
+   * the same hashes.
+   *
+   * @return KVKey for the key of this message, or null if there is no key
+   */
+  public KVKey getKVKey() {
+    if (kvKey == null && key != null) {
+      kvKey = KVKey.of(key);
+    }
+    return kvKey;
   }
 
   public String getValue() {
@@ -305,6 +471,149 @@ public class KVMessage implements Serializable {
     return msgType;
   }
 
+  public String getEnd() {
+    return end;
+  }
+
+  public void setEnd(String end) {
+    this.end = end;
+  }
+
+  public Integer getLimit() {
+    return limit;
+  }
+
+  public void setLimit(Integer limit) {
+    this.limit = limit;
+  }
+
+  public String getExpected() {
+    return expected;
+  }
+
+  /**
+   * Set the value a CAS_REQ expects to find.
+   *
+   * @param expected expected current value, or null if the key is expected
+   *                 to be missing
+   */
+  public void setExpected(String expected) {
+    this.expected = expected;
+  }
+
+  public Long getVersion() {
+    return version;
+  }
+
+  /**
+   * Set the version of the write carried by this message, as the master
+   * stamps it on a transaction, or of the value a GET response carries.
+   * Versions of the same key only ever grow, so replicas that disagree are
+   * settled by taking the highest.
+   *
+   * @param version version, or null if unknown
+   */
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
+  public Long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * Set the time to live of the pair carried by this message: how long a
+   * PUT_REQ value should live, or how long a GET response value has left.
+   *
+   * @param ttl milliseconds, or null for no expiry
+   */
+  public void setTtl(Long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * @return time to live in milliseconds, or 0 if this message has none
+   */
+  public long getTtlMillis() {
+    return ttl == null ? 0 : ttl;
+  }
+
+  /**
+   * Get the key-value pairs carried by this message, in the order they were
+   * added or received.
+   *
+   * @return ordered map of pairs, or null if this message carries none
+   */
+  public LinkedHashMap<String, String> getPairs() {
+    return pairs;
+  }
+
+  public void setPairs(LinkedHashMap<String, String> pairs) {
+    this.pairs = pairs;
+  }
+
+  /**
+   * @return versions of the pairs carried by this message, by key, or null
+   *         if none carries one
+   */
+  public Map<String, Long> getPairVersions() {
+    return pairVersions;
+  }
+
+  /**
+   * Set the versions of the pairs carried by this message, as a slave
+   * reports them in a scan page. Pairs missing from versions carry none.
+   *
+   * @param versions versions by key, or null
+   */
+  public void setPairVersions(Map<String, Long> versions) {
+    this.pairVersions = versions;
+  }
+
+  /**
+   * Set the keys of a MULTI_GET_REQ or MULTI_DEL_REQ. Duplicates are sent
+   * once.
+   *
+   * @param keys keys to carry, in order
+   */
+  public void setKeys(Collection<String> keys) {
+    pairs = new LinkedHashMap<>();
+    for (String k : keys) {
+      pairs.put(k, "");
+    }
+  }
+
+  /**
+   * @return keys of the pairs carried by this message as KVKeys, in order,
+   *         or an empty list if it carries none
+   */
+  public List<KVKey> getKVKeys() {
+    List<KVKey> keys = new ArrayList<>();
+    if (pairs != null) {
+      for (String k : pairs.keySet()) {
+        keys.add(KVKey.of(k));
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * @return true if this message is a request that changes the store and
+   *         so is carried out through two-phase commit
+   */
+  public boolean isWrite() {
+    switch (msgType) {
+      case PUT_REQ:
+      case DEL_REQ:
+      case CAS_REQ:
+      case MULTI_PUT_REQ:
+      case MULTI_DEL_REQ:
+        return true;
+      default:
+        return false;
+    }
+  }
+
   @Override
   public String toString() {
     try {
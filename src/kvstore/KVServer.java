@@ -1,17 +1,51 @@
 package kvstore;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import static kvstore.KVConstants.*;
 
 /**
  * This class services all storage logic for an individual key-value server.
- * All KVServer request on keys from different sets must be parallel while
- * requests on keys from the same set should be serial. A write-through
- * policy should be followed when a put request is made.
+ * Requests on the same key are serialized by a LockStripes of the server's
+ * own, sized for the machine rather than the cache; the lock of a cache set
+ * is only held for the duration of each cache call. A write-through
+ * policy should be followed when a put request is made, unless write-back
+ * mode has been enabled, in which case puts reach the store in batches
+ * through a WriteBackBuffer.
  */
 public class KVServer implements KeyValueInterface {
 
+  /* How long a deleted key keeps the version of its delete, unless set
+     otherwise; see setTombstoneGrace */
+  public static final long DEFAULT_TOMBSTONE_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long VERSION_TICK_MILLIS = 1000;
+
   private KVStore dataStore;
   private KVCache dataCache;  
+  private WriteBackBuffer writeBack;
+  private final LockStripes stripes;
+  private final ChangeLog changes = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  /* Version of the last committed write of each stored key that carried
+     one; dropped once the key expires */
+  private final ConcurrentHashMap<KVKey, Long> versions = new ConcurrentHashMap<>();
+  /* Version of the delete of each key deleted within the grace period, so
+     a replica can tell a delete from a missed write; in key order for
+     scans */
+  private final ConcurrentSkipListMap<KVKey, Long> tombstones = new ConcurrentSkipListMap<>();
+  /* When to forget the versions of expiring keys and of tombstones;
+     advanced by every commit */
+  private final TimingWheel<Forget> forgetting = new TimingWheel<>(VERSION_TICK_MILLIS, 3,
+      System.currentTimeMillis());
+  private volatile long tombstoneGrace = DEFAULT_TOMBSTONE_GRACE_MILLIS;
 
   /**
    * Constructs a KVServer backed by a KVCache and KVStore.
@@ -22,6 +56,92 @@ public class KVServer implements KeyValueInterface {
   public KVServer(int numSets, int maxElemsPerSet) {
     this.dataCache = new KVCache(numSets, maxElemsPerSet);
     this.dataStore = new KVStore();
+    this.stripes = new LockStripes();
+  }
+
+  /**
+   * Constructs a KVServer from an existing cache and store, for example an
+   * ordered store that serves range scans efficiently.
+   *
+   * @param dataCache KVCache for this server
+   * @param dataStore KVStore for this server
+   */
+  public KVServer(KVCache dataCache, KVStore dataStore) {
+    this(dataCache, dataStore, LockStripes.defaultStripes());
+  }
+
+  /**
+   * Constructs a KVServer from an existing cache and store, serializing
+   * requests on a given number of lock stripes.
+   *
+   * @param dataCache   KVCache for this server
+   * @param dataStore   KVStore for this server
+   * @param lockStripes number of locks keys are hashed onto; rounded up to
+   *                    a power of two
+   */
+  public KVServer(KVCache dataCache, KVStore dataStore, int lockStripes) {
+    this.dataCache = dataCache;
+    this.dataStore = dataStore;
+    this.stripes = new LockStripes(lockStripes);
+  }
+
+  /**
+   * Constructs a KVServer whose store compresses large values.
+   *
+   * @param numSets         the number of sets in the data cache
+   * @param maxElemsPerSet  the size of each set in the data cache
+   * @param compressor      ValueCompressor used by the store
+   * @param cacheCompressed whether the data cache holds values in compressed
+   *                        form as well, trading CPU on hits for capacity
+   */
+  public KVServer(int numSets, int maxElemsPerSet, ValueCompressor compressor,
+                  boolean cacheCompressed) {
+    this.dataCache = new KVCache(numSets, maxElemsPerSet, cacheCompressed ? compressor : null);
+    this.dataStore = new KVStore(compressor);
+    this.stripes = new LockStripes();
+  }
+
+  /**
+   * @return the ValueCompressor used by the store, or null if values are
+   *         stored uncompressed
+   */
+  public ValueCompressor getCompressor() {
+    return dataStore.getCompressor();
+  }
+
+  /**
+   * Switches this server to write-back mode: puts update the cache and are
+   * copied to the store by a background thread, in batches. Must be called
+   * before the server takes requests.
+   *
+   * @param maxDirty            number of unflushed puts beyond which puts are
+   *                            written through again
+   * @param batchSize           number of puts flushed together
+   * @param flushIntervalMillis longest a put waits before a flush is started
+   */
+  public void enableWriteBack(int maxDirty, int batchSize, long flushIntervalMillis) {
+    writeBack = new WriteBackBuffer(dataStore, stripes, maxDirty, batchSize,
+        flushIntervalMillis);
+    dataCache.setEvictionListener(writeBack);
+    writeBack.start();
+  }
+
+  /**
+   * @return the WriteBackBuffer of this server, or null if it is in
+   *         write-through mode
+   */
+  public WriteBackBuffer getWriteBack() {
+    return writeBack;
+  }
+
+  /**
+   * Writes every buffered put to the store. Does nothing in write-through
+   * mode.
+   */
+  public void flush() {
+    if (writeBack != null) {
+      writeBack.flush();
+    }
   }
 
   /**
@@ -34,19 +154,125 @@ public class KVServer implements KeyValueInterface {
    */
   @Override
   public void put(String key, String value) throws KVException {
-    if (key.length() > MAX_KEY_SIZE) {
+    put(KVKey.of(key), value);
+  }
+
+  /**
+   * Performs put request on cache and store.
+   *
+   * @param key   KVKey key
+   * @param value String value
+   *
+   * @throws KVException if key or value is too long
+   */
+  public void put(KVKey key, String value) throws KVException {
+    put(key, value, 0);
+  }
+
+  /**
+   * Performs put request on cache and store. The pair expires on its own
+   * after ttlMillis; no delete has to be replicated for it.
+   *
+   * @param key       KVKey key
+   * @param value     String value
+   * @param ttlMillis time to live in milliseconds, or 0 for no expiry
+   *
+   * @throws KVException if key or value is too long
+   */
+  public void put(KVKey key, String value, long ttlMillis) throws KVException {
+    checkSizes(key, value);
+    Lock lock = stripes.getLock(key);
+    try {
+      Latencies.STRIPE_LOCK_WAIT.lock(lock);
+      putLocked(key, value, ttlMillis);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Performs a batch of puts. Every pair is checked before any is written,
+   * and the stripes of all the keys are locked together, so no reader sees
+   * part of the batch.
+   *
+   * @param pairs     pairs to put
+   * @param ttlMillis time to live of every pair in milliseconds, or 0 for
+   *                  no expiry
+   *
+   * @throws KVException if any key or value is too long
+   */
+  public void multiPut(Map<KVKey, String> pairs, long ttlMillis) throws KVException {
+    for (Map.Entry<KVKey, String> pair : pairs.entrySet()) {
+      checkSizes(pair.getKey(), pair.getValue());
+    }
+    List<Lock> locks = stripes.getLocks(pairs.keySet());
+    lockAll(locks);
+    try {
+      for (Map.Entry<KVKey, String> pair : pairs.entrySet()) {
+        putLocked(pair.getKey(), pair.getValue(), ttlMillis);
+      }
+    } finally {
+      unlockAll(locks);
+    }
+  }
+
+  /**
+   * Performs a CAS_REQ, INCR_REQ or APPEND_REQ atomically: the current
+   * value is read and the new one written under the stripe lock of the key.
+   *
+   * @param request CAS_REQ, INCR_REQ or APPEND_REQ KVMessage
+   *
+   * @return the new value of the key
+   *
+   * @throws KVException if the operation does not apply to the current
+   *                     value, or the result is too long
+   */
+  public String readModifyWrite(KVMessage request) throws KVException {
+    KVKey key = request.getKVKey();
+    Lock lock = stripes.getLock(key);
+    try {
+      Latencies.STRIPE_LOCK_WAIT.lock(lock);
+      String newValue = ReadModifyWrite.apply(request, lookupLocked(key));
+      checkSizes(key, newValue);
+      putLocked(key, newValue, ttlFor(request, key));
+      return newValue;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Time to live for the result of a read-modify-write: the one the request
+   * sets, otherwise whatever the key had left.
+   */
+  private long ttlFor(KVMessage request, KVKey key) {
+    long ttl = request.getTtlMillis();
+    return ttl > 0 ? ttl : getTtl(key);
+  }
+
+  private void checkSizes(KVKey key, String value) throws KVException {
+    if (key.toString().length() > MAX_KEY_SIZE) {
       throw new KVException(KVConstants.ERROR_OVERSIZED_KEY);
     }
     if (value.length() > MAX_VAL_SIZE) {
       throw new KVException(KVConstants.ERROR_OVERSIZED_VALUE);
     }
-    try {
-      dataCache.getLock(key).lock();
-      dataCache.put(key, value);
-      dataStore.put(key, value);
-    } finally {
-      dataCache.getLock(key).unlock();
+  }
+
+  private void putLocked(KVKey key, String value, long ttlMillis) {
+    if (writeBack != null) {
+      long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+      if (writeBack.put(key, value, expiresAt)) {
+        cachePut(key, value, expiresAt);
+        changes.record(key.toString());
+        return;
+      }
     }
+    long start = System.nanoTime();
+    long expiresAt = dataStore.put(key, value, ttlMillis);
+    Latencies.STORE.recordSince(start);
+    cachePut(key, value, expiresAt);
+    changes.record(key.toString());
   }
 
   /**
@@ -61,18 +287,86 @@ public class KVServer implements KeyValueInterface {
    */
   @Override
   public String get(String key) throws KVException {
+    String value = lookup(KVKey.of(key));
+    if (value == null) {
+      throw KVException.NO_SUCH_KEY;
+    }
+    return value;
+  }
+
+  /**
+   * Performs get request without throwing on a miss.
+   * Checks cache first. Updates cache if not in cache but located in store.
+   *
+   * @param key String key
+   *
+   * @return String value associated with key, or null if key does not exist
+   *         in store
+   */
+  public String lookup(String key) {
+    return lookup(KVKey.of(key));
+  }
+
+  /**
+   * Performs get request without throwing on a miss.
+   * Checks cache first. Updates cache if not in cache but located in store.
+   *
+   * @param key KVKey key
+   *
+   * @return String value associated with key, or null if key does not exist
+   *         in store
+   */
+  public String lookup(KVKey key) {
+    Lock lock = stripes.getLock(key);
+    try {
+      Latencies.STRIPE_LOCK_WAIT.lock(lock);
+      return lookupLocked(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Performs a batch of gets, reading every key under one acquisition of
+   * the locks of their stripes.
+   *
+   * @param keys keys to get
+   *
+   * @return the pairs found, in the order of keys; missing keys are left out
+   */
+  public LinkedHashMap<String, String> multiGet(List<KVKey> keys) {
+    LinkedHashMap<String, String> found = new LinkedHashMap<>();
+    List<Lock> locks = stripes.getLocks(keys);
+    lockAll(locks);
     try {
-      dataCache.getLock(key).lock();
-      String cacheValue = dataCache.get(key);
-      if (cacheValue == null) {
-        String storeValue = dataStore.get(key);
-        dataCache.put(key, storeValue);
-        return storeValue;
+      for (KVKey key : keys) {
+        String value = lookupLocked(key);
+        if (value != null) {
+          found.put(key.toString(), value);
+        }
       }
-      return cacheValue;
     } finally {
-      dataCache.getLock(key).unlock();
+      unlockAll(locks);
+    }
+    return found;
+  }
+
+  private String lookupLocked(KVKey key) {
+    String cacheValue = cacheGet(key);
+    if (cacheValue == null) {
+      if (writeBack != null) {
+        // An entry the cache dropped on expiry may still be pending
+        writeBack.flushKey(key);
+      }
+      long start = System.nanoTime();
+      String storeValue = dataStore.lookup(key);
+      Latencies.STORE.recordSince(start);
+      if (storeValue != null) {
+        cachePut(key, storeValue, dataStore.getExpiry(key));
+      }
+      return storeValue;
     }
+    return cacheValue;
   }
 
   /**
@@ -84,31 +378,410 @@ public class KVServer implements KeyValueInterface {
    */
   @Override
   public void del(String key) throws KVException {
+    del(KVKey.of(key));
+  }
+
+  /**
+   * Performs del request.
+   *
+   * @param key KVKey key
+   *
+   * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+   */
+  public void del(KVKey key) throws KVException {
+    Lock lock = stripes.getLock(key);
     try {
-      dataCache.getLock(key).lock();
+      Latencies.STRIPE_LOCK_WAIT.lock(lock);
+      cacheDel(key);
+      long start = System.nanoTime();
+      if (writeBack != null && writeBack.remove(key)) {
+        dataStore.remove(key);
+      } else {
+        dataStore.del(key);
+      }
+      Latencies.STORE.recordSince(start);
+      changes.record(key.toString());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Performs a batch of deletes under one acquisition of the locks of the
+   * stripes of all the keys. Keys not in the store are skipped.
+   *
+   * @param keys keys to delete
+   *
+   * @return number of keys that were deleted
+   */
+  public int multiDel(List<KVKey> keys) {
+    int deleted = 0;
+    List<Lock> locks = stripes.getLocks(keys);
+    lockAll(locks);
+    try {
+      for (KVKey key : keys) {
+        cacheDel(key);
+        boolean pending = writeBack != null && writeBack.remove(key);
+        long start = System.nanoTime();
+        boolean removed = dataStore.remove(key);
+        Latencies.STORE.recordSince(start);
+        if (removed || pending) {
+          changes.record(key.toString());
+          deleted++;
+        }
+      }
+    } finally {
+      unlockAll(locks);
+    }
+    return deleted;
+  }
+
+  /**
+   * Applies a write request that has been committed through two-phase
+   * commit, either live or while replaying the log. The version the
+   * master stamped on it is recorded for every key it writes, even if the
+   * write fails, so a delete of a key that was already missing still
+   * leaves its version behind; see setTombstoneGrace.
+   *
+   * @param request committed write request
+   *
+   * @throws KVException if the request fails, e.g. ERROR_NO_SUCH_KEY for a
+   *                     DEL_REQ on a missing key
+   */
+  public void commit(KVMessage request) throws KVException {
+    try {
+      apply(request);
+    } finally {
+      // Recorded after the value, so a read that sees the version also
+      // sees the value it belongs to
+      Long version = request.getVersion();
+      if (version != null) {
+        recordVersion(request, version);
+      }
+    }
+  }
+
+  /**
+   * A version to forget once its key has expired or its tombstone has
+   * outlived the grace period.
+   */
+  private static final class Forget {
+
+    final KVKey key;
+    final Long version;
+    final boolean deleted;
+
+    Forget(KVKey key, Long version, boolean deleted) {
+      this.key = key;
+      this.version = version;
+      this.deleted = deleted;
+    }
+  }
+
+  private void recordVersion(KVMessage request, final Long version) {
+    long now = System.currentTimeMillis();
+    String type = request.getMsgType();
+    boolean deletes = type.equals(DEL_REQ) || type.equals(MULTI_DEL_REQ);
+    List<KVKey> keys = request.getPairs() == null
+        ? Collections.singletonList(request.getKVKey()) : request.getKVKeys();
+    for (KVKey key : keys) {
+      if (deletes) {
+        tombstones.merge(key, version, Math::max);
+        versions.computeIfPresent(key, (k, live) -> live < version ? null : live);
+        forgetting.schedule(new Forget(key, version, true), now + tombstoneGrace, now);
+      } else {
+        versions.merge(key, version, Math::max);
+        tombstones.computeIfPresent(key, (k, deleted) -> deleted < version ? null : deleted);
+        long ttl = getTtl(key);
+        if (ttl > 0) {
+          forgetting.schedule(new Forget(key, version, false), now + ttl, now);
+        }
+      }
+    }
+    for (Forget forget : forgetting.advance(now)) {
+      if (forget.deleted) {
+        tombstones.remove(forget.key, forget.version);
+      } else if (!hasKey(forget.key)) {
+        versions.remove(forget.key, forget.version);
+      }
+    }
+  }
+
+  /**
+   * Sets how long a deleted key keeps the version of its delete. Until
+   * then a quorum read that also reaches a replica which missed the delete
+   * sees the delete is newer; after it, that replica's copy would win, so
+   * the grace period must outlast the time a replica can stay behind.
+   *
+   * @param millis grace period in milliseconds, at least 1
+   */
+  public void setTombstoneGrace(long millis) {
+    tombstoneGrace = Math.max(1, millis);
+  }
+
+  private void apply(KVMessage request) throws KVException {
+    switch (request.getMsgType()) {
+      case PUT_REQ:
+        put(request.getKVKey(), request.getValue(), request.getTtlMillis());
+        break;
+      case DEL_REQ:
+        del(request.getKVKey());
+        break;
+      case CAS_REQ:
+        // The expected value was checked when the slave voted
+        KVKey key = request.getKVKey();
+        checkSizes(key, request.getValue());
+        Lock lock = stripes.getLock(key);
+        try {
+          Latencies.STRIPE_LOCK_WAIT.lock(lock);
+          putLocked(key, request.getValue(), ttlFor(request, key));
+        } finally {
+          lock.unlock();
+        }
+        break;
+      case MULTI_PUT_REQ:
+        LinkedHashMap<KVKey, String> pairs = new LinkedHashMap<>();
+        for (Map.Entry<String, String> pair : request.getPairs().entrySet()) {
+          pairs.put(KVKey.of(pair.getKey()), pair.getValue());
+        }
+        multiPut(pairs, request.getTtlMillis());
+        break;
+      case MULTI_DEL_REQ:
+        multiDel(request.getKVKeys());
+        break;
+      default:
+        throw new KVException(ERROR_INVALID_FORMAT);
+    }
+  }
+
+  /*
+   * The cache calls below take the lock of the set for just the call. The
+   * stripe lock of the key is already held, so the cache and store cannot
+   * disagree about the key in between.
+   */
+
+  private String cacheGet(KVKey key) {
+    Lock lock = dataCache.getLock(key);
+    try {
+      Latencies.CACHE_LOCK_WAIT.lock(lock);
+      return dataCache.get(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void cachePut(KVKey key, String value, long expiresAt) {
+    Lock lock = dataCache.getLock(key);
+    try {
+      Latencies.CACHE_LOCK_WAIT.lock(lock);
+      dataCache.put(key, value, expiresAt);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void cacheDel(KVKey key) {
+    Lock lock = dataCache.getLock(key);
+    try {
+      Latencies.CACHE_LOCK_WAIT.lock(lock);
       dataCache.del(key);
-      dataStore.del(key);
     } finally {
-      dataCache.getLock(key).unlock();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds the counters of the cache, the store and the write-back buffer to
+   * stats. No lock is taken.
+   *
+   * @param stats map to add the counters to
+   */
+  public void collectStats(Map<String, String> stats) {
+    dataCache.collectStats("cache.", stats);
+    dataStore.collectStats("store.", stats);
+    stats.put("server.lockStripes", Integer.toString(getLockStripes()));
+    stats.put("server.changes", Long.toString(changes.getSequence()));
+    stats.put("server.versions", Integer.toString(versions.size()));
+    stats.put("server.tombstones", Integer.toString(tombstones.size()));
+    if (writeBack != null) {
+      stats.put("writeback.dirty", Integer.toString(writeBack.getDirtyCount()));
+      stats.put("writeback.flushed", Long.toString(writeBack.getFlushedCount()));
+      stats.put("writeback.lagMillis", Long.toString(writeBack.getLastFlushLagMillis()));
+    }
+  }
+
+  /**
+   * @return log of the keys written on this server, recorded under their
+   *         stripe locks
+   */
+  public ChangeLog getChangeLog() {
+    return changes;
+  }
+
+  /**
+   * @return number of lock stripes serializing requests on this server
+   */
+  public int getLockStripes() {
+    return stripes.size();
+  }
+
+  /**
+   * Get the stripe lock held while a request on key is served.
+   *
+   * @param key KVKey key
+   *
+   * @return lock guarding key
+   */
+  Lock getStripeLock(KVKey key) {
+    return stripes.getLock(key);
+  }
+
+  private static void lockAll(List<Lock> locks) {
+    for (Lock lock : locks) {
+      Latencies.STRIPE_LOCK_WAIT.lock(lock);
+    }
+  }
+
+  private static void unlockAll(List<Lock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
     }
   }
 
   /**
    * Check if the server has a given key. This is used for TPC operations
    * that need to check whether or not a transaction can be performed but
-   * you don't want to modify the state of the cache by calling get(). You
-   * are allowed to call dataStore.get() for this method.
+   * you don't want to modify the state of the cache by calling get().
    *
    * @param key key to check for membership in store
-   * @return 
+   * @return true if key is present in the store
    */
   public boolean hasKey(String key) {
-    try {
-      dataStore.get(key);
-    } catch (KVException e) {
-      return false;
+    return hasKey(KVKey.of(key));
+  }
+
+  /**
+   * Check if the server has a given key, without touching the cache.
+   *
+   * @param key key to check for membership in store
+   * @return true if key is present in the store
+   */
+  public boolean hasKey(KVKey key) {
+    if (writeBack != null) {
+      WriteBackBuffer.DirtyEntry entry = writeBack.get(key);
+      if (entry != null) {
+        return !entry.isExpired(System.currentTimeMillis());
+      }
+    }
+    return dataStore.containsKey(key);
+  }
+
+  /**
+   * Get the version of the last committed write of a key.
+   *
+   * @param key KVKey key
+   *
+   * @return version, or null if no versioned write of the key has been
+   *         committed here since it last expired, or since its delete
+   *         outlived the grace period
+   */
+  public Long getVersion(KVKey key) {
+    Long version = versions.get(key);
+    return version != null ? version : tombstones.get(key);
+  }
+
+  /**
+   * Get the time to live left on a key.
+   *
+   * @param key KVKey key
+   *
+   * @return milliseconds until key expires, or 0 if it has no time to live
+   *         or is not in the store
+   */
+  public long getTtl(KVKey key) {
+    WriteBackBuffer.DirtyEntry entry = writeBack == null ? null : writeBack.get(key);
+    if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+      return 0;
+    }
+    long expiresAt = entry != null ? entry.getExpiresAt() : dataStore.getExpiry(key);
+    if (expiresAt == 0) {
+      return 0;
+    }
+    return Math.max(1, expiresAt - System.currentTimeMillis());
+  }
+
+  /**
+   * Performs scan request on the store. The cache is bypassed, since it only
+   * holds an arbitrary subset of the keys, and no set locks are taken. In
+   * write-back mode buffered puts are flushed first. The page carries the
+   * versions of its pairs and, as pairs with an empty value, the keys
+   * between its first pair and its cursor whose tombstones are still kept.
+   * These count against limit, so a page may end before the store runs out
+   * of pairs.
+   *
+   * @param startKey inclusive start key, or null or empty to start at the
+   *                 first key
+   * @param endKey   exclusive end key, or null or empty for no upper bound
+   * @param limit    maximum number of pairs to return
+   *
+   * @return the page, with a cursor if pairs beyond it remain in range
+   */
+  public ScanPage scan(String startKey, String endKey, int limit) {
+    KVKey start = startKey == null || startKey.isEmpty() ? null : KVKey.of(startKey);
+    KVKey end = endKey == null || endKey.isEmpty() ? null : KVKey.of(endKey);
+    int max = Math.min(limit, MAX_SCAN_LIMIT);
+    flush();
+    ScanPage page = dataStore.scan(start, end, max);
+    if (versions.isEmpty() && tombstones.isEmpty()) {
+      return page;
+    }
+    TreeMap<KVKey, String> merged = new TreeMap<>();
+    Map<String, Long> pageVersions = new HashMap<>();
+    for (Map.Entry<String, String> pair : page.getPairs().entrySet()) {
+      KVKey key = KVKey.of(pair.getKey());
+      merged.put(key, pair.getValue());
+      Long version = versions.get(key);
+      if (version != null) {
+        pageVersions.put(pair.getKey(), version);
+      }
+    }
+    KVKey bound = page.hasMore() ? KVKey.of(page.getCursor()) : end;
+    ConcurrentNavigableMap<KVKey, Long> deleted = tombstones;
+    if (start != null) {
+      deleted = deleted.tailMap(start, true);
+    }
+    if (bound != null) {
+      deleted = deleted.headMap(bound, false);
+    }
+    // Tombstones count against the limit like pairs, so that a page stays
+    // bounded however many keys were deleted; the page is cut short of the
+    // first entry that does not fit and the cursor set there
+    KVKey cut = null;
+    for (Map.Entry<KVKey, Long> tombstone : deleted.entrySet()) {
+      if (merged.size() >= max
+          && (merged.isEmpty() || tombstone.getKey().compareTo(merged.lastKey()) > 0)) {
+        if (cut == null || tombstone.getKey().compareTo(cut) < 0) {
+          cut = tombstone.getKey();
+        }
+        break;
+      }
+      String key = tombstone.getKey().toString();
+      Long version = pageVersions.get(key);
+      if (version == null || version < tombstone.getValue()) {
+        merged.put(tombstone.getKey(), "");
+        pageVersions.put(key, tombstone.getValue());
+      }
+      if (merged.size() > max) {
+        cut = merged.lastKey();
+        merged.remove(cut);
+        pageVersions.remove(cut.toString());
+      }
+    }
+    LinkedHashMap<String, String> pairs = new LinkedHashMap<>();
+    for (Map.Entry<KVKey, String> pair : merged.entrySet()) {
+      pairs.put(pair.getKey().toString(), pair.getValue());
     }
-    return true;
+    return new ScanPage(pairs, pageVersions, cut != null ? cut.toString() : page.getCursor());
   }
 
   /** This method is purely for convenience and will not be tested. */
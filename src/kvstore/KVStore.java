@@ -4,35 +4,110 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
-import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import kvstore.xml.KVPairType;
 import kvstore.xml.KVStoreType;
 import kvstore.xml.ObjectFactory;
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
- * backing store.
+ * backing store. Values may optionally be kept compressed, in which case they
+ * are only decompressed when read.
+ *
+ * By default keys are hashed. An ordered store keeps them in a skip list in
+ * KVKey order instead, which makes range scans proportional to the size of
+ * the page rather than the size of the store.
+ *
+ * A pair may be given a time to live. Expired pairs are dropped lazily when
+ * they are next read and actively by a background thread driving a
+ * TimingWheel, so a replica reclaims them on its own without any message
+ * from the master. A pair overwritten or removed before it expires leaves
+ * the wheel at once. The thread is only started while pairs are waiting on
+ * the wheel, and exits once none are; see also close.
  */
 public class KVStore implements KeyValueInterface {
 
-  public ConcurrentHashMap<String, String> store;
+  public ConcurrentMap<KVKey, CharSequence> store;
+  private final ValueCompressor compressor;
+  private final boolean ordered;
+
+  /* Resolution of active expiry, in milliseconds */
+  public static final long EXPIRY_TICK_MILLIS = 10;
+  private static final int EXPIRY_LEVELS = 4;
+  private static final long RATE_INTERVAL_MILLIS = 1000;
+
+  private final TimingWheel<ExpiringValue> expiryWheel
+      = new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_LEVELS, System.currentTimeMillis());
+  private Thread expiryThread;
+  private final AtomicLong expiredKeys = new AtomicLong();
+  private final AtomicLong reclaimedBytes = new AtomicLong();
+  private final AtomicLong pairCount = new AtomicLong();
+  private volatile double expiredPerSecond;
 
   /**
    * Construct a new KVStore.
    */
   public KVStore() {
+    this(null);
+  }
+
+  /**
+   * Construct a new KVStore that compresses values with the given compressor.
+   *
+   * @param compressor ValueCompressor for large values, or null to store
+   *                   every value as is
+   */
+  public KVStore(ValueCompressor compressor) {
+    this(compressor, false);
+  }
+
+  /**
+   * Construct a new KVStore.
+   *
+   * @param compressor ValueCompressor for large values, or null to store
+   *                   every value as is
+   * @param ordered    whether keys are kept in order to serve range scans
+   */
+  public KVStore(ValueCompressor compressor, boolean ordered) {
+    this.compressor = compressor;
+    this.ordered = ordered;
     resetStore();
   }
 
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * @return the ValueCompressor used by this store, or null if none
+   */
+  public ValueCompressor getCompressor() {
+    return compressor;
+  }
+
   public void resetStore() {
-    this.store = new ConcurrentHashMap<>();
+    if (ordered) {
+      this.store = new ConcurrentSkipListMap<>();
+    } else {
+      this.store = new ConcurrentHashMap<>();
+    }
+    pairCount.set(0);
+    expiryWheel.clear();
   }
 
   /**
@@ -43,7 +118,51 @@ public class KVStore implements KeyValueInterface {
    */
   @Override
   public void put(String key, String value) {
-    store.put(key, value);
+    put(KVKey.of(key), value);
+  }
+
+  /**
+   * Insert key, value pair into the store. Only the bytes of key are
+   * retained.
+   *
+   * @param key   KVKey key
+   * @param value String value
+   */
+  public void put(KVKey key, String value) {
+    put(key, value, 0);
+  }
+
+  /**
+   * Insert key, value pair into the store, to expire after ttlMillis.
+   *
+   * @param key       KVKey key
+   * @param value     String value
+   * @param ttlMillis time to live in milliseconds, or 0 for no expiry
+   *
+   * @return time at which the pair expires, in milliseconds since the
+   *         epoch, or 0 if it does not
+   */
+  public long put(KVKey key, String value, long ttlMillis) {
+    KVKey stored = key.compact();
+    CharSequence packed = compressor == null ? value : compressor.pack(value);
+    if (ttlMillis <= 0) {
+      CharSequence previous = store.put(stored, packed);
+      if (previous == null) {
+        pairCount.incrementAndGet();
+      }
+      unschedule(previous);
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    ExpiringValue expiring = new ExpiringValue(stored, packed, now + ttlMillis);
+    CharSequence previous = store.put(stored, expiring);
+    if (previous == null) {
+      pairCount.incrementAndGet();
+    }
+    unschedule(previous);
+    expiring.timer = expiryWheel.schedule(expiring, expiring.expiresAt, now);
+    startExpiryThread();
+    return expiring.expiresAt;
   }
 
   /**
@@ -55,14 +174,73 @@ public class KVStore implements KeyValueInterface {
    */
   @Override
   public String get(String key) throws KVException {
-    String retVal = this.store.get(key);
+    String retVal = lookup(key);
     if (retVal == null) {
-      KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-      throw new KVException(msg);
+      throw KVException.NO_SUCH_KEY;
     }
     return retVal;
   }
 
+  /**
+   * Retrieve the value corresponding to the provided key without throwing
+   * on a miss.
+   *
+   * @param key String key
+   *
+   * @return the value associated with key, or null if key is not in the store
+   */
+  public String lookup(String key) {
+    return lookup(KVKey.of(key));
+  }
+
+  /**
+   * Retrieve the value corresponding to the provided key without throwing
+   * on a miss.
+   *
+   * @param key KVKey key
+   *
+   * @return the value associated with key, or null if key is not in the store
+   */
+  public String lookup(KVKey key) {
+    CharSequence value = live(this.store.get(key), System.currentTimeMillis());
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * Get the time at which the value for key expires.
+   *
+   * @param key KVKey key
+   *
+   * @return expiry time in milliseconds since the epoch, or 0 if key has no
+   *         time to live or is not in the store
+   */
+  public long getExpiry(KVKey key) {
+    CharSequence value = this.store.get(key);
+    return value instanceof ExpiringValue ? ((ExpiringValue) value).expiresAt : 0;
+  }
+
+  /**
+   * Check whether the store holds a value for the provided key.
+   *
+   * @param key String key
+   *
+   * @return true if key is present in the store
+   */
+  public boolean containsKey(String key) {
+    return containsKey(KVKey.of(key));
+  }
+
+  /**
+   * Check whether the store holds a value for the provided key.
+   *
+   * @param key KVKey key
+   *
+   * @return true if key is present in the store
+   */
+  public boolean containsKey(KVKey key) {
+    return live(this.store.get(key), System.currentTimeMillis()) != null;
+  }
+
   /**
    * Delete the value corresponding to the provided key.
    *
@@ -73,21 +251,311 @@ public class KVStore implements KeyValueInterface {
   @Override
   public void del(String key) throws KVException {
     if (key != null) {
-      if (!this.store.containsKey(key)) {
-        KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-        throw new KVException(msg);
+      del(KVKey.of(key));
+    }
+  }
+
+  /**
+   * Delete the value corresponding to the provided key.
+   *
+   * @param key KVKey key
+   *
+   * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+   */
+  public void del(KVKey key) throws KVException {
+    if (!remove(key)) {
+      throw KVException.NO_SUCH_KEY;
+    }
+  }
+
+  /**
+   * Delete the value corresponding to the provided key without throwing
+   * on a miss.
+   *
+   * @param key String key
+   *
+   * @return true if a value was removed, false if key was not in the store
+   */
+  public boolean remove(String key) {
+    return remove(KVKey.of(key));
+  }
+
+  /**
+   * Delete the value corresponding to the provided key without throwing
+   * on a miss.
+   *
+   * @param key KVKey key
+   *
+   * @return true if a value was removed, false if key was not in the store
+   */
+  public boolean remove(KVKey key) {
+    CharSequence removed = this.store.remove(key);
+    if (removed != null) {
+      pairCount.decrementAndGet();
+    }
+    unschedule(removed);
+    if (removed instanceof ExpiringValue
+        && ((ExpiringValue) removed).isExpired(System.currentTimeMillis())) {
+      recordExpiry((ExpiringValue) removed);
+      return false;
+    }
+    return removed != null;
+  }
+
+  /**
+   * Returns up to limit pairs with keys in [start, end), in key order.
+   * An ordered store walks only the requested range. A hashed store has to
+   * visit every key, keeping the smallest limit + 1 that fall in the range.
+   * The scan is not a snapshot: writes made while it runs may or may not be
+   * seen.
+   *
+   * @param start inclusive start key, or null to start at the first key
+   * @param end   exclusive end key, or null for no upper bound
+   * @param limit maximum number of pairs to return
+   *
+   * @return the page, with a cursor if pairs beyond it remain in range
+   */
+  public ScanPage scan(KVKey start, KVKey end, int limit) {
+    long now = System.currentTimeMillis();
+    Map<KVKey, CharSequence> range;
+    if (ordered) {
+      ConcurrentNavigableMap<KVKey, CharSequence> sorted
+          = (ConcurrentNavigableMap<KVKey, CharSequence>) store;
+      if (start != null) {
+        sorted = sorted.tailMap(start, true);
+      }
+      if (end != null) {
+        sorted = sorted.headMap(end, false);
+      }
+      range = sorted;
+    } else {
+      TreeMap<KVKey, CharSequence> smallest = new TreeMap<>();
+      for (Entry<KVKey, CharSequence> e : store.entrySet()) {
+        KVKey key = e.getKey();
+        if ((start != null && key.compareTo(start) < 0)
+            || (end != null && key.compareTo(end) >= 0)) {
+          continue;
+        }
+        if (live(e.getValue(), now) == null) {
+          continue;
+        }
+        smallest.put(key, e.getValue());
+        if (smallest.size() > limit + 1) {
+          smallest.pollLastEntry();
+        }
+      }
+      range = smallest;
+    }
+
+    LinkedHashMap<String, String> pairs = new LinkedHashMap<>();
+    String cursor = null;
+    Iterator<Entry<KVKey, CharSequence>> it = range.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<KVKey, CharSequence> e = it.next();
+      CharSequence value = live(e.getValue(), now);
+      if (value == null) {
+        continue;
+      }
+      if (pairs.size() == limit) {
+        cursor = e.getKey().toString();
+        break;
+      }
+      pairs.put(e.getKey().toString(), value.toString());
+    }
+    return new ScanPage(pairs, cursor);
+  }
+
+  /**
+   * Returns the stored form of value if it is still live at time now.
+   * An expired value is removed from the store on the way.
+   */
+  private CharSequence live(CharSequence value, long now) {
+    if (!(value instanceof ExpiringValue)) {
+      return value;
+    }
+    ExpiringValue expiring = (ExpiringValue) value;
+    if (expiring.isExpired(now)) {
+      expire(expiring);
+      return null;
+    }
+    return expiring.value;
+  }
+
+  /**
+   * Removes expiring from the store unless its key has since been given
+   * another value.
+   */
+  private void expire(ExpiringValue expiring) {
+    if (store.remove(expiring.key, expiring)) {
+      pairCount.decrementAndGet();
+      recordExpiry(expiring);
+      unschedule(expiring);
+    }
+  }
+
+  /**
+   * Takes a value that is no longer stored off the expiry wheel.
+   */
+  private void unschedule(CharSequence value) {
+    if (value instanceof ExpiringValue) {
+      TimingWheel.Timer<ExpiringValue> timer = ((ExpiringValue) value).timer;
+      if (timer != null) {
+        expiryWheel.cancel(timer);
+      }
+    }
+  }
+
+  private void recordExpiry(ExpiringValue expiring) {
+    expiredKeys.incrementAndGet();
+    reclaimedBytes.addAndGet(expiring.footprint());
+  }
+
+  private synchronized void startExpiryThread() {
+    if (expiryThread != null) {
+      return;
+    }
+    expiryThread = new Thread(new expiryJob(), "KVStore-expiry");
+    expiryThread.setDaemon(true);
+    expiryThread.start();
+  }
+
+  /**
+   * Lets the expiry thread exit if nothing is left on the wheel. A put
+   * that schedules a pair after this check starts a new thread.
+   *
+   * @return true if the calling expiry thread should exit
+   */
+  private synchronized boolean stopExpiryThreadIfIdle() {
+    if (expiryThread != Thread.currentThread()) {
+      return true;
+    }
+    if (expiryWheel.size() > 0) {
+      return false;
+    }
+    expiryThread = null;
+    return true;
+  }
+
+  /**
+   * Stops the expiry thread and takes every pair off the expiry wheel.
+   * Pairs left in the store are still dropped lazily when they are read
+   * after they expire. A pair stored with a time to live after this starts
+   * the thread again.
+   */
+  public void close() {
+    Thread thread;
+    synchronized (this) {
+      thread = expiryThread;
+      expiryThread = null;
+      expiryWheel.clear();
+    }
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @return true if the expiry thread is running
+   */
+  public synchronized boolean isExpiryRunning() {
+    return expiryThread != null;
+  }
+
+  /**
+   * @return number of pairs dropped because their time to live ran out
+   */
+  public long getExpiredKeys() {
+    return expiredKeys.get();
+  }
+
+  /**
+   * @return approximate number of key and value bytes freed by expiry
+   */
+  public long getReclaimedBytes() {
+    return reclaimedBytes.get();
+  }
+
+  /**
+   * @return rate at which pairs expired over the last second
+   */
+  public double getExpiredPerSecond() {
+    return expiredPerSecond;
+  }
+
+  /**
+   * @return number of pairs waiting on the expiry wheel
+   */
+  public int getPendingExpiries() {
+    return expiryWheel.size();
+  }
+
+  /**
+   * @return number of pairs held, including expired pairs not yet dropped;
+   *         kept as a counter so that reading it costs nothing
+   */
+  public long getSize() {
+    return pairCount.get();
+  }
+
+  /**
+   * Adds the counters of this store to stats.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public void collectStats(String prefix, Map<String, String> stats) {
+    stats.put(prefix + "pairs", Long.toString(getSize()));
+    stats.put(prefix + "expiredKeys", Long.toString(getExpiredKeys()));
+    stats.put(prefix + "pendingExpiries", Integer.toString(getPendingExpiries()));
+  }
+
+  private class expiryJob implements Runnable {
+
+    @Override
+    public void run() {
+      long lastCount = expiredKeys.get();
+      long lastSample = System.currentTimeMillis();
+      while (true) {
+        try {
+          Thread.sleep(EXPIRY_TICK_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        long now = System.currentTimeMillis();
+        List<ExpiringValue> due = expiryWheel.advance(now);
+        for (ExpiringValue expiring : due) {
+          expire(expiring);
+        }
+        if (now - lastSample >= RATE_INTERVAL_MILLIS) {
+          long count = expiredKeys.get();
+          expiredPerSecond = (count - lastCount) * 1000.0 / (now - lastSample);
+          lastCount = count;
+          lastSample = now;
+        }
+        if (stopExpiryThreadIfIdle()) {
+          return;
+        }
       }
-      this.store.remove(key);
     }
   }
 
   private synchronized JAXBElement<KVStoreType> getXMLRoot() throws JAXBException {
     ObjectFactory factory = new ObjectFactory();
     KVStoreType xmlStore = factory.createKVStoreType();
-    for (Entry<String, String> e : store.entrySet()) {
+    long now = System.currentTimeMillis();
+    for (Entry<KVKey, CharSequence> e : store.entrySet()) {
+      CharSequence value = live(e.getValue(), now);
+      if (value == null) {
+        continue;
+      }
       KVPairType kvPair = factory.createKVPairType();
-      kvPair.setKey(e.getKey());
-      kvPair.setValue(e.getValue());
+      kvPair.setKey(e.getKey().toString());
+      kvPair.setValue(value.toString());
       xmlStore.getKVPair().add(kvPair);
     }
     return factory.createKVStore(xmlStore);
@@ -154,7 +622,7 @@ public class KVStore implements KeyValueInterface {
     try {
       KVStoreType parsedStore = unmarshal(new File(fileName));
       for (KVPairType pair : parsedStore.getKVPair()) {
-        store.put(pair.getKey(), pair.getValue());
+        put(pair.getKey(), pair.getValue());
       }
     } catch (Exception e) {
     }
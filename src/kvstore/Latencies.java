@@ -0,0 +1,87 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The latency histograms of every stage a request passes through. They are
+ * shared by everything running in the JVM and are always on.
+ */
+public final class Latencies {
+
+  /* Time a job waits in a ThreadPool queue before a worker takes it */
+  public static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram("threadpool.queueWait");
+
+  /* Time to read and parse a KVMessage from a socket */
+  public static final LatencyHistogram PARSE = new LatencyHistogram("kvmessage.parse");
+
+  /* Time waiting for a KVCache set lock */
+  public static final LatencyHistogram CACHE_LOCK_WAIT = new LatencyHistogram("kvcache.lockWait");
+
+  /* Time waiting for a KVServer stripe lock */
+  public static final LatencyHistogram STRIPE_LOCK_WAIT = new LatencyHistogram("kvserver.lockWait");
+
+  /* Time spent in KVStore calls made by KVServer */
+  public static final LatencyHistogram STORE = new LatencyHistogram("kvserver.store");
+
+  /* Round trip of a phase 1 vote request from TPCMaster to a slave */
+  public static final LatencyHistogram PHASE1 = new LatencyHistogram("tpcmaster.phase1");
+
+  /* Round trip of a phase 2 decision from TPCMaster to a slave */
+  public static final LatencyHistogram PHASE2 = new LatencyHistogram("tpcmaster.phase2");
+
+  /* Time to write a TPCLog to disk */
+  public static final LatencyHistogram LOG_FLUSH = new LatencyHistogram("tpclog.flush");
+
+  private static final List<LatencyHistogram> ALL = Collections.unmodifiableList(Arrays.asList(
+      QUEUE_WAIT, PARSE, CACHE_LOCK_WAIT, STRIPE_LOCK_WAIT, STORE, PHASE1, PHASE2, LOG_FLUSH));
+
+  private Latencies() {
+  }
+
+  /**
+   * @return every stage histogram
+   */
+  public static List<LatencyHistogram> all() {
+    return ALL;
+  }
+
+  /**
+   * @return the percentiles of every stage, one line each
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    for (LatencyHistogram histogram : ALL) {
+      sb.append(histogram).append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds the count, median, 99th percentile and maximum of every stage to
+   * stats, in nanoseconds.
+   *
+   * @param stats map to add the counters to
+   */
+  public static void collectStats(Map<String, String> stats) {
+    for (LatencyHistogram histogram : ALL) {
+      String prefix = "latency." + histogram.getName() + ".";
+      stats.put(prefix + "count", Long.toString(histogram.getCount()));
+      stats.put(prefix + "p50", Long.toString(histogram.getValueAtPercentile(50)));
+      stats.put(prefix + "p99", Long.toString(histogram.getValueAtPercentile(99)));
+      stats.put(prefix + "max", Long.toString(histogram.getMax()));
+    }
+  }
+
+  /**
+   * Clears every stage histogram.
+   */
+  public static void resetAll() {
+    for (LatencyHistogram histogram : ALL) {
+      histogram.reset();
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A latency histogram in the style of HdrHistogram. Values, in nanoseconds,
+ * fall into log-linear buckets: every power of two is split into SUB_BUCKETS
+ * equal buckets, so any recorded value is reported to within about 3% while
+ * the whole range of a long fits in under 2000 counters.
+ *
+ * Every bucket and the total are LongAdders, so threads recording into the
+ * same bucket at once, as with the many zero waits of uncontended locks,
+ * update cells of their own instead of contending for one counter. Apart
+ * from a compare-and-set when a new maximum is seen, recording takes no
+ * locks, so histograms can be left on in production. Percentiles are
+ * computed from a racy but monotone read of the counters and are reported
+ * as the highest value of their bucket.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private final String name;
+  private final LongAdder[] counts = new LongAdder[NUM_BUCKETS];
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Constructs an empty LatencyHistogram.
+   *
+   * @param name name the histogram is reported under
+   */
+  public LatencyHistogram(String name) {
+    this.name = name;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos latency in nanoseconds; negative values count as 0
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts[bucketOf(nanos)].increment();
+    total.add(nanos);
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * Records the time elapsed since startNanos.
+   *
+   * @param startNanos value of System.nanoTime() when the timed stage began
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Acquires lock, recording how long the caller waited for it. An
+   * uncontended acquisition is recorded as 0 without reading the clock.
+   *
+   * @param lock lock to acquire
+   */
+  public void lock(Lock lock) {
+    if (lock.tryLock()) {
+      record(0);
+      return;
+    }
+    long start = System.nanoTime();
+    lock.lock();
+    recordSince(start);
+  }
+
+  /**
+   * @return number of values recorded
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      count += counts[i].sum();
+    }
+    return count;
+  }
+
+  /**
+   * @return largest value recorded, in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return mean of the values recorded, in nanoseconds
+   */
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0.0 : (double) total.sum() / count;
+  }
+
+  /**
+   * @param percentile percentile between 0 and 100
+   *
+   * @return value at or below which percentile percent of the recorded
+   *         values fall, in nanoseconds, or 0 if nothing has been recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long[] snapshot = new long[NUM_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts[i].sum();
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Clears every recorded value.
+   */
+  public void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts[i].reset();
+    }
+    total.reset();
+    max.set(0);
+  }
+
+  /**
+   * @return one line with the count and the usual percentiles, in
+   *         microseconds
+   */
+  @Override
+  public String toString() {
+    return String.format("%s count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus "
+        + "p99.9=%.1fus max=%.1fus", name, getCount(), getMean() / 1000.0,
+        micros(getValueAtPercentile(50)), micros(getValueAtPercentile(90)),
+        micros(getValueAtPercentile(99)), micros(getValueAtPercentile(99.9)),
+        micros(getMax()));
+  }
+
+  private static double micros(long nanos) {
+    return nanos / 1000.0;
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+  }
+
+}
@@ -0,0 +1,385 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A YCSB-style load generator that drives KVClient against a store over
+ * loopback. It loads a table of records, then runs one of the YCSB core
+ * workloads (see Workload) and reports throughput and a latency CDF.
+ *
+ * In closed-loop mode (rate 0) every thread issues its next request as soon
+ * as the previous one returns. In open-loop mode requests are scheduled at a
+ * fixed total rate, and latency is measured from when each request was meant
+ * to be sent rather than when it was sent, so that a stalled server is
+ * charged for the requests it kept from being issued (coordinated-omission
+ * correction). The uncorrected service time is reported alongside.
+ *
+ * Usage: LoadGenerator [--option value]...
+ *   --target       server (embedded KVServer), cluster (embedded TPCMaster
+ *                  and slaves) or host:port of a running server or master;
+ *                  default server
+ *   --slaves       number of slaves of an embedded cluster; default 3
+ *   --vnodes       ring positions per slave of an embedded cluster;
+ *                  default 1
+ *   --partitioner  ring, jump or rendezvous placement of keys in an
+ *                  embedded cluster; default ring
+ *   --workload     A to F; default A
+ *   --distribution zipfian, uniform or latest; default that of the workload
+ *   --records      records loaded before the run; default 10000
+ *   --operations   operations to run; default 0, meaning run for --duration
+ *   --duration     seconds to run for; default 10
+ *   --threads      client threads; default 8
+ *   --valuesize    bytes per value; default 100
+ *   --rate         total requests per second, or 0 for closed loop; default 0
+ *   --load         whether to load the records first; default true
+ *   --pool         whether each thread keeps a persistent connection;
+ *                  default false
+ */
+public class LoadGenerator {
+
+  private static final String KEY_PREFIX = "user";
+  private static final double[] CDF_PERCENTILES =
+      {10, 20, 30, 40, 50, 60, 70, 80, 90, 95, 99, 99.9, 99.99, 100};
+  private static final String VALUE_CHARS =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+  private final Workload workload;
+  private final String distribution;
+  private final int records;
+  private final long operations;
+  private final int seconds;
+  private final int threads;
+  private final int valueSize;
+  private final double rate;
+  private final boolean pooled;
+
+  private final String hostname;
+  private final int port;
+  private final AtomicLong inserted;
+  private final ZipfianGenerator zipfian;
+
+  private final Map<Workload.Op, LatencyHistogram> latencies =
+      new EnumMap<Workload.Op, LatencyHistogram>(Workload.Op.class);
+  private final Map<Workload.Op, AtomicLong> errors =
+      new EnumMap<Workload.Op, AtomicLong>(Workload.Op.class);
+  private final LatencyHistogram overall = new LatencyHistogram("overall");
+  private final LatencyHistogram service = new LatencyHistogram("service");
+
+  LoadGenerator(Map<String, String> options, String hostname, int port) {
+    this.workload = Workload.valueOf(option(options, "workload", "A").toUpperCase());
+    this.distribution = option(options, "distribution", workload.getDistribution());
+    this.records = Integer.parseInt(option(options, "records", "10000"));
+    this.operations = Long.parseLong(option(options, "operations", "0"));
+    this.seconds = Integer.parseInt(option(options, "duration", "10"));
+    this.threads = Integer.parseInt(option(options, "threads", "8"));
+    this.valueSize = Integer.parseInt(option(options, "valuesize", "100"));
+    this.rate = Double.parseDouble(option(options, "rate", "0"));
+    this.pooled = Boolean.parseBoolean(option(options, "pool", "false"));
+    this.hostname = hostname;
+    this.port = port;
+    this.inserted = new AtomicLong(records);
+    if (distribution.equals("uniform")) {
+      this.zipfian = null;
+    } else if (distribution.equals("zipfian") || distribution.equals("latest")) {
+      this.zipfian = new ZipfianGenerator(records, distribution.equals("zipfian"));
+    } else {
+      throw new IllegalArgumentException("Unknown distribution " + distribution);
+    }
+    for (Workload.Op op : Workload.Op.values()) {
+      latencies.put(op, new LatencyHistogram(op.name()));
+      errors.put(op, new AtomicLong());
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Expected an option, got " + args[i]);
+      }
+      options.put(args[i].substring(2).toLowerCase(), args[i + 1]);
+    }
+    String loopback = InetAddress.getLoopbackAddress().getHostAddress();
+    String target = option(options, "target", "server");
+    int port;
+    String hostname = loopback;
+    if (target.equals("server")) {
+      port = startServer(loopback);
+    } else if (target.equals("cluster")) {
+      port = startCluster(loopback, Integer.parseInt(option(options, "slaves", "3")),
+          Integer.parseInt(option(options, "vnodes", "1")),
+          Partitioner.forName(option(options, "partitioner", RingPartitioner.NAME)));
+    } else {
+      int colon = target.lastIndexOf(':');
+      hostname = target.substring(0, colon);
+      port = Integer.parseInt(target.substring(colon + 1));
+    }
+
+    LoadGenerator generator = new LoadGenerator(options, hostname, port);
+    if (Boolean.parseBoolean(option(options, "load", "true"))) {
+      generator.load();
+    }
+    generator.run();
+    // The embedded servers' threads never exit on their own
+    System.exit(0);
+  }
+
+  private static String option(Map<String, String> options, String name, String fallback) {
+    String value = options.get(name);
+    return value == null ? fallback : value;
+  }
+
+  private static int startServer(String hostname) throws IOException {
+    SocketServer server = new SocketServer(hostname);
+    server.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+    server.connect();
+    startInBackground(server, "loadgen-server");
+    return server.getPort();
+  }
+
+  private static int startCluster(String hostname, int numSlaves, int vnodes,
+      Partitioner partitioner) throws IOException, KVException {
+    TPCMaster master = new TPCMaster(numSlaves, new KVCache(1, 4), vnodes, partitioner);
+    SocketServer slaveServer = new SocketServer(hostname, TPCMasterHandler.REGISTRATION_PORT);
+    slaveServer.addHandler(new TPCRegistrationHandler(master));
+    slaveServer.connect();
+    startInBackground(slaveServer, "loadgen-registration");
+
+    // Spread slave IDs evenly around the ring; the arithmetic wraps
+    numSlaves = master.numSlaves;
+    for (int i = 0; i < numSlaves; i++) {
+      long slaveID = Long.MIN_VALUE + Long.MAX_VALUE / numSlaves * (2 * i + 1);
+      SocketServer server = new SocketServer(hostname);
+      KVServer kvServer = new KVServer(100, 10);
+      File logFile = File.createTempFile("loadgen-log.", "." + slaveID);
+      logFile.deleteOnExit();
+      TPCMasterHandler handler = new TPCMasterHandler(slaveID, kvServer,
+          new TPCLog(logFile.getPath(), kvServer));
+      server.addHandler(handler);
+      server.connect();
+      startInBackground(server, "loadgen-slave-" + i);
+      handler.registerWithMaster(hostname, server);
+    }
+
+    SocketServer clientServer = new SocketServer(hostname);
+    clientServer.addHandler(new TPCClientHandler(master));
+    clientServer.connect();
+    startInBackground(clientServer, "loadgen-master");
+    return clientServer.getPort();
+  }
+
+  private static void startInBackground(final SocketServer server, String name) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          server.start();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Inserts records keys, split evenly across the threads.
+   */
+  void load() throws InterruptedException {
+    final AtomicLong next = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    long start = System.nanoTime();
+    runThreads(new ThreadBody() {
+      @Override
+      public void run(int thread, Random random) {
+        KVClient client = newClient();
+        String values = randomChars(random, 2 * valueSize);
+        for (long i = next.getAndIncrement(); i < records; i = next.getAndIncrement()) {
+          try {
+            client.put(keyOf(i), value(values, random));
+          } catch (KVException e) {
+            failed.incrementAndGet();
+          }
+        }
+        client.close();
+      }
+    });
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("[LOAD] records=%d failed=%d seconds=%.2f ops/s=%.0f",
+        records, failed.get(), elapsed, records / elapsed));
+  }
+
+  /**
+   * Runs the workload and prints the report.
+   */
+  void run() throws InterruptedException {
+    final long deadline = operations > 0 ? Long.MAX_VALUE
+        : System.nanoTime() + seconds * 1000000000L;
+    final AtomicLong remaining = new AtomicLong(operations > 0 ? operations : Long.MAX_VALUE);
+    // Each thread issues its share of the total rate
+    final long intervalNanos = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+    System.out.println(String.format("[CONFIG] workload=%s distribution=%s threads=%d "
+        + "valuesize=%d target=%s:%d mode=%s pool=%b", workload, distribution, threads,
+        valueSize, hostname, port, rate > 0 ? "open(" + rate + "/s)" : "closed", pooled));
+
+    final long start = System.nanoTime();
+    runThreads(new ThreadBody() {
+      @Override
+      public void run(int thread, Random random) {
+        KVClient client = newClient();
+        String values = randomChars(random, 2 * valueSize);
+        // Stagger threads so their schedules interleave
+        long intended = start + intervalNanos * thread / threads;
+        while (System.nanoTime() < deadline && remaining.getAndDecrement() > 0) {
+          if (intervalNanos > 0) {
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+              LockSupport.parkNanos(wait);
+            }
+          }
+          long sent = System.nanoTime();
+          Workload.Op op = workload.choose(random.nextDouble());
+          try {
+            issue(client, op, random, values);
+          } catch (KVException e) {
+            errors.get(op).incrementAndGet();
+          }
+          long end = System.nanoTime();
+          long latency = end - (intervalNanos > 0 ? intended : sent);
+          latencies.get(op).record(latency);
+          overall.record(latency);
+          service.record(end - sent);
+          intended += intervalNanos;
+        }
+        client.close();
+      }
+    });
+    report((System.nanoTime() - start) / 1e9);
+  }
+
+  private KVClient newClient() {
+    KVClient client = new KVClient(hostname, port);
+    if (pooled) {
+      client.enablePooling(1, ConnectionPool.DEFAULT_MAX_WAIT_MILLIS,
+          ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+    return client;
+  }
+
+  private void issue(KVClient client, Workload.Op op, Random random, String values)
+      throws KVException {
+    switch (op) {
+      case READ:
+        client.get(keyOf(nextKey(random)));
+        break;
+      case UPDATE:
+        client.put(keyOf(nextKey(random)), value(values, random));
+        break;
+      case INSERT:
+        long item = inserted.getAndIncrement();
+        client.put(keyOf(item), value(values, random));
+        break;
+      case SCAN:
+        client.scan(keyOf(nextKey(random)), null,
+            1 + random.nextInt(Workload.MAX_SCAN_LENGTH));
+        break;
+      case READ_MODIFY_WRITE:
+        String key = keyOf(nextKey(random));
+        client.get(key);
+        client.put(key, value(values, random));
+        break;
+      default:
+        throw new IllegalStateException(op.name());
+    }
+  }
+
+  /**
+   * @return number of an existing record to operate on
+   */
+  long nextKey(Random random) {
+    if (zipfian == null) {
+      return (long) (random.nextDouble() * records);
+    }
+    if (distribution.equals("latest")) {
+      // Most recent inserts are the most popular
+      long latest = inserted.get() - 1;
+      return Math.max(0, latest - zipfian.next(random));
+    }
+    return zipfian.next(random);
+  }
+
+  static String keyOf(long item) {
+    return String.format("%s%010d", KEY_PREFIX, item);
+  }
+
+  private String value(String values, Random random) {
+    int offset = random.nextInt(values.length() - valueSize + 1);
+    return values.substring(offset, offset + valueSize);
+  }
+
+  private static String randomChars(Random random, int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append(VALUE_CHARS.charAt(random.nextInt(VALUE_CHARS.length())));
+    }
+    return sb.toString();
+  }
+
+  private void report(double elapsed) {
+    long count = overall.getCount();
+    System.out.println(String.format("[OVERALL] seconds=%.2f operations=%d ops/s=%.1f",
+        elapsed, count, count / elapsed));
+    for (Workload.Op op : Workload.Op.values()) {
+      LatencyHistogram histogram = latencies.get(op);
+      if (histogram.getCount() > 0) {
+        System.out.println(String.format("[%s] errors=%d %s", op, errors.get(op).get(),
+            histogram));
+      }
+    }
+    System.out.println(rate > 0 ? "[CDF] percentile  latency(us)  service(us)"
+        : "[CDF] percentile  latency(us)");
+    for (double percentile : CDF_PERCENTILES) {
+      if (rate > 0) {
+        System.out.println(String.format("[CDF] %10s %12.1f %12.1f", percentile,
+            overall.getValueAtPercentile(percentile) / 1000.0,
+            service.getValueAtPercentile(percentile) / 1000.0));
+      } else {
+        System.out.println(String.format("[CDF] %10s %12.1f", percentile,
+            overall.getValueAtPercentile(percentile) / 1000.0));
+      }
+    }
+  }
+
+  private interface ThreadBody {
+    void run(int thread, Random random);
+  }
+
+  private void runThreads(final ThreadBody body) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            body.run(thread, new Random(thread * 31L + System.nanoTime()));
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "loadgen-" + t).start();
+    }
+    done.await();
+  }
+
+}
@@ -0,0 +1,98 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed array of locks that keys are hashed onto. KVServer uses it to
+ * serialize operations on the same key, so that write concurrency can be
+ * tuned to the machine independently of how the cache is shaped. The number
+ * of stripes is rounded up to a power of two.
+ */
+public class LockStripes {
+
+  private final ReentrantLock[] locks;
+  private final int mask;
+
+  /**
+   * Constructs a LockStripes with defaultStripes() locks.
+   */
+  public LockStripes() {
+    this(defaultStripes());
+  }
+
+  /**
+   * Constructs a LockStripes.
+   *
+   * @param stripes minimum number of locks; rounded up to a power of two
+   */
+  public LockStripes(int stripes) {
+    int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    locks = new ReentrantLock[size];
+    for (int i = 0; i < size; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * @return four stripes per available processor, and at least 16
+   */
+  public static int defaultStripes() {
+    return Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @return number of locks
+   */
+  public int size() {
+    return locks.length;
+  }
+
+  /**
+   * Get the lock for a key.
+   *
+   * @param key KVKey key
+   *
+   * @return lock guarding key
+   */
+  public Lock getLock(KVKey key) {
+    return locks[index(key)];
+  }
+
+  /**
+   * Get the locks for all the given keys, each once, in stripe order.
+   * Callers that hold several stripes must lock them in this order, so that
+   * two batches can never wait on each other.
+   *
+   * @param keys keys to determine the locks to return
+   *
+   * @return locks guarding the keys, in stripe order
+   */
+  public List<Lock> getLocks(Collection<KVKey> keys) {
+    TreeSet<Integer> indexes = new TreeSet<>();
+    for (KVKey key : keys) {
+      indexes.add(index(key));
+    }
+    List<Lock> result = new ArrayList<>(indexes.size());
+    for (int index : indexes) {
+      result.add(locks[index]);
+    }
+    return result;
+  }
+
+  private int index(KVKey key) {
+    // Spread the high bits down, since String hashes of similar keys
+    // differ mostly in their low bits and the cache uses those too
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h & mask;
+  }
+
+}
@@ -0,0 +1,391 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent connection to a server that carries many requests at once.
+ *
+ * Every request is sent as a frame tagged with an ID, which the server puts
+ * on its response, so responses can come back in any order and a slow
+ * request does not hold up the others. A reader thread hands each response
+ * to the request waiting for it.
+ *
+ * Requests are made through Streams. A Stream is a Socket for a single
+ * request and its response, so code written against plain sockets, such as
+ * KVMessage.sendMessage and the KVMessage(Socket) constructor, works
+ * unchanged: shutdownOutput sends the request, and reading waits for the
+ * response for up to the timeout set on the Stream. Closing a Stream gives
+ * up on its response but leaves the connection open.
+ *
+ * On the server, SocketServer hands every request frame to its
+ * NetworkHandler as a Stream as well; the response is sent with the ID of
+ * the request whenever the handler writes it, from whichever thread.
+ *
+ * If the connection fails, every request still waiting on it fails and the
+ * channel stays closed; the owner opens a new one.
+ *
+ * This class is thread-safe.
+ */
+public class MultiplexedChannel {
+
+  private final FramedSocket sock;
+  private final String server;
+  private final int port;
+  private final ConcurrentHashMap<Long, Stream> pending = new ConcurrentHashMap<>();
+  private final AtomicLong nextID = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile long lastUsed = System.currentTimeMillis();
+  private volatile boolean open = true;
+
+  private MultiplexedChannel(FramedSocket sock, String server, int port) {
+    this.sock = sock;
+    this.server = server;
+    this.port = port;
+  }
+
+  /**
+   * Connects to a server and starts reading its responses.
+   *
+   * @param server  is the DNS reference to the server
+   * @param port    is the port on which the server is listening
+   * @param timeout longest to wait for the connection, in milliseconds, or
+   *                0 to wait as long as it takes
+   *
+   * @return open channel
+   *
+   * @throws IOException if unable to connect
+   */
+  public static MultiplexedChannel connect(String server, int port, int timeout)
+      throws IOException {
+    final MultiplexedChannel channel = new MultiplexedChannel(
+        FramedSocket.connectMultiplexed(server, port, timeout), server, port);
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        channel.readResponses();
+      }
+    }, "MultiplexedChannel-" + server + ":" + port);
+    reader.setDaemon(true);
+    reader.start();
+    return channel;
+  }
+
+  /**
+   * Starts a request on this channel.
+   *
+   * @return Stream to send the request through and read its response from
+   *
+   * @throws IOException if the channel is closed
+   */
+  public Socket open() throws IOException {
+    if (!open) {
+      throw new IOException("Channel to " + server + ":" + port + " is closed");
+    }
+    lastUsed = System.currentTimeMillis();
+    Stream stream = new Stream(sock, nextID.incrementAndGet(), this);
+    pending.put(stream.id, stream);
+    if (!open) {
+      // Closed while the request was being added; fail it like the rest
+      pending.remove(stream.id);
+      throw new IOException("Channel to " + server + ":" + port + " is closed");
+    }
+    return stream;
+  }
+
+  /**
+   * @return true until the connection fails or is closed
+   */
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * @param server is the DNS reference to a server
+   * @param port   is the port on which the server is listening
+   *
+   * @return true if this channel connects to that server
+   */
+  public boolean isConnectedTo(String server, int port) {
+    return this.server.equals(server) && this.port == port;
+  }
+
+  /**
+   * @param idleMillis how long the channel must have gone unused
+   *
+   * @return true if no request is waiting on the channel and none has been
+   *         started for idleMillis
+   */
+  public boolean isIdle(long idleMillis) {
+    return pending.isEmpty() && System.currentTimeMillis() - lastUsed >= idleMillis;
+  }
+
+  /**
+   * @return number of requests waiting for a response
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * @return number of responses that came after their request gave up
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Closes the connection. Requests still waiting on it fail.
+   */
+  public void close() {
+    fail(new EOFException("Channel closed"));
+  }
+
+  private void readResponses() {
+    IOException failure = new EOFException("Server closed the channel");
+    try {
+      while (open) {
+        FramedSocket.Frame frame = sock.receiveFrame();
+        if (frame == null) {
+          break;
+        }
+        Stream stream = pending.remove(frame.id);
+        if (stream == null) {
+          dropped.incrementAndGet();
+        } else {
+          stream.receive(frame.body);
+        }
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+    fail(failure);
+  }
+
+  private void fail(IOException e) {
+    open = false;
+    try {
+      sock.close();
+    } catch (IOException e2) {
+      // Best effort
+    }
+    List<Stream> waiting = new ArrayList<>(pending.values());
+    pending.clear();
+    for (Stream stream : waiting) {
+      stream.fail(e);
+    }
+  }
+
+  /**
+   * One request and its response on a multiplexed connection, as a Socket.
+   */
+  public static final class Stream extends Socket {
+
+    private final FramedSocket sock;
+    private final long id;
+    /* Null on the server, where the request has already been read */
+    private final MultiplexedChannel channel;
+    private ByteArrayOutputStream outgoing = new ByteArrayOutputStream();
+    private byte[] incoming;
+    private IOException failure;
+    private int timeout;
+    private boolean closed;
+
+    private Stream(FramedSocket sock, long id, MultiplexedChannel channel) {
+      this.sock = sock;
+      this.id = id;
+      this.channel = channel;
+    }
+
+    /**
+     * Wraps a request frame read by a server, so that a NetworkHandler can
+     * read the request and write its response.
+     *
+     * @param sock  multiplexed connection the frame came in on
+     * @param frame request frame
+     */
+    Stream(FramedSocket sock, FramedSocket.Frame frame) {
+      this(sock, frame.id, null);
+      this.incoming = frame.body;
+    }
+
+    private synchronized void receive(byte[] body) {
+      incoming = body;
+      notifyAll();
+    }
+
+    private synchronized void fail(IOException e) {
+      failure = e;
+      notifyAll();
+    }
+
+    /**
+     * Waits for the response for up to the timeout of this Stream.
+     */
+    private synchronized byte[] awaitIncoming() throws IOException {
+      long deadline = System.currentTimeMillis() + timeout;
+      while (incoming == null) {
+        if (failure != null) {
+          throw failure;
+        }
+        if (closed) {
+          throw new EOFException("Stream closed");
+        }
+        long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+        if (timeout != 0 && wait <= 0) {
+          throw new SocketTimeoutException("No response within " + timeout + " ms");
+        }
+        try {
+          wait(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for a response");
+        }
+      }
+      return incoming;
+    }
+
+    /**
+     * @return a stream that waits for the response the first time it is
+     *         read, so that a timeout surfaces from the read like it does
+     *         on a plain socket
+     */
+    @Override
+    public InputStream getInputStream() {
+      return new InputStream() {
+        private InputStream body;
+
+        private InputStream body() throws IOException {
+          if (body == null) {
+            body = new ByteArrayInputStream(awaitIncoming());
+          }
+          return body;
+        }
+
+        @Override
+        public int read() throws IOException {
+          return body().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          return body().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+          return body == null ? 0 : body.available();
+        }
+      };
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) {
+          synchronized (Stream.this) {
+            outgoing.write(b);
+          }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          synchronized (Stream.this) {
+            outgoing.write(b, off, len);
+          }
+        }
+      };
+    }
+
+    /**
+     * Sends the bytes written since the last call as the request, or as the
+     * response on a server.
+     */
+    @Override
+    public void shutdownOutput() throws IOException {
+      byte[] body;
+      synchronized (this) {
+        body = outgoing.toByteArray();
+        outgoing = new ByteArrayOutputStream();
+      }
+      try {
+        sock.sendFrame(id, body);
+      } catch (IOException e) {
+        if (channel != null) {
+          channel.fail(e);
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Gives up on the response. The connection stays open.
+     */
+    @Override
+    public synchronized void close() {
+      closed = true;
+      if (channel != null) {
+        channel.pending.remove(id);
+      }
+      notifyAll();
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    public boolean isBound() {
+      return true;
+    }
+
+    @Override
+    public synchronized void setSoTimeout(int timeout) {
+      this.timeout = Math.max(0, timeout);
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+      return timeout;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+      return sock.getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+      return sock.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+      return sock.getLocalPort();
+    }
+
+    @Override
+    public String toString() {
+      return "MultiplexedChannel.Stream[" + id + " on " + sock + "]";
+    }
+  }
+
+}
@@ -0,0 +1,240 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A client-side cache of values read through a KVClient, so hot keys are
+ * served without a round trip. It is a KVCache, with the same sets and
+ * second-chance eviction, sized for the client.
+ *
+ * Staleness is bounded two ways. Every entry expires ttlMillis after it was
+ * read, or when the key expires on the node if that is sooner, since an
+ * expiry is not a change the node reports. And a background thread asks the node for the keys changed since it
+ * last asked, every pollMillis, with a CHANGES_REQ, and drops them; if the
+ * node cannot say (it restarted, or more changed than its ChangeLog holds),
+ * or cannot be reached, everything is dropped. Nothing is cached until the
+ * first poll has succeeded.
+ *
+ * A value read while a poll drops keys is not cached, since it may have
+ * been read before the change the poll reported.
+ *
+ * This class is thread-safe.
+ */
+public class NearCache {
+
+  private final int numSets;
+  private final int maxElemsPerSet;
+  private final long ttlMillis;
+  private final long pollMillis;
+  private final KVClient client;
+  private final Thread poller;
+
+  private volatile KVCache cache;
+  private volatile String cursor;
+  /* Bumped whenever entries are dropped */
+  private final AtomicLong generation = new AtomicLong();
+  private volatile boolean closed;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong resets = new AtomicLong();
+
+  /**
+   * Constructs a NearCache and starts its poll thread.
+   *
+   * @param client         KVClient the changes are polled through
+   * @param numSets        the number of sets in the cache
+   * @param maxElemsPerSet the size of each set in the cache
+   * @param ttlMillis      longest an entry is served for
+   * @param pollMillis     time between two polls for changes
+   */
+  public NearCache(KVClient client, int numSets, int maxElemsPerSet, long ttlMillis,
+                   long pollMillis) {
+    this.client = client;
+    this.numSets = numSets;
+    this.maxElemsPerSet = maxElemsPerSet;
+    this.ttlMillis = ttlMillis;
+    this.pollMillis = pollMillis;
+    this.cache = new KVCache(numSets, maxElemsPerSet);
+    this.poller = new Thread(new pollJob(), "NearCache-poller-" + client.port);
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  /**
+   * Looks up a key.
+   *
+   * @param key String key
+   *
+   * @return the cached value, or null on a miss
+   */
+  public String get(String key) {
+    KVKey k = KVKey.of(key);
+    KVCache current = cache;
+    Lock lock = current.getLock(k);
+    lock.lock();
+    try {
+      String value = current.get(k);
+      (value == null ? misses : hits).incrementAndGet();
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return token to pass to offer for a value about to be read remotely
+   */
+  public long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Caches a value read from the node, unless entries have been dropped
+   * since the read started.
+   *
+   * @param key        String key
+   * @param value      value read
+   * @param remaining  time to live the node gave the value, in milliseconds,
+   *                   or 0 if it does not expire
+   * @param generation result of generation() taken before the read
+   */
+  public void offer(String key, String value, long remaining, long generation) {
+    KVKey k = KVKey.of(key);
+    KVCache current = cache;
+    Lock lock = current.getLock(k);
+    lock.lock();
+    try {
+      // Checked under the lock, which invalidate takes before it bumps it
+      if (cursor == null || closed || this.generation.get() != generation) {
+        return;
+      }
+      long lifetime = remaining > 0 ? Math.min(ttlMillis, remaining) : ttlMillis;
+      current.put(k, value, System.currentTimeMillis() + lifetime);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops keys, for example ones this client has just written.
+   *
+   * @param keys keys to drop
+   */
+  public void invalidate(Collection<String> keys) {
+    KVCache current = cache;
+    for (String key : keys) {
+      if (key == null) {
+        continue;
+      }
+      KVKey k = KVKey.of(key);
+      Lock lock = current.getLock(k);
+      lock.lock();
+      try {
+        generation.incrementAndGet();
+        current.del(k);
+      } finally {
+        lock.unlock();
+      }
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops every entry.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    cache = new KVCache(numSets, maxElemsPerSet);
+    resets.incrementAndGet();
+  }
+
+  /**
+   * Asks the node for the keys changed since the last poll and drops them.
+   * Called by the poll thread; call it directly to catch up at once.
+   */
+  public synchronized void poll() {
+    String last = cursor;
+    KVMessage response;
+    try {
+      response = client.changesSince(last);
+    } catch (KVException e) {
+      System.out.println("NEARCACHE POLL " + e);
+      cursor = null;
+      clear();
+      return;
+    }
+    if (response.getMessage() != null || last == null) {
+      // The node could not list the changes, or this is the first poll
+      if (last != null) {
+        clear();
+      }
+      cursor = response.getValue();
+      return;
+    }
+    List<String> changed = new ArrayList<>();
+    for (KVKey key : response.getKVKeys()) {
+      changed.add(key.toString());
+    }
+    invalidate(changed);
+    cursor = response.getValue();
+  }
+
+  /**
+   * Stops the poll thread and stops caching.
+   */
+  public void close() {
+    closed = true;
+    poller.interrupt();
+    clear();
+  }
+
+  /**
+   * @return number of lookups served from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups that missed
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Adds the counters of this cache to stats.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public void collectStats(String prefix, Map<String, String> stats) {
+    stats.put(prefix + "hits", Long.toString(hits.get()));
+    stats.put(prefix + "misses", Long.toString(misses.get()));
+    stats.put(prefix + "invalidations", Long.toString(invalidations.get()));
+    stats.put(prefix + "resets", Long.toString(resets.get()));
+  }
+
+  private class pollJob implements Runnable {
+
+    @Override
+    public void run() {
+      while (!closed) {
+        poll();
+        try {
+          Thread.sleep(pollMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which slaves hold each key. Whenever the slaves registered with a
+ * TPCMaster change, it asks its Partitioner for a new Placement and
+ * publishes it; replica lookups then read the Placement in use without
+ * taking any lock, so a Placement must never change once built.
+ *
+ * Every key is held by a fixed number of slaves, two unless the master is
+ * configured otherwise: its first replica, which depends on the key, and
+ * the slaves that follow that replica, which depend only on the first
+ * replica. TPCMaster relies on the latter to send the writes of a batch
+ * that share a first replica through a single two-phase commit.
+ *
+ * Clients that route reads themselves (see SmartRouter) build the same
+ * Placement from the name of the Partitioner and the list of slaves, so
+ * place must depend on nothing else.
+ */
+public interface Partitioner {
+
+  /**
+   * @return name of this partitioner, as accepted by forName
+   */
+  String getName();
+
+  /**
+   * Builds the placement of keys over a set of slaves.
+   *
+   * @param slaves       registered slaves, in unsigned order of their IDs
+   * @param virtualNodes ring positions per slave of weight 1, for
+   *                     partitioners that use them
+   *
+   * @return immutable placement
+   */
+  Placement place(List<TPCSlaveInfo> slaves, int virtualNodes);
+
+  /**
+   * Immutable placement of keys over a fixed set of slaves. Safe for any
+   * number of threads to read at once.
+   */
+  interface Placement {
+
+    /**
+     * @param hash hash of the key, as computed by TPCMaster.hashTo64bit
+     *
+     * @return first replica of the key, or null if there are no slaves
+     */
+    TPCSlaveInfo findFirstReplica(long hash);
+
+    /**
+     * @param firstReplica first replica of some key
+     *
+     * @return the second replica of every key firstReplica is first
+     *         replica of; firstReplica itself if it is the only slave
+     */
+    TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica);
+
+    /**
+     * Lists the replicas of every key firstReplica is first replica of:
+     * firstReplica, its successor, and so on. This walks findSuccessor
+     * until it comes back to a slave already listed; placements whose
+     * successors do not go round every slave in turn override it. Every
+     * get and write looks its replicas up, so the placements here list
+     * them when they are built (see ReplicaTable) and return shared
+     * arrays, which callers must not change.
+     *
+     * @param firstReplica first replica of some key
+     * @param n            number of replicas wanted
+     *
+     * @return n distinct slaves, firstReplica first, or every slave if
+     *         there are fewer
+     */
+    default TPCSlaveInfo[] findReplicas(TPCSlaveInfo firstReplica, int n) {
+      List<TPCSlaveInfo> replicas = new ArrayList<>();
+      replicas.add(firstReplica);
+      TPCSlaveInfo next = findSuccessor(firstReplica);
+      while (replicas.size() < n && !replicas.contains(next)) {
+        replicas.add(next);
+        next = findSuccessor(next);
+      }
+      return replicas.toArray(new TPCSlaveInfo[replicas.size()]);
+    }
+  }
+
+  /**
+   * Looks up a partitioner by name.
+   *
+   * @param name "ring", "jump" or "rendezvous"
+   *
+   * @return the partitioner
+   *
+   * @throws IllegalArgumentException if name is none of those
+   */
+  static Partitioner forName(String name) {
+    switch (name) {
+      case RingPartitioner.NAME:
+        return new RingPartitioner();
+      case JumpPartitioner.NAME:
+        return new JumpPartitioner();
+      case RendezvousPartitioner.NAME:
+        return new RendezvousPartitioner();
+      default:
+        throw new IllegalArgumentException("Unknown partitioner " + name);
+    }
+  }
+
+}
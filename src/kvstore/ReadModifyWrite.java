@@ -0,0 +1,79 @@
+package kvstore;
+
+import static kvstore.KVConstants.APPEND_REQ;
+import static kvstore.KVConstants.CAS_REQ;
+import static kvstore.KVConstants.ERROR_CAS_MISMATCH;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_NOT_A_NUMBER;
+import static kvstore.KVConstants.INCR_REQ;
+
+/**
+ * Computes the result of a CAS_REQ, INCR_REQ or APPEND_REQ from the current
+ * value of its key. The computation is pure, so the caller decides where
+ * it runs: KVServer runs it under the set lock of the key, and TPCMaster
+ * runs it on the master before replicating the result as a CAS_REQ.
+ */
+public class ReadModifyWrite {
+
+  private ReadModifyWrite() {
+  }
+
+  /**
+   * Computes the value request leaves behind.
+   *
+   * @param request CAS_REQ, INCR_REQ or APPEND_REQ KVMessage
+   * @param current current value of the key, or null if it has none
+   *
+   * @return new value of the key
+   *
+   * @throws KVException with ERROR_CAS_MISMATCH if a CAS finds another
+   *                     value, or ERROR_NOT_A_NUMBER if an INCR is not on
+   *                     integers or overflows
+   */
+  public static String apply(KVMessage request, String current) throws KVException {
+    switch (request.getMsgType()) {
+      case CAS_REQ:
+        String expected = request.getExpected();
+        if (expected == null ? current != null : !expected.equals(current)) {
+          throw new KVException(ERROR_CAS_MISMATCH);
+        }
+        return request.getValue();
+      case INCR_REQ:
+        try {
+          long delta = request.getValue() == null ? 1 : Long.parseLong(request.getValue());
+          long base = current == null ? 0 : Long.parseLong(current);
+          long sum = base + delta;
+          if (((base ^ sum) & (delta ^ sum)) < 0) {
+            throw new KVException(ERROR_NOT_A_NUMBER);
+          }
+          return Long.toString(sum);
+        } catch (NumberFormatException e) {
+          throw new KVException(ERROR_NOT_A_NUMBER);
+        }
+      case APPEND_REQ:
+        return current == null ? request.getValue() : current + request.getValue();
+      default:
+        throw new KVException(ERROR_INVALID_FORMAT);
+    }
+  }
+
+  /**
+   * Builds the CAS_REQ that replicates the outcome of request: it writes the
+   * new value only where the key still holds current.
+   *
+   * @param request  CAS_REQ, INCR_REQ or APPEND_REQ KVMessage
+   * @param current  current value of the key, or null if it has none
+   * @param newValue value computed by apply
+   *
+   * @return CAS_REQ KVMessage
+   */
+  public static KVMessage toCas(KVMessage request, String current, String newValue) {
+    KVMessage cas = new KVMessage(CAS_REQ);
+    cas.setKey(request.getKey());
+    cas.setValue(newValue);
+    cas.setExpected(current);
+    cas.setTtl(request.getTtl());
+    return cas;
+  }
+
+}
@@ -0,0 +1,115 @@
+package kvstore;
+
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing: every slave scores every key
+ * by mixing the key hash with its ID, and the slave with the highest score
+ * is the first replica. A slave of weight w scores -w / ln(u), u being its
+ * mixed score as a fraction, which gives it a w-proportional share. The
+ * successor of a slave is the next slave in order of ID. Virtual nodes do
+ * not apply.
+ *
+ * Adding a slave moves only the keys it wins, from whichever slaves held
+ * them, but a lookup costs one score per slave.
+ */
+public class RendezvousPartitioner implements Partitioner {
+
+  public static final String NAME = "rendezvous";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Placement place(List<TPCSlaveInfo> slaves, int virtualNodes) {
+    return new RendezvousPlacement(slaves.toArray(new TPCSlaveInfo[slaves.size()]));
+  }
+
+  /**
+   * @param ordered slaves in unsigned order of ID
+   * @param ids     their IDs
+   * @param slave   one of them
+   *
+   * @return the slave after slave in ordered, wrapping around, or slave
+   *         itself if it is alone
+   */
+  static TPCSlaveInfo nextInOrder(TPCSlaveInfo[] ordered, long[] ids, TPCSlaveInfo slave) {
+    int i = RingPartitioner.ceilingIndex(ids, slave.getSlaveID());
+    if (i == ids.length || ids[i] != slave.getSlaveID()) {
+      return slave;
+    }
+    return ordered[(i + 1) % ordered.length];
+  }
+
+  /**
+   * @return IDs of slaves, in the same order
+   */
+  static long[] ids(TPCSlaveInfo[] slaves) {
+    long[] ids = new long[slaves.length];
+    for (int i = 0; i < slaves.length; i++) {
+      ids[i] = slaves[i].getSlaveID();
+    }
+    return ids;
+  }
+
+  private static final class RendezvousPlacement implements Placement {
+
+    private final TPCSlaveInfo[] ordered;
+    private final long[] ids;
+    private final long[] seeds;
+    private final double[] weights;
+    private final boolean weighted;
+    private final ReplicaTable replicas;
+
+    RendezvousPlacement(TPCSlaveInfo[] ordered) {
+      this.ordered = ordered;
+      this.ids = ids(ordered);
+      this.seeds = new long[ordered.length];
+      this.weights = new double[ordered.length];
+      boolean differ = false;
+      for (int i = 0; i < ordered.length; i++) {
+        seeds[i] = TPCMaster.mix64(ordered[i].getSlaveID());
+        weights[i] = ordered[i].getWeight();
+        differ |= weights[i] != weights[0];
+      }
+      this.weighted = differ;
+      this.replicas = new ReplicaTable(this, ordered);
+    }
+
+    @Override
+    public TPCSlaveInfo findFirstReplica(long hash) {
+      TPCSlaveInfo best = null;
+      long bestScore = 0;
+      double bestWeighted = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < ordered.length; i++) {
+        long score = TPCMaster.mix64(hash ^ seeds[i]);
+        if (weighted) {
+          // A fraction in (0, 1], whose log is at most 0
+          double u = ((score >>> 11) + 1) * 0x1p-53;
+          double weightedScore = -weights[i] / Math.log(u);
+          if (best == null || weightedScore > bestWeighted) {
+            best = ordered[i];
+            bestWeighted = weightedScore;
+          }
+        } else if (best == null || Long.compareUnsigned(score, bestScore) > 0) {
+          best = ordered[i];
+          bestScore = score;
+        }
+      }
+      return best;
+    }
+
+    @Override
+    public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
+      return nextInOrder(ordered, ids, firstReplica);
+    }
+
+    @Override
+    public TPCSlaveInfo[] findReplicas(TPCSlaveInfo firstReplica, int n) {
+      return replicas.find(firstReplica, n);
+    }
+  }
+
+}
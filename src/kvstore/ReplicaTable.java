@@ -0,0 +1,95 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The replicas of every key of a Placement, listed by first replica when
+ * the placement is built, so that findReplicas takes no lock and allocates
+ * nothing. Each slave has the list of every slave in the order they
+ * replicate its keys; the lists cut to n replicas are made the first time
+ * n is asked for and shared by every later lookup. Callers must not change
+ * the arrays returned.
+ *
+ * This class is thread-safe.
+ */
+final class ReplicaTable {
+
+  /* IDs of the slaves, in unsigned order */
+  private final long[] ids;
+  /* Every slave, in replica order, for the slave at each ID */
+  private final TPCSlaveInfo[][] chains;
+  /* Chains cut to n replicas, at n; null until first asked for */
+  private final AtomicReferenceArray<TPCSlaveInfo[][]> cuts;
+
+  /**
+   * Builds the table from the successors of each slave, walking them as
+   * Placement.findReplicas does.
+   *
+   * @param placement placement to list the replicas of
+   * @param slaves    slaves of placement, in unsigned order of their IDs
+   */
+  ReplicaTable(Partitioner.Placement placement, TPCSlaveInfo[] slaves) {
+    this(slaves, successorChains(placement, slaves));
+  }
+
+  /**
+   * @param slaves slaves in unsigned order of their IDs
+   * @param chains distinct slaves in replica order for each of slaves,
+   *               starting with it
+   */
+  ReplicaTable(TPCSlaveInfo[] slaves, TPCSlaveInfo[][] chains) {
+    this.ids = RendezvousPartitioner.ids(slaves);
+    this.chains = chains;
+    int longest = 0;
+    for (TPCSlaveInfo[] chain : chains) {
+      longest = Math.max(longest, chain.length);
+    }
+    this.cuts = new AtomicReferenceArray<>(longest + 1);
+  }
+
+  private static TPCSlaveInfo[][] successorChains(Partitioner.Placement placement,
+                                                  TPCSlaveInfo[] slaves) {
+    TPCSlaveInfo[][] chains = new TPCSlaveInfo[slaves.length][];
+    for (int i = 0; i < slaves.length; i++) {
+      List<TPCSlaveInfo> chain = new ArrayList<>();
+      chain.add(slaves[i]);
+      TPCSlaveInfo next = placement.findSuccessor(slaves[i]);
+      while (!chain.contains(next)) {
+        chain.add(next);
+        next = placement.findSuccessor(next);
+      }
+      chains[i] = chain.toArray(new TPCSlaveInfo[chain.size()]);
+    }
+    return chains;
+  }
+
+  /**
+   * @param firstReplica first replica of some key
+   * @param n            number of replicas wanted
+   *
+   * @return n distinct slaves, firstReplica first, or every slave there is
+   *         if there are fewer
+   */
+  TPCSlaveInfo[] find(TPCSlaveInfo firstReplica, int n) {
+    int i = RingPartitioner.ceilingIndex(ids, firstReplica.getSlaveID());
+    if (i == ids.length || ids[i] != firstReplica.getSlaveID()) {
+      // Not placed, so it has no successor
+      return new TPCSlaveInfo[] {firstReplica};
+    }
+    n = Math.max(1, Math.min(n, cuts.length() - 1));
+    TPCSlaveInfo[][] cut = cuts.get(n);
+    if (cut == null) {
+      // Two threads may both build it; either copy will do
+      cut = new TPCSlaveInfo[chains.length][];
+      for (int j = 0; j < chains.length; j++) {
+        cut[j] = chains[j].length <= n ? chains[j] : Arrays.copyOf(chains[j], n);
+      }
+      cuts.set(n, cut);
+    }
+    return cut[i];
+  }
+
+}
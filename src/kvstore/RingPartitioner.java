@@ -0,0 +1,177 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing on a ring of unsigned 64-bit positions: the first
+ * replica of a key is the slave at the first position at or after its
+ * hash, wrapping around, and the successor of a slave is the next slave
+ * clockwise of its ID. Further replicas are the next distinct slaves
+ * clockwise after that. Each slave takes virtualNodes positions per unit of
+ * weight, as given by TPCMaster.ringPositions; with one, each slave sits at
+ * its ID alone.
+ *
+ * Adding a slave moves only the keys that fall on its new positions.
+ */
+public class RingPartitioner implements Partitioner {
+
+  public static final String NAME = "ring";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public Placement place(List<TPCSlaveInfo> slaves, int virtualNodes) {
+    return new RingPlacement(positions(slaves, virtualNodes));
+  }
+
+  /**
+   * Lays slaves out on the ring.
+   *
+   * @param slaves       slaves to place
+   * @param virtualNodes positions per slave of weight 1
+   *
+   * @return positions in unsigned order, to the slave at each
+   */
+  public static TreeMap<Long, TPCSlaveInfo> positions(List<TPCSlaveInfo> slaves,
+      int virtualNodes) {
+    // Long.compareUnsigned orders like TPCMaster.isLessThanUnsigned
+    TreeMap<Long, TPCSlaveInfo> ring = new TreeMap<>(Long::compareUnsigned);
+    for (TPCSlaveInfo slave : slaves) {
+      for (long position : TPCMaster.ringPositions(slave.getSlaveID(),
+          virtualNodes * slave.getWeight())) {
+        ring.put(position, slave);
+      }
+    }
+    return ring;
+  }
+
+  /**
+   * Finds the first of a sorted array of unsigned values that is at least
+   * key.
+   *
+   * @param sorted values in unsigned order
+   * @param key    value to look for
+   *
+   * @return index of that value, or sorted.length if every value is less
+   */
+  static int ceilingIndex(long[] sorted, long key) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (Long.compareUnsigned(sorted[mid], key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * The ring flattened into parallel arrays, so that a lookup is a binary
+   * search over primitives: it takes no lock, boxes no Long and allocates
+   * nothing. The replicas of each slave are listed up front in a
+   * ReplicaTable.
+   */
+  private static final class RingPlacement implements Placement {
+
+    /* Positions in unsigned order */
+    private final long[] positions;
+    /* Slave at each position */
+    private final TPCSlaveInfo[] owners;
+    /* Next slave clockwise of each position that is not its owner */
+    private final TPCSlaveInfo[] successors;
+    private final ReplicaTable replicas;
+
+    RingPlacement(TreeMap<Long, TPCSlaveInfo> ring) {
+      int size = ring.size();
+      positions = new long[size];
+      owners = new TPCSlaveInfo[size];
+      successors = new TPCSlaveInfo[size];
+      int i = 0;
+      for (Map.Entry<Long, TPCSlaveInfo> position : ring.entrySet()) {
+        positions[i] = position.getKey();
+        owners[i++] = position.getValue();
+      }
+      // The successor of a position is the owner of the next one if that
+      // differs, else the successor of the next one; going round twice
+      // backwards settles every position, wrapping around
+      TPCSlaveInfo after = null;
+      for (i = 2 * size - 1; i >= 0; i--) {
+        TPCSlaveInfo owner = owners[i % size];
+        TPCSlaveInfo next = owners[(i + 1) % size];
+        TPCSlaveInfo successor = next.getSlaveID() != owner.getSlaveID() ? next : after;
+        if (i < size) {
+          successors[i] = successor == null ? owner : successor;
+        }
+        after = successor;
+      }
+      replicas = replicaTable();
+    }
+
+    /**
+     * Lists the replicas of each slave by walking the positions from its
+     * ID, since with virtual nodes the successor of a successor can lead
+     * back.
+     */
+    private ReplicaTable replicaTable() {
+      TreeMap<Long, TPCSlaveInfo> distinct = new TreeMap<>(Long::compareUnsigned);
+      for (TPCSlaveInfo owner : owners) {
+        distinct.put(owner.getSlaveID(), owner);
+      }
+      TPCSlaveInfo[] slaves = distinct.values().toArray(new TPCSlaveInfo[distinct.size()]);
+      TPCSlaveInfo[][] chains = new TPCSlaveInfo[slaves.length][];
+      for (int s = 0; s < slaves.length; s++) {
+        List<TPCSlaveInfo> chain = new ArrayList<>();
+        chain.add(slaves[s]);
+        int start = ceilingIndex(positions, slaves[s].getSlaveID());
+        if (start < positions.length && positions[start] == slaves[s].getSlaveID()) {
+          Set<Long> listed = new HashSet<>();
+          listed.add(slaves[s].getSlaveID());
+          for (int step = 1; step < positions.length && chain.size() < slaves.length; step++) {
+            TPCSlaveInfo owner = owners[(start + step) % positions.length];
+            if (listed.add(owner.getSlaveID())) {
+              chain.add(owner);
+            }
+          }
+        }
+        chains[s] = chain.toArray(new TPCSlaveInfo[chain.size()]);
+      }
+      return new ReplicaTable(slaves, chains);
+    }
+
+    @Override
+    public TPCSlaveInfo findFirstReplica(long hash) {
+      if (positions.length == 0) {
+        return null;
+      }
+      int i = ceilingIndex(positions, hash);
+      return owners[i == positions.length ? 0 : i];
+    }
+
+    @Override
+    public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
+      // Every slave has a position at its ID
+      int i = ceilingIndex(positions, firstReplica.getSlaveID());
+      if (i == positions.length || positions[i] != firstReplica.getSlaveID()) {
+        return firstReplica;
+      }
+      return successors[i];
+    }
+
+    @Override
+    public TPCSlaveInfo[] findReplicas(TPCSlaveInfo firstReplica, int n) {
+      return replicas.find(firstReplica, n);
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Reports how the Partitioner of a TPCMaster divides the keyspace among its
+ * slaves, and how the load it has sent them compares.
+ *
+ * Against a running master the topology is fetched with a TOPOLOGY_REQ and
+ * the load with a STATS_REQ, whose "slave.ID.requests" counters count the
+ * requests the master has sent to each slave. With --simulate no
+ * master is needed: slaves are placed in memory at random IDs, as
+ * SampleSlave picks them, to show the balance a configuration would give,
+ * and how many keys would move if one more slave joined.
+ *
+ * The share of a ring is exact; for other partitioners it is measured by
+ * placing --samples random key hashes.
+ *
+ * Usage: RingReport [--option value]...
+ *   --target      host:port of a running master
+ *   --simulate    number of slaves to place instead
+ *   --partitioner ring, jump, rendezvous or all when simulating; default
+ *                 ring
+ *   --vnodes      positions per slave of weight 1 when simulating; default 1
+ *   --weights     comma-separated weights of the simulated slaves, repeated
+ *                 as needed; default 1
+ *   --samples     key hashes to place; default 1000000
+ *   --seed        seed for the simulated slave IDs and samples; default
+ *                 random
+ */
+public class RingReport {
+
+  private static final double RING_SIZE = 0x1p64;
+
+  private static final String[] ALL = {
+      RingPartitioner.NAME, JumpPartitioner.NAME, RendezvousPartitioner.NAME};
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Expected an option, got " + args[i]);
+      }
+      options.put(args[i].substring(2).toLowerCase(), args[i + 1]);
+    }
+    int samples = Integer.parseInt(option(options, "samples", "1000000"));
+    long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed"))
+                                            : new Random().nextLong();
+    if (options.containsKey("simulate")) {
+      int numSlaves = Integer.parseInt(options.get("simulate"));
+      int vnodes = Integer.parseInt(option(options, "vnodes", "1"));
+      String[] weights = option(options, "weights", "1").split(",");
+      String name = option(options, "partitioner", RingPartitioner.NAME);
+      for (String partitioner : name.equals("all") ? ALL : new String[] {name}) {
+        // The same seed gives every partitioner the same slaves
+        List<TPCSlaveInfo> slaves = simulate(numSlaves + 1, weights, new Random(seed));
+        TPCSlaveInfo joining = slaves.remove(slaves.size() - 1);
+        report(Partitioner.forName(partitioner), vnodes, slaves, null, joining, samples,
+            new Random(seed));
+      }
+    } else if (options.containsKey("target")) {
+      String target = options.get("target");
+      int colon = target.lastIndexOf(':');
+      KVClient client = new KVClient(target.substring(0, colon),
+          Integer.parseInt(target.substring(colon + 1)));
+      KVMessage response = client.sendRequest(new KVMessage(KVConstants.TOPOLOGY_REQ));
+      if (response.getMessage() != null) {
+        throw new KVException(response.getMessage());
+      }
+      List<TPCSlaveInfo> slaves = new ArrayList<>();
+      if (response.getPairs() != null) {
+        for (String info : response.getPairs().values()) {
+          slaves.add(new TPCSlaveInfo(info));
+        }
+      }
+      if (slaves.isEmpty()) {
+        System.out.println("Not every slave has registered yet");
+        return;
+      }
+      String spec = response.getKey();
+      int split = spec.lastIndexOf(':');
+      report(Partitioner.forName(spec.substring(0, split)),
+          Integer.parseInt(spec.substring(split + 1)), slaves, client.stats(), null, samples,
+          new Random(seed));
+    } else {
+      throw new IllegalArgumentException("Either --target or --simulate is required");
+    }
+  }
+
+  private static String option(Map<String, String> options, String name, String fallback) {
+    String value = options.get(name);
+    return value == null ? fallback : value;
+  }
+
+  /**
+   * @return numSlaves slaves at random IDs, in unsigned order of ID except
+   *         for the last, which is left to join later
+   */
+  private static List<TPCSlaveInfo> simulate(int numSlaves, String[] weights, Random random)
+      throws KVException {
+    List<TPCSlaveInfo> slaves = new ArrayList<>();
+    for (int i = 0; i < numSlaves; i++) {
+      String weight = weights[i % weights.length].trim();
+      slaves.add(new TPCSlaveInfo(random.nextLong() + "@127.0.0.1:" + (i + 1) + "/" + weight));
+    }
+    slaves.subList(0, numSlaves - 1).sort(
+        (a, b) -> Long.compareUnsigned(a.getSlaveID(), b.getSlaveID()));
+    return slaves;
+  }
+
+  /**
+   * Computes the share of the keyspace of each slave on a ring: every
+   * position owns the keys that hash after the previous position, up to
+   * and including itself, and the first position also owns those after the
+   * last.
+   *
+   * @param ring positions in unsigned order, to the slave that owns them
+   *
+   * @return fraction of the keyspace of each slave, by slave ID
+   */
+  public static Map<Long, Double> keyspaceShares(TreeMap<Long, TPCSlaveInfo> ring) {
+    Map<Long, Double> shares = new LinkedHashMap<>();
+    if (ring.size() == 1) {
+      shares.put(ring.firstEntry().getValue().getSlaveID(), 1.0);
+      return shares;
+    }
+    long previous = ring.lastKey();
+    for (Map.Entry<Long, TPCSlaveInfo> position : ring.entrySet()) {
+      // The difference wraps around the ring like the positions do
+      double arc = unsignedToDouble(position.getKey() - previous) / RING_SIZE;
+      Long slaveID = position.getValue().getSlaveID();
+      Double share = shares.get(slaveID);
+      shares.put(slaveID, share == null ? arc : share + arc);
+      previous = position.getKey();
+    }
+    return shares;
+  }
+
+  /**
+   * Estimates the share of the keyspace of each slave under any placement
+   * by placing random key hashes.
+   *
+   * @param placement placement to measure
+   * @param samples   number of hashes to place
+   * @param random    source of the hashes
+   *
+   * @return fraction of the hashes placed on each slave, by slave ID
+   */
+  public static Map<Long, Double> sampleShares(Partitioner.Placement placement, int samples,
+      Random random) {
+    Map<Long, long[]> counts = new LinkedHashMap<>();
+    for (int i = 0; i < samples; i++) {
+      long slaveID = placement.findFirstReplica(random.nextLong()).getSlaveID();
+      long[] count = counts.get(slaveID);
+      if (count == null) {
+        counts.put(slaveID, count = new long[1]);
+      }
+      count[0]++;
+    }
+    Map<Long, Double> shares = new LinkedHashMap<>();
+    for (Map.Entry<Long, long[]> count : counts.entrySet()) {
+      shares.put(count.getKey(), (double) count.getValue()[0] / samples);
+    }
+    return shares;
+  }
+
+  /**
+   * Estimates the fraction of keys whose first replica changes from one
+   * placement to another.
+   */
+  private static double movedShare(Partitioner.Placement before, Partitioner.Placement after,
+      int samples, Random random) {
+    long moved = 0;
+    for (int i = 0; i < samples; i++) {
+      long hash = random.nextLong();
+      if (before.findFirstReplica(hash).getSlaveID()
+          != after.findFirstReplica(hash).getSlaveID()) {
+        moved++;
+      }
+    }
+    return (double) moved / samples;
+  }
+
+  private static double unsignedToDouble(long n) {
+    return (n >>> 1) * 2.0 + (n & 1);
+  }
+
+  private static void report(Partitioner partitioner, int vnodes, List<TPCSlaveInfo> slaves,
+      Map<String, String> stats, TPCSlaveInfo joining, int samples, Random random) {
+    boolean ring = partitioner instanceof RingPartitioner;
+    Partitioner.Placement placement = partitioner.place(slaves, vnodes);
+    TreeMap<Long, TPCSlaveInfo> positions = ring ? RingPartitioner.positions(slaves, vnodes)
+                                                 : null;
+    Map<Long, Double> shares = ring ? keyspaceShares(positions)
+                                    : sampleShares(placement, samples, random);
+    Map<Long, Integer> points = new LinkedHashMap<>();
+    if (ring) {
+      for (TPCSlaveInfo slave : positions.values()) {
+        Integer count = points.get(slave.getSlaveID());
+        points.put(slave.getSlaveID(), count == null ? 1 : count + 1);
+      }
+    }
+    long totalWeight = 0;
+    for (TPCSlaveInfo slave : slaves) {
+      totalWeight += slave.getWeight();
+    }
+    long totalRequests = 0;
+    Map<Long, Long> requests = new LinkedHashMap<>();
+    if (stats != null) {
+      for (TPCSlaveInfo slave : slaves) {
+        String counter = stats.get("slave." + slave.getSlaveID() + ".requests");
+        long count = counter == null ? 0 : Long.parseLong(counter);
+        requests.put(slave.getSlaveID(), count);
+        totalRequests += count;
+      }
+    }
+
+    System.out.printf("%-22s %-21s %6s %9s %9s", "slave", "address",
+        ring ? "points" : "weight", "keyspace", "expected");
+    if (stats != null) {
+      System.out.printf(" %12s %8s", "requests", "load");
+    }
+    System.out.println();
+    double maxSkew = 0;
+    for (TPCSlaveInfo slave : slaves) {
+      long slaveID = slave.getSlaveID();
+      Double share = shares.get(slaveID);
+      double expected = (double) slave.getWeight() / totalWeight;
+      maxSkew = Math.max(maxSkew, (share == null ? 0 : share) / expected);
+      System.out.printf("%-22d %-21s %6d %8.2f%% %8.2f%%", slaveID,
+          slave.getHostname() + ":" + slave.getPort(),
+          ring ? points.get(slaveID) : slave.getWeight(),
+          share == null ? 0.0 : 100 * share, 100 * expected);
+      if (stats != null) {
+        long count = requests.get(slaveID);
+        System.out.printf(" %12d %7.2f%%", count,
+            totalRequests == 0 ? 0.0 : 100.0 * count / totalRequests);
+      }
+      System.out.println();
+    }
+    System.out.printf("[%s] slaves=%d vnodes=%d maxShare/expected=%.2f",
+        partitioner.getName().toUpperCase(), slaves.size(), vnodes, maxSkew);
+    if (joining != null) {
+      // Keys that change first replica when one more slave joins, against
+      // the share it should take
+      List<TPCSlaveInfo> grown = new ArrayList<>(slaves);
+      grown.add(joining);
+      grown.sort((a, b) -> Long.compareUnsigned(a.getSlaveID(), b.getSlaveID()));
+      System.out.printf(" movedOnJoin=%.2f%% ideal=%.2f%%",
+          100 * movedShare(placement, partitioner.place(grown, vnodes), samples, random),
+          100.0 * joining.getWeight() / (totalWeight + joining.getWeight()));
+    }
+    System.out.println();
+  }
+
+}
@@ -0,0 +1,117 @@
+package kvstore;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One page of a range scan: the pairs found, in key order, and the key to
+ * resume from if the range has more pairs than fit on this page.
+ *
+ * A page from a slave also carries the version of each pair that has one,
+ * and the recent deletes in the range as pairs with an empty value, so the
+ * master can tell which replica is behind.
+ */
+public class ScanPage {
+
+  private final LinkedHashMap<String, String> pairs;
+  private final Map<String, Long> versions;
+  private final String cursor;
+
+  /**
+   * Constructs a ScanPage.
+   *
+   * @param pairs  pairs on this page, in key order
+   * @param cursor inclusive start key of the next page, or null if the scan
+   *               is complete
+   */
+  public ScanPage(LinkedHashMap<String, String> pairs, String cursor) {
+    this(pairs, null, cursor);
+  }
+
+  /**
+   * Constructs a ScanPage with versions.
+   *
+   * @param pairs    pairs on this page, in key order, deletes with an empty
+   *                 value
+   * @param versions versions of the pairs by key, or null if none has one
+   * @param cursor   inclusive start key of the next page, or null if the
+   *                 scan is complete
+   */
+  public ScanPage(LinkedHashMap<String, String> pairs, Map<String, Long> versions,
+                  String cursor) {
+    this.pairs = pairs;
+    this.versions = versions;
+    this.cursor = cursor;
+  }
+
+  /**
+   * Builds a ScanPage from a scan response.
+   *
+   * @param response KVMessage answering a SCAN_REQ
+   *
+   * @return the page carried by response
+   */
+  public static ScanPage fromMessage(KVMessage response) {
+    LinkedHashMap<String, String> pairs = response.getPairs();
+    if (pairs == null) {
+      pairs = new LinkedHashMap<>();
+    }
+    return new ScanPage(pairs, response.getPairVersions(), response.getKey());
+  }
+
+  /**
+   * Builds the response message for this page.
+   *
+   * @return RESP KVMessage carrying this page
+   */
+  public KVMessage toMessage() {
+    KVMessage response = new KVMessage(KVConstants.RESP);
+    response.setPairs(pairs);
+    response.setPairVersions(versions);
+    response.setKey(cursor);
+    return response;
+  }
+
+  /**
+   * Page size requested by a SCAN_REQ, defaulted and capped.
+   *
+   * @param request SCAN_REQ KVMessage
+   *
+   * @return number of pairs to return, between 1 and MAX_SCAN_LIMIT
+   */
+  public static int limitOf(KVMessage request) {
+    Integer limit = request.getLimit();
+    if (limit == null) {
+      return KVConstants.DEFAULT_SCAN_LIMIT;
+    }
+    return Math.min(limit, KVConstants.MAX_SCAN_LIMIT);
+  }
+
+  public LinkedHashMap<String, String> getPairs() {
+    return pairs;
+  }
+
+  /**
+   * @return version of the pair with key, or 0 if it has none
+   */
+  public long getVersion(String key) {
+    Long version = versions == null ? null : versions.get(key);
+    return version == null ? 0 : version;
+  }
+
+  /**
+   * @return true if the pair with key stands for a delete
+   */
+  public boolean isDeleted(String key) {
+    return pairs.get(key).isEmpty();
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public boolean hasMore() {
+    return cursor != null;
+  }
+
+}
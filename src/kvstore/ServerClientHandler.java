@@ -1,11 +1,21 @@
 package kvstore;
 
 import java.net.Socket;
+import java.util.LinkedHashMap;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.APPEND_REQ;
+import static kvstore.KVConstants.CAS_REQ;
+import static kvstore.KVConstants.CHANGES_REQ;
+import static kvstore.KVConstants.INCR_REQ;
+import static kvstore.KVConstants.MULTI_DEL_REQ;
+import static kvstore.KVConstants.MULTI_GET_REQ;
+import static kvstore.KVConstants.MULTI_PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
+import static kvstore.KVConstants.STATS_REQ;
 import static kvstore.KVConstants.SUCCESS;
 
 /**
@@ -51,13 +61,33 @@ public class ServerClientHandler implements NetworkHandler {
 
       switch (request.getMsgType()) {
         case GET_REQ:
-          threadPool.addJob(new getJob(request.getKey(), client));
+          threadPool.addJob(new getJob(request.getKVKey(), client));
           break;
         case PUT_REQ:
-          threadPool.addJob(new putJob(request.getKey(), request.getValue(), client));
+          threadPool.addJob(new putJob(request.getKVKey(), request.getValue(),
+              request.getTtlMillis(), client));
           break;
         case DEL_REQ:
-          threadPool.addJob(new delJob(request.getKey(), client));
+          threadPool.addJob(new delJob(request.getKVKey(), client));
+          break;
+        case SCAN_REQ:
+          threadPool.addJob(new scanJob(request, client));
+          break;
+        case MULTI_GET_REQ:
+        case MULTI_PUT_REQ:
+        case MULTI_DEL_REQ:
+          threadPool.addJob(new multiJob(request, client));
+          break;
+        case CAS_REQ:
+        case INCR_REQ:
+        case APPEND_REQ:
+          threadPool.addJob(new readModifyWriteJob(request, client));
+          break;
+        case STATS_REQ:
+          statsResponse().sendMessage(client);
+          break;
+        case CHANGES_REQ:
+          kvServer.getChangeLog().response(request.getValue()).sendMessage(client);
           break;
         default:
           throw new KVException(ERROR_INVALID_FORMAT);
@@ -75,49 +105,71 @@ public class ServerClientHandler implements NetworkHandler {
     }
   }
 
+  /**
+   * Builds the response to a STATS_REQ from counters that are read without
+   * taking any request lock.
+   */
+  private KVMessage statsResponse() {
+    LinkedHashMap<String, String> stats = new LinkedHashMap<>();
+    kvServer.collectStats(stats);
+    threadPool.collectStats("threadpool.", stats);
+    Latencies.collectStats(stats);
+    KVMessage response = new KVMessage(RESP);
+    response.setPairs(stats);
+    return response;
+  }
+
   private class getJob implements Runnable {
 
-    String key;
+    KVKey key;
     Socket client;
 
-    getJob(String key, Socket client) {
+    getJob(KVKey key, Socket client) {
       this.key = key;
       this.client = client;
     }
 
     @Override
     public void run() {
-      try {
-        String value = kvServer.get(key);
-        KVMessage response = new KVMessage(RESP);
-        response.setKey(key);
+      String value = kvServer.lookup(key);
+      KVMessage response;
+      if (value == null) {
+        response = KVException.NO_SUCH_KEY.getKVMessage();
+      } else {
+        response = new KVMessage(RESP);
+        response.setKey(key.toString());
         response.setValue(value);
-        response.sendMessage(client);
-      } catch (KVException e1) {
-        try {
-          e1.getKVMessage().sendMessage(client);
-        } catch (KVException e2) {
+        long ttl = kvServer.getTtl(key);
+        if (ttl > 0) {
+          // Lets a near cache drop the value when it expires here
+          response.setTtl(ttl);
         }
       }
+      try {
+        response.sendMessage(client);
+      } catch (KVException e) {
+      }
     }
   }
 
   private class putJob implements Runnable {
 
-    String key;
+    KVKey key;
     String value;
+    long ttl;
     Socket client;
 
-    putJob(String key, String value, Socket client) {
+    putJob(KVKey key, String value, long ttl, Socket client) {
       this.key = key;
       this.value = value;
+      this.ttl = ttl;
       this.client = client;
     }
 
     @Override
     public void run() {
       try {
-        kvServer.put(key, value);
+        kvServer.put(key, value, ttl);
         KVMessage response = new KVMessage(RESP, SUCCESS);
         response.sendMessage(client);
       } catch (KVException e1) {
@@ -136,10 +188,10 @@ public class ServerClientHandler implements NetworkHandler {
 
   private class delJob implements Runnable {
 
-    String key;
+    KVKey key;
     Socket client;
 
-    delJob(String key, Socket client) {
+    delJob(KVKey key, Socket client) {
       this.key = key;
       this.client = client;
     }
@@ -159,4 +211,91 @@ public class ServerClientHandler implements NetworkHandler {
     }
   }
 
+  private class scanJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    scanJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      ScanPage page = kvServer.scan(request.getKey(), request.getEnd(),
+          ScanPage.limitOf(request));
+      try {
+        page.toMessage().sendMessage(client);
+      } catch (KVException e) {
+        System.out.println("SERVCLIENT SCAN " + e);
+      }
+    }
+  }
+
+  private class multiJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    multiJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      try {
+        KVMessage response;
+        if (request.getMsgType().equals(MULTI_GET_REQ)) {
+          response = new KVMessage(RESP);
+          response.setPairs(kvServer.multiGet(request.getKVKeys()));
+        } else {
+          kvServer.commit(request);
+          response = new KVMessage(RESP, SUCCESS);
+        }
+        response.sendMessage(client);
+      } catch (KVException e1) {
+        System.out.println("SERVCLIENT MULTI 1" + e1);
+        try {
+          e1.getKVMessage().sendMessage(client);
+        } catch (KVException e2) {
+          System.out.println("SERVCLIENT MULTI 2" + e2);
+        }
+      }
+    }
+  }
+
+  private class readModifyWriteJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    readModifyWriteJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      try {
+        String newValue = kvServer.readModifyWrite(request);
+        KVMessage response;
+        if (request.getMsgType().equals(INCR_REQ)) {
+          response = new KVMessage(RESP);
+          response.setKey(request.getKey());
+          response.setValue(newValue);
+        } else {
+          response = new KVMessage(RESP, SUCCESS);
+        }
+        response.sendMessage(client);
+      } catch (KVException e1) {
+        try {
+          e1.getKVMessage().sendMessage(client);
+        } catch (KVException e2) {
+          System.out.println("SERVCLIENT RMW " + e2);
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,248 @@
+package kvstore;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.TIMEOUT;
+import static kvstore.KVConstants.TOPOLOGY_REQ;
+
+/**
+ * Sends the gets of a KVClient connected to a TPCMaster straight to the
+ * slaves that hold the keys, saving the hop through the master.
+ *
+ * The router fetches the slaves of the master and the name of its
+ * Partitioner with a TOPOLOGY_REQ, and builds the same Placement the
+ * master uses, so it finds the replicas of a key the way
+ * TPCMaster.findFirstReplica and findSuccessor do. The copy is checked
+ * against the master every refreshMillis, or more often if the master sends
+ * a shorter time to live with it, and as soon as a slave cannot be
+ * reached. Any get the router cannot serve, including every get while it
+ * has no placement, is left to the master.
+ *
+ * Each slave is reached over the persistent connection of its
+ * TPCSlaveInfo, which is kept across topology versions while the slave
+ * stays at the same address.
+ *
+ * A get served this way is not serialized with writes in progress on the
+ * master, so it may see a value one replica has committed and the other
+ * has not yet. Writes that have returned are seen: a join or leave first
+ * hands routers an empty list of slaves and waits out their time to live
+ * (see TPCMaster.setRouterRefresh) before writes go to other replicas. A
+ * get already under way when the placement changes may still read the
+ * replica that is losing its key.
+ *
+ * This class is thread-safe.
+ */
+public class SmartRouter {
+
+  private final KVClient client;
+  private final long refreshMillis;
+
+  private volatile Topology topology;
+  private volatile long checkedAt;
+  /* Time to live the master last sent with the topology */
+  private volatile long maxAgeMillis = Long.MAX_VALUE;
+
+  private final AtomicLong direct = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * Constructs a SmartRouter with no topology; it is fetched on first use.
+   *
+   * @param client        KVClient connected to the master
+   * @param refreshMillis time after which the topology is checked again
+   */
+  public SmartRouter(KVClient client, long refreshMillis) {
+    this.client = client;
+    this.refreshMillis = refreshMillis;
+  }
+
+  /**
+   * Gets a value from the replicas of key, the less loaded first as far as
+   * this client has seen (see TPCSlaveInfo.byReadCost).
+   *
+   * @param key String key
+   *
+   * @return the response carrying the value of key and the time it has
+   *         left, or null if the get has to go through the master
+   *
+   * @throws KVException with ERROR_NO_SUCH_KEY if both replicas answered
+   *                     that they do not have the key
+   */
+  public KVMessage get(String key) throws KVException {
+    Topology current = currentTopology();
+    if (current == null) {
+      fallbacks.incrementAndGet();
+      return null;
+    }
+    KVMessage request = new KVMessage(GET_REQ);
+    request.setKey(key);
+    TPCSlaveInfo primary = current.placement.findFirstReplica(KVKey.of(key).hash64());
+    TPCSlaveInfo[] slaves = {primary, current.placement.findSuccessor(primary)};
+    int missing = 0;
+    for (TPCSlaveInfo slave : TPCSlaveInfo.byReadCost(slaves)) {
+      Socket socket = null;
+      long start = slave.beginRead();
+      boolean answered = false;
+      try {
+        socket = slave.connectHost(TIMEOUT);
+        request.sendMessage(socket);
+        KVMessage response = new KVMessage(socket, TIMEOUT);
+        answered = true;
+        if (RESP.equals(response.getMsgType()) && response.getMessage() == null
+            && response.getValue() != null) {
+          direct.incrementAndGet();
+          return response;
+        }
+        if (ERROR_NO_SUCH_KEY.equals(response.getMessage())) {
+          missing++;
+        }
+      } catch (KVException e) {
+        // The slave may have moved; check the topology before next use
+        checkedAt = 0;
+      } finally {
+        slave.endRead(start, answered);
+        slave.closeHost(socket);
+      }
+    }
+    if (missing == slaves.length) {
+      direct.incrementAndGet();
+      throw KVException.NO_SUCH_KEY;
+    }
+    fallbacks.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Fetches the topology again if it is due to be checked. Only one thread
+   * asks the master; the others go on with the topology they have.
+   */
+  private Topology currentTopology() {
+    long now = System.currentTimeMillis();
+    long refresh = Math.min(refreshMillis, maxAgeMillis);
+    if (now - checkedAt < refresh) {
+      return topology;
+    }
+    synchronized (this) {
+      if (now - checkedAt < refresh) {
+        return topology;
+      }
+      checkedAt = now;
+      Topology previous = topology;
+      try {
+        topology = fetch(previous);
+      } catch (KVException e) {
+        System.out.println("SMARTROUTER REFRESH " + e);
+        topology = null;
+      }
+      if (previous != null && previous != topology) {
+        // Close the connections to slaves the new topology does not reuse
+        for (TPCSlaveInfo slave : previous.slaves.values()) {
+          if (topology == null || topology.slaves.get(slave.getSlaveID()) != slave) {
+            slave.disconnect();
+          }
+        }
+      }
+      return topology;
+    }
+  }
+
+  private Topology fetch(Topology current) throws KVException {
+    KVMessage response = client.sendRequest(new KVMessage(TOPOLOGY_REQ));
+    if (response.getMessage() != null || response.getValue() == null) {
+      throw new KVException(response.getMessage());
+    }
+    long version = Long.parseLong(response.getValue());
+    long maxAge = response.getTtlMillis();
+    maxAgeMillis = maxAge > 0 ? maxAge : Long.MAX_VALUE;
+    if (current != null && current.version == version) {
+      return current;
+    }
+    refreshes.incrementAndGet();
+    Map<String, String> pairs = response.getPairs();
+    if (pairs == null || pairs.isEmpty()) {
+      return null;
+    }
+    List<TPCSlaveInfo> slaves = new ArrayList<>();
+    for (String info : pairs.values()) {
+      TPCSlaveInfo slave = new TPCSlaveInfo(info);
+      TPCSlaveInfo known = current == null ? null : current.slaves.get(slave.getSlaveID());
+      if (known != null && known.getHostname().equals(slave.getHostname())
+          && known.getPort() == slave.getPort() && known.getWeight() == slave.getWeight()) {
+        // Keeps its connection and what has been seen of its load
+        slave = known;
+      }
+      slaves.add(slave);
+    }
+    String spec = response.getKey();
+    int colon = spec.lastIndexOf(':');
+    try {
+      Partitioner partitioner = Partitioner.forName(spec.substring(0, colon));
+      int virtualNodes = Integer.parseInt(spec.substring(colon + 1));
+      return new Topology(version, slaves, partitioner.place(slaves, virtualNodes));
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+    }
+  }
+
+  /**
+   * @return number of gets answered by a slave directly
+   */
+  public long getDirectCount() {
+    return direct.get();
+  }
+
+  /**
+   * @return number of gets left to the master
+   */
+  public long getFallbackCount() {
+    return fallbacks.get();
+  }
+
+  /**
+   * @return version of the topology in use, or -1 if there is none
+   */
+  public long getTopologyVersion() {
+    Topology current = topology;
+    return current == null ? -1 : current.version;
+  }
+
+  /**
+   * Adds the counters of this router to stats.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public void collectStats(String prefix, Map<String, String> stats) {
+    stats.put(prefix + "direct", Long.toString(direct.get()));
+    stats.put(prefix + "fallbacks", Long.toString(fallbacks.get()));
+    stats.put(prefix + "refreshes", Long.toString(refreshes.get()));
+    stats.put(prefix + "version", Long.toString(getTopologyVersion()));
+  }
+
+  /**
+   * The slaves and placement of the master at one topology version.
+   */
+  private static final class Topology {
+
+    final long version;
+    final Map<Long, TPCSlaveInfo> slaves = new HashMap<>();
+    final Partitioner.Placement placement;
+
+    Topology(long version, List<TPCSlaveInfo> slaves, Partitioner.Placement placement) {
+      this.version = version;
+      for (TPCSlaveInfo slave : slaves) {
+        this.slaves.put(slave.getSlaveID(), slave);
+      }
+      this.placement = placement;
+    }
+  }
+
+}
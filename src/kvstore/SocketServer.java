@@ -2,7 +2,12 @@ package kvstore;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * This is a generic class that should handle all TCP network connections
@@ -13,12 +18,17 @@ import java.net.SocketTimeoutException;
 public class SocketServer {
   public static final int TIMEOUT = 100;
 
+  /* How long a persistent connection may sit idle before it is closed */
+  public static final int KEEP_ALIVE_TIMEOUT = 60000;
+
   public String hostname;
   public int port;
   public ServerSocket server;
   public NetworkHandler handler;
   public boolean stopped = false;
 
+  private final Set<FramedSocket> keepAlive = new HashSet<>();
+
 
   /**
    * Construct a SocketServer with a ServerSocket listening on a free port.
@@ -79,7 +89,7 @@ public class SocketServer {
   public void start() throws IOException {
     do {
       try {
-        handler.handle(server.accept());
+        serve(server.accept());
       } catch (SocketTimeoutException e) {
         if (stopped) {
           break;
@@ -87,6 +97,96 @@ public class SocketServer {
       }
     } while (!stopped);
     server.close();
+    List<FramedSocket> open;
+    synchronized (keepAlive) {
+      open = new ArrayList<>(keepAlive);
+    }
+    for (FramedSocket sock : open) {
+      try {
+        sock.close();
+      } catch (IOException e) {
+        // Best effort
+      }
+    }
+  }
+
+  /**
+   * Hands a plain connection's single request to the handler, or starts a
+   * thread that hands it each request of a framed connection in turn until
+   * the client closes it or it idles for KEEP_ALIVE_TIMEOUT. The requests of
+   * a multiplexed connection are handed over as MultiplexedChannel.Streams,
+   * so the handler can answer them in any order.
+   *
+   * @param client newly accepted connection
+   */
+  private void serve(Socket client) {
+    final FramedSocket sock;
+    try {
+      sock = FramedSocket.accept(client);
+    } catch (IOException e) {
+      try {
+        client.close();
+      } catch (IOException e2) {
+        // Best effort
+      }
+      return;
+    }
+    if (!sock.isFramed()) {
+      handler.handle(sock);
+      return;
+    }
+    synchronized (keepAlive) {
+      keepAlive.add(sock);
+    }
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!stopped) {
+            sock.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            if (sock.isMultiplexed()) {
+              FramedSocket.Frame frame = sock.receiveFrame();
+              if (frame == null) {
+                break;
+              }
+              handler.handle(new MultiplexedChannel.Stream(sock, frame));
+            } else {
+              if (!sock.nextFrame()) {
+                break;
+              }
+              handler.handle(sock);
+            }
+          }
+        } catch (IOException e) {
+          // Idle timeout, or the client went away
+        } catch (Error e) {
+          // A handler that dies on the accept thread takes the server down
+          // with it; one that dies here must too, not just its connection
+          stopped = true;
+          throw e;
+        } finally {
+          synchronized (keepAlive) {
+            keepAlive.remove(sock);
+          }
+          try {
+            sock.close();
+          } catch (IOException e) {
+            // Best effort
+          }
+        }
+      }
+    }, "SocketServer-keepalive-" + port);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return number of persistent connections currently open
+   */
+  public int getKeepAliveCount() {
+    synchronized (keepAlive) {
+      return keepAlive.size();
+    }
   }
 
   /**
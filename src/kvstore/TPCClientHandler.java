@@ -1,6 +1,7 @@
 package kvstore;
 
 import java.net.Socket;
+import java.util.LinkedHashMap;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
@@ -55,6 +56,28 @@ public class TPCClientHandler implements NetworkHandler {
         case KVConstants.DEL_REQ:
           threadPool.addJob(new TPCJob(request, client));
           break;
+        case KVConstants.SCAN_REQ:
+          threadPool.addJob(new scanJob(request, client));
+          break;
+        case KVConstants.MULTI_GET_REQ:
+        case KVConstants.MULTI_PUT_REQ:
+        case KVConstants.MULTI_DEL_REQ:
+          threadPool.addJob(new multiJob(request, client));
+          break;
+        case KVConstants.CAS_REQ:
+        case KVConstants.INCR_REQ:
+        case KVConstants.APPEND_REQ:
+          threadPool.addJob(new readModifyWriteJob(request, client));
+          break;
+        case KVConstants.STATS_REQ:
+          statsResponse().sendMessage(client);
+          break;
+        case KVConstants.TOPOLOGY_REQ:
+          topologyResponse().sendMessage(client);
+          break;
+        case KVConstants.CHANGES_REQ:
+          tpcMaster.getChangeLog().response(request.getValue()).sendMessage(client);
+          break;
         default:
           throw new KVException(ERROR_INVALID_FORMAT);
       }
@@ -73,6 +96,39 @@ public class TPCClientHandler implements NetworkHandler {
   }
 
 
+  /**
+   * Builds the response to a STATS_REQ from counters that are read without
+   * taking any request lock.
+   */
+  private KVMessage statsResponse() {
+    LinkedHashMap<String, String> stats = new LinkedHashMap<>();
+    tpcMaster.collectStats(stats);
+    threadPool.collectStats("threadpool.", stats);
+    Latencies.collectStats(stats);
+    KVMessage response = new KVMessage(RESP);
+    response.setPairs(stats);
+    return response;
+  }
+
+  /**
+   * Builds the response to a TOPOLOGY_REQ.
+   */
+  private KVMessage topologyResponse() {
+    LinkedHashMap<String, String> slaves = new LinkedHashMap<>();
+    long version = tpcMaster.getTopologyVersion();
+    for (TPCSlaveInfo slave : tpcMaster.getSlaves()) {
+      slaves.put(Long.toString(slave.getSlaveID()), slave.getSlaveID() + "@"
+          + slave.getHostname() + ":" + slave.getPort() + "/" + slave.getWeight());
+    }
+    KVMessage response = new KVMessage(RESP);
+    response.setKey(tpcMaster.getPartitioner().getName() + ":" + tpcMaster.virtualNodes);
+    response.setValue(Long.toString(version));
+    response.setPairs(slaves);
+    // Longest the client may keep it; see TPCMaster.setRouterRefresh
+    response.setTtl(tpcMaster.getRouterRefresh());
+    return response;
+  }
+
   private class getJob implements Runnable {
 
     KVMessage request;
@@ -86,11 +142,7 @@ public class TPCClientHandler implements NetworkHandler {
     @Override
     public void run() {
       try {
-        String value = tpcMaster.handleGet(request);
-        KVMessage response = new KVMessage(RESP);
-        response.setKey(request.getKey());
-        response.setValue(value);
-        response.sendMessage(client);
+        tpcMaster.handleGetResponse(request).sendMessage(client);
       } catch (KVException e1) {
         //System.out.println("CLIENT HANDLER HANDLE GET 1" + e1);
         try {
@@ -130,5 +182,93 @@ public class TPCClientHandler implements NetworkHandler {
       }
     }
   }
-    
+
+  private class scanJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    scanJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      try {
+        tpcMaster.handleScan(request).toMessage().sendMessage(client);
+      } catch (KVException e1) {
+        try {
+          e1.getKVMessage().sendMessage(client);
+        } catch (KVException e2) {
+          System.out.println("CLIENT HANDLER HANDLE SCAN " + e2);
+        }
+      }
+    }
+  }
+
+  private class multiJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    multiJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      try {
+        KVMessage response;
+        if (request.getMsgType().equals(KVConstants.MULTI_GET_REQ)) {
+          response = new KVMessage(RESP);
+          response.setPairs(tpcMaster.handleMultiGet(request));
+        } else {
+          tpcMaster.handleMultiTPCRequest(request);
+          response = new KVMessage(RESP, SUCCESS);
+        }
+        response.sendMessage(client);
+      } catch (KVException e1) {
+        try {
+          e1.getKVMessage().sendMessage(client);
+        } catch (KVException e2) {
+          System.out.println("CLIENT HANDLER HANDLE MULTI " + e2);
+        }
+      }
+    }
+  }
+
+  private class readModifyWriteJob implements Runnable {
+
+    KVMessage request;
+    Socket client;
+
+    readModifyWriteJob(KVMessage request, Socket client) {
+      this.request = request;
+      this.client = client;
+    }
+
+    @Override
+    public void run() {
+      try {
+        String newValue = tpcMaster.handleReadModifyWrite(request);
+        KVMessage response;
+        if (request.getMsgType().equals(KVConstants.INCR_REQ)) {
+          response = new KVMessage(RESP);
+          response.setKey(request.getKey());
+          response.setValue(newValue);
+        } else {
+          response = new KVMessage(RESP, SUCCESS);
+        }
+        response.sendMessage(client);
+      } catch (KVException e1) {
+        try {
+          e1.getKVMessage().sendMessage(client);
+        } catch (KVException e2) {
+          System.out.println("CLIENT HANDLER HANDLE RMW " + e2);
+        }
+      }
+    }
+  }
 }
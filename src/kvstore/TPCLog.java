@@ -8,8 +8,6 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import static kvstore.KVConstants.ABORT;
 import static kvstore.KVConstants.COMMIT;
-import static kvstore.KVConstants.DEL_REQ;
-import static kvstore.KVConstants.PUT_REQ;
 
 public class TPCLog {
 
@@ -42,6 +40,13 @@ public class TPCLog {
     flushToDisk();
   }
 
+  /**
+   * @return number of entries in the log
+   */
+  public int size() {
+    return entries.size();
+  }
+
   /**
    * Get last entry in the log.
    *
@@ -86,6 +91,7 @@ public class TPCLog {
    */
   public void flushToDisk() {
     ObjectOutputStream outputStream = null;
+    long start = System.nanoTime();
 
     try {
       outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
@@ -101,6 +107,7 @@ public class TPCLog {
       } catch (IOException e) {
         e.printStackTrace();
       }
+      Latencies.LOG_FLUSH.recordSince(start);
     }
   }
 
@@ -116,18 +123,12 @@ public class TPCLog {
     KVMessage committedRequest = null;
     for (KVMessage entry : entries) {
       String entryType = entry.getMsgType();
-      if (entryType.equals(DEL_REQ) || entryType.equals(PUT_REQ)) {
+      if (entry.isWrite()) {
         committedRequest = entry;
       } else if (entryType.equals(ABORT)) {
         committedRequest = null;
       } else if (entryType.equals(COMMIT) && committedRequest != null) {
-        String key = committedRequest.getKey();
-        String type = committedRequest.getMsgType();
-        if (type.equals(PUT_REQ)) {
-          kvServer.put(key, committedRequest.getValue());
-        } else if (type.equals(DEL_REQ)) {
-          kvServer.del(key);
-        }
+        kvServer.commit(committedRequest);
         committedRequest = null;
       }
     }
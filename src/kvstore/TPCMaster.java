@@ -1,25 +1,136 @@
 package kvstore;
 
 import java.net.Socket;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
 import static kvstore.KVConstants.ABORT;
 import static kvstore.KVConstants.ACK;
+import static kvstore.KVConstants.CAS_REQ;
 import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
+import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
+import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
 import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
-import static kvstore.KVConstants.ERROR_SLAVE_QUOTA_ALREADY_MET;
+import static kvstore.KVConstants.ERROR_NO_SUCH_SLAVE;
+import static kvstore.KVConstants.ERROR_TOO_FEW_SLAVES;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MULTI_GET_REQ;
+import static kvstore.KVConstants.MULTI_PUT_REQ;
+import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.READY;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 
 public class TPCMaster {
 
   public static final int TIMEOUT = 3000;
   public static final int MIN_SLAVE_NUM = 2;
+  /* Keys moved per second by a migration, unless set otherwise */
+  public static final int DEFAULT_MIGRATION_RATE = 1000;
+  /* Hedges that unused budget can add up to */
+  public static final int HEDGE_BURST = 10;
+  /* Slaves that hold each key, unless set otherwise */
+  public static final int DEFAULT_REPLICATION_FACTOR = 2;
+  /* Longest a client that routes reads itself keeps a topology, unless set
+     otherwise */
+  public static final long DEFAULT_ROUTER_REFRESH_MILLIS = 1000;
+  private static final long HEDGE_COST = 100;
   public final int numSlaves;
   public final KVCache masterCache; 
-  private final TreeMap<Long, TPCSlaveInfo> slaveMap;
+  public final int virtualNodes;
+  private final Partitioner partitioner;
+  /* Registered slaves by ID; updated, waited on and notified under its lock */
+  private final Map<Long, TPCSlaveInfo> slaves = new ConcurrentHashMap<>();
+  /* Rebuilt under the slaves lock whenever a slave joins, read without it */
+  private volatile Partitioner.Placement placement;
+  /* Set once numSlaves slaves have registered; requests wait until then */
+  private volatile boolean ready;
+  /* Placement before the last join or leave while its keys are migrated,
+     otherwise null */
+  private volatile Partitioner.Placement previous;
+  /* Keys moved (true) or written (false) since the migration began; neither
+     is copied again */
+  private volatile Map<String, Boolean> settled = new ConcurrentHashMap<>();
+  /* Slaves still in slaves that have left the placement, being copied from */
+  private final Set<Long> departing = ConcurrentHashMap.newKeySet();
+  /* Keys by the ID of a slave that lost them in a migration but could not
+     be told to delete its copy; deleted again by every later migration */
+  private final Map<Long, Set<String>> staleCopies = new ConcurrentHashMap<>();
+  /* Serializes joins and leaves after the cluster is ready */
+  private final Object membership = new Object();
+  private Thread migration;
+  private volatile int migrationRate = DEFAULT_MIGRATION_RATE;
+  private final AtomicLong migrations = new AtomicLong();
+  private final AtomicLong migrated = new AtomicLong();
+  private final AtomicLong migrationFailures = new AtomicLong();
+  private volatile long routerRefreshMillis = DEFAULT_ROUTER_REFRESH_MILLIS;
+  /* Set under the slaves lock while a join or leave waits for routers to
+     drop the slaves; see fenceRouters */
+  private boolean fenced;
+  /* When getSlaves last handed the slaves out, under the slaves lock */
+  private long routedAt;
+  /* Runs the reads of a hedged get; null while hedged reads are off */
+  private volatile ExecutorService hedgePool;
+  /* Hedges that may be sent, in HEDGE_COST units; each get deposits
+     hedgeDeposit */
+  private final AtomicLong hedgeTokens = new AtomicLong();
+  private volatile long hedgeDeposit;
+  private volatile long hedgeMinDelay;
+  private final AtomicLong hedgesSent = new AtomicLong();
+  private final AtomicLong hedgesWon = new AtomicLong();
+  private final AtomicLong hedgesDenied = new AtomicLong();
+  /* See setReplication; written under the master lock, so no write sees
+     them change midway */
+  private volatile int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+  private volatile int writeQuorum = DEFAULT_REPLICATION_FACTOR;
+  private volatile int readQuorum = 1;
+  /* Runs phase 1 on every replica but the first, and quorum reads */
+  private final ExecutorService replicaPool = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "tpc-replica");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  /* Last version stamped on a write; see nextVersion */
+  private final AtomicLong lastVersion = new AtomicLong();
+  private final AtomicLong staleReads = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+  /* Bumped by every write, under its cache locks, before it changes any
+     value, in the stripe of each key it writes; a read that saw the stripe
+     of its key change does not cache what it read */
+  private static final int WRITE_STRIPES = 1024;
+  private final AtomicLongArray writesBegun = new AtomicLongArray(WRITE_STRIPES);
+  private final AtomicLong aborts = new AtomicLong();
+  private final ChangeLog changes = new ChangeLog(ChangeLog.DEFAULT_CAPACITY);
+  private final AtomicLong topologyVersion = new AtomicLong();
   
   /**
    * Creates TPCMaster, expecting numSlaves slave servers to eventually register
@@ -28,13 +139,42 @@ public class TPCMaster {
    * @param cache     KVCache to cache results on master
    */
   public TPCMaster(int numSlaves, KVCache cache) {
+    this(numSlaves, cache, 1);
+  }
+
+  /**
+   * Creates TPCMaster that places every slave at virtualNodes positions on
+   * the ring per unit of its weight, rather than at its ID alone. The more
+   * positions, the closer each slave's share of the keyspace comes to its
+   * weight; see ringPositions.
+   *
+   * @param numSlaves    number of slave servers expected to register
+   * @param cache        KVCache to cache results on master
+   * @param virtualNodes positions per slave of weight 1
+   */
+  public TPCMaster(int numSlaves, KVCache cache, int virtualNodes) {
+    this(numSlaves, cache, virtualNodes, new RingPartitioner());
+  }
+
+  /**
+   * Creates TPCMaster that places keys with a given Partitioner.
+   *
+   * @param numSlaves    number of slave servers expected to register
+   * @param cache        KVCache to cache results on master
+   * @param virtualNodes positions per slave of weight 1, for partitioners
+   *                     that use them
+   * @param partitioner  Partitioner that places keys on slaves
+   */
+  public TPCMaster(int numSlaves, KVCache cache, int virtualNodes, Partitioner partitioner) {
     // Minimum allowed num of slaves must be 2
     if (numSlaves < MIN_SLAVE_NUM) {
       numSlaves = MIN_SLAVE_NUM;
     }
     this.numSlaves = numSlaves;
     this.masterCache = cache;   
-    slaveMap = new TreeMap<>(new keyComparator()); 
+    this.virtualNodes = Math.max(1, virtualNodes);
+    this.partitioner = partitioner;
+    this.placement = partitioner.place(new ArrayList<TPCSlaveInfo>(), this.virtualNodes);
   }
 
   /**
@@ -81,31 +221,563 @@ public class TPCMaster {
   }
 
   /**
-   * Registers a slave. Drop registration request if numSlaves already
-   * registered. Note that a slave re-registers under the same slaveID when
-   * it comes back online.
+   * Registers a slave. Until numSlaves slaves have registered, each one is
+   * simply added; after that a new slave joins the running cluster: it is
+   * placed at once, and the keys it takes over are copied to it in the
+   * background (see setMigrationRate). A join waits for the migration of an
+   * earlier join or leave to finish, and for clients that route reads
+   * themselves to drop the slaves (see setRouterRefresh). Note that a slave re-registers under
+   * the same slaveID when it comes back online.
    *
    * @param slave the slaveInfo to be registered
    *
-   * @throws kvstore.KVException ERROR_SLAVE_QUOTA_ALREADY_MET if reached slave quota
-   *                             and cannot register a new slave
+   * @throws kvstore.KVException never in practice; kept for callers that
+   *                             handled the former slave quota
    */
   public void registerSlave(TPCSlaveInfo slave) throws KVException {   
-    synchronized (slaveMap) {
+    synchronized (slaves) {
       long slaveID = slave.getSlaveID();
-      if (slaveMap.containsKey(slaveID)) {
-        TPCSlaveInfo slaveInfo = slaveMap.get(slaveID);
+      if (slaves.containsKey(slaveID)) {
+        // Its placement, and so its weight, stays as first registered
+        TPCSlaveInfo slaveInfo = slaves.get(slaveID);
+        if (!slaveInfo.hostname.equals(slave.getHostname()) || slaveInfo.port != slave.getPort()) {
+          topologyVersion.incrementAndGet();
+        }
         slaveInfo.hostname = slave.getHostname();
         slaveInfo.port = slave.getPort();
-      } else if (numSlaves > slaveMap.size()) {
-        slaveMap.put(slaveID, slave);
-        if (numSlaves == slaveMap.size()) {
-          slaveMap.notifyAll();
+        // A slave registers again when it restarts, so its connection is gone
+        slaveInfo.disconnect();
+        return;
+      } else if (!ready) {
+        slaves.put(slaveID, slave);
+        placement = partitioner.place(orderedSlaves(), virtualNodes);
+        topologyVersion.incrementAndGet();
+        if (numSlaves == slaves.size()) {
+          ready = true;
+          slaves.notifyAll();
+        }
+        return;
+      }
+    }
+    synchronized (membership) {
+      awaitMigration();
+      List<TPCSlaveInfo> sources;
+      Partitioner.Placement before;
+      fenceRouters();
+      try {
+        // Holding the master lock keeps writes from straddling the change
+        synchronized (this) {
+          synchronized (slaves) {
+            if (slaves.containsKey(slave.getSlaveID())) {
+              return;
+            }
+            sources = orderedSlaves();
+            before = placement;
+            slaves.put(slave.getSlaveID(), slave);
+            replace(before);
+          }
+        }
+      } finally {
+        unfenceRouters();
+      }
+      startMigration(before, sources);
+    }
+  }
+
+  /**
+   * Removes a slave from the running cluster. The slave leaves the
+   * placement at once, so writes stop going to it, but stays registered
+   * until every key it held has been copied to the slaves that take it
+   * over; this call returns only then, after which the slave can be shut
+   * down. Like a join, a leave first waits for clients that route reads
+   * themselves to drop the slaves.
+   *
+   * @param slaveID ID of the slave to remove
+   *
+   * @throws KVException ERROR_NO_SUCH_SLAVE if the slave is not registered,
+   *                     or ERROR_TOO_FEW_SLAVES if fewer than MIN_SLAVE_NUM
+   *                     would remain
+   */
+  public void removeSlave(long slaveID) throws KVException {
+    synchronized (membership) {
+      awaitMigration();
+      List<TPCSlaveInfo> sources;
+      Partitioner.Placement before;
+      fenceRouters();
+      try {
+        synchronized (this) {
+          synchronized (slaves) {
+            if (!slaves.containsKey(slaveID)) {
+              throw new KVException(ERROR_NO_SUCH_SLAVE);
+            }
+            if (slaves.size() <= MIN_SLAVE_NUM) {
+              throw new KVException(ERROR_TOO_FEW_SLAVES);
+            }
+            sources = orderedSlaves();
+            before = placement;
+            departing.add(slaveID);
+            replace(before);
+          }
+        }
+      } finally {
+        unfenceRouters();
+      }
+      startMigration(before, sources);
+      awaitMigration();
+      TPCSlaveInfo removed;
+      synchronized (slaves) {
+        removed = slaves.remove(slaveID);
+        departing.remove(slaveID);
+      }
+      removed.disconnect();
+    }
+  }
+
+  /**
+   * Stops handing the slaves out to clients that route reads themselves,
+   * and waits until each of them has had to check the topology again since
+   * it was last handed them, routerRefreshMillis later. A router then reads
+   * no replica by the placement about to be replaced once writes go to the
+   * new one. Called with the membership lock held, but not the master lock,
+   * so writes go on meanwhile.
+   */
+  private void fenceRouters() {
+    long wait;
+    synchronized (slaves) {
+      fenced = true;
+      topologyVersion.incrementAndGet();
+      wait = routedAt + routerRefreshMillis - System.currentTimeMillis();
+    }
+    if (wait > 0) {
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void unfenceRouters() {
+    synchronized (slaves) {
+      fenced = false;
+      topologyVersion.incrementAndGet();
+    }
+  }
+
+  /**
+   * Places keys over the slaves now registered, keeping before for reads
+   * of keys that have not been migrated yet. Called with the master and
+   * slaves locks held.
+   */
+  private void replace(Partitioner.Placement before) {
+    settled = new ConcurrentHashMap<>();
+    previous = before;
+    placement = partitioner.place(orderedSlaves(), virtualNodes);
+    topologyVersion.incrementAndGet();
+  }
+
+  /**
+   * Sets how fast a migration copies keys to the slaves that take them
+   * over, so that it does not starve the requests served meanwhile.
+   *
+   * @param keysPerSecond keys moved per second, at least 1
+   */
+  public void setMigrationRate(int keysPerSecond) {
+    migrationRate = Math.max(1, keysPerSecond);
+  }
+
+  /**
+   * Sets the longest a client that routes reads itself may keep a topology
+   * before it checks it again. It is sent with the topology, and a join or
+   * leave waits this long after the slaves were last handed out before it
+   * takes effect.
+   *
+   * @param millis milliseconds, at least 1
+   */
+  public void setRouterRefresh(long millis) {
+    routerRefreshMillis = Math.max(1, millis);
+  }
+
+  /**
+   * @return longest a client that routes reads itself keeps a topology
+   */
+  public long getRouterRefresh() {
+    return routerRefreshMillis;
+  }
+
+  /**
+   * @return true while keys are being migrated after a join or leave
+   */
+  public boolean isMigrating() {
+    return previous != null;
+  }
+
+  /**
+   * Waits for the migration in progress, if any, to finish.
+   */
+  public void awaitMigration() {
+    Thread running;
+    synchronized (membership) {
+      running = migration;
+    }
+    if (running == null) {
+      return;
+    }
+    try {
+      running.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void startMigration(final Partitioner.Placement before,
+                              final List<TPCSlaveInfo> sources) {
+    migrations.incrementAndGet();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          migrate(before, sources);
+        } finally {
+          previous = null;
+          // Clients that route reads themselves see the slaves again
+          topologyVersion.incrementAndGet();
+        }
+      }
+    }, "tpc-migration");
+    thread.setDaemon(true);
+    migration = thread;
+    thread.start();
+  }
+
+  /**
+   * Moves every key whose replicas differ between before and the current
+   * placement. Each source is scanned page by page and every key on it is
+   * looked at; a key is found on both of its replicas, but is moved only
+   * once. Keys are moved at no more than migrationRate per second.
+   */
+  private void migrate(Partitioner.Placement before, List<TPCSlaveInfo> sources) {
+    Partitioner.Placement after = placement;
+    // Before any key is copied, so none is copied onto a stale copy of it
+    dropStaleCopies();
+    long next = System.nanoTime();
+    for (TPCSlaveInfo source : sources) {
+      String cursor = null;
+      do {
+        ScanPage page;
+        try {
+          page = scanSlave(source, cursor);
+        } catch (KVException e) {
+          // Its keys are still found on their other replicas
+          migrationFailures.incrementAndGet();
+          break;
+        }
+        for (String key : page.getPairs().keySet()) {
+          KVKey kvKey = KVKey.of(key);
+          if (!moves(kvKey, before, after)) {
+            continue;
+          }
+          long now = System.nanoTime();
+          if (next > now) {
+            try {
+              Thread.sleep((next - now) / 1000000, (int) ((next - now) % 1000000));
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          next = Math.max(next, now) + 1000000000L / migrationRate;
+          try {
+            // A slave holds one prepared transaction at a time, so a move
+            // must not run its rounds in between those of a write
+            synchronized (this) {
+              moveKey(kvKey, before, after);
+            }
+          } catch (KVException e) {
+            migrationFailures.incrementAndGet();
+          }
+        }
+        cursor = page.getCursor();
+      } while (cursor != null);
+    }
+    dropStaleCopies();
+  }
+
+  private ScanPage scanSlave(TPCSlaveInfo slave, String cursor) throws KVException {
+    KVMessage request = new KVMessage(SCAN_REQ);
+    request.setKey(cursor);
+    request.setLimit(KVConstants.MAX_SCAN_LIMIT);
+    Socket socket = null;
+    try {
+      socket = slave.connectHost(TIMEOUT);
+      request.sendMessage(socket);
+      KVMessage response = new KVMessage(socket, TIMEOUT);
+      if (response.getMessage() != null) {
+        throw new KVException(response.getMessage());
+      }
+      return ScanPage.fromMessage(response);
+    } finally {
+      slave.closeHost(socket);
+    }
+  }
+
+  private TPCSlaveInfo[] replicas(Partitioner.Placement placement, KVKey key) {
+    return placement.findReplicas(placement.findFirstReplica(key.hash64()), replicationFactor);
+  }
+
+  /**
+   * @return slaves in some that are not in others
+   */
+  private static List<TPCSlaveInfo> missingFrom(TPCSlaveInfo[] some, TPCSlaveInfo[] others) {
+    List<TPCSlaveInfo> missing = new ArrayList<>();
+    for (TPCSlaveInfo slave : some) {
+      boolean found = false;
+      for (TPCSlaveInfo other : others) {
+        found |= other.getSlaveID() == slave.getSlaveID();
+      }
+      if (!found && !missing.contains(slave)) {
+        missing.add(slave);
+      }
+    }
+    return missing;
+  }
+
+  private boolean moves(KVKey key, Partitioner.Placement before,
+                        Partitioner.Placement after) {
+    TPCSlaveInfo[] from = replicas(before, key);
+    TPCSlaveInfo[] to = replicas(after, key);
+    return !missingFrom(to, from).isEmpty() || !missingFrom(from, to).isEmpty();
+  }
+
+  /**
+   * Copies a key to the replicas that gain it, with its time to live and
+   * version, then deletes it from those that lose it. Called with the
+   * master lock held, and holds the cache lock of the key throughout, like
+   * writes do, so a write is never overwritten by an older copy: a key
+   * written since the migration began is already on its new replicas and
+   * is only deleted from the old ones.
+   */
+  private void moveKey(KVKey key, Partitioner.Placement before, Partitioner.Placement after)
+          throws KVException {
+    TPCSlaveInfo[] from = replicas(before, key);
+    TPCSlaveInfo[] to = replicas(after, key);
+    Lock lock = masterCache.getLock(key);
+    Latencies.CACHE_LOCK_WAIT.lock(lock);
+    try {
+      Boolean state = settled.get(key.toString());
+      if (Boolean.TRUE.equals(state)) {
+        return;
+      }
+      List<TPCSlaveInfo> gaining = missingFrom(to, from);
+      if (state == null && !gaining.isEmpty()) {
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey(key.toString());
+        KVMessage found = read(get, from);
+        if (found != null) {
+          KVMessage put = new KVMessage(PUT_REQ);
+          put.setKey(key.toString());
+          put.setValue(found.getValue());
+          put.setTtl(found.getTtl());
+          put.setVersion(found.getVersion());
+          replicate(put, gaining);
+        }
+      }
+      settled.put(key.toString(), Boolean.TRUE);
+      migrated.incrementAndGet();
+      for (TPCSlaveInfo losing : missingFrom(from, to)) {
+        dropCopy(losing, key.toString());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the copy of a key held by a slave that is no longer one of its
+   * replicas. If the slave cannot be told, the copy is remembered in
+   * staleCopies for the next migration to delete: until then scans would
+   * return it, and the slave would serve it again if it took the key back
+   * after the key was deleted. Called with the master lock held.
+   */
+  private void dropCopy(TPCSlaveInfo slave, String key) {
+    KVMessage del = new KVMessage(DEL_REQ);
+    del.setKey(key);
+    try {
+      replicate(del, Collections.singletonList(slave));
+    } catch (KVException e) {
+      if (!ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage())) {
+        Set<String> stale = staleCopies.get(slave.getSlaveID());
+        if (stale == null) {
+          stale = ConcurrentHashMap.newKeySet();
+          Set<String> raced = staleCopies.putIfAbsent(slave.getSlaveID(), stale);
+          stale = raced == null ? stale : raced;
         }
-      } else {
-        throw new KVException(ERROR_SLAVE_QUOTA_ALREADY_MET);
+        stale.add(key);
+        return;
       }
-    }   
+    }
+    Set<String> stale = staleCopies.get(slave.getSlaveID());
+    if (stale != null) {
+      stale.remove(key);
+    }
+  }
+
+  /**
+   * Tries again to delete the copies in staleCopies. A copy on a slave that
+   * holds the key again is left be if the key has been written or moved to
+   * it since the migration began, since it is then up to date; otherwise
+   * it is stale either way, and a migration copies the key back if it still
+   * exists. Copies on slaves that have left are forgotten.
+   */
+  private void dropStaleCopies() {
+    for (Map.Entry<Long, Set<String>> entry : staleCopies.entrySet()) {
+      TPCSlaveInfo slave = slaves.get(entry.getKey());
+      if (slave == null) {
+        staleCopies.remove(entry.getKey());
+        continue;
+      }
+      for (String key : new ArrayList<>(entry.getValue())) {
+        KVKey kvKey = KVKey.of(key);
+        synchronized (this) {
+          Lock lock = masterCache.getLock(kvKey);
+          Latencies.CACHE_LOCK_WAIT.lock(lock);
+          try {
+            if (settled.containsKey(key) && holds(replicas(placement, kvKey), slave)) {
+              entry.getValue().remove(key);
+            } else {
+              dropCopy(slave, key);
+            }
+          } finally {
+            lock.unlock();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if slave is one of replicas
+   */
+  private static boolean holds(TPCSlaveInfo[] replicas, TPCSlaveInfo slave) {
+    for (TPCSlaveInfo replica : replicas) {
+      if (replica.getSlaveID() == slave.getSlaveID()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs a transaction on the given slaves alone. A slave that cannot be
+   * reached at all never prepared, so it is not sent the decision.
+   */
+  private void replicate(KVMessage request, List<TPCSlaveInfo> targets) throws KVException {
+    KVException failed = null;
+    List<TPCSlaveInfo> reached = new ArrayList<>();
+    for (TPCSlaveInfo target : targets) {
+      try {
+        if (!phase1(target, request).equals(READY)) {
+          failed = new KVException(ERROR_INVALID_FORMAT);
+        }
+        reached.add(target);
+      } catch (KVException e) {
+        if (delivered(e)) {
+          reached.add(target);
+        }
+        failed = e;
+      }
+    }
+    KVMessage decision = new KVMessage(failed == null ? COMMIT : ABORT);
+    for (TPCSlaveInfo target : reached) {
+      phase2(target.getSlaveID(), decision);
+    }
+    if (failed != null) {
+      throw failed;
+    }
+  }
+
+  /**
+   * @return false if a request failed with e before the slave got it, in
+   *         which case the slave has nothing to be told about it
+   */
+  private static boolean delivered(KVException e) {
+    String reason = e.getKVMessage().getMessage();
+    return !ERROR_COULD_NOT_CONNECT.equals(reason)
+        && !ERROR_COULD_NOT_CREATE_SOCKET.equals(reason);
+  }
+
+  /**
+   * Moves a key ahead of the migration in progress, if it has yet to be
+   * moved, so that a write finds it on its new replicas: a delete or CAS
+   * depends on the value already there. Called by writers, which hold the
+   * master lock and the cache lock of the key.
+   */
+  private void moveNow(KVKey key) throws KVException {
+    Partitioner.Placement before = previous;
+    if (before != null && !settled.containsKey(key.toString())
+        && moves(key, before, placement)) {
+      moveKey(key, before, placement);
+    }
+  }
+
+  /**
+   * Records that a key has been written under the current placement, so
+   * that a migration in progress leaves it be. Called with the cache lock
+   * of the key held.
+   */
+  private void settle(String key) {
+    if (previous != null) {
+      settled.putIfAbsent(key, Boolean.FALSE);
+    }
+  }
+
+  /**
+   * Positions of a slave on the ring. The first is its ID, so with one
+   * position per slave the ring is the same as without virtual nodes; the
+   * rest are spread pseudo-randomly by the SplitMix64 finalizer, which
+   * depends only on the ID and the index, so every master computes the
+   * same ring.
+   *
+   * @param slaveID   ID of the slave
+   * @param positions number of positions
+   *
+   * @return positions of the slave
+   */
+  public static long[] ringPositions(long slaveID, int positions) {
+    long[] ring = new long[Math.max(1, positions)];
+    ring[0] = slaveID;
+    for (int i = 1; i < ring.length; i++) {
+      ring[i] = mix64(slaveID + i * 0x9E3779B97F4A7C15L);
+    }
+    return ring;
+  }
+
+  /**
+   * Scrambles the bits of a long with the SplitMix64 finalizer, so that
+   * inputs that differ in one bit give unrelated outputs.
+   *
+   * @param z long to scramble
+   *
+   * @return scrambled long
+   */
+  public static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * @return registered slaves that have not begun to leave, in unsigned
+   *         order of their IDs
+   */
+  private List<TPCSlaveInfo> orderedSlaves() {
+    List<TPCSlaveInfo> ordered = new ArrayList<>();
+    for (TPCSlaveInfo slave : slaves.values()) {
+      if (!departing.contains(slave.getSlaveID())) {
+        ordered.add(slave);
+      }
+    }
+    ordered.sort((a, b) -> Long.compareUnsigned(a.getSlaveID(), b.getSlaveID()));
+    return ordered;
   }
 
   /**
@@ -115,15 +787,23 @@ public class TPCMaster {
    *
    * @return SlaveInfo of first replica
    */
-  public TPCSlaveInfo findFirstReplica(String key) {  
-    long slaveID = hashTo64bit(key);
-    synchronized (slaveMap) {
-      Map.Entry entry = slaveMap.ceilingEntry(slaveID);
-      if (entry == null) {
-        return slaveMap.firstEntry().getValue();
-      }
-      return (TPCSlaveInfo) entry.getValue();
-    }   
+  public TPCSlaveInfo findFirstReplica(String key) {
+    return findFirstReplica(hashTo64bit(key));
+  }
+
+  /**
+   * Find primary replica for a given key, using its precomputed hash.
+   *
+   * @param key KVKey to map to a slave server replica
+   *
+   * @return SlaveInfo of first replica
+   */
+  public TPCSlaveInfo findFirstReplica(KVKey key) {
+    return findFirstReplica(key.hash64());
+  }
+
+  private TPCSlaveInfo findFirstReplica(long hash) {
+    return placement.findFirstReplica(hash);
   }
 
   /**
@@ -134,23 +814,103 @@ public class TPCMaster {
    * @return SlaveInfo of successor replica
    */
   public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {   
-    long slaveID = firstReplica.slaveID;
-    synchronized (slaveMap) {
-      Map.Entry entry = slaveMap.higherEntry(slaveID);
-      if (entry == null) {
-        return slaveMap.firstEntry().getValue();
+    return placement.findSuccessor(firstReplica);
+  }
+
+  /**
+   * Find every replica of a given key.
+   *
+   * @param key String to map to slave server replicas
+   *
+   * @return SlaveInfo of each replica, first replica first
+   */
+  public TPCSlaveInfo[] findReplicas(String key) {
+    // The placement shares the array with every lookup
+    return replicas(placement, KVKey.of(key)).clone();
+  }
+
+  /**
+   * Sets how many slaves hold each key, and how many of them a request
+   * needs. A write commits once writeQuorum of the replicas of its keys have
+   * voted READY, so up to replicationFactor - writeQuorum of them may be
+   * down or refuse; a get asks readQuorum replicas and returns the value
+   * with the highest version among them. With readQuorum + writeQuorum
+   * greater than replicationFactor, every get sees the last committed
+   * write. The default, two replicas that must both be ready and a get
+   * from either, is what the master did before these were configurable.
+   *
+   * Keys already written are not copied when the replication factor
+   * grows, so set it before any are.
+   *
+   * @param replicationFactor slaves that hold each key, or every slave if
+   *                          there are fewer
+   * @param writeQuorum       READY votes a write needs, between 1 and
+   *                          replicationFactor
+   * @param readQuorum        replicas a get reads from, between 1 and
+   *                          replicationFactor
+   */
+  public synchronized void setReplication(int replicationFactor, int writeQuorum,
+                                          int readQuorum) {
+    this.replicationFactor = Math.max(1, replicationFactor);
+    this.writeQuorum = Math.min(this.replicationFactor, Math.max(1, writeQuorum));
+    this.readQuorum = Math.min(this.replicationFactor, Math.max(1, readQuorum));
+  }
+
+  /**
+   * @return slaves that hold each key
+   */
+  public int getReplicationFactor() {
+    return replicationFactor;
+  }
+
+  /**
+   * @return the Partitioner that places keys on slaves
+   */
+  public Partitioner getPartitioner() {
+    return partitioner;
+  }
+
+  /**
+   * @return the placement in use; it does not change when slaves join
+   */
+  public Partitioner.Placement getPlacement() {
+    return placement;
+  }
+
+  /**
+   * Get the slaves as clients that route reads themselves see them, for a
+   * TOPOLOGY_REQ. Until every expected slave has registered, and while keys
+   * are migrated after a join or leave, the list is empty: a key may not be
+   * on the replicas the placement gives for it yet. So it is from the start
+   * of a join or leave, while it waits for routers to drop the slaves (see
+   * setRouterRefresh). It is empty as well while a get needs more than one
+   * replica, which such clients do not ask.
+   *
+   * @return registered slaves, in unsigned order of their IDs
+   */
+  public List<TPCSlaveInfo> getSlaves() {
+    synchronized (slaves) {
+      if (!ready || fenced || previous != null || readQuorum > 1) {
+        return new ArrayList<>();
       }
-      return (TPCSlaveInfo) entry.getValue();
-    }  
+      routedAt = System.currentTimeMillis();
+      return orderedSlaves();
+    }
+  }
+
+  /**
+   * @return number that changes whenever a slave joins or leaves, a
+   *         migration ends, or a slave moves to another host or port
+   */
+  public long getTopologyVersion() {
+    return topologyVersion.get();
   }
 
   /**
    * @return The number of slaves currently registered.
    */
   public int getNumRegisteredSlaves() {   
-    synchronized (slaveMap) {
-      return slaveMap.size();
-    } 
+    return slaves.size();
   }
  
   /**
@@ -173,12 +933,52 @@ public class TPCMaster {
    */
   public TPCSlaveInfo getSlave(long slaveId) {
   
-    synchronized (slaveMap) {
-      return slaveMap.get(slaveId);
-    }   
+    return slaves.get(slaveId);   
   }
 
   
+  /**
+   * Adds the counters of this master to stats: its cache, its slaves and
+   * the outcome of its transactions. No lock is taken.
+   *
+   * @param stats map to add the counters to
+   */
+  public void collectStats(Map<String, String> stats) {
+    masterCache.collectStats("cache.", stats);
+    stats.put("master.slaves", Integer.toString(slaves.size()));
+    stats.put("master.partitioner", partitioner.getName());
+    for (TPCSlaveInfo slave : slaves.values()) {
+      String prefix = "slave." + slave.getSlaveID() + ".";
+      stats.put(prefix + "requests", Long.toString(slave.getRequestCount()));
+      stats.put(prefix + "connections", Long.toString(slave.getConnectionCount()));
+      stats.put(prefix + "outstandingReads", Integer.toString(slave.getOutstandingReads()));
+      stats.put(prefix + "readLatency", Long.toString((long) slave.getReadLatency()));
+      stats.put(prefix + "hedgeDelay", Long.toString(slave.getHedgeDelay()));
+    }
+    stats.put("tpc.commits", Long.toString(commits.get()));
+    stats.put("tpc.aborts", Long.toString(aborts.get()));
+    stats.put("master.changes", Long.toString(changes.getSequence()));
+    stats.put("migration.count", Long.toString(migrations.get()));
+    stats.put("migration.active", isMigrating() ? "1" : "0");
+    stats.put("migration.keys", Long.toString(migrated.get()));
+    stats.put("migration.failures", Long.toString(migrationFailures.get()));
+    stats.put("hedge.sent", Long.toString(hedgesSent.get()));
+    stats.put("hedge.won", Long.toString(hedgesWon.get()));
+    stats.put("hedge.denied", Long.toString(hedgesDenied.get()));
+    stats.put("quorum.replicas", Integer.toString(replicationFactor));
+    stats.put("quorum.write", Integer.toString(writeQuorum));
+    stats.put("quorum.read", Integer.toString(readQuorum));
+    stats.put("quorum.stale", Long.toString(staleReads.get()));
+  }
+
+  /**
+   * @return log of the keys written through this master, recorded once
+   *         their transactions have committed
+   */
+  public ChangeLog getChangeLog() {
+    return changes;
+  }
+
   /**
    * Performs phase1 for the given slave replica
    *
@@ -189,6 +989,7 @@ public class TPCMaster {
    */
   private String phase1(TPCSlaveInfo slave, KVMessage request) throws KVException {
     Socket slaveSocket = null;
+    long start = System.nanoTime();
     try {
       slaveSocket = slave.connectHost(TIMEOUT);
       request.sendMessage(slaveSocket);
@@ -200,6 +1001,7 @@ public class TPCMaster {
       return vote;
     } finally {
       slave.closeHost(slaveSocket);
+      Latencies.PHASE1.recordSince(start);
     }
   }
 
@@ -214,8 +1016,9 @@ public class TPCMaster {
     do {
       TPCSlaveInfo slave = null;
       Socket slaveSocket = null;
+      long start = System.nanoTime();
       try {
-        slave = slaveMap.get(slaveID);
+        slave = slaves.get(slaveID);
         slaveSocket = slave.connectHost(TIMEOUT);
         decision.sendMessage(slaveSocket);      
         String msgType = new KVMessage(slaveSocket, TIMEOUT).getMsgType();
@@ -228,6 +1031,7 @@ public class TPCMaster {
         //System.out.println("MASTER Phase2     " + e);
       } finally {
         slave.closeHost(slaveSocket);
+        Latencies.PHASE2.recordSince(start);
       }
     } while (true);
     throw new KVException(ERROR_INVALID_FORMAT);
@@ -249,70 +1053,330 @@ public class TPCMaster {
           throws KVException {
     waitForExpectedSlaves();
 
-    // Phase 1
-    String key = request.getKey();
-    KVException operationFailed = null;
-    boolean commit = false;
+    KVKey key = request.getKVKey();
+    Lock lock = masterCache.getLock(key);
+    Latencies.CACHE_LOCK_WAIT.lock(lock);
     try {
+      writeBegins(key);
+      moveNow(key);
+      request.setVersion(nextVersion());
 
-      masterCache.getLock(key).lock();
-
-      TPCSlaveInfo primarySlave = findFirstReplica(key);
-      TPCSlaveInfo secondarySlave = findSuccessor(primarySlave);
-
-      String primaryResponse = "";
-      String secondaryResponse = "";
-      try {
-        primaryResponse = phase1(primarySlave, request);
-      } catch (KVException e) {
-       // System.out.println("Primary PHASE 1 FAILURE   " + e);
-        operationFailed = e;
-      }
-      try {
-        secondaryResponse = phase1(secondarySlave, request);
-      } catch (KVException e) {
-       // System.out.println("Secondary PHASE 1 FAILURE   " + e);
-        operationFailed = e;
-      }
-
-      if (primaryResponse.equals(READY) && secondaryResponse.equals(READY)) {
-        commit = true;
-      }
+      // Phase 1
+      Votes votes = prepare(request, replicas(placement, key));
+      KVException operationFailed = votes.getFailure();
 
-      // Phase 2
-      KVMessage decision;
-      if (commit) {
-        decision = new KVMessage(COMMIT);
-        // Update masterCache
-        if (isPutReq == true) {
-          masterCache.put(key, request.getValue());
+      // Update masterCache
+      if (operationFailed == null) {
+        if (isPutReq) {
+          masterCache.put(key, request.getValue(), expiryOf(request));
         } else {
           masterCache.del(key);
         }
-      } else {
-        decision = new KVMessage(ABORT);
       }
-      // If will receive anything other than ACK
-      // then propagate KVException to client      
-      phase2(primarySlave.getSlaveID(), decision);
-      phase2(secondarySlave.getSlaveID(), decision);
 
+      // Phase 2
+      decide(votes);
+      if (operationFailed != null) {
+        throw operationFailed;
+      }
+      settle(key.toString());
+      changes.record(key.toString());
     } finally {
-      masterCache.getLock(key).unlock();
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Perform a MULTI_PUT_REQ or MULTI_DEL_REQ. The pairs are grouped by the
+   * replicas that hold them and each group is sent as one batch through its
+   * own prepare and commit round, so the batch costs one 2PC round per
+   * replica set rather than one per key. Each group commits or
+   * aborts as a whole; groups are independent of one another, and every
+   * group is attempted even if an earlier one aborts.
+   *
+   * @param request MULTI_PUT_REQ or MULTI_DEL_REQ KVMessage
+   *
+   * @throws KVException the failure of the first group that aborted, if any
+   */
+  public synchronized void handleMultiTPCRequest(KVMessage request) throws KVException {
+    waitForExpectedSlaves();
+
+    boolean isPutReq = request.getMsgType().equals(MULTI_PUT_REQ);
+    Map<TPCSlaveInfo, LinkedHashMap<String, String>> groups = groupByPrimary(request.getPairs(), placement);
+    List<Lock> locks = masterCache.getLocks(request.getKVKeys());
+    lockAll(locks);
+    KVException operationFailed = null;
+    try {
+      for (KVKey key : request.getKVKeys()) {
+        writeBegins(key);
+        moveNow(key);
+      }
+      long version = nextVersion();
+      for (Map.Entry<TPCSlaveInfo, LinkedHashMap<String, String>> group : groups.entrySet()) {
+        KVMessage groupRequest = new KVMessage(request.getMsgType());
+        groupRequest.setPairs(group.getValue());
+        groupRequest.setTtl(request.getTtl());
+        groupRequest.setVersion(version);
+
+        Votes votes = prepare(groupRequest,
+            placement.findReplicas(group.getKey(), replicationFactor));
+        KVException groupFailed = votes.getFailure();
+        if (groupFailed == null) {
+          long expiresAt = expiryOf(request);
+          for (Map.Entry<String, String> pair : group.getValue().entrySet()) {
+            if (isPutReq) {
+              masterCache.put(KVKey.of(pair.getKey()), pair.getValue(), expiresAt);
+            } else {
+              masterCache.del(KVKey.of(pair.getKey()));
+            }
+          }
+        } else if (operationFailed == null) {
+          operationFailed = groupFailed;
+        }
+        decide(votes);
+        if (groupFailed == null) {
+          for (String committed : group.getValue().keySet()) {
+            settle(committed);
+            changes.record(committed);
+          }
+        }
+      }
+    } finally {
+      unlockAll(locks);
+    }
+    if (operationFailed != null) {
+      throw operationFailed;
+    }
+  }
+
+  /**
+   * Perform a CAS_REQ, INCR_REQ or APPEND_REQ as one transaction. INCR and
+   * APPEND are evaluated here against the current value and replicated as a
+   * CAS from that value to the result, so every replica votes on the same
+   * precondition and applies the same value; a CAS is replicated as is. The
+   * master cache entry for the key is dropped, since the master does not
+   * know what time to live the slaves carry over.
+   *
+   * @param request CAS_REQ, INCR_REQ or APPEND_REQ KVMessage
+   *
+   * @return the new value of the key
+   *
+   * @throws KVException if the operation does not apply to the current
+   *                     value or the transaction aborts
+   */
+  public synchronized String handleReadModifyWrite(KVMessage request) throws KVException {
+    waitForExpectedSlaves();
+
+    KVKey key = request.getKVKey();
+    Lock lock = masterCache.getLock(key);
+    Latencies.CACHE_LOCK_WAIT.lock(lock);
+    try {
+      writeBegins(key);
+      moveNow(key);
+      KVMessage transaction = request;
+      String newValue = request.getValue();
+      if (!request.getMsgType().equals(CAS_REQ)) {
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey(request.getKey());
+        String current = null;
+        try {
+          current = handleGet(get);
+        } catch (KVException e) {
+          // Missing key; a slave that does have it will vote to abort
+        }
+        newValue = ReadModifyWrite.apply(request, current);
+        transaction = ReadModifyWrite.toCas(request, current, newValue);
+      }
+
+      transaction.setVersion(nextVersion());
+      Votes votes = prepare(transaction, replicas(placement, key));
+      KVException operationFailed = votes.getFailure();
+      masterCache.del(key);
+      decide(votes);
       if (operationFailed != null) {
         throw operationFailed;
       }
+      settle(key.toString());
+      changes.record(key.toString());
+      return newValue;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stamps a write with a version greater than that of any write before it:
+   * the time in microseconds, or one more than the last version if the
+   * clock has not moved on or went back. Versions stay comparable across
+   * restarts of the master as long as its clock does.
+   */
+  private long nextVersion() {
+    long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    return lastVersion.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+  }
+
+  /**
+   * How the replicas of a transaction voted in phase 1.
+   */
+  private static final class Votes {
+
+    /* READY votes the transaction needs to commit */
+    private final int quorum;
+    /* Replicas that voted READY */
+    private final List<TPCSlaveInfo> ready = new ArrayList<>();
+    /* Replicas that got the request, and so must be told the decision */
+    private final List<TPCSlaveInfo> reached = new ArrayList<>();
+    private KVException failure;
+
+    Votes(int quorum) {
+      this.quorum = quorum;
+    }
+
+    void count(TPCSlaveInfo replica, KVException failed) {
+      if (failed == null) {
+        ready.add(replica);
+        reached.add(replica);
+        return;
+      }
+      if (delivered(failed)) {
+        reached.add(replica);
+      }
+      failure = failed;
+    }
+
+    boolean isCommitted() {
+      return ready.size() >= quorum;
+    }
+
+    /**
+     * @return null if enough replicas voted READY, otherwise the reason the
+     *         last replica that did not gave
+     */
+    KVException getFailure() {
+      if (isCommitted()) {
+        return null;
+      }
+      return failure != null ? failure : new KVException(ERROR_INVALID_FORMAT);
+    }
+  }
+
+  /**
+   * Runs phase 1 of a transaction on all of its replicas at once, and waits
+   * for every vote, or for its timeout, before the decision is sent: a
+   * slave holds one prepared transaction at a time, so none can be asked
+   * to prepare the next while a vote on this one is outstanding.
+   *
+   * @param replicas replicas of the keys of the transaction
+   *
+   * @return the votes, which commit the transaction if writeQuorum replicas,
+   *         or all of them if there are fewer, voted READY
+   */
+  private Votes prepare(final KVMessage request, TPCSlaveInfo[] replicas) {
+    List<Future<KVException>> others = new ArrayList<>();
+    for (int i = 1; i < replicas.length; i++) {
+      final TPCSlaveInfo replica = replicas[i];
+      others.add(replicaPool.submit(() -> vote(replica, request)));
+    }
+    Votes votes = new Votes(Math.min(writeQuorum, replicas.length));
+    votes.count(replicas[0], vote(replicas[0], request));
+    for (int i = 1; i < replicas.length; i++) {
+      KVException failed;
+      try {
+        failed = others.get(i - 1).get();
+      } catch (InterruptedException | ExecutionException e) {
+        // Never prepared as far as the master can tell; it still gets the
+        // decision in case it did
+        failed = new KVException(ERROR_INVALID_FORMAT);
+      }
+      votes.count(replicas[i], failed);
+    }
+    return votes;
+  }
+
+  /**
+   * @return null if slave voted READY, otherwise why it did not
+   */
+  private KVException vote(TPCSlaveInfo slave, KVMessage request) {
+    try {
+      return phase1(slave, request).equals(READY) ? null : new KVException(ERROR_INVALID_FORMAT);
+    } catch (KVException e) {
+      return e;
+    }
+  }
+
+  /**
+   * Runs phase 2 of a transaction: COMMIT to the replicas that voted READY
+   * if enough did, ABORT to every other replica that got the request.
+   *
+   * @throws KVException if a replica answers with anything other than ACK
+   */
+  private void decide(Votes votes) throws KVException {
+    boolean commit = votes.isCommitted();
+    (commit ? commits : aborts).incrementAndGet();
+    KVMessage abort = new KVMessage(ABORT);
+    KVMessage decision = commit ? new KVMessage(COMMIT) : abort;
+    for (TPCSlaveInfo replica : votes.reached) {
+      phase2(replica.getSlaveID(), votes.ready.contains(replica) ? decision : abort);
+    }
+  }
+
+  /**
+   * Splits pairs by the primary replica of their keys under placement,
+   * keeping their order within each group.
+   */
+  private Map<TPCSlaveInfo, LinkedHashMap<String, String>> groupByPrimary(
+          Map<String, String> pairs, Partitioner.Placement placement) {
+    Map<TPCSlaveInfo, LinkedHashMap<String, String>> groups = new LinkedHashMap<>();
+    for (Map.Entry<String, String> pair : pairs.entrySet()) {
+      TPCSlaveInfo primary = placement.findFirstReplica(KVKey.of(pair.getKey()).hash64());
+      LinkedHashMap<String, String> group = groups.get(primary);
+      if (group == null) {
+        group = new LinkedHashMap<>();
+        groups.put(primary, group);
+      }
+      group.put(pair.getKey(), pair.getValue());
+    }
+    return groups;
+  }
+
+  /**
+   * Marks a write of key as begun. Called under the cache lock of key.
+   */
+  private void writeBegins(KVKey key) {
+    writesBegun.incrementAndGet(writeStripe(key));
+  }
+
+  private static int writeStripe(KVKey key) {
+    return key.hashCode() & (WRITE_STRIPES - 1);
+  }
+
+  private static void lockAll(List<Lock> locks) {
+    for (Lock lock : locks) {
+      Latencies.CACHE_LOCK_WAIT.lock(lock);
+    }
+  }
+
+  private static void unlockAll(List<Lock> locks) {
+    for (int i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
     }
   }
 
   /**
    * Perform GET operation in the following manner:
    * - Try to GET from cache, return immediately if found
-   * - Try to GET from first/primary replica
-   * - If primary succeeded, return value
-   * - If primary failed, try to GET from the other replica
-   * - If secondary succeeded, return value
-   * - If secondary failed, return KVExceptions from both replicas
+   * - Try to GET from the less loaded replica
+   * - If it succeeded, return value
+   * - If it failed, try to GET from the other replicas in turn
+   * - If one succeeded, return value
+   * - If all failed, return KVExceptions from the replicas
+   * If more than one replica has to be read, a quorum is read at once
+   * instead and the newest value returned; see quorumFetch.
+   * The replicas are tried in order of load rather than primary first, and
+   * without holding the cache lock; the value read is cached only if no
+   * write of a key in its stripe of writesBegun has begun meanwhile. While keys are migrated after a join or
+   * leave, a key not written or moved since is also looked for on the
+   * replicas it had before.
    *
    * @param msg KVMessage containing key to get
    *
@@ -322,77 +1386,634 @@ public class TPCMaster {
    *                     the value from either slave for any reason
    */
   public String handleGet(KVMessage msg) throws KVException {
+    return handleGetResponse(msg).getValue();
+  }
+
+  /**
+   * Perform GET operation as handleGet does.
+   *
+   * @param msg KVMessage containing key to get
+   *
+   * @return RESP carrying the key, its value and, if the value expires, the
+   *         time it has left, so that a client can cache it no longer
+   *
+   * @throws KVException with ERROR_NO_SUCH_KEY if unable to get
+   *                     the value from either slave for any reason
+   */
+  public KVMessage handleGetResponse(KVMessage msg) throws KVException {
     waitForExpectedSlaves();
 
-    String key = msg.getKey();
+    KVKey key = msg.getKVKey();
+    Lock lock = masterCache.getLock(key);
+    long writes;
+    Latencies.CACHE_LOCK_WAIT.lock(lock);
     try {
-      masterCache.getLock(key).lock();
-
       String cacheValue = masterCache.get(key);
       if (cacheValue != null) {
-        return cacheValue;
+        long expiresAt = masterCache.getExpiry(key);
+        return getResponse(key, cacheValue,
+            expiresAt > 0 ? Math.max(1, expiresAt - System.currentTimeMillis()) : 0);
+      }
+      writes = writesBegun.get(writeStripe(key));
+    } finally {
+      lock.unlock();
+    }
+
+    // The slaves are read without the lock, so that misses on keys sharing
+    // a cache set go to their replicas side by side
+    KVMessage response = lookup(msg, key);
+    if (response == null) {
+      throw KVException.NO_SUCH_KEY;
+    }
+    Latencies.CACHE_LOCK_WAIT.lock(lock);
+    try {
+      // A write since the cache was checked may have changed the value
+      if (writesBegun.get(writeStripe(key)) == writes) {
+        masterCache.put(key, response.getValue(), expiryOf(response));
+      }
+    } finally {
+      lock.unlock();
+    }
+    return getResponse(key, response.getValue(), response.getTtlMillis());
+  }
+
+  private static KVMessage getResponse(KVKey key, String value, long ttl) {
+    KVMessage response = new KVMessage(RESP);
+    response.setKey(key.toString());
+    response.setValue(value);
+    if (ttl > 0) {
+      response.setTtl(ttl);
+    }
+    return response;
+  }
+
+  /**
+   * Reads a key from its replicas under the placement in use, and while
+   * keys are migrated, from those it had before if it has not been written
+   * or moved since.
+   *
+   * @return the response carrying the value, or null if none had it
+   *
+   * @throws KVException if interrupted while waiting for replicas
+   */
+  private KVMessage lookup(KVMessage msg, KVKey key) throws KVException {
+    KVMessage response = read(msg, replicas(placement, key));
+    Partitioner.Placement before = previous;
+    if (response == null && before != null && !settled.containsKey(key.toString())) {
+      response = read(msg, replicas(before, key));
+      if (response == null) {
+        // Moved to its new replicas since they were asked
+        response = read(msg, replicas(placement, key));
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Reads a key from readQuorum of slaves, or from the first that has it
+   * if one is enough.
+   *
+   * @return the response carrying the value, or null if none had it
+   *
+   * @throws KVException if interrupted while waiting for replicas
+   */
+  private KVMessage read(KVMessage msg, TPCSlaveInfo[] slaves) throws KVException {
+    int quorum = Math.min(readQuorum, slaves.length);
+    return quorum > 1 ? quorumFetch(msg, slaves, quorum) : hedgedFetch(msg, slaves);
+  }
+
+  /**
+   * Sends a GET_REQ to each of ordered in turn, from index from on, until
+   * one has the key. Replicas are ordered the least loaded first by
+   * TPCSlaveInfo.byReadCost.
+   */
+  private static KVMessage fetchInOrder(KVMessage msg, TPCSlaveInfo[] ordered, int from) {
+    for (int i = from; i < ordered.length; i++) {
+      KVMessage response = fetchFrom(msg, ordered[i]);
+      if (response != null) {
+        return response;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sends a GET_REQ to one slave.
+   *
+   * @return the response carrying the value, or null if the slave did not
+   *         have the key or could not be reached
+   */
+  private static KVMessage fetchFrom(KVMessage msg, TPCSlaveInfo slave) {
+    KVMessage response = ask(msg, slave);
+    return response != null && response.getMessage() == null
+        && response.getValue() != null ? response : null;
+  }
+
+  /**
+   * Sends a GET_REQ to one slave.
+   *
+   * @return its response, with or without a value, or null if the slave
+   *         could not be reached or did not answer like a slave
+   */
+  private static KVMessage ask(KVMessage msg, TPCSlaveInfo slave) {
+    Socket socket = null;
+    long start = slave.beginRead();
+    boolean answered = false;
+    try {
+      socket = slave.connectHost(TIMEOUT);
+      msg.sendMessage(socket);
+      KVMessage response = new KVMessage(socket, TIMEOUT);
+      answered = true;
+      String responseType = response.getMsgType();
+      if (responseType != null && responseType.equals(RESP)) {
+        return response;
+      }
+    } catch (KVException e) {
+      System.out.println("Get attempt ended with exception: " + e);
+    } finally {
+      slave.endRead(start, answered);
+      slave.closeHost(socket);
+    }
+    return null;
+  }
+
+  /**
+   * Reads a key from quorum of slaves at once, the least loaded first,
+   * asking the next slave in place of any that cannot be reached. The
+   * answer with the highest version wins; a replica that has the key
+   * deleted answers with the version of the delete, so a delete newer than
+   * every value found makes the key missing. Replicas left behind are not
+   * repaired; the next write of the key brings them up to date.
+   *
+   * @return the response carrying the newest value, or null if there is
+   *         none or fewer than quorum slaves answered
+   *
+   * @throws KVException if interrupted while waiting for replicas
+   */
+  private KVMessage quorumFetch(final KVMessage msg, TPCSlaveInfo[] slaves, int quorum)
+      throws KVException {
+    final TPCSlaveInfo[] ordered = TPCSlaveInfo.byReadCost(slaves);
+    CompletionService<KVMessage> answers = new ExecutorCompletionService<>(replicaPool);
+    int asked = 0;
+    for (; asked < quorum; asked++) {
+      final TPCSlaveInfo slave = ordered[asked];
+      answers.submit(() -> ask(msg, slave));
+    }
+    KVMessage newest = null;
+    int answered = 0;
+    boolean stale = false;
+    for (int pending = quorum; pending > 0; pending--) {
+      KVMessage response;
+      try {
+        response = answers.take().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+      } catch (ExecutionException e) {
+        response = null;
+      }
+      if (response == null) {
+        if (asked < ordered.length) {
+          final TPCSlaveInfo slave = ordered[asked++];
+          answers.submit(() -> ask(msg, slave));
+          pending++;
+        }
+        continue;
+      }
+      answered++;
+      if (newest != null && versionOf(response) != versionOf(newest)) {
+        stale = true;
+      }
+      if (newest == null || isNewer(response, newest)) {
+        newest = response;
+      }
+    }
+    if (stale) {
+      staleReads.incrementAndGet();
+    }
+    if (answered < quorum || newest.getValue() == null || newest.getMessage() != null) {
+      return null;
+    }
+    return newest;
+  }
+
+  private static long versionOf(KVMessage response) {
+    Long version = response.getVersion();
+    return version == null ? 0 : version;
+  }
+
+  /**
+   * @return true if response is of a later write than other, or of the same
+   *         one and has the value where other does not
+   */
+  private static boolean isNewer(KVMessage response, KVMessage other) {
+    long version = versionOf(response);
+    long otherVersion = versionOf(other);
+    return version > otherVersion
+        || version == otherVersion && response.getValue() != null && other.getValue() == null;
+  }
+
+  /**
+   * Turns on hedged reads: a get whose first replica has not answered
+   * within the hedge delay of that replica (see TPCSlaveInfo.getHedgeDelay)
+   * is sent to the next replica too, and the first value to come back is
+   * used; gets that read a quorum are not hedged. Hedges are paid for out of a budget that every get adds
+   * budgetPercent hundredths of a hedge to, up to HEDGE_BURST hedges, so
+   * they add at most about budgetPercent percent to the reads sent to the
+   * slaves however slow a slave gets.
+   *
+   * @param budgetPercent  hedges allowed per hundred gets
+   * @param minDelayMillis shortest hedge delay, so that a fast cluster is
+   *                       not hedged on noise
+   */
+  public void enableHedgedReads(int budgetPercent, long minDelayMillis) {
+    synchronized (membership) {
+      if (hedgePool == null) {
+        hedgePool = Executors.newCachedThreadPool(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tpc-hedge");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+      hedgeDeposit = Math.max(0, budgetPercent) * HEDGE_COST / 100;
+      hedgeMinDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelayMillis));
+    }
+  }
+
+  /**
+   * Reads a key from its replicas, hedging the read if hedged reads are on.
+   *
+   * @return the response carrying the value, or null if no replica had it
+   *
+   * @throws KVException if interrupted while waiting for the first replica
+   */
+  private KVMessage hedgedFetch(KVMessage msg, TPCSlaveInfo[] slaves) throws KVException {
+    ExecutorService pool = hedgePool;
+    final TPCSlaveInfo[] ordered = TPCSlaveInfo.byReadCost(slaves);
+    if (pool == null || ordered.length < 2) {
+      return fetchInOrder(msg, ordered, 0);
+    }
+    hedgeTokens.accumulateAndGet(hedgeDeposit, (tokens, deposit) ->
+        Math.min(HEDGE_BURST * HEDGE_COST, tokens + deposit));
+    CompletableFuture<KVMessage> first = CompletableFuture.supplyAsync(
+        () -> fetchFrom(msg, ordered[0]), pool);
+    long delay = Math.max(hedgeMinDelay, ordered[0].getHedgeDelay());
+    try {
+      KVMessage response = first.get(delay, TimeUnit.NANOSECONDS);
+      // Answered in time; try the other replicas only if it had nothing
+      return response != null ? response : fetchInOrder(msg, ordered, 1);
+    } catch (TimeoutException e) {
+      // Slow, so hedge if the budget allows
+    } catch (ExecutionException e) {
+      return fetchInOrder(msg, ordered, 1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+    }
+    if (!withdrawHedge()) {
+      hedgesDenied.incrementAndGet();
+      KVMessage response = first.join();
+      return response != null ? response : fetchInOrder(msg, ordered, 1);
+    }
+    hedgesSent.incrementAndGet();
+    CompletableFuture<KVMessage> second = CompletableFuture.supplyAsync(
+        () -> fetchFrom(msg, ordered[1]), pool);
+    // The first value wins; null only once both reads came back empty
+    CompletableFuture<KVMessage> winner = new CompletableFuture<>();
+    AtomicInteger pending = new AtomicInteger(2);
+    first.thenAccept(response -> {
+      if (response != null) {
+        winner.complete(response);
+      }
+      if (pending.decrementAndGet() == 0) {
+        winner.complete(null);
+      }
+    });
+    second.thenAccept(response -> {
+      if (response != null && winner.complete(response)) {
+        hedgesWon.incrementAndGet();
+      }
+      if (pending.decrementAndGet() == 0) {
+        winner.complete(null);
+      }
+    });
+    KVMessage response = winner.join();
+    return response != null ? response : fetchInOrder(msg, ordered, 2);
+  }
+
+  private boolean withdrawHedge() {
+    while (true) {
+      long tokens = hedgeTokens.get();
+      if (tokens < HEDGE_COST) {
+        return false;
+      }
+      if (hedgeTokens.compareAndSet(tokens, tokens - HEDGE_COST)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Perform a MULTI_GET_REQ. Keys found in the master cache are answered
+   * from it; the rest are grouped by primary replica and fetched with one
+   * request per group, falling back to the other replicas for a group
+   * whose primary cannot be reached. Values fetched this way are not added
+   * to the master cache, since the batch response does not carry their
+   * time to live. If a get has to read more than one replica, the batch
+   * response does not carry versions to compare either, so each key is
+   * read like a get instead, all of them at once. The cache locks are only
+   * held while the cache is probed.
+   *
+   * @param msg MULTI_GET_REQ KVMessage
+   *
+   * @return the pairs found, in request order; missing keys are left out
+   *
+   * @throws KVException if interrupted while waiting for replicas
+   */
+  public LinkedHashMap<String, String> handleMultiGet(KVMessage msg) throws KVException {
+    waitForExpectedSlaves();
+
+    List<KVKey> keys = msg.getKVKeys();
+    Map<String, String> found = new HashMap<>();
+    LinkedHashMap<String, String> missing = new LinkedHashMap<>();
+    List<Lock> locks = masterCache.getLocks(keys);
+    lockAll(locks);
+    try {
+      for (KVKey key : keys) {
+        String cacheValue = masterCache.get(key);
+        if (cacheValue != null) {
+          found.put(key.toString(), cacheValue);
+        } else {
+          missing.put(key.toString(), "");
+        }
+      }
+    } finally {
+      unlockAll(locks);
+    }
+
+    // What is fetched is not cached, so the slaves are read without the
+    // locks, as in handleGet
+    if (readQuorum > 1) {
+      quorumGets(missing.keySet(), found);
+      missing.clear();
+    }
+    fetchGroups(missing, placement, found);
+    Partitioner.Placement before = previous;
+    if (before != null) {
+      // Keys not yet migrated may only be on their former replicas
+      LinkedHashMap<String, String> unmoved = new LinkedHashMap<>();
+      for (String key : missing.keySet()) {
+        if (!found.containsKey(key) && !settled.containsKey(key)) {
+          unmoved.put(key, "");
+        }
+      }
+      fetchGroups(unmoved, before, found);
+    }
+
+    LinkedHashMap<String, String> ordered = new LinkedHashMap<>();
+    for (KVKey key : keys) {
+      String value = found.get(key.toString());
+      if (value != null) {
+        ordered.put(key.toString(), value);
       }
+    }
+    return ordered;
+  }
 
-      TPCSlaveInfo primary = findFirstReplica(key);
-      TPCSlaveInfo secondary = findSuccessor(primary);
-      TPCSlaveInfo[] slaves = {primary, secondary};
-      for (TPCSlaveInfo slave : slaves) {
+  /**
+   * Reads each of keys like a get, all of them at once on replicaPool.
+   *
+   * @param keys  keys to read
+   * @param found map to add the pairs found to
+   *
+   * @throws KVException if interrupted while waiting for replicas
+   */
+  private void quorumGets(Collection<String> keys, Map<String, String> found)
+      throws KVException {
+    Map<String, Future<KVMessage>> reads = new LinkedHashMap<>();
+    for (final String key : keys) {
+      final KVMessage get = new KVMessage(GET_REQ);
+      get.setKey(key);
+      reads.put(key, replicaPool.submit(() -> lookup(get, KVKey.of(key))));
+    }
+    for (Map.Entry<String, Future<KVMessage>> read : reads.entrySet()) {
+      KVMessage response;
+      try {
+        response = read.getValue().get();
+      } catch (InterruptedException e) {
+        for (Future<KVMessage> other : reads.values()) {
+          other.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+      } catch (ExecutionException e) {
+        System.out.println("Multi get read ended with exception: " + e.getCause());
+        response = null;
+      }
+      if (response != null) {
+        found.put(read.getKey(), response.getValue());
+      }
+    }
+  }
+
+  /**
+   * Fetches keys with one MULTI_GET_REQ per primary replica under
+   * placement, sent to the least loaded of the replicas of the group and
+   * falling back to the others if it cannot be reached.
+   *
+   * @param keys  keys to fetch, each to an empty value
+   * @param found map to add the pairs found to
+   */
+  private void fetchGroups(Map<String, String> keys, Partitioner.Placement placement,
+                           Map<String, String> found) {
+    Map<TPCSlaveInfo, LinkedHashMap<String, String>> groups = groupByPrimary(keys, placement);
+    for (Map.Entry<TPCSlaveInfo, LinkedHashMap<String, String>> group : groups.entrySet()) {
+      KVMessage groupRequest = new KVMessage(MULTI_GET_REQ);
+      groupRequest.setPairs(group.getValue());
+      TPCSlaveInfo[] slaves = placement.findReplicas(group.getKey(), replicationFactor);
+      for (TPCSlaveInfo slave : TPCSlaveInfo.byReadCost(slaves)) {
         Socket socket = null;
+        long start = slave.beginRead();
+        boolean answered = false;
         try {
           socket = slave.connectHost(TIMEOUT);
-          msg.sendMessage(socket);
+          groupRequest.sendMessage(socket);
           KVMessage response = new KVMessage(socket, TIMEOUT);
-          String responseType = response.getMsgType();
-          String returnedMessage = response.getMessage();
-          String returnedValue = response.getValue();
-          if (responseType != null && responseType.equals(RESP)
-              && returnedMessage == null && returnedValue != null) {
-            // Found a match
-            // Updating masterCache
-            masterCache.put(key, returnedValue);
-            return returnedValue;
+          answered = true;
+          if (response.getMessage() != null) {
+            throw new KVException(response.getMessage());
+          }
+          if (response.getPairs() != null) {
+            found.putAll(response.getPairs());
           }
+          break;
         } catch (KVException e) {
-          System.out.println("Get attempt ended with exception: " + e);
+          System.out.println("Multi get attempt ended with exception: " + e);
         } finally {
+          slave.endRead(start, answered);
           slave.closeHost(socket);
         }
       }
-    } finally {
-      masterCache.getLock(key).unlock();
     }
-    throw new KVException(ERROR_NO_SUCH_KEY);
   }
 
   /**
-   * Block the requestor until all the slaves have been registered
+   * Perform SCAN operation across the cluster. Keys are placed by hash, so
+   * every slave holds part of any range: the request is sent to all slaves
+   * at once and their pages are merged in key order, dropping any copy held
+   * by a slave that is not a replica of the key. Of the copies the replicas
+   * return, the one of the highest version is kept, as for a quorum read,
+   * and a key whose newest copy is a delete is left out. A slave whose page
+   * was truncated may hold keys past its cursor that the others did not
+   * return, so the merged page stops at the smallest such cursor, which
+   * becomes the cursor handed back.
+   *
+   * The page is complete if, for the replicas of every key, as many
+   * answered as a read needs.
+   *
+   * @param msg SCAN_REQ KVMessage
+   *
+   * @return merged page of at most the requested number of pairs
+   *
+   * @throws KVException if fewer replicas of some keys than the read quorum
+   *                     could be scanned
    */
-  private void waitForExpectedSlaves() {
-    synchronized (slaveMap) {
-      while (numSlaves > slaveMap.size()) {
-        try {
-          slaveMap.wait();
-        } catch (InterruptedException e) {
-          System.out.println(e);
+  public ScanPage handleScan(final KVMessage msg) throws KVException {
+    waitForExpectedSlaves();
+
+    int limit = ScanPage.limitOf(msg);
+    List<TPCSlaveInfo> slaves = new ArrayList<>(this.slaves.values());
+    List<Future<ScanPage>> pages = new ArrayList<>();
+    for (final TPCSlaveInfo slave : slaves) {
+      pages.add(replicaPool.submit(() -> scanSlave(msg, slave)));
+    }
 
+    TreeMap<KVKey, String> merged = new TreeMap<>();
+    Map<KVKey, Long> versions = new HashMap<>();
+    Set<Long> answered = new HashSet<>();
+    KVKey bound = null;
+    KVException failure = null;
+    for (int i = 0; i < slaves.size(); i++) {
+      TPCSlaveInfo slave = slaves.get(i);
+      ScanPage page;
+      try {
+        page = pages.get(i).get();
+      } catch (ExecutionException e) {
+        failure = e.getCause() instanceof KVException ? (KVException) e.getCause()
+            : new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        continue;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+      }
+      answered.add(slave.getSlaveID());
+      Partitioner.Placement current = placement;
+      Partitioner.Placement before = previous;
+      for (Map.Entry<String, String> pair : page.getPairs().entrySet()) {
+        KVKey key = KVKey.of(pair.getKey());
+        // A copy left on a slave that lost the key is not the key's
+        if (!holds(replicas(current, key), slave) && (before == null
+            || settled.containsKey(pair.getKey()) || !holds(replicas(before, key), slave))) {
+          continue;
+        }
+        long version = page.getVersion(pair.getKey());
+        Long newest = versions.get(key);
+        if (newest == null || version > newest
+            || version == newest && merged.get(key).isEmpty()) {
+          merged.put(key, pair.getValue());
+          versions.put(key, version);
+        }
+      }
+      if (page.hasMore()) {
+        KVKey cursor = KVKey.of(page.getCursor());
+        if (bound == null || cursor.compareTo(bound) < 0) {
+          bound = cursor;
         }
       }
     }
+    if (failure != null) {
+      Partitioner.Placement current = placement;
+      for (TPCSlaveInfo first : slaves) {
+        TPCSlaveInfo[] replicas = current.findReplicas(first, replicationFactor);
+        int reached = 0;
+        for (TPCSlaveInfo replica : replicas) {
+          if (answered.contains(replica.getSlaveID())) {
+            reached++;
+          }
+        }
+        if (reached < Math.min(readQuorum, replicas.length)) {
+          throw failure;
+        }
+      }
+    }
+
+    LinkedHashMap<String, String> pairs = new LinkedHashMap<>();
+    String cursor = bound == null ? null : bound.toString();
+    for (Map.Entry<KVKey, String> entry : merged.entrySet()) {
+      if (bound != null && entry.getKey().compareTo(bound) >= 0) {
+        break;
+      }
+      if (entry.getValue().isEmpty()) {
+        continue;
+      }
+      if (pairs.size() == limit) {
+        cursor = entry.getKey().toString();
+        break;
+      }
+      pairs.put(entry.getKey().toString(), entry.getValue());
+    }
+    return new ScanPage(pairs, cursor);
   }
 
   /**
-   * Serves as comparison function for the slaveMap
+   * Scans one slave.
+   *
+   * @return the page slave returned
+   *
+   * @throws KVException if slave could not be reached or answered with an
+   *                     error
    */
-  private class keyComparator implements Comparator<Long> {
+  private static ScanPage scanSlave(KVMessage msg, TPCSlaveInfo slave) throws KVException {
+    Socket socket = null;
+    try {
+      socket = slave.connectHost(TIMEOUT);
+      msg.sendMessage(socket);
+      KVMessage response = new KVMessage(socket, TIMEOUT);
+      if (response.getMessage() != null) {
+        throw new KVException(response.getMessage());
+      }
+      return ScanPage.fromMessage(response);
+    } finally {
+      slave.closeHost(socket);
+    }
+  }
+
+  /**
+   * Converts the time to live carried by msg into an expiry time for the
+   * master cache.
+   *
+   * @return expiry time in milliseconds since the epoch, or 0 for none
+   */
+  private static long expiryOf(KVMessage msg) {
+    long ttl = msg.getTtlMillis();
+    return ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+  }
 
-    @Override
-    public int compare(Long key1, Long key2) {
-      if (isLessThanUnsigned(key1, key2)) {
-        return -1;
-      } else if (isLessThanEqualUnsigned(key1, key2)) {
-        return 0;
-      } else {
-        return 1;
+  /**
+   * Block the requestor until all the slaves have been registered
+   */
+  private void waitForExpectedSlaves() {
+    synchronized (slaves) {
+      while (!ready) {
+        try {
+          slaves.wait();
+        } catch (InterruptedException e) {
+          System.out.println(e);
+
+        }
       }
     }
   }
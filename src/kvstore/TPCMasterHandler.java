@@ -2,9 +2,14 @@ package kvstore;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import static kvstore.KVConstants.ABORT;
 import static kvstore.KVConstants.ACK;
+import static kvstore.KVConstants.CAS_REQ;
 import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.DEREGISTER;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
@@ -16,10 +21,15 @@ import static kvstore.KVConstants.ERROR_SLAVE_QUOTA_ALREADY_MET;
 import static kvstore.KVConstants.GET_REQ;
 import static kvstore.KVConstants.MAX_KEY_SIZE;
 import static kvstore.KVConstants.MAX_VAL_SIZE;
+import static kvstore.KVConstants.MULTI_DEL_REQ;
+import static kvstore.KVConstants.MULTI_GET_REQ;
+import static kvstore.KVConstants.MULTI_PUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.READY;
 import static kvstore.KVConstants.REGISTER;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
+import static kvstore.KVConstants.STATS_REQ;
 import static kvstore.KVConstants.TIMEOUT;
 
 /**
@@ -33,6 +43,9 @@ public class TPCMasterHandler implements NetworkHandler {
   public KVServer kvServer;
   public TPCLog tpcLog;
   public ThreadPool threadpool;
+  private int weight = 1;
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong aborts = new AtomicLong();
 
   /**
    * Constructs a TPCMasterHandler with one connection in its ThreadPool
@@ -61,6 +74,17 @@ public class TPCMasterHandler implements NetworkHandler {
     this.threadpool = new ThreadPool(connections);
   }
 
+  /**
+   * Sets the weight this slave registers with: a slave of weight 2 is
+   * given twice the keyspace of one of weight 1 by a master with virtual
+   * nodes. Must be called before registerWithMaster.
+   *
+   * @param weight relative capacity of this slave, at least 1
+   */
+  public void setWeight(int weight) {
+    this.weight = Math.max(1, weight);
+  }
+
   /**
    * Registers this slave server with the master.
    *
@@ -80,6 +104,9 @@ public class TPCMasterHandler implements NetworkHandler {
       try (Socket sock = new Socket(masterHostname, REGISTRATION_PORT)) {
         KVMessage request = new KVMessage(REGISTER);
         String requestMessage = slaveID + "@" + server.getHostname() + ":" + server.getPort();
+        if (weight != 1) {
+          requestMessage += "/" + weight;
+        }
         request.setMessage(requestMessage);
         request.sendMessage(sock);
 
@@ -101,6 +128,43 @@ public class TPCMasterHandler implements NetworkHandler {
     }    
   }
 
+  /**
+   * Asks the master to remove this slave server from the cluster. Blocks
+   * until the master has copied the keys of this slave to the slaves that
+   * take them over; this slave keeps serving them until then and can be
+   * shut down once this returns.
+   *
+   * @param masterHostname
+   * @param server         SocketServer this slave server registered with
+   *
+   * @throws KVException ERROR_NO_SUCH_SLAVE or ERROR_TOO_FEW_SLAVES if the
+   *                     master refuses, ERROR_INVALID_FORMAT if its response
+   *                     does not correspond to a success, or any error
+   *                     connecting to it
+   */
+  public void deregisterFromMaster(String masterHostname, SocketServer server)
+          throws KVException {
+    try (Socket sock = new Socket(masterHostname, REGISTRATION_PORT)) {
+      KVMessage request = new KVMessage(DEREGISTER);
+      String requestMessage = slaveID + "@" + server.getHostname() + ":" + server.getPort();
+      request.setMessage(requestMessage);
+      request.sendMessage(sock);
+
+      // No timeout: the migration takes as long as the keys take to copy
+      KVMessage response = new KVMessage(sock);
+      if (response.getMessage() != null
+          && !response.getMessage().startsWith("Successfully deregistered ")) {
+        throw new KVException(response.getMessage());
+      } else if (response.getMessage() == null || !response.getMsgType().equals(RESP)) {
+        throw new KVException(ERROR_INVALID_FORMAT);
+      }
+    } catch (IOException e) {
+      throw new KVException(ERROR_COULD_NOT_CONNECT);
+    } catch (IllegalArgumentException e) {
+      throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+    }
+  }
+
   /**
    * Creates a job to service the request on a socket and enqueues that job
    * in the thread pool. Ignore any InterruptedExceptions.
@@ -114,7 +178,18 @@ public class TPCMasterHandler implements NetworkHandler {
 
       switch (request.getMsgType()) {
         case GET_REQ:
-          threadpool.addJob(new getJob(request.getKey(), master));
+          threadpool.addJob(new getJob(request.getKVKey(), master));
+          break;
+        case SCAN_REQ:
+          threadpool.addJob(new scanJob(request, master));
+          break;
+        case MULTI_GET_REQ:
+          threadpool.addJob(new multiGetJob(request, master));
+          break;
+        case MULTI_PUT_REQ:
+        case MULTI_DEL_REQ:
+        case CAS_REQ:
+          phase1(request, request.getMsgType(), master);
           break;
         case PUT_REQ:
           phase1(request, PUT_REQ, master);
@@ -128,6 +203,9 @@ public class TPCMasterHandler implements NetworkHandler {
         case ABORT:
           phase2(request, ABORT, master);
           break;
+        case STATS_REQ:
+          statsResponse().sendMessage(master);
+          break;
         default:
           throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
       }
@@ -157,12 +235,51 @@ public class TPCMasterHandler implements NetworkHandler {
       }
     } else if (requestType.equals(DEL_REQ)) {
       tpcLog.appendAndFlush(request);
-      String key = request.getKey();
-      if (key.isEmpty() || !kvServer.hasKey(key)) {
+      if (request.getKey().isEmpty() || !kvServer.hasKey(request.getKVKey())) {
         new KVMessage(ABORT, ERROR_NO_SUCH_KEY).sendMessage(master);
       } else {
         new KVMessage(READY).sendMessage(master);
       }
+    } else if (requestType.equals(MULTI_PUT_REQ)) {
+      tpcLog.appendAndFlush(request);
+      String error = null;
+      for (Map.Entry<String, String> pair : request.getPairs().entrySet()) {
+        if (pair.getKey().length() > MAX_KEY_SIZE) {
+          error = ERROR_OVERSIZED_KEY;
+          break;
+        } else if (pair.getValue().length() > MAX_VAL_SIZE) {
+          error = ERROR_OVERSIZED_VALUE;
+          break;
+        }
+      }
+      if (error != null) {
+        new KVMessage(ABORT, error).sendMessage(master);
+      } else {
+        new KVMessage(READY).sendMessage(master);
+      }
+    } else if (requestType.equals(CAS_REQ)) {
+      tpcLog.appendAndFlush(request);
+      String error = null;
+      if (request.getKey().length() > MAX_KEY_SIZE) {
+        error = ERROR_OVERSIZED_KEY;
+      } else if (request.getValue().length() > MAX_VAL_SIZE) {
+        error = ERROR_OVERSIZED_VALUE;
+      } else {
+        try {
+          ReadModifyWrite.apply(request, kvServer.lookup(request.getKVKey()));
+        } catch (KVException e) {
+          error = e.getKVMessage().getMessage();
+        }
+      }
+      if (error != null) {
+        new KVMessage(ABORT, error).sendMessage(master);
+      } else {
+        new KVMessage(READY).sendMessage(master);
+      }
+    } else if (requestType.equals(MULTI_DEL_REQ)) {
+      // Missing keys are skipped, so a batch delete can always go ahead
+      tpcLog.appendAndFlush(request);
+      new KVMessage(READY).sendMessage(master);
     }
   }
 
@@ -170,74 +287,130 @@ public class TPCMasterHandler implements NetworkHandler {
           throws KVException, InterruptedException {
     if (requestType.equals(COMMIT)) {
       final KVMessage requestToCommit = tpcLog.getLastEntry();    
-      switch (requestToCommit.getMsgType()) {
-        case PUT_REQ:
-          threadpool.addJob(new Runnable() {
-            @Override
-            public void run() {
-              try {
-                kvServer.put(requestToCommit.getKey(), requestToCommit.getValue());               
-              } catch (KVException e1) {
-                System.out.println("MASTER HANDLER PUT" + e1);
-              }
-            }
-          });
-          break;
-        case DEL_REQ:          
-          threadpool.addJob(new Runnable() {
-            @Override
-            public void run() {
-              try {
-                kvServer.del(requestToCommit.getKey());
-              } catch (KVException e1) {
-                System.out.println("MASTER HANDLER DEL " + e1);
-              }
-            }
-          });
-          break;
-        default:       
-          // The requested operation was already committed
-          // No need to log another commit. Just send ACK
-          if (requestToCommit.getMsgType().equals(COMMIT)) {
-            new KVMessage(ACK).sendMessage(master);
-            return;
-          }
+      if (requestToCommit.isWrite()) {
+        // Applied before the ACK so that the next request the master sends,
+        // such as the read behind an INCR, sees this write
+        try {
+          kvServer.commit(requestToCommit);
+        } catch (KVException e1) {
+          System.out.println("MASTER HANDLER " + requestToCommit.getMsgType() + " " + e1);
+        }
+      } else if (requestToCommit.getMsgType().equals(COMMIT)) {
+        // The requested operation was already committed
+        // No need to log another commit. Just send ACK
+        new KVMessage(ACK).sendMessage(master);
+        return;
       }
       tpcLog.appendAndFlush(request);
+      commits.incrementAndGet();
       new KVMessage(ACK).sendMessage(master);
     } else if (requestType.equals(ABORT)) {     
       tpcLog.appendAndFlush(request);
+      aborts.incrementAndGet();
       new KVMessage(ACK).sendMessage(master);
     }
   }
+
+  /**
+   * Builds the response to a STATS_REQ from counters that are read without
+   * taking any request lock.
+   */
+  private KVMessage statsResponse() {
+    LinkedHashMap<String, String> stats = new LinkedHashMap<>();
+    kvServer.collectStats(stats);
+    threadpool.collectStats("threadpool.", stats);
+    stats.put("tpc.commits", Long.toString(commits.get()));
+    stats.put("tpc.aborts", Long.toString(aborts.get()));
+    stats.put("log.entries", Integer.toString(tpcLog.size()));
+    Latencies.collectStats(stats);
+    KVMessage response = new KVMessage(RESP);
+    response.setPairs(stats);
+    return response;
+  }
  
   
   private class getJob implements Runnable {
 
-    String key;
+    KVKey key;
     Socket master;
 
-    getJob(String key, Socket master) {
+    getJob(KVKey key, Socket master) {
       this.key = key;
       this.master = master;
     }
 
     @Override
     public void run() {
-      try {
-        String value = kvServer.get(key);
-        KVMessage response = new KVMessage(RESP);
-        response.setKey(key);
+      // Read before the value, so the value is never older than its version
+      Long version = kvServer.getVersion(key);
+      String value = kvServer.lookup(key);
+      KVMessage response;
+      if (value == null && version == null) {
+        response = KVException.NO_SUCH_KEY.getKVMessage();
+      } else if (value == null) {
+        // Tells a quorum read that the key was deleted, not missed
+        response = new KVMessage(KVException.NO_SUCH_KEY.getKVMessage());
+        response.setVersion(version);
+      } else {
+        response = new KVMessage(RESP);
+        response.setKey(key.toString());
         response.setValue(value);
-        response.sendMessage(master);
-      } catch (KVException e1) {
-        try {
-          e1.getKVMessage().sendMessage(master);
-        } catch (KVException e2) {
-          System.out.println(e2);
+        response.setVersion(version);
+        long ttl = kvServer.getTtl(key);
+        if (ttl > 0) {
+          // Lets the master cache drop the value when it expires here
+          response.setTtl(ttl);
         }
       }
+      try {
+        response.sendMessage(master);
+      } catch (KVException e) {
+        System.out.println(e);
+      }
+    }
+  }
+
+  private class scanJob implements Runnable {
+
+    KVMessage request;
+    Socket master;
+
+    scanJob(KVMessage request, Socket master) {
+      this.request = request;
+      this.master = master;
+    }
+
+    @Override
+    public void run() {
+      ScanPage page = kvServer.scan(request.getKey(), request.getEnd(),
+          ScanPage.limitOf(request));
+      try {
+        page.toMessage().sendMessage(master);
+      } catch (KVException e) {
+        System.out.println(e);
+      }
+    }
+  }
+
+  private class multiGetJob implements Runnable {
+
+    KVMessage request;
+    Socket master;
+
+    multiGetJob(KVMessage request, Socket master) {
+      this.request = request;
+      this.master = master;
+    }
+
+    @Override
+    public void run() {
+      KVMessage response = new KVMessage(RESP);
+      response.setPairs(kvServer.multiGet(request.getKVKeys()));
+      try {
+        response.sendMessage(master);
+      } catch (KVException e) {
+        System.out.println(e);
+      }
     }
   }
-    
 }
@@ -47,6 +47,8 @@ public class TPCRegistrationHandler implements NetworkHandler {
 
       if (request.getMsgType().equals(REGISTER)) {
         threadpool.addJob(new registrationJob(request.getMessage(), slave));
+      } else if (request.getMsgType().equals(DEREGISTER)) {
+        threadpool.addJob(new deregistrationJob(request.getMessage(), slave));
       } else {
         throw new KVException(ERROR_INVALID_FORMAT);
       }
@@ -90,6 +92,34 @@ public class TPCRegistrationHandler implements NetworkHandler {
         }
       }
     }
-  } 
+  }
+
+  private class deregistrationJob implements Runnable {
+
+    String slaveInfo;
+    Socket slaveSocket;
+
+    deregistrationJob(String info, Socket slave) {
+      slaveInfo = info;
+      slaveSocket = slave;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Returns once the keys of the slave have been migrated
+        master.removeSlave(new TPCSlaveInfo(slaveInfo).getSlaveID());
+        KVMessage response = new KVMessage(RESP);
+        response.setMessage("Successfully deregistered " + slaveInfo);
+        response.sendMessage(slaveSocket);
+      } catch (KVException e1) {
+        try {
+          e1.getKVMessage().sendMessage(slaveSocket);
+        } catch (KVException e2) {
+          System.out.println(e2);
+        }
+      }
+    }
+  }
 
 }
@@ -4,6 +4,9 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -15,22 +18,62 @@ public class TPCSlaveInfo {
   public long slaveID;
   public String hostname;
   public int port;
+  public int weight = 1;
+
+  /* Weight of the newest sample in the read latency average */
+  static final double EWMA_ALPHA = 0.2;
+  /* The read latency average halves for every this long without a read,
+     so a replica that was avoided is eventually read from again */
+  static final long EWMA_HALF_LIFE_NANOS = 1000000000L;
+  /* Least a failed read is charged, however quickly it failed */
+  static final long FAILED_READ_NANOS = 100000000L;
+  /* Percentile of read latency after which a read is hedged */
+  static final double HEDGE_PERCENTILE = 95;
+  /* Reads needed before the hedge delay is taken from them */
+  static final int HEDGE_MIN_SAMPLES = 20;
+  /* Reads the hedge delay is computed from before they are cleared */
+  static final int HEDGE_WINDOW = 1000;
+  /* The hedge delay is recomputed at most this often */
+  static final long HEDGE_REFRESH_NANOS = 100000000L;
+  /* A channel left unused this long is replaced before the slave, which
+     closes it after SocketServer.KEEP_ALIVE_TIMEOUT, can */
+  static final long CHANNEL_IDLE_MILLIS = ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+  /* Requests sent to this slave */
+  private final AtomicLong requests = new AtomicLong();
+  /* Connection every request to this slave is multiplexed over */
+  private MultiplexedChannel channel;
+  private final AtomicLong connections = new AtomicLong();
+  /* Reads sent to this slave that have not been answered yet */
+  private final AtomicInteger outstanding = new AtomicInteger();
+  /* Exponentially weighted moving average of read latency; see
+     getReadLatency */
+  private final AtomicReference<Average> ewma = new AtomicReference<>(new Average(0, 0));
+  /* Latencies of answered reads since the window last started over */
+  private final LatencyHistogram readLatencies = new LatencyHistogram("slave.read");
+  private volatile long hedgeDelay = TIMEOUT * 1000000L;
+  private volatile long hedgeDelayAt = System.nanoTime();
 
   /**
    * Construct a TPCSlaveInfo to represent a slave server.
    *
-   * @param info as "SlaveServerID@Hostname:Port"
+   * @param info as "SlaveServerID@Hostname:Port", optionally followed by
+   *             "/Weight" for a slave that should own Weight times the
+   *             keyspace of one of weight 1
    *
    * @throws KVException ERROR_INVALID_FORMAT if info string is invalid
    */
   public TPCSlaveInfo(String info) throws KVException {       
-    final String REGEX = "(-{0,1}\\d+)@(\\d+\\.\\d+\\.\\d+\\.\\d+):(\\d+)";
+    final String REGEX = "(-{0,1}\\d+)@(\\d+\\.\\d+\\.\\d+\\.\\d+):(\\d+)(?:/(\\d+))?";
     Pattern pattern = Pattern.compile(REGEX);
     Matcher matcher = pattern.matcher(info);
     if (matcher.matches()) {
       try {
         slaveID = Long.parseLong(matcher.group(1));
         port = Integer.parseInt(matcher.group(3));
+        if (matcher.group(4) != null) {
+          weight = Math.max(1, Integer.parseInt(matcher.group(4)));
+        }
       } catch (NumberFormatException e) {
         throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
       }
@@ -81,19 +124,203 @@ public class TPCSlaveInfo {
   }
 
   /**
-   * Create and connect a socket within a certain timeout.
+   * @return share of the keyspace this slave takes, relative to others
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return number of requests sent to this slave, a measure of the load
+   *         placed on it
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return number of connections opened to this slave; one, unless the
+   *         connection failed or went idle
+   */
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  /**
+   * Marks the start of a read from this slave.
+   *
+   * @return value of System.nanoTime() to hand to endRead
+   */
+  public long beginRead() {
+    outstanding.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Read latency average as of the read that last changed it.
+   */
+  private static final class Average {
+
+    final double nanos;
+    final long at;
+
+    Average(double nanos, long at) {
+      this.nanos = nanos;
+      this.at = at;
+    }
+
+    /**
+     * @return share of the average left after decaying until now
+     */
+    double weightAt(long now) {
+      return Math.pow(0.5, (double) (now - at) / EWMA_HALF_LIFE_NANOS);
+    }
+  }
+
+  /**
+   * Marks the end of a read begun with beginRead and folds its latency into
+   * the moving average; the longer since the last read, the less the
+   * average counts against the new sample. A read that failed counts as
+   * taking at least FAILED_READ_NANOS, so a slave that is down is avoided
+   * until the average decays and it is tried again.
+   *
+   * @param startNanos value returned by beginRead
+   * @param answered   whether the slave answered, with or without the key
+   */
+  public void endRead(long startNanos, boolean answered) {
+    outstanding.decrementAndGet();
+    long now = System.nanoTime();
+    long elapsed = now - startNanos;
+    if (answered) {
+      readLatencies.record(elapsed);
+    }
+    double sample = answered ? elapsed : Math.max(elapsed, FAILED_READ_NANOS);
+    while (true) {
+      Average last = ewma.get();
+      double weight = last.nanos == 0 ? 0 : (1 - EWMA_ALPHA) * last.weightAt(now);
+      Average next = new Average(weight * last.nanos + (1 - weight) * sample, now);
+      if (ewma.compareAndSet(last, next)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return reads sent to this slave that have not been answered yet
+   */
+  public int getOutstandingReads() {
+    return outstanding.get();
+  }
+
+  /**
+   * @return moving average of read latency in nanoseconds, halved for every
+   *         EWMA_HALF_LIFE_NANOS since the last read, or 0 before the first
+   *         read
+   */
+  public double getReadLatency() {
+    Average last = ewma.get();
+    return last.nanos * last.weightAt(System.nanoTime());
+  }
+
+  /**
+   * Time after which a read from this slave that has not been answered is
+   * worth sending to another replica as well: the HEDGE_PERCENTILE of its
+   * recent read latency, or TIMEOUT until enough reads have been seen. It
+   * is recomputed at most every HEDGE_REFRESH_NANOS, over a window of about
+   * HEDGE_WINDOW reads, so that it follows the slave as its load changes.
+   *
+   * @return hedge delay in nanoseconds
+   */
+  public long getHedgeDelay() {
+    long now = System.nanoTime();
+    if (now - hedgeDelayAt > HEDGE_REFRESH_NANOS) {
+      hedgeDelayAt = now;
+      long count = readLatencies.getCount();
+      if (count >= HEDGE_MIN_SAMPLES) {
+        hedgeDelay = readLatencies.getValueAtPercentile(HEDGE_PERCENTILE);
+        if (count >= HEDGE_WINDOW) {
+          readLatencies.reset();
+        }
+      }
+    }
+    return hedgeDelay;
+  }
+
+  /**
+   * Orders the replicas of a key for a read, cheapest first. The cost of a
+   * replica is its average read latency times the reads a new one would
+   * queue behind, (outstanding + 1); a replica not yet read from is taken
+   * to be as fast as the others on average. On a tie the given order is
+   * kept, so an idle cluster reads from primaries. Since an average decays
+   * while its replica is not read from, a replica passed over for being
+   * slow or down is read from again once it decays below the others.
+   *
+   * @param replicas replicas of a key, primary first
+   *
+   * @return the same replicas, in the order to try them
+   */
+  public static TPCSlaveInfo[] byReadCost(TPCSlaveInfo[] replicas) {
+    if (replicas.length < 2) {
+      return replicas;
+    }
+    double[] latencies = new double[replicas.length];
+    double sampled = 0;
+    int samples = 0;
+    for (int i = 0; i < replicas.length; i++) {
+      latencies[i] = replicas[i].getReadLatency();
+      if (latencies[i] != 0) {
+        sampled += latencies[i];
+        samples++;
+      }
+    }
+    double unsampled = samples == 0 ? 1 : sampled / samples;
+    double[] costs = new double[replicas.length];
+    for (int i = 0; i < replicas.length; i++) {
+      costs[i] = (latencies[i] == 0 ? unsampled : latencies[i])
+          * (replicas[i].getOutstandingReads() + 1);
+    }
+    // Insertion sort: stable, and there are only a handful of replicas
+    TPCSlaveInfo[] ordered = replicas.clone();
+    for (int i = 1; i < ordered.length; i++) {
+      TPCSlaveInfo replica = ordered[i];
+      double cost = costs[i];
+      int j = i - 1;
+      while (j >= 0 && cost < costs[j]) {
+        ordered[j + 1] = ordered[j];
+        costs[j + 1] = costs[j];
+        j--;
+      }
+      ordered[j + 1] = replica;
+      costs[j + 1] = cost;
+    }
+    return ordered;
+  }
+
+  /**
+   * Starts a request to the slave. Requests share one persistent connection
+   * to the slave, on which they are told apart by ID, so any number can be
+   * in flight at once; the connection is opened, within timeout, if there
+   * is none or the last one failed.
    *
    * @param timeout
-   * @return Socket object connected to SlaveServer, with timeout set
+   * @return Socket for one request and its response; see
+   *         MultiplexedChannel.Stream
    *
    * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_CREATE_SOCKET,
    *                     or ERROR_COULD_NOT_CONNECT
    */
   public Socket connectHost(int timeout) throws KVException {   
+    requests.incrementAndGet();
     try {
-      Socket sock = new Socket();
-      sock.connect(new InetSocketAddress(hostname, port), timeout);
-      return sock;
+      synchronized (this) {
+        if (channel == null || !channel.isOpen() || !channel.isConnectedTo(hostname, port)
+            || channel.isIdle(CHANNEL_IDLE_MILLIS)) {
+          disconnect();
+          channel = MultiplexedChannel.connect(hostname, port, timeout);
+          connections.incrementAndGet();
+        }
+        return channel.open();
+      }
     } catch (SocketTimeoutException e) {
       throw new KVException(ERROR_SOCKET_TIMEOUT);
     } catch (IOException e) {
@@ -105,7 +332,19 @@ public class TPCSlaveInfo {
   }
 
   /**
-   * Closes a socket.
+   * Closes the connection to the slave, failing any request waiting on it.
+   * The next request opens a new one.
+   */
+  public synchronized void disconnect() {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Closes a socket. A request's socket is closed without closing the
+   * connection it shares with others.
    * Best effort, ignores error since the response has already been received.
    *
    * @param sock Socket to be closed
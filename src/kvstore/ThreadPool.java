@@ -2,15 +2,21 @@ package kvstore;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
 
   /* Array of threads in the threadpool */
   public Thread threads[];
   
-  private final List<Runnable> jobQueue;
+  private final List<QueuedJob> jobQueue;
   private boolean stopped;
   private final int poolSize;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
 
   /**
    * Constructs a Threadpool with a certain number of threads.
@@ -51,7 +57,8 @@ public class ThreadPool {
    */
   public void addJob(Runnable r) throws InterruptedException {
     synchronized (jobQueue) {
-      jobQueue.add(r);
+      jobQueue.add(new QueuedJob(r, System.nanoTime()));
+      queued.incrementAndGet();
       jobQueue.notifyAll();
     }
   }
@@ -69,10 +76,62 @@ public class ThreadPool {
       while (jobQueue.isEmpty()) {
         jobQueue.wait();       
       }
-       return jobQueue.remove(0);
+      QueuedJob next = jobQueue.remove(0);
+      queued.decrementAndGet();
+      Latencies.QUEUE_WAIT.recordSince(next.enqueuedAt);
+      return next.job;
     }    
   }
 
+  /**
+   * @return number of jobs waiting for a worker
+   */
+  public int getQueueLength() {
+    return queued.get();
+  }
+
+  /**
+   * @return number of workers running a job
+   */
+  public int getActiveWorkers() {
+    return active.get();
+  }
+
+  /**
+   * @return number of jobs run to completion
+   */
+  public long getCompletedJobs() {
+    return completed.get();
+  }
+
+  /**
+   * Adds the counters of this pool to stats without touching the queue
+   * lock.
+   *
+   * @param prefix prefix for the counter names
+   * @param stats  map to add the counters to
+   */
+  public void collectStats(String prefix, Map<String, String> stats) {
+    stats.put(prefix + "workers", Integer.toString(poolSize));
+    stats.put(prefix + "active", Integer.toString(getActiveWorkers()));
+    stats.put(prefix + "queued", Integer.toString(getQueueLength()));
+    stats.put(prefix + "completed", Long.toString(getCompletedJobs()));
+  }
+
+  /**
+   * A job together with the time it was queued.
+   */
+  private static class QueuedJob {
+
+    final Runnable job;
+    final long enqueuedAt;
+
+    QueuedJob(Runnable job, long enqueuedAt) {
+      this.job = job;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+
   /**
    * A thread in the thread pool.
    */
@@ -96,11 +155,22 @@ public class ThreadPool {
      */
     @Override
     public void run() {
-      while (!stopped) {
+      while (!stopped && !threadPool.stopped) {
+        Runnable job;
+        try {
+          job = threadPool.getJob();
+        } catch (InterruptedException e) {
+          System.out.println(e);
+          continue;
+        }
+        active.incrementAndGet();
         try {
-          threadPool.getJob().run();
+          job.run();
         } catch (Exception e) {
           System.out.println(e);
+        } finally {
+          active.decrementAndGet();
+          completed.incrementAndGet();
         }
       }
     }
@@ -0,0 +1,232 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel. Each level has SLOTS slots; a slot on level 0
+ * spans one tick and a slot on level L spans SLOTS^L ticks. An item is
+ * filed on the lowest level whose slot boundary separates its deadline from
+ * the current tick, and is moved down a level (cascaded) when the clock
+ * reaches the start of its slot. Scheduling and firing are O(1) per item
+ * whatever the number of pending items, and an item cascades at most once
+ * per level.
+ *
+ * Deadlines beyond the top level wait in an overflow list that is refiled
+ * every time the top level wraps around.
+ *
+ * A cancelled item is let go at once, and the empty timer that held it is
+ * dropped when the clock reaches it.
+ *
+ * While nothing is scheduled the clock jumps straight to the time it is
+ * given rather than walking every tick, so a wheel left idle for a long
+ * time costs nothing to start again.
+ *
+ * This class is thread-safe.
+ *
+ * @param <T> type of the items scheduled
+ */
+public class TimingWheel<T> {
+
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  private final long tickMillis;
+  private final int levels;
+  private final List<List<Timer<T>>> wheel;
+  private List<Timer<T>> overflow = new ArrayList<>();
+  private long currentTick;
+  private int size;
+
+  /**
+   * Constructs a TimingWheel.
+   *
+   * @param tickMillis  milliseconds per tick, the resolution of the wheel
+   * @param levels      number of levels; deadlines up to
+   *                    tickMillis * 64^levels ahead are filed directly
+   * @param startMillis current time in milliseconds
+   */
+  public TimingWheel(long tickMillis, int levels, long startMillis) {
+    this.tickMillis = tickMillis;
+    this.levels = levels;
+    this.wheel = new ArrayList<>(levels * SLOTS);
+    for (int i = 0; i < levels * SLOTS; i++) {
+      wheel.add(new ArrayList<Timer<T>>());
+    }
+    this.currentTick = startMillis / tickMillis;
+  }
+
+  /**
+   * Schedules item to be returned by advance once deadlineMillis is reached.
+   * Deadlines already past are returned by the next advance.
+   *
+   * @param item           item to schedule
+   * @param deadlineMillis time, in milliseconds, at which item is due
+   *
+   * @return timer to hand to cancel
+   */
+  public synchronized Timer<T> schedule(T item, long deadlineMillis) {
+    return schedule(item, deadlineMillis, Long.MIN_VALUE);
+  }
+
+  /**
+   * Schedules item as schedule(item, deadlineMillis) does, first moving the
+   * clock of an idle wheel to nowMillis, so that the next advance does not
+   * walk the ticks it was idle for.
+   *
+   * @param item           item to schedule
+   * @param deadlineMillis time, in milliseconds, at which item is due
+   * @param nowMillis      current time in milliseconds
+   *
+   * @return timer to hand to cancel
+   */
+  public synchronized Timer<T> schedule(T item, long deadlineMillis, long nowMillis) {
+    skipIdle(nowMillis / tickMillis);
+    // Round up so that an item never fires before its deadline
+    long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+    Timer<T> timer = new Timer<>(item, Math.max(tick, currentTick + 1));
+    file(timer);
+    size++;
+    return timer;
+  }
+
+  /**
+   * Cancels a scheduled item, so that advance does not return it.
+   *
+   * @param timer timer returned by schedule
+   *
+   * @return false if the item had already been returned, cancelled or
+   *         cleared
+   */
+  public synchronized boolean cancel(Timer<T> timer) {
+    if (timer.item == null) {
+      return false;
+    }
+    timer.item = null;
+    size--;
+    return true;
+  }
+
+  /**
+   * Moves the clock forward to nowMillis.
+   *
+   * @param nowMillis current time in milliseconds
+   *
+   * @return items whose deadlines have been reached, in tick order
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> due = new ArrayList<>();
+    long target = nowMillis / tickMillis;
+    skipIdle(target);
+    while (currentTick < target) {
+      long tick = ++currentTick;
+      for (int level = levels; level > 0; level--) {
+        if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+          continue;
+        }
+        List<Timer<T>> timers;
+        if (level == levels) {
+          timers = overflow;
+          overflow = new ArrayList<>();
+        } else {
+          timers = takeSlot(level, tick);
+        }
+        for (Timer<T> timer : timers) {
+          if (timer.item != null) {
+            file(timer);
+          }
+        }
+      }
+      for (Timer<T> timer : takeSlot(0, tick)) {
+        if (timer.item != null) {
+          due.add(timer.item);
+          timer.item = null;
+        }
+      }
+    }
+    size -= due.size();
+    return due;
+  }
+
+  /**
+   * @return number of items scheduled but not yet returned by advance
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Drops every scheduled item.
+   */
+  public synchronized void clear() {
+    for (List<Timer<T>> slot : wheel) {
+      for (Timer<T> timer : slot) {
+        timer.item = null;
+      }
+      slot.clear();
+    }
+    for (Timer<T> timer : overflow) {
+      timer.item = null;
+    }
+    overflow.clear();
+    size = 0;
+  }
+
+  /**
+   * Moves the clock to target at once if nothing is scheduled, dropping
+   * the timers of cancelled items left in the slots, which would no longer
+   * be where the clock looks for them.
+   */
+  private void skipIdle(long target) {
+    if (size != 0 || currentTick >= target) {
+      return;
+    }
+    for (List<Timer<T>> slot : wheel) {
+      slot.clear();
+    }
+    overflow.clear();
+    currentTick = target;
+  }
+
+  private void file(Timer<T> timer) {
+    for (int level = 0; level < levels; level++) {
+      int shift = SLOT_BITS * (level + 1);
+      if ((timer.tick >>> shift) == (currentTick >>> shift)) {
+        wheel.get(slotIndex(level, timer.tick)).add(timer);
+        return;
+      }
+    }
+    overflow.add(timer);
+  }
+
+  private List<Timer<T>> takeSlot(int level, long tick) {
+    int index = slotIndex(level, tick);
+    List<Timer<T>> slot = wheel.get(index);
+    if (slot.isEmpty()) {
+      return slot;
+    }
+    wheel.set(index, new ArrayList<Timer<T>>());
+    return slot;
+  }
+
+  private static int slotIndex(int level, long tick) {
+    return level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+  }
+
+  /**
+   * An item scheduled on a TimingWheel.
+   */
+  public static final class Timer<T> {
+
+    /* Null once returned by advance, cancelled or cleared */
+    private T item;
+    private final long tick;
+
+    Timer(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+
+}
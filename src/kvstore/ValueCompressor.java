@@ -0,0 +1,343 @@
+package kvstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fast LZ77 block compressor for values held by the storage layer. The
+ * block format follows LZ4: each sequence is a token byte (literal length in
+ * the high nibble, match length minus MIN_MATCH in the low nibble), optional
+ * length extension bytes, the literals, and a two-byte little-endian match
+ * offset. A block is prefixed with its uncompressed length as a varint.
+ *
+ * Values whose UTF-8 encoding is shorter than the threshold, or which do not
+ * shrink, are left alone. The compressor also keeps running totals so that
+ * the compression ratio and CPU cost per byte can be reported.
+ */
+public class ValueCompressor {
+
+  public static final int DEFAULT_THRESHOLD = 4 * 1024;
+
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_LOG = 12;
+
+  /* Leading char of strings produced by packToString */
+  private static final char RAW = 'r';
+  private static final char PACKED = 'z';
+
+  private final int threshold;
+
+  private final AtomicLong valuesCompressed = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong bytesDecompressed = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  /**
+   * Constructs a ValueCompressor using DEFAULT_THRESHOLD.
+   */
+  public ValueCompressor() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Constructs a ValueCompressor.
+   *
+   * @param threshold minimum UTF-8 length, in bytes, of a value before it is
+   *                  compressed
+   */
+  public ValueCompressor(int threshold) {
+    this.threshold = threshold;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Returns the form of value that should be stored: value itself if it is
+   * below the threshold or does not compress, otherwise a CompressedValue
+   * that is only decompressed when read.
+   *
+   * @param value String value to store
+   *
+   * @return value, or a CompressedValue holding it
+   */
+  public CharSequence pack(String value) {
+    if (value.length() < threshold / 3) {
+      // Even at three bytes per char this cannot reach the threshold
+      return value;
+    }
+    byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+    if (raw.length < threshold) {
+      return value;
+    }
+    byte[] packed = compressAndRecord(raw);
+    if (packed == null) {
+      return value;
+    }
+    return new CompressedValue(this, packed, value.length());
+  }
+
+  /**
+   * Encodes value as a String suitable for containers that can only hold
+   * Strings, such as KVCache. Compressed bytes are carried one per char, so
+   * the saving is largest on JVMs with compact Latin-1 strings.
+   *
+   * @param value String value to encode
+   *
+   * @return encoded String, to be decoded with unpackString
+   */
+  public String packToString(String value) {
+    CharSequence packed = pack(value);
+    if (packed instanceof CompressedValue) {
+      return PACKED + new String(((CompressedValue) packed).data, StandardCharsets.ISO_8859_1);
+    }
+    return RAW + value;
+  }
+
+  /**
+   * Decodes a String produced by packToString.
+   *
+   * @param packed String from packToString, may be null
+   *
+   * @return the original value, or null if packed is null
+   */
+  public String unpackString(String packed) {
+    if (packed == null) {
+      return null;
+    }
+    if (packed.charAt(0) == PACKED) {
+      return decompressToString(packed.substring(1).getBytes(StandardCharsets.ISO_8859_1));
+    }
+    return packed.substring(1);
+  }
+
+  /**
+   * Decompresses a block and decodes it as UTF-8, recording the time spent.
+   *
+   * @param block compressed block
+   *
+   * @return decompressed String
+   */
+  String decompressToString(byte[] block) {
+    long start = System.nanoTime();
+    byte[] raw = decompress(block);
+    String value = new String(raw, StandardCharsets.UTF_8);
+    decompressNanos.addAndGet(System.nanoTime() - start);
+    bytesDecompressed.addAndGet(raw.length);
+    return value;
+  }
+
+  private byte[] compressAndRecord(byte[] raw) {
+    long start = System.nanoTime();
+    byte[] packed = compress(raw);
+    compressNanos.addAndGet(System.nanoTime() - start);
+    bytesIn.addAndGet(raw.length);
+    if (packed.length >= raw.length) {
+      bytesOut.addAndGet(raw.length);
+      return null;
+    }
+    valuesCompressed.incrementAndGet();
+    bytesOut.addAndGet(packed.length);
+    return packed;
+  }
+
+  /**
+   * @return number of values stored in compressed form
+   */
+  public long getValuesCompressed() {
+    return valuesCompressed.get();
+  }
+
+  /**
+   * @return uncompressed bytes over stored bytes for every value that went
+   *         through the compressor, or 1.0 if none has
+   */
+  public double getCompressionRatio() {
+    long out = bytesOut.get();
+    return out == 0 ? 1.0 : (double) bytesIn.get() / out;
+  }
+
+  /**
+   * @return average nanoseconds spent compressing each input byte
+   */
+  public double getCompressNanosPerByte() {
+    long in = bytesIn.get();
+    return in == 0 ? 0.0 : (double) compressNanos.get() / in;
+  }
+
+  /**
+   * @return average nanoseconds spent decompressing each output byte
+   */
+  public double getDecompressNanosPerByte() {
+    long out = bytesDecompressed.get();
+    return out == 0 ? 0.0 : (double) decompressNanos.get() / out;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("compressed=%d ratio=%.2f compress=%.2fns/B decompress=%.2fns/B",
+        getValuesCompressed(), getCompressionRatio(),
+        getCompressNanosPerByte(), getDecompressNanosPerByte());
+  }
+
+  /**
+   * Compresses src into a self-describing block.
+   *
+   * @param src bytes to compress
+   *
+   * @return compressed block
+   */
+  public static byte[] compress(byte[] src) {
+    int n = src.length;
+    byte[] dst = new byte[5 + n + n / 255 + 16];
+    int op = writeVarInt(dst, 0, n);
+    int anchor = 0;
+
+    if (n >= MF_LIMIT + 1) {
+      int[] table = new int[1 << HASH_LOG];
+      Arrays.fill(table, -1);
+      int matchLimit = n - MF_LIMIT;
+      int copyLimit = n - LAST_LITERALS;
+      int i = 0;
+      while (i < matchLimit) {
+        int seq = readInt(src, i);
+        int h = hash(seq);
+        int ref = table[h];
+        table[h] = i;
+        if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+          i++;
+          continue;
+        }
+        int matchLen = MIN_MATCH;
+        while (i + matchLen < copyLimit && src[ref + matchLen] == src[i + matchLen]) {
+          matchLen++;
+        }
+        op = writeSequence(dst, op, src, anchor, i - anchor, i - ref, matchLen);
+        i += matchLen;
+        anchor = i;
+      }
+    }
+    op = writeSequence(dst, op, src, anchor, n - anchor, 0, 0);
+    return Arrays.copyOf(dst, op);
+  }
+
+  /**
+   * Decompresses a block produced by compress.
+   *
+   * @param src compressed block
+   *
+   * @return decompressed bytes
+   */
+  public static byte[] decompress(byte[] src) {
+    int ip = 0;
+    int rawLength = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = src[ip++] & 0xFF;
+      rawLength |= (b & 0x7F) << shift;
+      if (b < 0x80) {
+        break;
+      }
+    }
+    byte[] dst = new byte[rawLength];
+    int op = 0;
+    while (ip < src.length) {
+      int token = src[ip++] & 0xFF;
+      int litLen = token >>> 4;
+      if (litLen == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xFF;
+          litLen += b;
+        } while (b == 255);
+      }
+      System.arraycopy(src, ip, dst, op, litLen);
+      ip += litLen;
+      op += litLen;
+      if (ip >= src.length) {
+        break;
+      }
+      int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+      ip += 2;
+      int matchLen = token & 0x0F;
+      if (matchLen == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xFF;
+          matchLen += b;
+        } while (b == 255);
+      }
+      matchLen += MIN_MATCH;
+      int ref = op - offset;
+      if (offset >= matchLen) {
+        System.arraycopy(dst, ref, dst, op, matchLen);
+        op += matchLen;
+      } else {
+        // Overlapping match, copy byte by byte
+        for (int end = op + matchLen; op < end; op++, ref++) {
+          dst[op] = dst[ref];
+        }
+      }
+    }
+    if (op != rawLength) {
+      throw new IllegalArgumentException("Corrupt compressed block");
+    }
+    return dst;
+  }
+
+  private static int writeSequence(byte[] dst, int op, byte[] src, int litStart,
+                                   int litLen, int offset, int matchLen) {
+    int tokenPos = op++;
+    int token = Math.min(litLen, 15) << 4;
+    if (litLen >= 15) {
+      op = writeLengthExtension(dst, op, litLen - 15);
+    }
+    System.arraycopy(src, litStart, dst, op, litLen);
+    op += litLen;
+    if (matchLen > 0) {
+      int extra = matchLen - MIN_MATCH;
+      token |= Math.min(extra, 15);
+      dst[op++] = (byte) offset;
+      dst[op++] = (byte) (offset >>> 8);
+      if (extra >= 15) {
+        op = writeLengthExtension(dst, op, extra - 15);
+      }
+    }
+    dst[tokenPos] = (byte) token;
+    return op;
+  }
+
+  private static int writeLengthExtension(byte[] dst, int op, int len) {
+    while (len >= 255) {
+      dst[op++] = (byte) 255;
+      len -= 255;
+    }
+    dst[op++] = (byte) len;
+    return op;
+  }
+
+  private static int writeVarInt(byte[] dst, int op, int value) {
+    while ((value & ~0x7F) != 0) {
+      dst[op++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dst[op++] = (byte) value;
+    return op;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8)
+        | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+  }
+
+  private static int hash(int seq) {
+    return (seq * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+}
@@ -0,0 +1,77 @@
+package kvstore;
+
+/**
+ * The YCSB core workloads, as proportions of each operation and the key
+ * distribution each is defined with.
+ *
+ * A: update heavy, B: read mostly, C: read only, D: read latest,
+ * E: short ranges, F: read-modify-write.
+ */
+public enum Workload {
+
+  A(0.50, 0.50, 0, 0, 0, "zipfian"),
+  B(0.95, 0.05, 0, 0, 0, "zipfian"),
+  C(1.00, 0, 0, 0, 0, "zipfian"),
+  D(0.95, 0, 0.05, 0, 0, "latest"),
+  E(0, 0, 0.05, 0.95, 0, "zipfian"),
+  F(0.50, 0, 0, 0, 0.50, "zipfian");
+
+  /* Longest scan issued by workload E; lengths are uniform in [1, MAX] */
+  public static final int MAX_SCAN_LENGTH = 100;
+
+  public enum Op {
+    READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE
+  }
+
+  private final double read;
+  private final double update;
+  private final double insert;
+  private final double scan;
+  private final double readModifyWrite;
+  private final String distribution;
+
+  Workload(double read, double update, double insert, double scan, double readModifyWrite,
+           String distribution) {
+    this.read = read;
+    this.update = update;
+    this.insert = insert;
+    this.scan = scan;
+    this.readModifyWrite = readModifyWrite;
+    this.distribution = distribution;
+  }
+
+  /**
+   * @return key distribution the workload is defined with: zipfian or
+   *         latest
+   */
+  public String getDistribution() {
+    return distribution;
+  }
+
+  /**
+   * Picks an operation according to the mix.
+   *
+   * @param u uniform random number in [0, 1)
+   *
+   * @return operation to issue
+   */
+  public Op choose(double u) {
+    if ((u -= read) < 0) {
+      return Op.READ;
+    }
+    if ((u -= update) < 0) {
+      return Op.UPDATE;
+    }
+    if ((u -= insert) < 0) {
+      return Op.INSERT;
+    }
+    if ((u -= scan) < 0) {
+      return Op.SCAN;
+    }
+    if ((u -= readModifyWrite) < 0) {
+      return Op.READ_MODIFY_WRITE;
+    }
+    return Op.READ;
+  }
+
+}
@@ -0,0 +1,360 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Pending writes of a KVServer running in write-back mode. A put lands in
+ * the cache and here, and a background thread copies it to the store later,
+ * in batches. Every dirty entry is also in the cache; when the cache evicts
+ * one, the server writes it to the store on the spot, so a cache miss can
+ * always be served from the store.
+ *
+ * The buffer is volatile. On a slave, committed writes are already in the
+ * TPCLog before they reach the server, and replaying the log after a crash
+ * restores any write that was lost here.
+ *
+ * put, get, remove and flushKey must be called with the stripe lock of
+ * the key held, and the flusher takes the same stripes, in stripe order.
+ * Evictions arrive holding only the lock of a cache set, so each entry is
+ * written to the store under a monitor of its own and only while it is still
+ * the pending write for its key; a stale entry can never overwrite a newer
+ * one.
+ */
+public class WriteBackBuffer implements KVCache.EvictionListener {
+
+  private final KVStore store;
+  private final LockStripes stripes;
+  private final Object[] writeMonitors;
+  private final int maxDirty;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final ConcurrentHashMap<KVKey, DirtyEntry> dirty = new ConcurrentHashMap<>();
+  private final Object flushSignal = new Object();
+  private Thread flushThread;
+  private volatile boolean running;
+
+  private final AtomicLong flushed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong evictionFlushes = new AtomicLong();
+  private final AtomicLong writeThroughs = new AtomicLong();
+  private volatile long lastFlushLagMillis;
+  private volatile long maxFlushLagMillis;
+
+  /**
+   * Constructs a WriteBackBuffer. Call start to begin background flushing.
+   *
+   * @param store               KVStore the writes are destined for
+   * @param stripes             LockStripes guarding the keys
+   * @param maxDirty            number of dirty entries beyond which puts are
+   *                            written through
+   * @param batchSize           number of entries flushed under one round of
+   *                            locking; also the backlog that wakes the
+   *                            flusher early
+   * @param flushIntervalMillis longest the flusher sleeps between batches
+   */
+  public WriteBackBuffer(KVStore store, LockStripes stripes, int maxDirty, int batchSize,
+                         long flushIntervalMillis) {
+    this.store = store;
+    this.stripes = stripes;
+    this.writeMonitors = new Object[stripes.size()];
+    for (int i = 0; i < writeMonitors.length; i++) {
+      writeMonitors[i] = new Object();
+    }
+    this.maxDirty = maxDirty;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  /**
+   * Starts the background flush thread.
+   */
+  public synchronized void start() {
+    if (flushThread != null) {
+      return;
+    }
+    running = true;
+    flushThread = new Thread(new flushJob(), "KVServer-writeback");
+    flushThread.setDaemon(true);
+    flushThread.start();
+  }
+
+  /**
+   * Stops the background flush thread and writes every dirty entry to the
+   * store.
+   */
+  public void stop() {
+    Thread thread;
+    synchronized (this) {
+      thread = flushThread;
+      flushThread = null;
+      running = false;
+    }
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Records a write to be flushed later.
+   *
+   * @param key       KVKey key
+   * @param value     String value
+   * @param expiresAt expiry time in milliseconds since the epoch, or 0
+   *
+   * @return true if the write was buffered, false if the buffer is full and
+   *         the caller must write to the store itself
+   */
+  public boolean put(KVKey key, String value, long expiresAt) {
+    if (dirty.size() >= maxDirty && !dirty.containsKey(key)) {
+      writeThroughs.incrementAndGet();
+      return false;
+    }
+    dirty.put(key, new DirtyEntry(value, expiresAt, System.currentTimeMillis()));
+    if (dirty.size() >= batchSize) {
+      synchronized (flushSignal) {
+        flushSignal.notify();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param key KVKey key
+   *
+   * @return the pending write for key, or null if it has none
+   */
+  public DirtyEntry get(KVKey key) {
+    return dirty.get(key);
+  }
+
+  /**
+   * Drops the pending write for key, which is being deleted.
+   *
+   * @param key KVKey key
+   *
+   * @return true if key had a pending write that had not expired
+   */
+  public boolean remove(KVKey key) {
+    DirtyEntry entry = dirty.remove(key);
+    return entry != null && !entry.isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Writes the pending write for key, if any, to the store now.
+   *
+   * @param key KVKey key
+   *
+   * @return true if key had a pending write
+   */
+  public boolean flushKey(KVKey key) {
+    DirtyEntry entry = dirty.get(key);
+    return entry != null && write(key, entry, System.currentTimeMillis());
+  }
+
+  /**
+   * Flushes an entry the cache is evicting, so that it can be read back
+   * from the store.
+   *
+   * @param key key of the entry being evicted
+   */
+  @Override
+  public void evicted(String key) {
+    if (flushKey(KVKey.of(key))) {
+      evictionFlushes.incrementAndGet();
+    }
+  }
+
+  /**
+   * Writes every dirty entry to the store, one batch at a time.
+   */
+  public void flush() {
+    while (flushBatch() > 0) {
+      // keep going until clean
+    }
+  }
+
+  /**
+   * Writes up to batchSize dirty entries to the store, holding the stripe
+   * locks of all their keys at once.
+   *
+   * @return number of entries written
+   */
+  int flushBatch() {
+    List<KVKey> keys = new ArrayList<>(batchSize);
+    Iterator<KVKey> it = dirty.keySet().iterator();
+    while (it.hasNext() && keys.size() < batchSize) {
+      keys.add(it.next());
+    }
+    if (keys.isEmpty()) {
+      return 0;
+    }
+    int written = 0;
+    long lag = 0;
+    List<Lock> locks = stripes.getLocks(keys);
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+    try {
+      long now = System.currentTimeMillis();
+      for (KVKey key : keys) {
+        DirtyEntry entry = dirty.get(key);
+        if (entry != null && write(key, entry, now)) {
+          lag = Math.max(lag, now - entry.dirtiedAt);
+          written++;
+        }
+      }
+    } finally {
+      for (int i = locks.size() - 1; i >= 0; i--) {
+        locks.get(i).unlock();
+      }
+    }
+    batches.incrementAndGet();
+    lastFlushLagMillis = lag;
+    if (lag > maxFlushLagMillis) {
+      maxFlushLagMillis = lag;
+    }
+    return written;
+  }
+
+  private boolean write(KVKey key, DirtyEntry entry, long now) {
+    synchronized (writeMonitors[(key.hashCode() & 0x7fffffff) % writeMonitors.length]) {
+      if (dirty.get(key) != entry) {
+        // Flushed or replaced since it was read
+        return false;
+      }
+      if (entry.expiresAt == 0) {
+        store.put(key, entry.value, 0);
+      } else if (entry.expiresAt > now) {
+        store.put(key, entry.value, entry.expiresAt - now);
+      } else {
+        // Expired while dirty; make sure no older value survives it
+        store.remove(key);
+      }
+      dirty.remove(key, entry);
+    }
+    flushed.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return number of entries waiting to be flushed
+   */
+  public int getDirtyCount() {
+    return dirty.size();
+  }
+
+  /**
+   * @return number of entries written to the store by flushes
+   */
+  public long getFlushedCount() {
+    return flushed.get();
+  }
+
+  /**
+   * @return number of batches flushed
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /**
+   * @return number of entries flushed because the cache evicted them
+   */
+  public long getEvictionFlushCount() {
+    return evictionFlushes.get();
+  }
+
+  /**
+   * @return number of puts written through because the buffer was full
+   */
+  public long getWriteThroughCount() {
+    return writeThroughs.get();
+  }
+
+  /**
+   * @return age of the oldest entry in the last batch flushed, in
+   *         milliseconds
+   */
+  public long getLastFlushLagMillis() {
+    return lastFlushLagMillis;
+  }
+
+  /**
+   * @return largest flush lag seen, in milliseconds
+   */
+  public long getMaxFlushLagMillis() {
+    return maxFlushLagMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("dirty=%d flushed=%d batches=%d evictFlushes=%d writeThroughs=%d "
+        + "lag=%dms maxLag=%dms", getDirtyCount(), getFlushedCount(), getBatchCount(),
+        getEvictionFlushCount(), getWriteThroughCount(), getLastFlushLagMillis(),
+        getMaxFlushLagMillis());
+  }
+
+  /**
+   * A buffered write.
+   */
+  public static final class DirtyEntry {
+
+    final String value;
+    final long expiresAt;
+    final long dirtiedAt;
+
+    DirtyEntry(String value, long expiresAt, long dirtiedAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.dirtiedAt = dirtiedAt;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+
+    /**
+     * @param now current time in milliseconds since the epoch
+     *
+     * @return true if the write has expired at time now
+     */
+    public boolean isExpired(long now) {
+      return expiresAt != 0 && now >= expiresAt;
+    }
+  }
+
+  private class flushJob implements Runnable {
+
+    @Override
+    public void run() {
+      while (running) {
+        synchronized (flushSignal) {
+          try {
+            if (dirty.size() < batchSize) {
+              flushSignal.wait(flushIntervalMillis);
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        flush();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Draws integers in [0, items) with a Zipfian distribution, using the
+ * rejection-free method of Gray et al., "Quickly Generating Billion-Record
+ * Synthetic Databases", as YCSB does. Item 0 is the most popular. With
+ * scrambled set, popular items are spread over the range by hashing, so that
+ * hot keys do not sit next to each other.
+ */
+public class ZipfianGenerator {
+
+  public static final double DEFAULT_THETA = 0.99;
+
+  private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 1099511628211L;
+
+  private final long items;
+  private final double theta;
+  private final double alpha;
+  private final double zetan;
+  private final double eta;
+  private final boolean scrambled;
+
+  /**
+   * Constructs a ZipfianGenerator with DEFAULT_THETA.
+   *
+   * @param items     number of items
+   * @param scrambled whether to spread popular items over the range
+   */
+  public ZipfianGenerator(long items, boolean scrambled) {
+    this(items, DEFAULT_THETA, scrambled);
+  }
+
+  /**
+   * Constructs a ZipfianGenerator. Construction is O(items).
+   *
+   * @param items     number of items
+   * @param theta     skew, between 0 (uniform) and 1 exclusive
+   * @param scrambled whether to spread popular items over the range
+   */
+  public ZipfianGenerator(long items, double theta, boolean scrambled) {
+    this.items = items;
+    this.theta = theta;
+    this.scrambled = scrambled;
+    this.alpha = 1.0 / (1.0 - theta);
+    this.zetan = zeta(items, theta);
+    double zeta2 = zeta(2, theta);
+    this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+  }
+
+  private static double zeta(long n, double theta) {
+    double sum = 0;
+    for (long i = 1; i <= n; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+
+  /**
+   * @param random source of randomness
+   *
+   * @return next item
+   */
+  public long next(Random random) {
+    double u = random.nextDouble();
+    double uz = u * zetan;
+    long rank;
+    if (uz < 1.0) {
+      rank = 0;
+    } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+      rank = 1;
+    } else {
+      rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+    if (!scrambled) {
+      return rank;
+    }
+    return (fnv64(rank) & Long.MAX_VALUE) % items;
+  }
+
+  private static long fnv64(long value) {
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < 8; i++) {
+      hash ^= value & 0xFF;
+      hash *= FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+}
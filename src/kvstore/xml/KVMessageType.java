@@ -8,6 +8,8 @@
 
 package kvstore.xml;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -28,6 +30,12 @@ import javax.xml.bind.annotation.XmlType;
  *         &lt;element name="Key" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Value" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Message" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="End" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="Limit" type="{http://www.w3.org/2001/XMLSchema}int" minOccurs="0"/>
+ *         &lt;element name="TTL" type="{http://www.w3.org/2001/XMLSchema}long" minOccurs="0"/>
+ *         &lt;element name="Expected" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="Version" type="{http://www.w3.org/2001/XMLSchema}long" minOccurs="0"/>
+ *         &lt;element name="KVPair" type="{}KVPairType" maxOccurs="unbounded" minOccurs="0"/>
  *       &lt;/sequence>
  *       &lt;attribute name="type" use="required" type="{http://www.w3.org/2001/XMLSchema}string" />
  *     &lt;/restriction>
@@ -41,7 +49,13 @@ import javax.xml.bind.annotation.XmlType;
 @XmlType(name = "KVMessageType", propOrder = {
     "key",
     "value",
-    "message"
+    "message",
+    "end",
+    "limit",
+    "ttl",
+    "expected",
+    "version",
+    "kvPair"
 })
 public class KVMessageType {
 
@@ -51,6 +65,18 @@ public class KVMessageType {
     protected String value;
     @XmlElement(name = "Message")
     protected String message;
+    @XmlElement(name = "End")
+    protected String end;
+    @XmlElement(name = "Limit")
+    protected Integer limit;
+    @XmlElement(name = "TTL")
+    protected Long ttl;
+    @XmlElement(name = "Expected")
+    protected String expected;
+    @XmlElement(name = "Version")
+    protected Long version;
+    @XmlElement(name = "KVPair")
+    protected List<KVPairType> kvPair;
     @XmlAttribute(name = "type", required = true)
     protected String type;
 
@@ -126,6 +152,155 @@ public class KVMessageType {
         this.message = value;
     }
 
+    /**
+     * Gets the value of the end property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getEnd() {
+        return end;
+    }
+
+    /**
+     * Sets the value of the end property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setEnd(String value) {
+        this.end = value;
+    }
+
+    /**
+     * Gets the value of the limit property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Integer }
+     *     
+     */
+    public Integer getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the value of the limit property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Integer }
+     *     
+     */
+    public void setLimit(Integer value) {
+        this.limit = value;
+    }
+
+    /**
+     * Gets the value of the ttl property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Long }
+     *     
+     */
+    public Long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Sets the value of the ttl property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Long }
+     *     
+     */
+    public void setTtl(Long value) {
+        this.ttl = value;
+    }
+
+    /**
+     * Gets the value of the expected property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getExpected() {
+        return expected;
+    }
+
+    /**
+     * Sets the value of the expected property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setExpected(String value) {
+        this.expected = value;
+    }
+
+    /**
+     * Gets the value of the version property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Long }
+     *     
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the value of the version property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Long }
+     *     
+     */
+    public void setVersion(Long value) {
+        this.version = value;
+    }
+
+    /**
+     * Gets the value of the kvPair property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the kvPair property.
+     * 
+     * <p>
+     * For example, to add a new item, do as follows:
+     * <pre>
+     *    getKVPair().add(newItem);
+     * </pre>
+     * 
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link KVPairType }
+     * 
+     * 
+     */
+    public List<KVPairType> getKVPair() {
+        if (kvPair == null) {
+            kvPair = new ArrayList<KVPairType>();
+        }
+        return this.kvPair;
+    }
+
     /**
      * Gets the value of the type property.
      * 
@@ -26,6 +26,7 @@ import javax.xml.bind.annotation.XmlType;
  *       &lt;sequence>
  *         &lt;element name="Key" type="{http://www.w3.org/2001/XMLSchema}string"/>
  *         &lt;element name="Value" type="{http://www.w3.org/2001/XMLSchema}string"/>
+ *         &lt;element name="Version" type="{http://www.w3.org/2001/XMLSchema}long" minOccurs="0"/>
  *       &lt;/sequence>
  *     &lt;/restriction>
  *   &lt;/complexContent>
@@ -37,7 +38,8 @@ import javax.xml.bind.annotation.XmlType;
 @XmlAccessorType(XmlAccessType.FIELD)
 @XmlType(name = "KVPairType", propOrder = {
     "key",
-    "value"
+    "value",
+    "version"
 })
 public class KVPairType {
 
@@ -45,6 +47,8 @@ public class KVPairType {
     protected String key;
     @XmlElement(name = "Value", required = true)
     protected String value;
+    @XmlElement(name = "Version")
+    protected Long version;
 
     /**
      * Gets the value of the key property.
@@ -94,4 +98,28 @@ public class KVPairType {
         this.value = value;
     }
 
+    /**
+     * Gets the value of the version property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Long }
+     *     
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the value of the version property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Long }
+     *     
+     */
+    public void setVersion(Long value) {
+        this.version = value;
+    }
+
 }
@@ -0,0 +1,79 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+public class AsyncKVClientTest extends EndToEndTemplate {
+
+  @Test
+  public void testManyOutstanding() throws Exception {
+    String hostname = InetAddress.getLocalHost().getHostAddress();
+    try (AsyncKVClient async = new AsyncKVClient(hostname, 8080)) {
+      List<CompletableFuture<Void>> puts = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        puts.add(async.put("key" + i, "value" + i));
+      }
+      CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])).get();
+
+      List<CompletableFuture<String>> gets = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        gets.add(async.get("key" + i));
+      }
+      for (int i = 0; i < 200; i++) {
+        assertEquals("value" + i, gets.get(i).get());
+      }
+      assertEquals(Long.valueOf(5), async.incr("counter", 5).get());
+      assertEquals("value7", client.get("key7"));
+      assertKVFailure(async.get("missing"), ERROR_NO_SUCH_KEY);
+      // The count drops just after each future completes
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (async.getOutstanding() > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      assertEquals(0, async.getOutstanding());
+    }
+  }
+
+  @Test
+  public void testTimeoutAndClose() throws Exception {
+    String hostname = InetAddress.getLocalHost().getHostAddress();
+    // Accepts connections but never answers
+    try (ServerSocket silent = new ServerSocket(0)) {
+      AsyncKVClient async = new AsyncKVClient(hostname, silent.getLocalPort(), 200, 4,
+          java.util.concurrent.ForkJoinPool.commonPool());
+      long start = System.currentTimeMillis();
+      assertKVFailure(async.get("key"), ERROR_SOCKET_TIMEOUT);
+      assertTrue(System.currentTimeMillis() - start < 5000);
+
+      CompletableFuture<String> outstanding = async.get("key");
+      Socket accepted = silent.accept();
+      async.close();
+      assertKVFailure(outstanding, ERROR_CLIENT_CLOSED);
+      assertKVFailure(async.get("key"), ERROR_CLIENT_CLOSED);
+      accepted.close();
+    }
+  }
+
+  private static void assertKVFailure(CompletableFuture<?> future, String message)
+      throws InterruptedException {
+    try {
+      future.get();
+      fail("Request should have failed with " + message);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof KVException);
+      assertEquals(message, ((KVException) e.getCause()).getKVMessage().getMessage());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ConnectionPoolTest extends EndToEndTemplate {
+
+  @Test
+  public void testPooledRequestsReuseConnections() throws Exception {
+    client.enablePooling(2, 1000, 30000);
+    final KVClient pooled = client;
+    List<Thread> threads = new ArrayList<>();
+    final List<Throwable> failures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 25; i++) {
+              pooled.put("key" + thread + "." + i, "value" + i);
+              assertEquals("value" + i, pooled.get("key" + thread + "." + i));
+            }
+            pooled.del("key" + thread + ".0");
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      });
+      threads.add(worker);
+      worker.start();
+    }
+    for (Thread worker : threads) {
+      worker.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    ConnectionPool pool = client.getPool();
+    assertTrue(pool.getCreatedCount() <= 2);
+    assertTrue(pool.getReusedCount() >= 200 - 2);
+    assertEquals(pool.getOpenCount(), pool.getIdleCount());
+    assertEquals(pool.getOpenCount(), serverRunner.getServer().getKeepAliveCount());
+    assertTrue(client.multiGet(java.util.Arrays.asList("key1.1")).containsKey("key1.1"));
+    LinkedHashMap<String, String> stats = client.stats();
+    assertTrue(stats.containsKey("store.pairs"));
+
+    client.close();
+    assertEquals(0, pool.getOpenCount());
+  }
+
+  @Test
+  public void testExhaustionAndIdleEviction() throws Exception {
+    String hostname = InetAddress.getLocalHost().getHostAddress();
+    ConnectionPool pool = new ConnectionPool(hostname, 8080, 1, 100, 50);
+    Socket first = pool.borrow();
+    try {
+      pool.borrow();
+      fail("Borrowed from a full pool");
+    } catch (KVException e) {
+      assertEquals(ERROR_POOL_EXHAUSTED, e.getKVMessage().getMessage());
+    }
+    pool.release(first);
+    Socket second = pool.borrow();
+    assertSame(first, second);
+    pool.release(second);
+
+    Thread.sleep(100);
+    pool.evictIdle();
+    assertEquals(0, pool.getOpenCount());
+    Socket third = pool.borrow();
+    assertNotSame(first, third);
+
+    // A connection whose response was never read is not reused
+    KVMessage request = new KVMessage(GET_REQ);
+    request.setKey("key");
+    request.sendMessage(third);
+    pool.release(third);
+    assertEquals(0, pool.getOpenCount());
+    pool.close();
+  }
+
+  @Test
+  public void testDeadConnectionFailsHealthCheck() throws Exception {
+    client.enablePooling(1, 1000, 30000);
+    client.put("key", "value");
+    assertEquals(1, client.getPool().getIdleCount());
+    serverRunner.stop();
+    Thread.sleep(ConnectionPool.VALIDATE_AFTER_MILLIS + 100);
+    try {
+      client.get("key");
+      fail("Server is down");
+    } catch (KVException e) {
+      assertEquals(ERROR_COULD_NOT_CONNECT, e.getKVMessage().getMessage());
+    }
+    assertTrue(client.getPool().toString().contains("invalid=1"));
+    assertEquals(0, client.getPool().getOpenCount());
+    client.close();
+  }
+}
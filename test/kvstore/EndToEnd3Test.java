@@ -204,7 +204,60 @@ public class EndToEnd3Test extends TPCEndToEndTemplate {
     } while (value.length() < (MAX_LENGTH + 1));
     return value;
   }
-  
-  
 
+  @Test
+  public void testStats() {
+    try {
+      long before = Long.parseLong(client.stats().get("tpc.commits"));
+      client.put(KEY1, "v1");
+      java.util.Map<String, String> stats = client.stats();
+      assertEquals(before + 1, Long.parseLong(stats.get("tpc.commits")));
+      assertTrue(stats.containsKey("cache.hitRatio"));
+      assertTrue(Long.parseLong(stats.get("master.slaves")) > 0);
+    } catch (KVException e) {
+      fail("Unexpected Exception " + e);
+    }
+  }
+
+  @Test
+  public void testMultiPutGetDel() {
+    try {
+      HashMap<String, String> pairs = new HashMap<String, String>();
+      pairs.put(KEY1, "v1");
+      pairs.put(KEY2, "v2");
+      pairs.put(KEY3, "v3");
+      pairs.put(KEY4, "v4");
+      client.multiPut(pairs, 0);
+      assertEquals("v3", client.get(KEY3));
+
+      java.util.Map<String, String> found = client.multiGet(
+          java.util.Arrays.asList(KEY4, "missing", KEY1, KEY2, KEY3));
+      assertEquals("[" + KEY4 + ", " + KEY1 + ", " + KEY2 + ", " + KEY3 + "]",
+          found.keySet().toString());
+      assertEquals("v2", found.get(KEY2));
+
+      client.multiDel(java.util.Arrays.asList(KEY1, KEY3, "missing"));
+      found = client.multiGet(java.util.Arrays.asList(KEY1, KEY2, KEY3, KEY4));
+      assertEquals("{" + KEY2 + "=v2, " + KEY4 + "=v4}", found.toString());
+    } catch (KVException e) {
+      fail("Unexpected Exception " + e);
+    }
+  }
+
+  @Test
+  public void testReadModifyWrite() {
+    try {
+      assertEquals(5, client.incr(KEY1, 5));
+      assertEquals(7, client.incr(KEY1, 2));
+      assertEquals("7", client.get(KEY1));
+      assertTrue(client.cas(KEY1, "7", "100"));
+      assertFalse(client.cas(KEY1, "7", "200"));
+      assertEquals(101, client.incr(KEY1, 1));
+      client.append(KEY2, "a");
+      client.append(KEY2, "b");
+      assertEquals("ab", client.get(KEY2));
+    } catch (KVException e) {
+      fail("Unexpected Exception " + e);
+    }
+  }
 }
@@ -66,6 +66,56 @@ public class EndToEndTest extends EndToEndTemplate {
 
   }
 
-  
+  @Test
+  public void testMulti() throws KVException {
+    java.util.LinkedHashMap<String, String> pairs = new java.util.LinkedHashMap<>();
+    for (int i = 0; i < 20; i++) {
+      pairs.put("batch" + i, "value" + i);
+    }
+    client.multiPut(pairs, 0);
+    assertEquals("value7", client.get("batch7"));
+    assertEquals(pairs, client.multiGet(pairs.keySet()));
 
+    client.multiDel(java.util.Arrays.asList("batch0", "batch1", "nothere"));
+    assertEquals(18, client.multiGet(pairs.keySet()).size());
+    try {
+      client.multiGet(java.util.Collections.<String>emptyList());
+      fail("Empty batch should be rejected");
+    } catch (KVException e) {
+      assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+    }
+  }
+
+  @Test
+  public void testStats() throws KVException {
+    client.put("statkey", "statvalue");
+    client.get("statkey");
+    client.get("statkey");
+    java.util.Map<String, String> stats = client.stats();
+    assertTrue(Long.parseLong(stats.get("cache.hits")) >= 2);
+    assertTrue(Long.parseLong(stats.get("store.pairs")) >= 1);
+    assertTrue(Long.parseLong(stats.get("threadpool.workers")) > 0);
+    assertEquals("0", stats.get("threadpool.queued"));
+    assertTrue(stats.containsKey("latency.kvserver.store.p99"));
+  }
+
+  @Test
+  public void testReadModifyWrite() throws KVException {
+    assertEquals(1, client.incr("counter", 1));
+    assertEquals(11, client.incr("counter", 10));
+    assertTrue(client.cas("counter", "11", "20"));
+    assertFalse(client.cas("counter", "11", "30"));
+    assertFalse(client.cas("counter", null, "30"));
+    assertTrue(client.cas("fresh", null, "a"));
+    client.append("fresh", "b");
+    client.append("list", "x");
+    assertEquals("ab", client.get("fresh"));
+    assertEquals("x", client.get("list"));
+    try {
+      client.incr("fresh", 1);
+      fail("Incremented a non-number");
+    } catch (KVException e) {
+      assertEquals(ERROR_NOT_A_NUMBER, e.getKVMessage().getMessage());
+    }
+  }
 }
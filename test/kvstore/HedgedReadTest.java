@@ -0,0 +1,124 @@
+package kvstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HedgedReadTest extends TPCEndToEndTemplate {
+
+  static final int NUMKEYS = 40;
+  /* How long a slow slave takes to answer a get; past any hedge delay
+     taken from fast reads, but short of TIMEOUT */
+  static final long SLOW_MILLIS = 2000;
+
+  /* Slave servers by ID, each of which waits delayMillis before a get */
+  HashMap<Long, DelayedServer> delayed = new HashMap<>();
+
+  private static class DelayedServer extends KVServer {
+
+    volatile long delayMillis;
+
+    DelayedServer() {
+      super(100, 10);
+    }
+
+    @Override
+    public String lookup(KVKey key) {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.lookup(key);
+    }
+  }
+
+  @Override
+  protected KVServer newSlaveServer(long slaveID) {
+    DelayedServer server = new DelayedServer();
+    delayed.put(slaveID, server);
+    return server;
+  }
+
+  @Test
+  public void testHedgedGets() throws Exception {
+    master.enableHedgedReads(100, 0);
+    putKeys(NUMKEYS);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < NUMKEYS; i++) {
+        assertEquals("value" + i, client.get("key" + i));
+      }
+      // Let the hedge delays be taken from the reads so far
+      Thread.sleep(TPCSlaveInfo.HEDGE_REFRESH_NANOS / 1000000 + 10);
+    }
+
+    LinkedHashMap<String, String> stats = client.stats();
+    long sent = Long.parseLong(stats.get("hedge.sent"));
+    long won = Long.parseLong(stats.get("hedge.won"));
+    assertTrue(won <= sent);
+    // Never more hedges than gets, plus the burst
+    assertTrue(sent <= 3 * NUMKEYS + TPCMaster.HEDGE_BURST);
+    assertTrue(stats.containsKey("hedge.denied"));
+    // Replicas that served reads have a delay taken from them
+    TPCSlaveInfo primary = master.findFirstReplica("key0");
+    long delay = Long.parseLong(stats.get("slave." + primary.getSlaveID() + ".hedgeDelay"));
+    assertTrue(delay < KVConstants.TIMEOUT * 1000000L);
+  }
+
+  @Test
+  public void testHedgedGetsWithSlaveDown() throws Exception {
+    master.enableHedgedReads(10, 0);
+    putKeys(NUMKEYS);
+    stopSlave(Long.toString(master.findFirstReplica("key0").getSlaveID()));
+    for (int i = 0; i < NUMKEYS; i++) {
+      assertEquals("value" + i, client.get("key" + i));
+    }
+  }
+
+  @Test
+  public void testHedgeBeatsSlowReplica() throws Exception {
+    master.enableHedgedReads(100, 10);
+    putKeys(NUMKEYS);
+    TPCSlaveInfo[] replicas = master.findReplicas("key0");
+    DelayedServer first = delayed.get(replicas[0].getSlaveID());
+    DelayedServer second = delayed.get(replicas[1].getSlaveID());
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < NUMKEYS; i++) {
+      if (master.findFirstReplica("key" + i).getSlaveID() == replicas[0].getSlaveID()) {
+        keys.add("key" + i);
+      }
+    }
+
+    // Reads of these keys go to the first replica while the second is
+    // slower, until the first has a hedge delay of its own
+    second.delayMillis = 5;
+    for (int round = 0; round < 3 * TPCSlaveInfo.HEDGE_MIN_SAMPLES / keys.size() + 1; round++) {
+      for (String key : keys) {
+        client.get(key);
+      }
+    }
+    Thread.sleep(TPCSlaveInfo.HEDGE_REFRESH_NANOS / 1000000 + 10);
+    second.delayMillis = 0;
+    first.delayMillis = SLOW_MILLIS;
+    // Push the keys out of the master cache
+    for (int i = 0; i < 8; i++) {
+      client.put("other" + i, "other" + i);
+    }
+
+    long start = System.nanoTime();
+    assertEquals("value" + keys.get(0).substring(3), client.get(keys.get(0)));
+    long millis = (System.nanoTime() - start) / 1000000;
+    assertTrue("Get took " + millis + " ms", millis < SLOW_MILLIS / 4);
+
+    LinkedHashMap<String, String> stats = client.stats();
+    assertTrue(Long.parseLong(stats.get("hedge.sent")) > 0);
+    assertTrue(Long.parseLong(stats.get("hedge.won")) > 0);
+    first.delayMillis = 0;
+  }
+}
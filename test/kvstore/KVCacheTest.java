@@ -250,4 +250,39 @@ public class KVCacheTest {
         assertEquals(cache.get("woah"), null);
         //System.out.println(cache.toXML());
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "")
+    public void compressedPutAndGet() {
+        KVCache cache = new KVCache(1, 4, new ValueCompressor(64));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("repeated text ");
+        }
+        String big = sb.toString();
+        cache.put("big", big);
+        cache.put("small", "world");
+        assertEquals(big, cache.get("big"));
+        assertEquals("world", cache.get("small"));
+        cache.del("big");
+        assertEquals(null, cache.get("big"));
+        assertEquals(cache.getCacheSetSize(0), 1);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "")
+    public void expiredEntriesAreDropped() {
+        KVCache cache = new KVCache(1, 4);
+        long now = System.currentTimeMillis();
+        cache.put(KVKey.of("old"), "a", now - 1);
+        cache.put(KVKey.of("young"), "b", now + 60000);
+        cache.put(KVKey.of("renewed"), "c", now - 1);
+        cache.put("renewed", "d");
+        assertEquals(null, cache.get("old"));
+        assertEquals("b", cache.get("young"));
+        assertEquals("d", cache.get("renewed"));
+        assertEquals(cache.getCacheSetSize(0), 2);
+    }
 }
@@ -0,0 +1,51 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class KVKeyTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "KVKey hashes match String and TPCMaster hashes")
+    public void hashesMatchLegacyHashes() {
+        String[] keys = {"", "a", "6666666666666666666", "clé-ключ-键"};
+        for (String key : keys) {
+            KVKey kvKey = KVKey.of(key);
+            assertEquals(key.hashCode(), kvKey.hashCode());
+            assertEquals(TPCMaster.hashTo64bit(key), kvKey.hash64());
+            assertEquals(key, kvKey.toString());
+        }
+        assertEquals(13, KVKey.of("clé-ключ").byteLength());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Compact KVKeys equal the key they were made from")
+    public void compactKeyEquality() {
+        KVKey key = KVKey.of("clé");
+        KVKey compact = key.compact();
+        assertNotSame(key, compact);
+        assertEquals(key, compact);
+        assertEquals(key.hashCode(), compact.hashCode());
+        assertEquals("clé", compact.toString());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "KVKeys order by code point")
+    public void keysOrderByCodePoint() {
+        assertTrue(KVKey.of("").compareTo(KVKey.of("a")) < 0);
+        assertTrue(KVKey.of("a").compareTo(KVKey.of("ab")) < 0);
+        assertTrue(KVKey.of("ab").compareTo(KVKey.of("b")) < 0);
+        assertTrue(KVKey.of("z").compareTo(KVKey.of("é")) < 0);
+        assertEquals(0, KVKey.of("clé").compareTo(KVKey.of("clé").compact()));
+    }
+
+}
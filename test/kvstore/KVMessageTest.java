@@ -170,6 +170,37 @@ public class KVMessageTest {
         assertNull(kvm.getValue());
   }
   
+  @Test(timeout = kTimeoutQuick)
+  @Category(AG_PROJ3_CODE.class)
+  @AGTestDetails(points = 1,
+          desc = "Scan request and response survive a round trip through XML")
+  public void scanMessagesRoundTrip() throws KVException, IOException {
+    KVMessage request = new KVMessage(SCAN_REQ);
+    request.setKey("a");
+    request.setEnd("m");
+    request.setLimit(2);
+    sock = mock(Socket.class);
+    when(sock.getInputStream()).thenReturn(
+        new ByteArrayInputStream(request.toXML().getBytes("UTF-8")));
+    KVMessage kvm = new KVMessage(sock);
+    assertEquals(SCAN_REQ, kvm.getMsgType());
+    assertEquals("a", kvm.getKey());
+    assertEquals("m", kvm.getEnd());
+    assertEquals(Integer.valueOf(2), kvm.getLimit());
+    assertNull(kvm.getPairs());
+
+    java.util.LinkedHashMap<String, String> pairs = new java.util.LinkedHashMap<>();
+    pairs.put("apple", "red");
+    pairs.put("banana", "yellow");
+    KVMessage response = new ScanPage(pairs, "cherry").toMessage();
+    when(sock.getInputStream()).thenReturn(
+        new ByteArrayInputStream(response.toXML().getBytes("UTF-8")));
+    ScanPage page = ScanPage.fromMessage(new KVMessage(sock));
+    assertEquals(pairs, page.getPairs());
+    assertEquals("cherry", page.getCursor());
+    assertTrue(page.hasMore());
+  }
+
   @Test(timeout = kTimeoutQuick)
   @Category(AG_PROJ3_CODE.class)
   @AGTestDetails(points = 2,
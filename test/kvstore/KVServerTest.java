@@ -121,7 +121,7 @@ public class KVServerTest {
             assertNotNull(String.format("Test file not found: %s - Please report to TA", filename), maxKeyStream);
             s2 = new Scanner(maxKeyStream);
             String oversizedKey = s2.nextLine();
-            when(mockCache.getLock(oversizedKey)).thenReturn(new ReentrantLock());
+            when(mockCache.getLock(KVKey.of(oversizedKey))).thenReturn(new ReentrantLock());
             server.put(oversizedKey, "cal");
             fail("Server was supposed to throw an exception for oversized key");
         } catch (KVException pass) {
@@ -141,7 +141,7 @@ public class KVServerTest {
             assertNotNull(String.format("Test file not found: %s - Please report to TA", filename), maxValueStream);
             s2 = new Scanner(maxValueStream);
             String oversizedValue = s2.nextLine();
-            when(mockCache.getLock(oversizedValue)).thenReturn(new ReentrantLock());
+            when(mockCache.getLock(KVKey.of(oversizedValue))).thenReturn(new ReentrantLock());
             server.put("foo", oversizedValue);
             fail("Server was supposed to throw an exception for oversized value");
         } catch (KVException pass){
@@ -170,8 +170,8 @@ public class KVServerTest {
         setupMockServer();
         ReentrantLock l = new ReentrantLock();
         try {
-            when(mockCache.getLock("go")).thenReturn(new ReentrantLock());
-            when(mockStore.get("go")).thenThrow(new KVException(ERROR_NO_SUCH_KEY));
+            when(mockCache.getLock(KVKey.of("go"))).thenReturn(new ReentrantLock());
+            when(mockStore.lookup(KVKey.of("go"))).thenReturn(null);
             server.get("go");
             fail("Forced exception was not rethrown by KVServer");
         } catch(KVException e1) {
@@ -201,8 +201,8 @@ public class KVServerTest {
         setupMockServer();
         ReentrantLock l = new ReentrantLock();
         try {
-            when(mockCache.getLock("go")).thenReturn(l);
-            doThrow(new KVException(ERROR_NO_SUCH_KEY)).when(mockStore).del("go");;
+            when(mockCache.getLock(KVKey.of("go"))).thenReturn(l);
+            doThrow(new KVException(ERROR_NO_SUCH_KEY)).when(mockStore).del(KVKey.of("go"));;
             server.del("go");
             fail("Forced exception was not rethrown by KVServer");
         } catch (KVException e1) {
@@ -217,17 +217,14 @@ public class KVServerTest {
                "retrieved from the cache.")
     public void testGetFromCacheFirst() {
         setupMockServer();
-        when(mockCache.getLock("go")).thenReturn(new ReentrantLock());
-        when(mockCache.get("go")).thenReturn("bears");
+        when(mockCache.getLock(KVKey.of("go"))).thenReturn(new ReentrantLock());
+        when(mockCache.get(KVKey.of("go"))).thenReturn("bears");
         try {
             server.get("go");
         } catch (KVException e) {
             fail("Threw unnecessary KVException during get");
         }
-        try {
-            verify(mockStore, never()).get("go");
-        } catch (KVException e) {
-        }
+        verify(mockStore, never()).lookup(KVKey.of("go"));
     }
 
     @Test (timeout = kTimeoutQuick)
@@ -239,15 +236,11 @@ public class KVServerTest {
         setupMockServer();
         ReentrantLock l1 = new ReentrantLock();
         ReentrantLock l2 = new ReentrantLock();
-        when(mockCache.getLock("cal")).thenReturn(l1);
-        when(mockCache.getLock("stan")).thenReturn(l2);
-        when(mockCache.get("cal")).thenAnswer(checkParallelSerial1);
-        try {
-            when(mockStore.get("cal")).thenAnswer(checkParallelSerial2);
-        } catch (KVException e){
-            fail("Unexpected exception on get");
-        }
-        when(mockCache.get("stan")).thenReturn("furd");
+        when(mockCache.getLock(KVKey.of("cal"))).thenReturn(l1);
+        when(mockCache.getLock(KVKey.of("stan"))).thenReturn(l2);
+        when(mockCache.get(KVKey.of("cal"))).thenAnswer(checkParallelSerial1);
+        when(mockStore.lookup(KVKey.of("cal"))).thenAnswer(checkParallelSerial2);
+        when(mockCache.get(KVKey.of("stan"))).thenReturn("furd");
         try {
             String s = server.get("cal");
           
@@ -266,16 +259,16 @@ public class KVServerTest {
         setupMockServer();
         ReentrantLock l1 = new ReentrantLock();
         ReentrantLock l2 = new ReentrantLock();
-        when(mockCache.getLock("cal")).thenReturn(l1);
-        when(mockCache.getLock("stan")).thenReturn(l2);
-        doAnswer(checkParallelSerial1).when(mockCache).del("cal");
+        when(mockCache.getLock(KVKey.of("cal"))).thenReturn(l1);
+        when(mockCache.getLock(KVKey.of("stan"))).thenReturn(l2);
+        doAnswer(checkParallelSerial1).when(mockCache).del(KVKey.of("cal"));
         try {
-            doAnswer(checkParallelSerial2).when(mockStore).del("cal");
+            doAnswer(checkParallelSerial2).when(mockStore).del(KVKey.of("cal"));
         } catch (KVException e) {
             fail("Unexpected exception on del");
         }
 
-        when(mockCache.get("stan")).thenReturn("furd");
+        when(mockCache.get(KVKey.of("stan"))).thenReturn("furd");
         try {
             server.del("cal");
         } catch (KVException e) {
@@ -292,16 +285,16 @@ public class KVServerTest {
         setupMockServer();
         ReentrantLock l1 = new ReentrantLock();
         ReentrantLock l2 = new ReentrantLock();
-        when(mockCache.getLock("cal")).thenReturn(l1);
-        when(mockCache.getLock("stan")).thenReturn(l2);
-        doAnswer(checkParallelSerial1).when(mockCache).put("cal", "gobears");
+        when(mockCache.getLock(KVKey.of("cal"))).thenReturn(l1);
+        when(mockCache.getLock(KVKey.of("stan"))).thenReturn(l2);
+        doAnswer(checkParallelSerial1).when(mockCache).put(KVKey.of("cal"), "gobears", 0L);
         //try {
-        doAnswer(checkParallelSerial2).when(mockStore).put("cal", "gobears");
+        doAnswer(checkParallelSerialPut).when(mockStore).put(KVKey.of("cal"), "gobears", 0L);
         //} catch (KVException e) {
         //    fail("Unexpected exception on put");
         //}
 
-        when(mockCache.get("stan")).thenReturn("furd");
+        when(mockCache.get(KVKey.of("stan"))).thenReturn("furd");
         try {
             server.put("cal", "gobears");
         } catch (KVException e) {
@@ -315,7 +308,8 @@ public class KVServerTest {
     Answer checkParallelSerial2 = new Answer() {
         @Override
         public Object answer(InvocationOnMock inv){
-            ReentrantLock l = (ReentrantLock) mockCache.getLock("cal");
+            // Store calls are guarded by the server's stripe lock
+            ReentrantLock l = (ReentrantLock) server.getStripeLock(KVKey.of("cal"));
             assertTrue(l.isLocked());
             try {
                 assertTrue(server.get("stan").equals("furd"));
@@ -330,7 +324,7 @@ public class KVServerTest {
     Answer checkParallelSerial1 = new Answer() {
         @Override
         public Object answer(InvocationOnMock inv) {
-            ReentrantLock l = (ReentrantLock) mockCache.getLock("cal");
+            ReentrantLock l = (ReentrantLock) mockCache.getLock(KVKey.of("cal"));
             assertTrue(l.isLocked());
             try {
                 assertTrue(server.get("stan").equals("furd"));
@@ -341,6 +335,15 @@ public class KVServerTest {
         }
     };
 
+    @SuppressWarnings("rawtypes")
+    Answer checkParallelSerialPut = new Answer() {
+        @Override
+        public Object answer(InvocationOnMock inv) throws Throwable {
+            checkParallelSerial2.answer(inv);
+            return 0L;
+        }
+    };
+
     // George: Not sure why Isaac commented this out.
     // @Test (timeout = 5000)
     // public void testParallelOps(){
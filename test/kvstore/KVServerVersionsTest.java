@@ -0,0 +1,110 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+import static autograder.TestUtils.kTimeoutDefault;
+import static kvstore.KVConstants.*;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class KVServerVersionsTest {
+
+    private static String stat(KVServer server, String name) {
+        Map<String, String> stats = new HashMap<>();
+        server.collectStats(stats);
+        return stats.get(name);
+    }
+
+    private static void commit(KVServer server, String type, String key, String value,
+            long version, Long ttl) throws KVException {
+        KVMessage request = new KVMessage(type);
+        request.setKey(key);
+        if (value != null) {
+            request.setValue(value);
+        }
+        request.setTtl(ttl);
+        request.setVersion(version);
+        server.commit(request);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Tombstones are forgotten after the grace period")
+    public void tombstonesAreForgotten() throws Exception {
+        KVServer server = new KVServer(2, 2);
+        server.setTombstoneGrace(1);
+        commit(server, PUT_REQ, "key", "value", 1, null);
+        assertEquals(Long.valueOf(1), server.getVersion(KVKey.of("key")));
+        commit(server, DEL_REQ, "key", null, 2, null);
+        assertEquals(Long.valueOf(2), server.getVersion(KVKey.of("key")));
+        assertEquals("0", stat(server, "server.versions"));
+        assertEquals("1", stat(server, "server.tombstones"));
+
+        Thread.sleep(2500);
+        commit(server, PUT_REQ, "other", "value", 3, null);
+        assertNull(server.getVersion(KVKey.of("key")));
+        assertEquals("1", stat(server, "server.versions"));
+        assertEquals("0", stat(server, "server.tombstones"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Versions of expired keys are forgotten, rewritten keys keep theirs")
+    public void expiredVersionsAreForgotten() throws Exception {
+        KVServer server = new KVServer(2, 2);
+        server.setTombstoneGrace(1);
+        commit(server, PUT_REQ, "short", "value", 1, 100L);
+        commit(server, PUT_REQ, "long", "value", 2, 100L);
+        commit(server, PUT_REQ, "deleted", "value", 3, null);
+        commit(server, DEL_REQ, "deleted", null, 4, null);
+        commit(server, PUT_REQ, "deleted", "again", 5, null);
+        commit(server, PUT_REQ, "long", "value", 6, null);
+
+        Thread.sleep(2500);
+        commit(server, PUT_REQ, "other", "value", 7, null);
+        assertNull(server.getVersion(KVKey.of("short")));
+        assertEquals(Long.valueOf(6), server.getVersion(KVKey.of("long")));
+        assertEquals(Long.valueOf(5), server.getVersion(KVKey.of("deleted")));
+        assertEquals("0", stat(server, "server.tombstones"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Tombstones count against the scan limit")
+    public void tombstonesFillScanPages() throws Exception {
+        KVServer server = new KVServer(2, 2);
+        long version = 0;
+        for (int i = 0; i < 10; i++) {
+            commit(server, PUT_REQ, "key" + i, "value", ++version, null);
+        }
+        for (int i = 0; i < 8; i++) {
+            commit(server, DEL_REQ, "key" + i, null, ++version, null);
+        }
+
+        ScanPage page = server.scan(null, null, 3);
+        assertEquals(3, page.getPairs().size());
+        assertTrue(page.isDeleted("key0"));
+        assertEquals("key3", page.getCursor());
+        int entries = 0;
+        int live = 0;
+        String cursor = null;
+        do {
+            page = server.scan(cursor, null, 3);
+            assertTrue(page.getPairs().size() <= 3);
+            for (String key : page.getPairs().keySet()) {
+                entries++;
+                if (!page.isDeleted(key)) {
+                    live++;
+                }
+            }
+            cursor = page.getCursor();
+        } while (cursor != null);
+        assertEquals(10, entries);
+        assertEquals(2, live);
+    }
+}
@@ -4,6 +4,8 @@ import static autograder.TestUtils.kTimeoutQuick;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.RESP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -48,4 +50,166 @@ public class KVStoreTest {
         assertEquals(val, store.get(key));
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify lookup and remove report misses without throwing")
+    public void lookupAndRemoveMiss() {
+        assertNull(store.lookup("missing"));
+        assertFalse(store.containsKey("missing"));
+        assertFalse(store.remove("missing"));
+        store.put("present", "value");
+        assertTrue(store.containsKey("present"));
+        assertTrue(store.remove("present"));
+        assertNull(store.lookup("present"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify get and del misses throw the shared stackless exception")
+    public void missThrowsSharedException() {
+        try {
+            store.get("missing");
+            fail("get with nonexistent key should error");
+        } catch (KVException e) {
+            assertSame(KVException.NO_SUCH_KEY, e);
+            assertEquals(RESP, e.getKVMessage().getMsgType());
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            assertEquals(0, e.getStackTrace().length);
+        }
+        try {
+            store.del("missing");
+            fail("del with nonexistent key should error");
+        } catch (KVException e) {
+            assertSame(KVException.NO_SUCH_KEY, e);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify a compressing store holds large values compressed")
+    public void compressedPutAndGet() throws KVException {
+        KVStore compressed = new KVStore(new ValueCompressor(256));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("field=value;n=").append(i % 10).append(";");
+        }
+        String blob = sb.toString();
+        compressed.put("blob", blob);
+        compressed.put("small", "value");
+        assertTrue(compressed.store.get(KVKey.of("blob")) instanceof CompressedValue);
+        assertEquals(blob, compressed.get("blob"));
+        assertEquals("value", compressed.get("small"));
+        assertTrue(compressed.toXML().contains(blob));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify ordered and hashed stores page through a range alike")
+    public void scanPagesThroughRange() {
+        KVStore ordered = new KVStore(null, true);
+        assertTrue(ordered.isOrdered());
+        for (KVStore s : new KVStore[] {store, ordered}) {
+            for (int i = 0; i < 10; i++) {
+                s.put("key" + i, "value" + i);
+            }
+            s.put("other", "x");
+
+            ScanPage page = s.scan(KVKey.of("key2"), KVKey.of("key9"), 4);
+            assertEquals("[key2, key3, key4, key5]", page.getPairs().keySet().toString());
+            assertEquals("value3", page.getPairs().get("key3"));
+            assertEquals("key6", page.getCursor());
+
+            page = s.scan(KVKey.of(page.getCursor()), KVKey.of("key9"), 4);
+            assertEquals("[key6, key7, key8]", page.getPairs().keySet().toString());
+            assertFalse(page.hasMore());
+
+            page = s.scan(null, null, 100);
+            assertEquals(11, page.getPairs().size());
+            assertNull(page.getCursor());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify pairs with a time to live expire lazily and in the background")
+    public void ttlExpiry() throws InterruptedException {
+        long expiresAt = store.put(KVKey.of("session"), "token", 50);
+        assertTrue(expiresAt > 0);
+        assertEquals(expiresAt, store.getExpiry(KVKey.of("session")));
+        store.put(KVKey.of("lazy"), "value", 50);
+        store.put("forever", "value");
+        assertEquals(0, store.getExpiry(KVKey.of("forever")));
+        assertEquals("token", store.lookup("session"));
+
+        Thread.sleep(60);
+        // Read before the wheel gets to it
+        assertNull(store.lookup("lazy"));
+        assertFalse(store.containsKey("session"));
+        assertEquals(1, store.scan(null, null, 10).getPairs().size());
+
+        long deadline = System.currentTimeMillis() + 1000;
+        while (store.getPendingExpiries() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, store.getPendingExpiries());
+        assertEquals(1, store.store.size());
+        assertEquals(2, store.getExpiredKeys());
+        assertTrue(store.getReclaimedBytes() > 0);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify overwriting an expiring pair cancels its expiry")
+    public void ttlOverwrite() throws InterruptedException {
+        store.put(KVKey.of("key"), "old", 20);
+        store.put("key", "new");
+        // The superseded pair leaves the wheel at once
+        assertEquals(0, store.getPendingExpiries());
+        store.put(KVKey.of("gone"), "value", 20000);
+        store.remove("gone");
+        assertEquals(0, store.getPendingExpiries());
+        Thread.sleep(60);
+        assertEquals("new", store.lookup("key"));
+        assertEquals(0, store.getExpiredKeys());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify the expiry thread stops when idle, on reset and on close")
+    public void expiryThreadStops() throws InterruptedException {
+        store.put(KVKey.of("key"), "value", 20);
+        assertTrue(store.isExpiryRunning());
+        awaitExpiryStopped();
+        assertEquals(1, store.getExpiredKeys());
+
+        store.put(KVKey.of("key"), "value", 20000);
+        assertTrue(store.isExpiryRunning());
+        store.resetStore();
+        awaitExpiryStopped();
+
+        store.put(KVKey.of("key"), "value", 20000);
+        store.close();
+        assertFalse(store.isExpiryRunning());
+        assertEquals(0, store.getPendingExpiries());
+        // A later pair starts the thread again
+        store.put(KVKey.of("other"), "value", 20000);
+        assertTrue(store.isExpiryRunning());
+        store.close();
+    }
+
+    private void awaitExpiryStopped() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (store.isExpiryRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(store.isExpiryRunning());
+    }
+
 }
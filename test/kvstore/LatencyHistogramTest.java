@@ -0,0 +1,93 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.concurrent.locks.ReentrantLock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class LatencyHistogramTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Percentiles are within the bucket precision")
+    public void percentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000000, histogram.getMax());
+        assertWithin(5000000, histogram.getValueAtPercentile(50));
+        assertWithin(9900000, histogram.getValueAtPercentile(99));
+        assertEquals(10000000, histogram.getValueAtPercentile(100));
+        assertWithin(5000500, (long) histogram.getMean());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Every value falls in a bucket whose top is no smaller")
+    public void bucketsCoverValues() {
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long top = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(top >= value);
+            assertTrue(top - value <= value / 32);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Timed lock acquisitions are recorded and hold the lock")
+    public void lockRecordsWait() {
+        LatencyHistogram histogram = new LatencyHistogram("lock");
+        ReentrantLock lock = new ReentrantLock();
+        histogram.lock(lock);
+        assertTrue(lock.isHeldByCurrentThread());
+        lock.unlock();
+        assertEquals(1, histogram.getCount());
+        assertTrue(Latencies.report().contains("kvserver.store"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Concurrent records into one bucket are all counted")
+    public void concurrentRecordsCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram("concurrent");
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(0);
+                        histogram.record(1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(160000, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertWithin(1000, histogram.getValueAtPercentile(100));
+        assertWithin(500, (long) histogram.getMean());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " not near " + expected,
+            Math.abs(actual - expected) <= expected / 32 + 1);
+    }
+
+}
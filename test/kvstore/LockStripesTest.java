@@ -0,0 +1,64 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class LockStripesTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Stripe counts round up to a power of two")
+    public void roundsToPowerOfTwo() {
+        assertEquals(1, new LockStripes(1).size());
+        assertEquals(2, new LockStripes(2).size());
+        assertEquals(16, new LockStripes(16).size());
+        assertEquals(32, new LockStripes(17).size());
+        assertTrue(new LockStripes().size() >= 16);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Batch locks are distinct, in stripe order, and match getLock")
+    public void batchLocksMatchSingleLocks() {
+        LockStripes stripes = new LockStripes(8);
+        List<KVKey> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(KVKey.of("key" + i));
+        }
+        List<Lock> locks = stripes.getLocks(keys);
+        assertEquals(locks.size(), new HashSet<>(locks).size());
+        assertEquals(8, locks.size());
+        for (KVKey key : keys) {
+            assertTrue(locks.contains(stripes.getLock(key)));
+        }
+        assertSame(stripes.getLock(KVKey.of("a")), stripes.getLock(KVKey.of("a")));
+        assertEquals(locks, stripes.getLocks(new ArrayList<>(keys.subList(0, 100))));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A server with one stripe still serves every request")
+    public void singleStripeServer() throws KVException {
+        KVServer server = new KVServer(new KVCache(2, 2), new KVStore(), 1);
+        assertEquals(1, server.getLockStripes());
+        for (int i = 0; i < 20; i++) {
+            server.put("k" + i, "v" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("v" + i, server.get("k" + i));
+        }
+        server.del("k3");
+        assertTrue(!server.hasKey("k3"));
+    }
+
+}
@@ -0,0 +1,147 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+public class MigrationTest extends TPCEndToEndTemplate {
+
+  // Keys written by these tests hash close together; placing the new slave
+  // at the hash of one of them makes sure it takes some over
+  static final long SLAVE5 = TPCMaster.hashTo64bit("key20");
+  static final int NUMKEYS = 40;
+
+  private void assertPlaced(String key, String value) throws KVException {
+    TPCSlaveInfo primary = master.findFirstReplica(key);
+    assertEquals(key, value, readFrom(primary, key));
+    assertEquals(key, value, readFrom(master.findSuccessor(primary), key));
+  }
+
+  @Test
+  public void testJoinMovesKeys() throws Exception {
+    putKeys(NUMKEYS);
+    master.setMigrationRate(10000);
+    startSlave(SLAVE5);
+    master.awaitMigration();
+    assertFalse(master.isMigrating());
+    assertEquals(5, master.getSlaves().size());
+
+    TPCSlaveInfo joined = master.getSlave(SLAVE5);
+    int owned = 0;
+    for (int i = 0; i < NUMKEYS; i++) {
+      assertPlaced("key" + i, "value" + i);
+      assertEquals("value" + i, client.get("key" + i));
+      if (master.findFirstReplica("key" + i) == joined) {
+        owned++;
+      }
+    }
+    assertTrue(owned > 0);
+
+    LinkedHashMap<String, String> stats = client.stats();
+    assertEquals("1", stats.get("migration.count"));
+    assertTrue(Long.parseLong(stats.get("migration.keys")) >= owned);
+    assertEquals("0", stats.get("migration.failures"));
+  }
+
+  @Test
+  public void testWritesDuringMigration() throws Exception {
+    putKeys(NUMKEYS);
+    master.setMigrationRate(4);
+    startSlave(SLAVE5);
+    assertTrue(master.isMigrating());
+    // Nothing to route by while keys are moving
+    assertTrue(master.getSlaves().isEmpty());
+
+    for (int i = 0; i < NUMKEYS; i++) {
+      assertEquals("value" + i, client.get("key" + i));
+    }
+    for (int i = 0; i < NUMKEYS; i += 2) {
+      client.put("key" + i, "updated" + i);
+    }
+    for (int i = 1; i < NUMKEYS; i += 4) {
+      client.del("key" + i);
+    }
+    master.setMigrationRate(10000);
+    master.awaitMigration();
+
+    for (int i = 0; i < NUMKEYS; i++) {
+      String expected = i % 2 == 0 ? "updated" + i : i % 4 == 1 ? null : "value" + i;
+      assertPlaced("key" + i, expected);
+      if (expected == null) {
+        try {
+          client.get("key" + i);
+          fail("Deleted key came back");
+        } catch (KVException e) {
+          assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+      } else {
+        assertEquals(expected, client.get("key" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testStaleCopyIsDeletedLater() throws Exception {
+    putKeys(NUMKEYS);
+    // Loses key20 to the new slave, but is down when told to delete it
+    TPCSlaveInfo losing = master.findSuccessor(master.findFirstReplica("key20"));
+    stopSlave(Long.toString(losing.getSlaveID()));
+    Thread.sleep(100);
+    master.setMigrationRate(10000);
+    startSlave(SLAVE5);
+    master.awaitMigration();
+    restartSlave(losing);
+    assertEquals("value20", readFrom(losing, "key20"));
+
+    client.del("key20");
+    ScanPage page = client.scan(null, null, 100);
+    assertFalse(page.getPairs().containsKey("key20"));
+    assertEquals(NUMKEYS - 1, page.getPairs().size());
+
+    // Takes key20 back; the deleted key must not come back with it
+    master.removeSlave(SLAVE5);
+    assertNull(readFrom(losing, "key20"));
+    try {
+      client.get("key20");
+      fail("Deleted key came back");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+    }
+  }
+
+  @Test
+  public void testLeaveMovesKeys() throws Exception {
+    putKeys(NUMKEYS);
+    master.setMigrationRate(10000);
+    master.removeSlave(SLAVE2);
+    assertNull(master.getSlave(SLAVE2));
+    assertEquals(3, master.getSlaves().size());
+    stopSlave(Long.toString(SLAVE2));
+
+    for (int i = 0; i < NUMKEYS; i++) {
+      assertPlaced("key" + i, "value" + i);
+      assertEquals("value" + i, client.get("key" + i));
+    }
+
+    master.removeSlave(SLAVE1);
+    try {
+      master.removeSlave(SLAVE3);
+      fail("A single slave cannot hold two replicas");
+    } catch (KVException e) {
+      assertEquals(ERROR_TOO_FEW_SLAVES, e.getKVMessage().getMessage());
+    }
+    try {
+      master.removeSlave(SLAVE1);
+      fail("Slave already left");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_SLAVE, e.getKVMessage().getMessage());
+    }
+  }
+}
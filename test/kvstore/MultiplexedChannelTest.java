@@ -0,0 +1,210 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiplexedChannelTest {
+
+  static final int PORT = 8091;
+
+  String hostname;
+  ServerRunner serverRunner;
+  TPCSlaveInfo slave;
+  /* Released to let "slow" requests answer */
+  CountDownLatch release;
+
+  /**
+   * Answers a GET_REQ with its own key as the value, from a thread of its
+   * own, so that responses can overtake each other. "slow" waits for
+   * release, and "never" is not answered at all.
+   */
+  private class EchoHandler implements NetworkHandler {
+
+    @Override
+    public void handle(final Socket sock) {
+      final KVMessage request;
+      try {
+        request = new KVMessage(sock, TIMEOUT);
+      } catch (KVException e) {
+        return;
+      }
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (request.getKey().equals("never")) {
+              return;
+            } else if (request.getKey().equals("slow")) {
+              release.await();
+            }
+            KVMessage response = new KVMessage(RESP);
+            response.setKey(request.getKey());
+            response.setValue(request.getKey());
+            response.sendMessage(sock);
+          } catch (InterruptedException | KVException e) {
+            // The test gave up on this request
+          }
+        }
+      }).start();
+    }
+  }
+
+  private void startServer() throws Exception {
+    SocketServer ss = new SocketServer(hostname, PORT);
+    ss.addHandler(new EchoHandler());
+    serverRunner = new ServerRunner(ss, "echo");
+    serverRunner.start();
+  }
+
+  private String get(String key, int timeout) throws KVException {
+    KVMessage request = new KVMessage(GET_REQ);
+    request.setKey(key);
+    Socket socket = slave.connectHost(TIMEOUT);
+    try {
+      request.sendMessage(socket);
+      return new KVMessage(socket, timeout).getValue();
+    } finally {
+      slave.closeHost(socket);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    hostname = InetAddress.getLocalHost().getHostAddress();
+    release = new CountDownLatch(1);
+    startServer();
+    slave = new TPCSlaveInfo("1@" + hostname + ":" + PORT);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    release.countDown();
+    slave.disconnect();
+    serverRunner.stop();
+  }
+
+  @Test
+  public void testRequestsShareOneConnection() throws Exception {
+    final List<String> answers = new ArrayList<>();
+    Thread slow = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          String value = get("slow", 0);
+          synchronized (answers) {
+            answers.add(value);
+          }
+        } catch (KVException e) {
+          // Fails the size check below
+        }
+      }
+    });
+    slow.start();
+
+    final List<Throwable> failures = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 25; i++) {
+              String key = "key" + thread + "." + i;
+              assertEquals(key, get(key, TIMEOUT));
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      });
+      threads.add(worker);
+      worker.start();
+    }
+    for (Thread worker : threads) {
+      worker.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    // Every fast request overtook the slow one on the same connection
+    synchronized (answers) {
+      assertTrue(answers.isEmpty());
+    }
+    release.countDown();
+    slow.join();
+    assertEquals(1, answers.size());
+    assertEquals("slow", answers.get(0));
+
+    assertEquals(1, slave.getConnectionCount());
+    assertEquals(201, slave.getRequestCount());
+    assertEquals(1, serverRunner.getServer().getKeepAliveCount());
+  }
+
+  @Test
+  public void testTimeoutKeepsConnection() throws Exception {
+    try {
+      get("never", 200);
+      fail("Request was answered");
+    } catch (KVException e) {
+      assertEquals(ERROR_SOCKET_TIMEOUT, e.getKVMessage().getMessage());
+    }
+    assertEquals("key", get("key", TIMEOUT));
+    assertEquals(1, slave.getConnectionCount());
+  }
+
+  @Test
+  public void testReconnectAfterServerRestarts() throws Exception {
+    assertEquals("key", get("key", TIMEOUT));
+    Socket pending = slave.connectHost(TIMEOUT);
+    serverRunner.stop();
+    try {
+      new KVMessage(pending, TIMEOUT);
+      fail("Response came from a stopped server");
+    } catch (KVException e) {
+      assertFalse(ERROR_SOCKET_TIMEOUT.equals(e.getKVMessage().getMessage()));
+    } finally {
+      slave.closeHost(pending);
+    }
+
+    startServer();
+    assertEquals("key", get("key", TIMEOUT));
+    assertEquals(2, slave.getConnectionCount());
+  }
+
+  @Test
+  public void testOversizedFrameClosesConnection() throws Exception {
+    Socket raw = new Socket(hostname, PORT);
+    try {
+      DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+      out.write(FramedSocket.MUX_MAGIC);
+      out.writeInt(Integer.MAX_VALUE);
+      out.writeLong(1);
+      out.flush();
+      raw.setSoTimeout(TIMEOUT);
+      // The server drops the connection instead of reading the frame
+      assertEquals(-1, new DataInputStream(raw.getInputStream()).read());
+    } catch (SocketException e) {
+      // Reset, since the server closed with the request ID unread
+    } finally {
+      raw.close();
+    }
+    assertEquals("key", get("key", TIMEOUT));
+  }
+}
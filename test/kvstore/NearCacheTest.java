@@ -0,0 +1,163 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NearCacheTest extends EndToEndTemplate {
+
+  @Test
+  public void testHitsServedLocally() throws Exception {
+    client.put("key", "value");
+    client.enableNearCache(4, 4, 60000, 60000);
+    NearCache cache = client.getNearCache();
+    cache.poll();
+
+    assertEquals("value", client.get("key"));
+    for (int i = 0; i < 10; i++) {
+      assertEquals("value", client.get("key"));
+    }
+    assertEquals(10, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // This client's own writes are seen at once
+    client.put("key", "value2");
+    assertEquals("value2", client.get("key"));
+    client.del("key");
+    try {
+      client.get("key");
+      fail("Key was deleted");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+    }
+    client.close();
+  }
+
+  @Test
+  public void testOtherWritesInvalidated() throws Exception {
+    String hostname = InetAddress.getLocalHost().getHostAddress();
+    KVClient other = new KVClient(hostname, 8080);
+    client.put("key", "value");
+    client.put("other", "value");
+    client.enableNearCache(4, 4, 60000, 60000);
+    NearCache cache = client.getNearCache();
+    cache.poll();
+    assertEquals("value", client.get("key"));
+    assertEquals("value", client.get("other"));
+
+    other.put("key", "changed");
+    assertEquals("value", client.get("key"));
+    cache.poll();
+    assertEquals("changed", client.get("key"));
+    long hits = cache.getHits();
+    assertEquals("value", client.get("other"));
+    assertEquals(hits + 1, cache.getHits());
+
+    // The poll thread catches up on its own
+    client.enableNearCache(4, 4, 60000, 50);
+    cache = client.getNearCache();
+    Thread.sleep(200);
+    assertEquals("changed", client.get("key"));
+    other.multiDel(Arrays.asList("key"));
+    Thread.sleep(200);
+    try {
+      client.get("key");
+      fail("Key was deleted");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+    }
+    client.close();
+  }
+
+  @Test
+  public void testTtlAndReset() throws Exception {
+    client.put("key", "value");
+    client.enableNearCache(4, 4, 100, 60000);
+    NearCache cache = client.getNearCache();
+    cache.poll();
+    assertEquals("value", client.get("key"));
+    assertEquals("value", cache.get("key"));
+    Thread.sleep(150);
+    assertNull(cache.get("key"));
+
+    // More changes than the server remembers drop everything; a long time
+    // to live keeps the entry from expiring on its own meanwhile
+    client.enableNearCache(4, 4, 60000, 60000);
+    cache = client.getNearCache();
+    cache.poll();
+    assertEquals("value", client.get("key"));
+    assertEquals("value", cache.get("key"));
+    long resets = resets(cache);
+    KVClient other = new KVClient(client.server, client.port);
+    for (int i = 0; i <= ChangeLog.DEFAULT_CAPACITY / 100; i++) {
+      LinkedHashMap<String, String> pairs = new LinkedHashMap<>();
+      for (int j = 0; j < 100; j++) {
+        pairs.put("bulk" + i + "." + j, "value");
+      }
+      other.multiPut(pairs, 0);
+    }
+    cache.poll();
+    assertNull(cache.get("key"));
+    assertEquals(resets + 1, resets(cache));
+    client.close();
+  }
+
+  @Test
+  public void testServerTtlCapsEntry() throws Exception {
+    client.put("key", "value", 200);
+    client.enableNearCache(4, 4, 60000, 60000);
+    NearCache cache = client.getNearCache();
+    cache.poll();
+    assertEquals("value", client.get("key"));
+    assertEquals("value", cache.get("key"));
+    // Expiring on the server is not a change it reports, so the entry has
+    // to go by itself when the key does
+    Thread.sleep(300);
+    assertNull(cache.get("key"));
+    try {
+      client.get("key");
+      fail("Key expired");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+    }
+    client.close();
+  }
+
+  private static long resets(NearCache cache) {
+    Map<String, String> stats = new HashMap<>();
+    cache.collectStats("", stats);
+    return Long.parseLong(stats.get("resets"));
+  }
+
+  @Test
+  public void testChangeLogCursor() {
+    ChangeLog log = new ChangeLog(4);
+    String start = log.cursor();
+    log.record("a");
+    log.record("b");
+    log.record("a");
+    List<String> changed = new ArrayList<>();
+    assertTrue(log.changesSince(start, changed));
+    assertEquals(Arrays.asList("a", "b"), changed);
+    log.record("c");
+    log.record("d");
+    assertFalse(log.changesSince(start, changed));
+    assertFalse(log.changesSince("0:0", changed));
+    assertFalse(log.changesSince("junk", changed));
+    assertEquals(CHANGES_RESET, log.response(start).getMessage());
+    assertNull(log.response(log.cursor()).getPairs());
+  }
+}
@@ -0,0 +1,130 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class PartitionerTest {
+
+    static final String[] NAMES = {
+        RingPartitioner.NAME, JumpPartitioner.NAME, RendezvousPartitioner.NAME};
+
+    private static TPCMaster master(String name, int numSlaves, int... weights)
+            throws KVException {
+        TPCMaster master = new TPCMaster(numSlaves, new KVCache(1, 4), 128,
+            Partitioner.forName(name));
+        Random random = new Random(7);
+        for (int i = 0; i < numSlaves; i++) {
+            int weight = i < weights.length ? weights[i] : 1;
+            master.registerSlave(new TPCSlaveInfo(random.nextLong() + "@127.0.0.1:" + (8000 + i)
+                + "/" + weight));
+        }
+        return master;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Every partitioner spreads keys by weight")
+    public void sharesFollowWeight() throws KVException {
+        for (String name : NAMES) {
+            TPCMaster master = master(name, 4, 1, 1, 2, 1);
+            assertEquals(name, master.getPartitioner().getName());
+            Map<Long, Double> shares = RingReport.sampleShares(master.getPlacement(), 100000,
+                new Random(1));
+            List<TPCSlaveInfo> slaves = master.getSlaves();
+            assertEquals(4, slaves.size());
+            for (TPCSlaveInfo slave : slaves) {
+                double expected = slave.getWeight() / 5.0;
+                assertEquals(name, expected, shares.get(slave.getSlaveID()), 0.05);
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Successors depend only on the first replica")
+    public void successorIsNextSlave() throws KVException {
+        for (String name : NAMES) {
+            TPCMaster master = master(name, 5);
+            for (int i = 0; i < 1000; i++) {
+                TPCSlaveInfo primary = master.findFirstReplica("key" + i);
+                TPCSlaveInfo secondary = master.findSuccessor(primary);
+                assertNotEquals(name, primary.getSlaveID(), secondary.getSlaveID());
+                assertSame(secondary, master.findSuccessor(primary));
+                assertSame(primary, master.getSlave(primary.getSlaveID()));
+            }
+        }
+        // Clients build the same placement from the slave list alone
+        TPCMaster master = master(JumpPartitioner.NAME, 5);
+        Partitioner.Placement copy = new JumpPartitioner().place(
+            new ArrayList<TPCSlaveInfo>(master.getSlaves()), master.virtualNodes);
+        for (int i = 0; i < 1000; i++) {
+            long hash = KVKey.of("key" + i).hash64();
+            assertEquals(master.getPlacement().findFirstReplica(hash).getSlaveID(),
+                copy.findFirstReplica(hash).getSlaveID());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Replicas are distinct slaves after the first replica")
+    public void replicasAreDistinct() throws KVException {
+        for (String name : NAMES) {
+            TPCMaster master = master(name, 5);
+            Partitioner.Placement placement = master.getPlacement();
+            for (int i = 0; i < 1000; i++) {
+                TPCSlaveInfo primary = master.findFirstReplica("key" + i);
+                TPCSlaveInfo[] pair = placement.findReplicas(primary, 2);
+                assertEquals(name, 2, pair.length);
+                assertSame(primary, pair[0]);
+                assertSame(master.findSuccessor(primary), pair[1]);
+                // Listed when the placement was built, not on each lookup
+                assertSame(name, pair, placement.findReplicas(primary, 2));
+
+                TPCSlaveInfo[] three = placement.findReplicas(primary, 3);
+                assertEquals(name, 3, three.length);
+                assertSame(pair[1], three[1]);
+                assertNotEquals(name, three[0].getSlaveID(), three[2].getSlaveID());
+                assertNotEquals(name, three[1].getSlaveID(), three[2].getSlaveID());
+                // Never more replicas than slaves
+                assertEquals(name, 5, placement.findReplicas(primary, 7).length);
+            }
+        }
+        // Virtual nodes put a slave at many positions; it is still listed once
+        TPCMaster master = master(RingPartitioner.NAME, 3);
+        assertEquals(3, master.getPlacement().findReplicas(master.findFirstReplica("key"), 3)
+            .length);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Jump hashing moves only keys that must move")
+    public void jumpMovesFewKeys() throws KVException {
+        assertNull(new RendezvousPartitioner().place(new ArrayList<TPCSlaveInfo>(), 1)
+            .findFirstReplica(1L));
+        Random random = new Random(3);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            int before = JumpPartitioner.jump(key, 9);
+            int after = JumpPartitioner.jump(key, 10);
+            assertTrue(before >= 0 && before < 9);
+            if (before != after) {
+                assertEquals(9, after);
+                moved++;
+            }
+        }
+        assertEquals(1000, moved, 150);
+    }
+}
@@ -0,0 +1,140 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class QuorumTest extends TPCEndToEndTemplate {
+
+  static final int NUMKEYS = 20;
+
+  /**
+   * Pushes the keys out of the master cache, so they are read from slaves.
+   */
+  private void evict() throws KVException {
+    for (int i = 0; i < NUMKEYS; i++) {
+      client.put("other" + i, "other" + i);
+    }
+  }
+
+  private void stop(TPCSlaveInfo slave) throws InterruptedException {
+    stopSlave(Long.toString(slave.getSlaveID()));
+    // Let the master see its connection to the slave close
+    Thread.sleep(100);
+  }
+
+  @Test
+  public void testEveryReplicaHoldsKeys() throws Exception {
+    master.setReplication(3, 3, 2);
+    assertEquals(3, master.getReplicationFactor());
+    putKeys(NUMKEYS);
+    for (int i = 0; i < NUMKEYS; i++) {
+      TPCSlaveInfo[] replicas = master.findReplicas("key" + i);
+      assertEquals(3, replicas.length);
+      for (TPCSlaveInfo replica : replicas) {
+        assertEquals("value" + i, readFrom(replica, "key" + i));
+      }
+      assertEquals("value" + i, client.get("key" + i));
+    }
+    // Clients cannot read a quorum themselves
+    assertTrue(master.getSlaves().isEmpty());
+
+    LinkedHashMap<String, String> stats = client.stats();
+    assertEquals("3", stats.get("quorum.replicas"));
+    assertEquals("3", stats.get("quorum.write"));
+    assertEquals("2", stats.get("quorum.read"));
+
+    // Every replica has to be ready
+    stop(master.findFirstReplica("key0"));
+    try {
+      client.put("key0", "updated");
+      fail("Write committed without every replica");
+    } catch (KVException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testQuorumOutlivesReplica() throws Exception {
+    master.setReplication(3, 2, 2);
+    putKeys(NUMKEYS);
+    TPCSlaveInfo down = master.findFirstReplica("key0");
+    stop(down);
+    for (int i = 0; i < NUMKEYS; i += 2) {
+      client.put("key" + i, "updated" + i);
+    }
+    for (int i = 1; i < NUMKEYS; i += 2) {
+      client.del("key" + i);
+    }
+    restartSlave(down);
+
+    evict();
+    for (int i = 0; i < NUMKEYS; i++) {
+      String key = "key" + i;
+      if (i % 2 == 0) {
+        // A replica that missed the write is outvoted by a newer version
+        assertEquals(key, "updated" + i, client.get(key));
+      } else {
+        try {
+          client.get(key);
+          fail("Deleted key came back: " + key);
+        } catch (KVException e) {
+          assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+      }
+    }
+    // A scan sees the same: the newest copy of each key wins
+    LinkedHashMap<String, String> scanned = client.scan("key", "key~", 100).getPairs();
+    for (int i = 0; i < NUMKEYS; i++) {
+      String key = "key" + i;
+      if (i % 2 == 0) {
+        assertEquals(key, "updated" + i, scanned.get(key));
+      } else {
+        assertTrue("Deleted key scanned: " + key, !scanned.containsKey(key));
+      }
+    }
+    // So does a multi get, which reads each key like a get
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < NUMKEYS; i++) {
+      keys.add("key" + i);
+    }
+    Map<String, String> fetched = client.multiGet(keys);
+    assertEquals(NUMKEYS / 2, fetched.size());
+    for (int i = 0; i < NUMKEYS; i += 2) {
+      assertEquals("updated" + i, fetched.get("key" + i));
+    }
+
+    // The slave that was down still has its old copy of key0, which a read
+    // of every replica comes across
+    assertEquals("value0", readFrom(down, "key0"));
+    master.setReplication(3, 2, 3);
+    evict();
+    assertEquals("updated0", client.get("key0"));
+    assertTrue(Long.parseLong(client.stats().get("quorum.stale")) > 0);
+  }
+
+  @Test
+  public void testScanNeedsReadQuorum() throws Exception {
+    master.setReplication(3, 2, 2);
+    putKeys(NUMKEYS);
+    stop(master.findFirstReplica("key0"));
+    // Every key still has two replicas up
+    assertEquals(NUMKEYS, client.scan("key", "key~", 100).getPairs().size());
+
+    master.setReplication(3, 2, 3);
+    try {
+      client.scan("key", "key~", 100);
+      fail("Scan completed without a read quorum");
+    } catch (KVException e) {
+      // Expected
+    }
+  }
+}
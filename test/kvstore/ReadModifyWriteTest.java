@@ -0,0 +1,68 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class ReadModifyWriteTest {
+
+    private static KVMessage request(String type, String value, String expected) {
+        KVMessage msg = new KVMessage(type);
+        msg.setKey("key");
+        msg.setValue(value);
+        msg.setExpected(expected);
+        return msg;
+    }
+
+    private static void assertFails(KVMessage request, String current, String error) {
+        try {
+            ReadModifyWrite.apply(request, current);
+            fail("Expected " + error);
+        } catch (KVException e) {
+            assertEquals(error, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "CAS succeeds only on the expected value")
+    public void compareAndSet() throws KVException {
+        assertEquals("new", ReadModifyWrite.apply(request(CAS_REQ, "new", "old"), "old"));
+        assertEquals("new", ReadModifyWrite.apply(request(CAS_REQ, "new", null), null));
+        assertFails(request(CAS_REQ, "new", "old"), "other", ERROR_CAS_MISMATCH);
+        assertFails(request(CAS_REQ, "new", "old"), null, ERROR_CAS_MISMATCH);
+        assertFails(request(CAS_REQ, "new", null), "old", ERROR_CAS_MISMATCH);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "INCR adds to integers and rejects everything else")
+    public void increment() throws KVException {
+        assertEquals("1", ReadModifyWrite.apply(request(INCR_REQ, null, null), null));
+        assertEquals("-3", ReadModifyWrite.apply(request(INCR_REQ, "-5", null), "2"));
+        assertFails(request(INCR_REQ, "1", null), "abc", ERROR_NOT_A_NUMBER);
+        assertFails(request(INCR_REQ, "x", null), "1", ERROR_NOT_A_NUMBER);
+        assertFails(request(INCR_REQ, "1", null), Long.toString(Long.MAX_VALUE),
+            ERROR_NOT_A_NUMBER);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "INCR replicates as a CAS from the value it read")
+    public void incrementAsCas() throws KVException {
+        KVMessage incr = request(INCR_REQ, "2", null);
+        String newValue = ReadModifyWrite.apply(incr, null);
+        KVMessage cas = ReadModifyWrite.toCas(incr, null, newValue);
+        assertEquals(CAS_REQ, cas.getMsgType());
+        assertEquals("2", cas.getValue());
+        assertNull(cas.getExpected());
+        assertEquals("ab", ReadModifyWrite.apply(request(APPEND_REQ, "b", null), "a"));
+    }
+
+}
@@ -0,0 +1,144 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class ReplicaSelectionTest {
+
+    private static TPCSlaveInfo slave(long id) throws KVException {
+        return new TPCSlaveInfo(id + "@127.0.0.1:" + (8000 + id));
+    }
+
+    /**
+     * Records a read of this many milliseconds as having just finished.
+     */
+    private static void read(TPCSlaveInfo slave, long millis) {
+        slave.beginRead();
+        slave.endRead(System.nanoTime() - millis * 1000000, true);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Idle replicas are read primary first")
+    public void idleReadsPrimary() throws KVException {
+        TPCSlaveInfo primary = slave(1);
+        TPCSlaveInfo secondary = slave(2);
+        TPCSlaveInfo[] replicas = {primary, secondary};
+        assertSame(primary, TPCSlaveInfo.byReadCost(replicas)[0]);
+        read(primary, 5);
+        // Not yet read from, the secondary counts as fast as the primary
+        assertSame(primary, TPCSlaveInfo.byReadCost(replicas)[0]);
+        read(secondary, 5);
+        assertEquals(2, TPCSlaveInfo.byReadCost(replicas).length);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Reads go to the replica with the least expected wait")
+    public void readsAvoidLoad() throws KVException {
+        TPCSlaveInfo primary = slave(1);
+        TPCSlaveInfo secondary = slave(2);
+        TPCSlaveInfo[] replicas = {primary, secondary};
+        read(primary, 10);
+        read(secondary, 10);
+        primary.beginRead();
+        assertEquals(1, primary.getOutstandingReads());
+        assertSame(secondary, TPCSlaveInfo.byReadCost(replicas)[0]);
+        secondary.beginRead();
+        secondary.beginRead();
+        assertSame(primary, TPCSlaveInfo.byReadCost(replicas)[0]);
+
+        // A replica three times as slow loses even with fewer reads queued
+        TPCSlaveInfo fast = slave(3);
+        TPCSlaveInfo slow = slave(4);
+        read(fast, 10);
+        read(slow, 30);
+        fast.beginRead();
+        assertSame(fast, TPCSlaveInfo.byReadCost(new TPCSlaveInfo[] {slow, fast})[0]);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Any number of replicas are ordered by cost")
+    public void ordersManyReplicas() throws KVException {
+        TPCSlaveInfo[] replicas = {slave(1), slave(2), slave(3), slave(4)};
+        assertSame(replicas[0], TPCSlaveInfo.byReadCost(replicas)[0]);
+        read(replicas[0], 40);
+        read(replicas[1], 10);
+        read(replicas[2], 20);
+        // Not yet read from, the last counts as the average of the others
+        TPCSlaveInfo[] ordered = TPCSlaveInfo.byReadCost(replicas);
+        assertSame(replicas[1], ordered[0]);
+        assertSame(replicas[2], ordered[1]);
+        assertSame(replicas[3], ordered[2]);
+        assertSame(replicas[0], ordered[3]);
+        // The array given is left as it was
+        assertEquals(1, replicas[0].getSlaveID());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Read latency is a moving average that failures push up")
+    public void latencyAverages() throws KVException {
+        TPCSlaveInfo slave = slave(1);
+        assertEquals(0, slave.getReadLatency(), 0);
+        read(slave, 10);
+        assertEquals(10e6, slave.getReadLatency(), 1e6);
+        for (int i = 0; i < 50; i++) {
+            read(slave, 2);
+        }
+        assertEquals(2e6, slave.getReadLatency(), 1e6);
+        // A failure counts for more than the reads, even one refused at once
+        slave.endRead(slave.beginRead(), false);
+        double failed = slave.getReadLatency();
+        assertTrue(failed > 5e6);
+        assertTrue(failed < 0.1 * KVConstants.TIMEOUT * 1e6);
+        assertEquals(0, slave.getOutstandingReads());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Read latency decays while a replica is not read")
+    public void latencyDecays() throws Exception {
+        TPCSlaveInfo slave = slave(1);
+        slave.endRead(slave.beginRead(), false);
+        double failed = slave.getReadLatency();
+        assertEquals(TPCSlaveInfo.FAILED_READ_NANOS, failed, 1e6);
+        Thread.sleep(TPCSlaveInfo.EWMA_HALF_LIFE_NANOS / 1000000);
+        assertTrue(slave.getReadLatency() < 0.55 * failed);
+
+        // The next read outweighs what is left of the failure
+        read(slave, 2);
+        assertTrue(slave.getReadLatency() < 0.5 * failed);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Reads are hedged after the p95 of recent latency")
+    public void hedgeDelayFollowsLatency() throws Exception {
+        TPCSlaveInfo slave = slave(1);
+        long timeout = KVConstants.TIMEOUT * 1000000L;
+        for (int i = 0; i < TPCSlaveInfo.HEDGE_MIN_SAMPLES - 1; i++) {
+            read(slave, 10);
+        }
+        Thread.sleep(TPCSlaveInfo.HEDGE_REFRESH_NANOS / 1000000 + 10);
+        // Too few reads to go by yet
+        assertEquals(timeout, slave.getHedgeDelay());
+
+        for (int i = 0; i < 100; i++) {
+            read(slave, i < 95 ? 10 : 50);
+        }
+        // Failed reads do not count towards the percentile
+        slave.endRead(slave.beginRead(), false);
+        Thread.sleep(TPCSlaveInfo.HEDGE_REFRESH_NANOS / 1000000 + 10);
+        long delay = slave.getHedgeDelay();
+        assertTrue(delay < timeout);
+        assertEquals(10e6, delay, 2e6);
+    }
+}
@@ -0,0 +1,90 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+
+import org.junit.Test;
+
+public class SmartRouterTest extends TPCEndToEndTemplate {
+
+  @Test
+  public void testReadsGoToSlaves() throws Exception {
+    client.put(KEY1, "one");
+    client.put(KEY2, "two");
+    client.put(KEY3, "three");
+    client.put(KEY4, "four");
+    client.enableSmartRouting(60000);
+    SmartRouter router = client.getRouter();
+
+    LinkedHashMap<String, String> before = client.stats();
+    assertEquals("one", client.get(KEY1));
+    assertEquals("two", client.get(KEY2));
+    assertEquals("three", client.get(KEY3));
+    assertEquals("four", client.get(KEY4));
+    try {
+      client.get("missing");
+      fail("Key was never put");
+    } catch (KVException e) {
+      assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+    }
+    assertEquals(5, router.getDirectCount());
+    assertEquals(0, router.getFallbackCount());
+    assertEquals(master.getTopologyVersion(), router.getTopologyVersion());
+
+    // None of the gets reached the master
+    LinkedHashMap<String, String> after = client.stats();
+    assertEquals(before.get("cache.hits"), after.get("cache.hits"));
+    assertEquals(before.get("cache.misses"), after.get("cache.misses"));
+  }
+
+  @Test
+  public void testPrimaryDownReadsSecondary() throws Exception {
+    client.put(KEY1, "one");
+    client.enableSmartRouting(60000);
+    SmartRouter router = client.getRouter();
+    assertEquals("one", client.get(KEY1));
+
+    // SLAVE1 is the primary replica of KEY1
+    stopSlave(Long.toString(SLAVE1));
+    assertEquals("one", client.get(KEY1));
+    assertEquals(2, router.getDirectCount());
+    assertTrue(router.getTopologyVersion() >= 0);
+  }
+
+  @Test
+  public void testFallsBackToMaster() throws Exception {
+    client.put(KEY2, "two");
+    client.enableSmartRouting(60000);
+    SmartRouter router = client.getRouter();
+    stopSlave(Long.toString(SLAVE2));
+    stopSlave(Long.toString(SLAVE3));
+    // The master still has KEY2 in its cache
+    assertEquals("two", client.get(KEY2));
+    assertEquals(0, router.getDirectCount());
+    assertEquals(1, router.getFallbackCount());
+  }
+
+  @Test
+  public void testJoinWaitsForRouters() throws Exception {
+    master.setRouterRefresh(300);
+    client.put("key20", "value");
+    client.enableSmartRouting(60000);
+    SmartRouter router = client.getRouter();
+    assertEquals("value", client.get("key20"));
+    assertEquals(1, router.getDirectCount());
+
+    // The new slave takes key20 over; the join waits until the router has
+    // to check the topology again, despite its own long refresh
+    long start = System.currentTimeMillis();
+    startSlave(MigrationTest.SLAVE5);
+    assertTrue(System.currentTimeMillis() - start >= 250);
+    master.awaitMigration();
+    client.put("key20", "changed");
+    assertEquals("changed", client.get("key20"));
+    assertEquals(master.getTopologyVersion(), router.getTopologyVersion());
+  }
+}
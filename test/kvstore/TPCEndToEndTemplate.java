@@ -1,6 +1,10 @@
 package kvstore;
 
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.TIMEOUT;
+
 import java.net.InetAddress;
+import java.net.Socket;
 import java.util.HashMap;
 
 import org.junit.After;
@@ -15,6 +19,7 @@ public class TPCEndToEndTemplate {
   ServerRunner masterClientRunner;
   ServerRunner masterSlaveRunner;
   HashMap<String, ServerRunner> slaveRunners;
+  HashMap<String, KVServer> slaveServers;
 
   static final int CLIENTPORT = 8888;
   static final int SLAVEPORT = 9090;
@@ -38,6 +43,7 @@ public class TPCEndToEndTemplate {
     startMaster();
 
     slaveRunners = new HashMap<String, ServerRunner>();
+    slaveServers = new HashMap<String, KVServer>();
     startSlave(SLAVE1);
     startSlave(SLAVE2);
     startSlave(SLAVE3);
@@ -58,6 +64,7 @@ public class TPCEndToEndTemplate {
     client = null;
     master = null;
     slaveRunners = null;
+    slaveServers = null;
   }
 
   protected void startMaster() throws Exception {
@@ -82,7 +89,7 @@ public class TPCEndToEndTemplate {
     }
 
     SocketServer ss = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 0);
-    KVServer slaveKvs = new KVServer(100, 10);
+    KVServer slaveKvs = newSlaveServer(slaveID);
     Long id = new Long(slaveID);
     File temp = File.createTempFile(id.toString() + "calbandgreat", ".txt");
     temp.deleteOnExit();
@@ -93,10 +100,65 @@ public class TPCEndToEndTemplate {
     ServerRunner slaveRunner = new ServerRunner(ss, name);
     slaveRunner.start();
     slaveRunners.put(name, slaveRunner);
+    slaveServers.put(name, slaveKvs);
 
     handler.registerWithMaster(InetAddress.getLocalHost().getHostAddress(), ss);
   }
 
+  /**
+   * Builds the KVServer of a new slave; tests override this to change how
+   * a slave behaves.
+   */
+  protected KVServer newSlaveServer(long slaveID) {
+    return new KVServer(100, 10);
+  }
+
+  /**
+   * Brings a stopped slave back at the same address, with the data it had.
+   */
+  protected void restartSlave(TPCSlaveInfo slave) throws Exception {
+    String name = Long.toString(slave.getSlaveID());
+    KVServer slaveKvs = slaveServers.get(name);
+    File temp = File.createTempFile(name + "calbandgreat", ".txt");
+    temp.deleteOnExit();
+    TPCMasterHandler handler = new TPCMasterHandler(slave.getSlaveID(), slaveKvs,
+        new TPCLog(temp.getPath(), slaveKvs));
+    SocketServer ss = new SocketServer(slave.getHostname(), slave.getPort());
+    ss.addHandler(handler);
+    ServerRunner slaveRunner = new ServerRunner(ss, name);
+    slaveRunner.start();
+    slaveRunners.put(name, slaveRunner);
+    handler.registerWithMaster(InetAddress.getLocalHost().getHostAddress(), ss);
+  }
+
+  /**
+   * Reads a key from a slave directly, bypassing the master and its cache.
+   *
+   * @return the value, or null if the slave answered with an error
+   */
+  protected static String readFrom(TPCSlaveInfo slave, String key) throws KVException {
+    KVMessage request = new KVMessage(GET_REQ);
+    request.setKey(key);
+    Socket socket = slave.connectHost(TIMEOUT);
+    try {
+      request.sendMessage(socket);
+      KVMessage response = new KVMessage(socket, TIMEOUT);
+      return response.getMessage() == null ? response.getValue() : null;
+    } finally {
+      slave.closeHost(socket);
+    }
+  }
+
+  /**
+   * Puts keys key0 to key(count - 1) through the client, each to value
+   * followed by the same number.
+   */
+  protected void putKeys(int count) throws KVException {
+    for (int i = 0; i < count; i++) {
+      client.put("key" + i, "value" + i);
+    }
+  }
+
   protected void stopSlave(String name) throws InterruptedException {
     ServerRunner sr = slaveRunners.get(name);
     if (sr == null) {
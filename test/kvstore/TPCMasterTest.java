@@ -64,13 +64,12 @@ public class TPCMasterTest {
     master.registerSlave(slave2);
     master.registerSlave(slave3);
     master.registerSlave(slave4);
-    try {
-      master.registerSlave(slave5);
-    } catch (KVException e) {
-      assertEquals(e.getMessage(), ERROR_SLAVE_QUOTA_ALREADY_MET);
-    }
-    assertTrue(master.getNumRegisteredSlaves() == 4);
-    assertEquals(master.getSlave(SLAVE5), null);
+    // Slaves past the expected number join online
+    master.registerSlave(slave5);
+    master.awaitMigration();
+    assertTrue(master.getNumRegisteredSlaves() == 5);
+    assertEquals(master.getSlave(SLAVE5), slave5);
+    assertEquals(5, master.getSlaves().size());
   }
 
   @Test
@@ -0,0 +1,94 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class TimingWheelTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Items fire once their deadline is reached, not before")
+    public void firesAtDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 2, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 30);
+        wheel.schedule("late", 100000);
+        assertEquals(3, wheel.size());
+        assertTrue(wheel.advance(20).isEmpty());
+        assertEquals(Arrays.asList("a", "b"), wheel.advance(30));
+        assertEquals(Collections.<String>emptyList(), wheel.advance(99990));
+        assertEquals(Arrays.asList("late"), wheel.advance(100000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Items cascade through every level and overflow")
+    public void cascadesAcrossLevels() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 2, 0);
+        wheel.schedule(-1L, -5);
+        long[] deadlines = {1, 63, 64, 65, 4095, 4096, 4097, 10000, 300000};
+        for (long deadline : deadlines) {
+            wheel.schedule(deadline, deadline);
+        }
+        List<Long> fired = wheel.advance(1);
+        assertEquals(Arrays.asList(-1L, 1L), fired);
+        for (int i = 1; i < deadlines.length; i++) {
+            assertTrue(wheel.advance(deadlines[i] - 1).isEmpty());
+            assertEquals(Arrays.asList(deadlines[i]), wheel.advance(deadlines[i]));
+        }
+        wheel.schedule(7L, 300007);
+        wheel.clear();
+        assertTrue(wheel.advance(400000).isEmpty());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Cancelled items never fire")
+    public void cancelledItemsDoNotFire() {
+        TimingWheel<String> wheel = new TimingWheel<>(1, 2, 0);
+        TimingWheel.Timer<String> soon = wheel.schedule("soon", 10);
+        TimingWheel.Timer<String> later = wheel.schedule("later", 5000);
+        TimingWheel.Timer<String> overflow = wheel.schedule("overflow", 100000);
+        wheel.schedule("kept", 20);
+        assertTrue(wheel.cancel(soon));
+        assertTrue(wheel.cancel(later));
+        assertTrue(wheel.cancel(overflow));
+        assertFalse(wheel.cancel(soon));
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList("kept"), wheel.advance(200000));
+        assertEquals(0, wheel.size());
+
+        TimingWheel.Timer<String> fired = wheel.schedule("fired", 200001);
+        assertEquals(Arrays.asList("fired"), wheel.advance(200001));
+        assertFalse(wheel.cancel(fired));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "An idle wheel jumps over the time it was idle")
+    public void idleWheelSkipsAhead() {
+        long year = 365L * 24 * 3600 * 1000;
+        TimingWheel<String> wheel = new TimingWheel<>(1, 2, 0);
+        TimingWheel.Timer<String> cancelled = wheel.schedule("cancelled", 5000);
+        wheel.cancel(cancelled);
+        // Walking a year of 1 ms ticks would take far longer than the timeout
+        assertTrue(wheel.advance(year).isEmpty());
+
+        wheel.schedule("next", 2 * year + 10, 2 * year);
+        assertTrue(wheel.advance(2 * year + 9).isEmpty());
+        assertEquals(Arrays.asList("next"), wheel.advance(2 * year + 10));
+        assertEquals(0, wheel.size());
+    }
+
+}
@@ -0,0 +1,77 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class ValueCompressorTest {
+
+    private static String jsonBlob(int records) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            sb.append("{\"id\":").append(i)
+              .append(",\"name\":\"user").append(i % 50)
+              .append("\",\"active\":true,\"tags\":[\"a\",\"b\"]},");
+        }
+        return sb.append("]").toString();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Block codec round trips edge-case inputs")
+    public void roundTripBlocks() {
+        Random rand = new Random(162);
+        byte[] random = new byte[70000];
+        rand.nextBytes(random);
+        byte[] runs = new byte[100000];
+        Arrays.fill(runs, (byte) 'x');
+        byte[][] inputs = {
+            new byte[0], "a".getBytes(), "abcdabcdabcdabcd".getBytes(),
+            random, runs, jsonBlob(2000).getBytes()
+        };
+        for (byte[] input : inputs) {
+            byte[] packed = ValueCompressor.compress(input);
+            assertArrayEquals(input, ValueCompressor.decompress(packed));
+        }
+        assertTrue(ValueCompressor.compress(runs).length < 1000);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Only values over the threshold are compressed")
+    public void packHonorsThreshold() {
+        ValueCompressor compressor = new ValueCompressor(1024);
+        String small = "small value";
+        assertSame(small, compressor.pack(small));
+
+        String blob = jsonBlob(500);
+        CharSequence packed = compressor.pack(blob);
+        assertTrue(packed instanceof CompressedValue);
+        assertTrue(((CompressedValue) packed).compressedSize() < blob.length() / 2);
+        assertEquals(blob.length(), packed.length());
+        assertEquals(blob, packed.toString());
+        assertEquals(1, compressor.getValuesCompressed());
+        assertTrue(compressor.getCompressionRatio() > 2.0);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "String packing round trips raw and compressed values")
+    public void packToStringRoundTrip() {
+        ValueCompressor compressor = new ValueCompressor(64);
+        String blob = jsonBlob(100) + "é中";
+        String packed = compressor.packToString(blob);
+        assertTrue(packed.length() < blob.length());
+        assertEquals(blob, compressor.unpackString(packed));
+        assertEquals("short", compressor.unpackString(compressor.packToString("short")));
+    }
+
+}
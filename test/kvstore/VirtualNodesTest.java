@@ -0,0 +1,117 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ4_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class VirtualNodesTest {
+
+    static final long[] SLAVE_IDS = {
+        4611686018427387903L, 9223372036854775807L, -4611686018427387903L, -1L};
+
+    private static TPCMaster master(int vnodes, int... weights) throws KVException {
+        TPCMaster master = new TPCMaster(SLAVE_IDS.length, new KVCache(1, 4), vnodes);
+        for (int i = 0; i < SLAVE_IDS.length; i++) {
+            int weight = i < weights.length ? weights[i] : 1;
+            master.registerSlave(new TPCSlaveInfo(SLAVE_IDS[i] + "@127.0.0.1:" + (8000 + i)
+                + "/" + weight));
+        }
+        return master;
+    }
+
+    private static TreeMap<Long, TPCSlaveInfo> ring(TPCMaster master) {
+        return RingPartitioner.positions(master.getSlaves(), master.virtualNodes);
+    }
+
+    private static Map<Long, Double> shares(TPCMaster master) {
+        return RingReport.keyspaceShares(ring(master));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "One position per slave keeps the ring placed by slave ID")
+    public void singlePositionIsSlaveID() throws KVException {
+        TPCMaster master = master(1);
+        assertArrayEquals(new Long[] {SLAVE_IDS[0], SLAVE_IDS[1], SLAVE_IDS[2], SLAVE_IDS[3]},
+            ring(master).keySet().toArray(new Long[0]));
+        // Evenly spaced IDs own a quarter each
+        for (double share : shares(master).values()) {
+            assertEquals(0.25, share, 1e-9);
+        }
+        assertEquals(SLAVE_IDS[0], master.findFirstReplica("6666666666666666666").getSlaveID());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Virtual nodes spread ownership by weight")
+    public void virtualNodesFollowWeight() throws KVException {
+        long[] positions = TPCMaster.ringPositions(42L, 8);
+        assertEquals(42L, positions[0]);
+        assertArrayEquals(positions, TPCMaster.ringPositions(42L, 8));
+
+        TPCMaster master = master(256, 1, 1, 2, 1);
+        assertEquals(256 * 5, ring(master).size());
+        Map<Long, Double> shares = shares(master);
+        assertEquals(0.2, shares.get(SLAVE_IDS[0]), 0.05);
+        assertEquals(0.4, shares.get(SLAVE_IDS[2]), 0.05);
+        double total = 0;
+        for (double share : shares.values()) {
+            total += share;
+        }
+        assertEquals(1.0, total, 1e-9);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "The successor of a replica is always another slave")
+    public void successorIsAnotherSlave() throws KVException {
+        TPCMaster master = master(64);
+        for (int i = 0; i < 1000; i++) {
+            TPCSlaveInfo primary = master.findFirstReplica("key" + i);
+            TPCSlaveInfo secondary = master.findSuccessor(primary);
+            assertNotEquals(primary.getSlaveID(), secondary.getSlaveID());
+            assertTrue(master.getSlave(secondary.getSlaveID()) == secondary);
+        }
+        assertEquals(SLAVE_IDS.length, master.getNumRegisteredSlaves());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1, desc = "Array lookups agree with a search of the ring")
+    public void lookupMatchesRing() throws KVException {
+        TPCMaster master = master(32, 1, 3, 1, 2);
+        TreeMap<Long, TPCSlaveInfo> ring = ring(master);
+        Random random = new Random(11);
+        for (int i = 0; i < 10000; i++) {
+            long hash = i == 0 ? -1L : i == 1 ? ring.firstKey() : random.nextLong();
+            Map.Entry<Long, TPCSlaveInfo> entry = ring.ceilingEntry(hash);
+            TPCSlaveInfo expected = entry == null ? ring.firstEntry().getValue() : entry.getValue();
+            assertEquals(expected.getSlaveID(),
+                master.getPlacement().findFirstReplica(hash).getSlaveID());
+        }
+        for (TPCSlaveInfo slave : master.getSlaves()) {
+            // The first position clockwise of its ID held by another slave
+            TPCSlaveInfo expected = null;
+            for (TPCSlaveInfo next : ring.tailMap(slave.getSlaveID(), false).values()) {
+                if (expected == null && next.getSlaveID() != slave.getSlaveID()) {
+                    expected = next;
+                }
+            }
+            for (TPCSlaveInfo next : ring.values()) {
+                if (expected == null && next.getSlaveID() != slave.getSlaveID()) {
+                    expected = next;
+                }
+            }
+            assertEquals(expected.getSlaveID(), master.findSuccessor(slave).getSlaveID());
+        }
+    }
+}
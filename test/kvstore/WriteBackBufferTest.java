@@ -0,0 +1,87 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class WriteBackBufferTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Puts are served from the cache and reach the store on flush")
+    public void putsReachStoreOnFlush() throws KVException {
+        KVStore store = new KVStore();
+        KVServer server = new KVServer(new KVCache(4, 4), store);
+        server.enableWriteBack(100, 100, 60000);
+
+        server.put("a", "1");
+        server.put("b", "2");
+        assertEquals("1", server.get("a"));
+        assertTrue(server.hasKey("b"));
+        assertNull(store.lookup(KVKey.of("a")));
+        assertEquals(2, server.getWriteBack().getDirtyCount());
+
+        server.flush();
+        assertEquals("1", store.lookup(KVKey.of("a")));
+        assertEquals("2", store.lookup(KVKey.of("b")));
+        assertEquals(0, server.getWriteBack().getDirtyCount());
+        assertEquals(2, server.getWriteBack().getFlushedCount());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Dirty entries are flushed when the cache evicts them")
+    public void evictionFlushesDirtyEntry() throws KVException {
+        KVStore store = new KVStore();
+        KVServer server = new KVServer(new KVCache(1, 1), store);
+        server.enableWriteBack(100, 100, 60000);
+
+        server.put("a", "1");
+        server.put("b", "2");
+        assertEquals("1", store.lookup(KVKey.of("a")));
+        assertNull(store.lookup(KVKey.of("b")));
+        assertEquals(1, server.getWriteBack().getEvictionFlushCount());
+        assertEquals("1", server.get("a"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Deleting a dirty key drops its pending write")
+    public void delDropsPendingWrite() throws KVException {
+        KVStore store = new KVStore();
+        KVServer server = new KVServer(new KVCache(4, 4), store);
+        server.enableWriteBack(100, 100, 60000);
+
+        server.put("a", "1");
+        server.del("a");
+        assertFalse(server.hasKey("a"));
+        server.flush();
+        assertNull(store.lookup(KVKey.of("a")));
+        assertNull(server.lookup("a"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Puts are written through once the dirty limit is reached")
+    public void writesThroughWhenFull() throws KVException {
+        KVStore store = new KVStore();
+        KVServer server = new KVServer(new KVCache(4, 4), store);
+        server.enableWriteBack(1, 100, 60000);
+
+        server.put("a", "1");
+        server.put("b", "2");
+        server.put("a", "3");
+        assertNull(store.lookup(KVKey.of("a")));
+        assertEquals("2", store.lookup(KVKey.of("b")));
+        assertEquals(1, server.getWriteBack().getWriteThroughCount());
+        server.flush();
+        assertEquals("3", store.lookup(KVKey.of("a")));
+    }
+
+}
@@ -0,0 +1,65 @@
+package kvstore;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+import static autograder.TestUtils.kTimeoutQuick;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class ZipfianGeneratorTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Zipfian items are in range and skewed towards item 0")
+    public void skewedAndInRange() {
+        ZipfianGenerator zipfian = new ZipfianGenerator(1000, false);
+        Random random = new Random(42);
+        int[] counts = new int[1000];
+        for (int i = 0; i < 100000; i++) {
+            long item = zipfian.next(random);
+            assertTrue(item >= 0 && item < 1000);
+            counts[(int) item]++;
+        }
+        assertTrue(counts[0] > counts[1]);
+        assertTrue(counts[1] > counts[10]);
+        // With theta 0.99 over 1000 items the top item draws about 13%
+        assertTrue(counts[0] > 10000 && counts[0] < 16000);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Scrambled Zipfian moves the hot item away from 0")
+    public void scrambledMovesHotItem() {
+        ZipfianGenerator zipfian = new ZipfianGenerator(1000, true);
+        Random random = new Random(42);
+        int[] counts = new int[1000];
+        for (int i = 0; i < 100000; i++) {
+            counts[(int) zipfian.next(random)]++;
+        }
+        int hottest = 0;
+        for (int i = 1; i < 1000; i++) {
+            if (counts[i] > counts[hottest]) {
+                hottest = i;
+            }
+        }
+        assertTrue(hottest != 0);
+        assertTrue(counts[hottest] > 10000);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Workload mixes pick operations by proportion")
+    public void workloadMixes() {
+        assertEquals(Workload.Op.READ, Workload.A.choose(0.49));
+        assertEquals(Workload.Op.UPDATE, Workload.A.choose(0.51));
+        assertEquals(Workload.Op.READ, Workload.C.choose(0.99));
+        assertEquals(Workload.Op.INSERT, Workload.D.choose(0.96));
+        assertEquals(Workload.Op.SCAN, Workload.E.choose(0.5));
+        assertEquals(Workload.Op.READ_MODIFY_WRITE, Workload.F.choose(0.75));
+        assertEquals("user0000000042", LoadGenerator.keyOf(42));
+    }
+
+}